@@ -2,6 +2,7 @@ package mixer.tools;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.ECKey;
@@ -30,6 +31,24 @@ public strictfp final class AddressGenerator {
 			
 			System.out.println(key.toAddress(wallet.getNetworkParameters()));
 		}
+		else if (args.length == 2) {
+			
+			final File walletFile = new File(args[0]);
+			
+			final int count = Integer.parseInt(args[1]);
+			
+			final Wallet wallet = Wallet.loadFromFile(walletFile);
+			
+			final List<ECKey> keys = ECKey.generateKeys(count);
+			
+			wallet.addKeys(keys);
+			wallet.saveToFile(walletFile);
+			
+			for (final ECKey i : keys) {
+				
+				System.out.println(i.toAddress(wallet.getNetworkParameters()));
+			}
+		}
 		else {
 			
 			System.out.println("BitcoinJ Based Address Generator");
@@ -37,6 +56,7 @@ public strictfp final class AddressGenerator {
 			System.out.println("The address of the key is given as output. ");
 			System.out.println("Usage: ");
 			System.out.println("0 - BitcoinJ Wallet File");
+			System.out.println("1 - Number of keys to generate (optional, defaults to one)");
 			System.out.println();
 			
 			System.out.println("EC Key: ");
@@ -1,11 +1,13 @@
 package mixer.tools;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.concurrent.TimeUnit;
 
 import com.google.bitcoin.core.BlockChain;
+import com.google.bitcoin.core.CheckpointManager;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.PeerAddress;
 import com.google.bitcoin.core.PeerGroup;
@@ -25,13 +27,14 @@ public strictfp final class TransactionBroadcaster {
 	
 	public static void main(final String[] args) throws IOException, BlockStoreException {
 		
-		if (args.length != 2) {
+		if (args.length != 2 && args.length != 3) {
 			
 			System.out.println("Transaction Broadcaster Tool");
 			System.out.println("Broadcasts all transactions in the given wallet to the network. ");
 			System.out.println("Usage: ");
 			System.out.println("0 - BitcoinJ Wallet file");
 			System.out.println("1 - BitcoinJ Chain file");
+			System.out.println("2 - Optional checkpoints file, to start a new chain file near the wallet's keys");
 			
 			return;
 		}
@@ -48,6 +51,21 @@ public strictfp final class TransactionBroadcaster {
 		final NetworkParameters networkParameters = wallet.getNetworkParameters();
 		
 		final BlockStore blockStore = new BoundedOverheadBlockStore(networkParameters, chainFile);
+		
+		if (args.length > 2) {
+			
+			final FileInputStream checkpoints = new FileInputStream(args[2]);
+			
+			try {
+				
+				CheckpointManager.checkpoint(networkParameters, checkpoints, blockStore, wallet.getEarliestKeyCreationTime());
+			}
+			finally {
+				
+				checkpoints.close();
+			}
+		}
+		
 		final BlockChain blockChain = new BlockChain(networkParameters, wallet, blockStore);
 		
 		final PeerGroup peerGroup = new PeerGroup(networkParameters, blockChain);
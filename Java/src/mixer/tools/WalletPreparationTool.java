@@ -1,10 +1,12 @@
 package mixer.tools;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.math.BigInteger;
 import java.util.concurrent.TimeUnit;
 
 import com.google.bitcoin.core.BlockChain;
+import com.google.bitcoin.core.CheckpointManager;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.PeerGroup;
@@ -26,13 +28,14 @@ public strictfp final class WalletPreparationTool {
 	
 	public static void main(final String[] args) throws Exception {
 		
-		if (args.length != 3) {
+		if (args.length != 3 && args.length != 4) {
 			
 			System.out.println("Tool for preparing a wallet for mixing");
 			System.out.println("Usage: ");
 			System.out.println("0 - Path to the wallet file");
 			System.out.println("1 - Path to the blockchain");
 			System.out.println("2 - Amount of BTC to be mixed");
+			System.out.println("3 - Optional path to a checkpoints file, to start a new block-chain near the wallet's keys");
 			
 			return;
 		}
@@ -60,6 +63,21 @@ public strictfp final class WalletPreparationTool {
 		System.out.println("Loading the block-chain... ");
 		
 		final BlockStore blockStore = new BoundedOverheadBlockStore(wallet.getNetworkParameters(), blockchainFile);
+		
+		if (args.length > 3) {
+			
+			final FileInputStream checkpoints = new FileInputStream(args[3]);
+			
+			try {
+				
+				CheckpointManager.checkpoint(wallet.getNetworkParameters(), checkpoints, blockStore, wallet.getEarliestKeyCreationTime());
+			}
+			finally {
+				
+				checkpoints.close();
+			}
+		}
+		
 		final BlockChain blockChain = new BlockChain(wallet.getNetworkParameters(), wallet, blockStore);
 		
 		System.out.println("Blockchain loaded. ");
@@ -128,7 +128,7 @@ public abstract class AbstractBlockChain {
      * Add a wallet to the BlockChain. Note that the wallet will be unaffected by any blocks received while it
      * was not part of this BlockChain. This method is useful if the wallet has just been created, and its keys
      * have never been in use, or if the wallet has been loaded along with the BlockChain. Note that adding multiple
-     * wallets is not well tested!
+     * wallets is not well tested! If you have a lot of them, add them to a {@link WalletDispatcher} instead.
      */
     public synchronized void addWallet(Wallet wallet) {
         listeners.add(wallet);
@@ -732,6 +732,11 @@ public abstract class AbstractBlockChain {
             }
             cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
         }
+        // A store started from a checkpoint has nothing before it, which is why checkpoints are only made at
+        // transitions: this is then the checkpoint itself.
+        if (cursor == null)
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find the block at the previous transition.");
         log.info("Difficulty transition traversal took {}msec", System.currentTimeMillis() - now);
 
         Block blockIntervalAgo = cursor.getHeader();
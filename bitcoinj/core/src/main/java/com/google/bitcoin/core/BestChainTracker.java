@@ -0,0 +1,66 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+
+/**
+ * <p>Counts the blocks and work that have been added to the best chain since a {@link Wallet} switched to lazy
+ * confidence depth (see {@link Wallet#setLazyConfidenceDepth(boolean)}). A {@link TransactionConfidence} attached to a
+ * tracker remembers where the counters stood when its depth and work done were last set, and adds on whatever the
+ * tracker has seen since when it is read. So a new block costs one update here rather than one per transaction.</p>
+ *
+ * <p>The counters are relative rather than absolute chain heights because the wallet only gets block headers in
+ * {@link Wallet#notifyNewBestBlock(Block)}, and so does not always know the height of the chain head.</p>
+ */
+class BestChainTracker {
+    private int blocks;
+    private BigInteger work = BigInteger.ZERO;
+    // The last block counted, so the wallet can advance from both receive() and notifyNewBestBlock() without counting
+    // the same block twice.
+    private Sha256Hash headHash;
+
+    BestChainTracker(Sha256Hash headHash) {
+        this.headHash = headHash;
+    }
+
+    /** Moves the head on to the given block, unless it is already the head. */
+    synchronized void advance(Block block) throws VerificationException {
+        Sha256Hash hash = block.getHash();
+        if (hash.equals(headHash))
+            return;
+        blocks++;
+        work = work.add(block.getWork());
+        headHash = hash;
+    }
+
+    /** Takes blocks off the top of the chain, for a re-org back to the given split point. */
+    synchronized void rewind(int depth, BigInteger workDone, Sha256Hash splitPointHash) {
+        blocks -= depth;
+        work = work.subtract(workDone);
+        headHash = splitPointHash;
+    }
+
+    synchronized int getBlocks() {
+        return blocks;
+    }
+
+    synchronized BigInteger getWork() {
+        return work;
+    }
+}
@@ -31,7 +31,6 @@ import java.util.Date;
 import java.util.List;
 
 import static com.google.bitcoin.core.Utils.doubleDigest;
-import static com.google.bitcoin.core.Utils.doubleDigestTwoBuffers;
 
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Bitcoin system.
@@ -113,6 +112,19 @@ public class Block extends Message {
         super(params, payloadBytes, 0, false, false, payloadBytes.length);
     }
 
+    /**
+     * Constructs a block header from the Bitcoin wire format and a hash that was saved along with it, so that the
+     * hash doesn't have to be calculated again. The hash is not checked: this is for block stores reading back what
+     * they wrote themselves. The header fields are read straight away, so that the block can be shared between
+     * threads and its fields read directly, as toString() does.
+     */
+    public Block(NetworkParameters params, byte[] headerBytes, Sha256Hash hash) throws ProtocolException {
+        super(params, headerBytes, 0, true, false, HEADER_SIZE);
+        Preconditions.checkArgument(headerBytes.length == HEADER_SIZE);
+        this.hash = hash;
+        maybeParseHeader();
+    }
+
     /**
      * Contruct a block object from the BitCoin wire format.
      * @param params NetworkParameters object.
@@ -161,7 +173,9 @@ public class Block extends Message {
         difficultyTarget = readUint32();
         nonce = readUint32();
 
-        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, cursor)));
+        // The hash may have been supplied when the block was constructed.
+        if (hash == null)
+            hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, cursor)));
 
         headerParsed = true;
         headerBytesValid = parseRetain;
@@ -633,11 +647,6 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return new Sha256Hash(tree.get(tree.size() - 1));
-    }
-
-    private List<byte[]> buildMerkleTree() {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -668,28 +677,10 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
+        //
+        // The levels are calculated in place in one buffer by MerkleTreeHasher, in parallel for large blocks.
         maybeParseTransactions();
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
-        }
-        return tree;
+        return MerkleTreeHasher.calculateRoot(transactions);
     }
 
     private void checkTransactions() throws VerificationException {
@@ -927,7 +918,7 @@ public class Block extends Message {
      */
     Block createNextBlock(Address to, TransactionOutPoint prevOut, long time, byte[] pubKey, BigInteger coinbaseValue) {
         Block b = new Block(params);
-        b.setDifficultyTarget(difficultyTarget);
+        b.setDifficultyTarget(getDifficultyTarget());
         b.addCoinbaseTransaction(pubKey, coinbaseValue);
 
         if (to != null) {
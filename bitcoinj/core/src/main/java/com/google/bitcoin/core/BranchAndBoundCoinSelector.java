@@ -0,0 +1,116 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link CoinSelector} that searches for a set of outputs adding up exactly to the target, so that no change
+ * output is needed at all. "Exactly" can be loosened with a cost of change: any total in
+ * [target, target + costOfChange] is accepted, the excess going to miners as fee instead of creating a change output
+ * that would cost about as much to spend later.</p>
+ *
+ * <p>The search is a depth first branch and bound over the candidates, largest first, which prunes any branch that
+ * either overshoots the window or can no longer reach the target with what's left. It gives up after a bounded number
+ * of steps, and when no match is found the selection is delegated to a fallback selector.</p>
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    /** The default number of search steps before giving up and using the fallback selector. */
+    public static final int DEFAULT_MAX_TRIES = 100000;
+
+    private final BigInteger costOfChange;
+    private final int maxTries;
+    private final CoinSelector fallback;
+
+    /** Creates a selector that only accepts exact matches and falls back to a {@link ClosestValueCoinSelector}. */
+    public BranchAndBoundCoinSelector() {
+        this(BigInteger.ZERO, DEFAULT_MAX_TRIES, new ClosestValueCoinSelector());
+    }
+
+    /**
+     * @param costOfChange how much more than the target a match may add up to.
+     * @param maxTries how many search steps to take before giving up.
+     * @param fallback the selector to use when no match was found.
+     */
+    public BranchAndBoundCoinSelector(BigInteger costOfChange, int maxTries, CoinSelector fallback) {
+        checkArgument(costOfChange.compareTo(BigInteger.ZERO) >= 0);
+        checkArgument(maxTries > 0);
+        this.costOfChange = costOfChange;
+        this.maxTries = maxTries;
+        this.fallback = checkNotNull(fallback);
+    }
+
+    public CoinSelection select(BigInteger target, List<TransactionOutput> candidates) {
+        CoinSelection match = search(target, candidates);
+        return match != null ? match : fallback.select(target, candidates);
+    }
+
+    private CoinSelection search(BigInteger target, List<TransactionOutput> candidates) {
+        // Work in nanocoins, largest output first. remaining[i] is the sum of values[i..n-1].
+        final int n = candidates.size();
+        final long low = target.longValue();
+        final long high = target.add(costOfChange).longValue();
+        if (low <= 0)
+            return null;
+        long[] values = new long[n];
+        long[] remaining = new long[n + 1];
+        for (int i = 0; i < n; i++)
+            values[i] = candidates.get(n - 1 - i).getValue().longValue();
+        for (int i = n - 1; i >= 0; i--)
+            remaining[i] = remaining[i + 1] + values[i];
+
+        // Every entry at or above depth is always false, so the current set is selected[0..depth).
+        boolean[] selected = new boolean[n];
+        long current = 0;
+        int depth = 0;
+        for (int tries = 0; tries < maxTries; tries++) {
+            if (current >= low && current <= high)
+                return toSelection(candidates, selected, current);
+            if (current + remaining[depth] < low || current > high) {
+                // This branch can't produce a match. Drop the most recently included output and try without it.
+                depth--;
+                while (depth >= 0 && !selected[depth])
+                    depth--;
+                if (depth < 0)
+                    return null;  // Searched everything.
+                selected[depth] = false;
+                current -= values[depth];
+                depth++;
+            } else {
+                selected[depth] = true;
+                current += values[depth];
+                depth++;
+            }
+        }
+        return null;
+    }
+
+    private static CoinSelection toSelection(List<TransactionOutput> candidates, boolean[] selected, long total) {
+        final int n = candidates.size();
+        LinkedList<TransactionOutput> gathered = new LinkedList<TransactionOutput>();
+        for (int i = 0; i < n; i++) {
+            if (selected[i])
+                gathered.add(candidates.get(n - 1 - i));
+        }
+        return new CoinSelection(BigInteger.valueOf(total), gathered);
+    }
+}
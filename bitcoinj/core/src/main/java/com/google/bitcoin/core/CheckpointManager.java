@@ -0,0 +1,193 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Reads a file of checkpoints: blocks at known heights, with the chain work up to them, that a new block store can
+ * start from instead of the genesis block. An SPV client only needs the headers from a little before its wallet's
+ * earliest key onwards, so seeding its store with {@link #checkpoint(NetworkParameters, InputStream, BlockStore, long)}
+ * saves downloading (and storing) the rest.</p>
+ *
+ * <p>Checkpoints are only accepted at difficulty transition heights (multiples of
+ * {@link NetworkParameters#interval}). The next transition then looks back exactly as far as the checkpoint, so
+ * {@link AbstractBlockChain} can still check it without any of the blocks before the checkpoint.</p>
+ *
+ * <p>The file starts with the ASCII bytes of {@link #MAGIC}, the {@link NetworkParameters#getId() network id} as
+ * written by {@link DataOutputStream#writeUTF(String)} and a big endian count of checkpoints. Each checkpoint is its
+ * big endian height, block hash, chain work as a 16 byte unsigned big endian number and 80 byte header, in ascending
+ * order of height. {@link #write(NetworkParameters, List, OutputStream)} writes one.</p>
+ */
+public class CheckpointManager {
+    private static final Logger log = LoggerFactory.getLogger(CheckpointManager.class);
+
+    public static final String MAGIC = "CHECKPOINTS 1";
+
+    private static final int CHAIN_WORK_BYTES = 16;
+
+    // Key creation times come from the user's clock and block times may be a couple of hours off, so start from a
+    // checkpoint comfortably before the earliest key.
+    private static final long SAFETY_MARGIN_SECONDS = 7 * 24 * 60 * 60;
+
+    private final NetworkParameters params;
+    private final List<StoredBlock> checkpoints;
+
+    /**
+     * Reads and checks the checkpoints in the given stream, which is left open.
+     * @throws IOException if the stream can't be read, isn't a checkpoint file for these parameters, or any of the
+     * checkpoints is not a valid block at a difficulty transition height
+     */
+    public CheckpointManager(NetworkParameters params, InputStream inputStream) throws IOException {
+        this.params = params;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        byte[] magic = new byte[MAGIC.length()];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC.getBytes("US-ASCII")))
+            throw new IOException("Not a checkpoint file");
+        String id = in.readUTF();
+        if (!id.equals(params.getId()))
+            throw new IOException("Checkpoints are for " + id + ", not " + params.getId());
+        int count = in.readInt();
+        if (count < 0)
+            throw new IOException("Bad checkpoint count " + count);
+        List<StoredBlock> checkpoints = new ArrayList<StoredBlock>(count);
+        byte[] hash = new byte[32];
+        byte[] chainWork = new byte[CHAIN_WORK_BYTES];
+        byte[] header = new byte[Block.HEADER_SIZE];
+        StoredBlock last = null;
+        for (int i = 0; i < count; i++) {
+            int height = in.readInt();
+            in.readFully(hash);
+            in.readFully(chainWork);
+            in.readFully(header);
+            StoredBlock checkpoint;
+            try {
+                Block block = new Block(params, header.clone());
+                if (!block.getHash().equals(new Sha256Hash(hash)))
+                    throw new IOException("Checkpoint at height " + height + " does not match its hash");
+                block.verifyHeader();
+                checkpoint = new StoredBlock(block, new BigInteger(1, chainWork), height);
+            } catch (ProtocolException e) {
+                throw new IOException("Checkpoint at height " + height + " can't be parsed", e);
+            } catch (VerificationException e) {
+                throw new IOException("Checkpoint at height " + height + " is not a valid block", e);
+            }
+            if (height <= 0 || height % params.interval != 0)
+                throw new IOException("Checkpoint at height " + height + " is not at a difficulty transition");
+            if (!params.passesCheckpoint(height, checkpoint.getHeader().getHash()))
+                throw new IOException("Checkpoint at height " + height + " contradicts the built in checkpoints");
+            if (last != null && (height <= last.getHeight() || !checkpoint.moreWorkThan(last)))
+                throw new IOException("Checkpoint at height " + height + " is out of order");
+            checkpoints.add(checkpoint);
+            last = checkpoint;
+        }
+        this.checkpoints = Collections.unmodifiableList(checkpoints);
+        log.info("Read {} checkpoints", count);
+    }
+
+    /** Returns the checkpoints in ascending order of height. */
+    public List<StoredBlock> getCheckpoints() {
+        return checkpoints;
+    }
+
+    /**
+     * Returns the last checkpoint with a timestamp at or before the given time, or the genesis block if there is
+     * none.
+     */
+    public StoredBlock getCheckpointBefore(long timeSecs) {
+        for (int i = checkpoints.size() - 1; i >= 0; i--) {
+            StoredBlock checkpoint = checkpoints.get(i);
+            if (checkpoint.getHeader().getTimeSeconds() <= timeSecs)
+                return checkpoint;
+        }
+        try {
+            Block genesis = params.genesisBlock.cloneAsHeader();
+            return new StoredBlock(genesis, genesis.getWork(), 0);
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /**
+     * <p>Moves a block store that is behind the checkpoints forward to the last checkpoint a week or more before the
+     * given time, which is normally {@link Wallet#getEarliestKeyCreationTime()}. A time of zero means the key
+     * creation time is unknown and leaves the store alone, as does a store whose chain head is already at or past
+     * the checkpoint.</p>
+     *
+     * <p>This must happen before a {@link BlockChain} is created on the store, as the chain reads the chain head when
+     * it is created.</p>
+     *
+     * @return the chain head of the store afterwards
+     */
+    public static StoredBlock checkpoint(NetworkParameters params, InputStream checkpoints, BlockStore store,
+                                         long timeSecs) throws IOException, BlockStoreException {
+        checkArgument(timeSecs >= 0);
+        StoredBlock head = store.getChainHead();
+        if (timeSecs == 0)
+            return head;
+        StoredBlock checkpoint = new CheckpointManager(params, checkpoints)
+                .getCheckpointBefore(timeSecs - SAFETY_MARGIN_SECONDS);
+        if (checkpoint.getHeight() <= head.getHeight())
+            return head;
+        log.info("Starting the block store at checkpoint {} at height {}",
+                checkpoint.getHeader().getHashAsString(), checkpoint.getHeight());
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+        return checkpoint;
+    }
+
+    /**
+     * Writes the given blocks, which must be in ascending order of height and at difficulty transition heights, as a
+     * checkpoint file. The stream is flushed but left open.
+     */
+    public static void write(NetworkParameters params, List<StoredBlock> checkpoints, OutputStream outputStream)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+        out.write(MAGIC.getBytes("US-ASCII"));
+        out.writeUTF(params.getId());
+        out.writeInt(checkpoints.size());
+        for (StoredBlock checkpoint : checkpoints) {
+            checkArgument(checkpoint.getHeight() % params.interval == 0,
+                    "Checkpoint at height %s is not at a difficulty transition", checkpoint.getHeight());
+            checkArgument(checkpoint.getChainWork().bitLength() <= CHAIN_WORK_BYTES * 8, "Chain work too large");
+            byte[] chainWork = checkpoint.getChainWork().toByteArray();
+            // toByteArray() may add a zero byte for the sign.
+            if (chainWork.length > CHAIN_WORK_BYTES)
+                chainWork = Arrays.copyOfRange(chainWork, chainWork.length - CHAIN_WORK_BYTES, chainWork.length);
+            out.writeInt(checkpoint.getHeight());
+            out.write(checkpoint.getHeader().getHash().getBytes());
+            out.write(new byte[CHAIN_WORK_BYTES - chainWork.length]);
+            out.write(chainWork);
+            out.write(checkpoint.getHeader().cloneAsHeader().bitcoinSerialize());
+        }
+        out.flush();
+    }
+}
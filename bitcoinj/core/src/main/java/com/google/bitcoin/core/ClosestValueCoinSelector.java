@@ -0,0 +1,68 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>A {@link CoinSelector} that tries to keep change small, in the spirit of the reference clients algorithm:</p>
+ *
+ * <ol>
+ *     <li>If a single output has exactly the target value, spend only that.</li>
+ *     <li>Otherwise gather outputs smaller than the target, largest first, until the target is covered.</li>
+ *     <li>If the smallest single output that is larger than the target would result in less change than that, or
+ *     the smaller outputs can't cover the target at all, spend that one output instead.</li>
+ * </ol>
+ *
+ * <p>Because the candidates arrive sorted, all of this is a binary search plus one backwards walk.</p>
+ */
+public class ClosestValueCoinSelector implements CoinSelector {
+    public CoinSelection select(BigInteger target, List<TransactionOutput> candidates) {
+        // Index of the first output whose value is >= target.
+        int low = 0, high = candidates.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (candidates.get(mid).getValue().compareTo(target) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        TransactionOutput lowestLarger = low < candidates.size() ? candidates.get(low) : null;
+        if (lowestLarger != null && lowestLarger.getValue().equals(target))
+            return single(lowestLarger);
+
+        BigInteger valueGathered = BigInteger.ZERO;
+        LinkedList<TransactionOutput> gathered = new LinkedList<TransactionOutput>();
+        for (int i = low - 1; i >= 0 && valueGathered.compareTo(target) < 0; i--) {
+            TransactionOutput output = candidates.get(i);
+            gathered.add(output);
+            valueGathered = valueGathered.add(output.getValue());
+        }
+        if (lowestLarger != null &&
+                (valueGathered.compareTo(target) < 0 || lowestLarger.getValue().compareTo(valueGathered) <= 0))
+            return single(lowestLarger);
+        return new CoinSelection(valueGathered, gathered);
+    }
+
+    private static CoinSelection single(TransactionOutput output) {
+        LinkedList<TransactionOutput> gathered = new LinkedList<TransactionOutput>();
+        gathered.add(output);
+        return new CoinSelection(output.getValue(), gathered);
+    }
+}
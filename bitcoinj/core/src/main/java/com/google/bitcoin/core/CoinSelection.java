@@ -0,0 +1,44 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.Collection;
+
+/**
+ * Represents the results of a {@link CoinSelector#select(java.math.BigInteger, java.util.List)} operation. A coin
+ * selection represents a list of spendable transaction outputs that sum together to give valueGathered.
+ */
+public class CoinSelection {
+    public final BigInteger valueGathered;
+    public final Collection<TransactionOutput> gathered;
+    /**
+     * Where the change should go, or null to leave it to the wallet. A selector that keeps coins apart, as a mixing
+     * wallet does, can use this so that change doesn't link the spend to the wallet's other coins.
+     */
+    public final Address changeAddress;
+
+    public CoinSelection(BigInteger valueGathered, Collection<TransactionOutput> gathered) {
+        this(valueGathered, gathered, null);
+    }
+
+    public CoinSelection(BigInteger valueGathered, Collection<TransactionOutput> gathered, Address changeAddress) {
+        this.valueGathered = valueGathered;
+        this.gathered = gathered;
+        this.changeAddress = changeAddress;
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * <p>A CoinSelector is responsible for picking some outputs to spend, from the list of all spendable outputs the
+ * wallet has. It allows you to customize the policies for creation of transactions to suit your needs, for instance
+ * to minimize the size of the resulting transaction or to consolidate lots of small outputs.</p>
+ *
+ * <p>Set one on the wallet with {@link Wallet#setCoinSelector(CoinSelector)}, or on a single send with
+ * {@link Wallet.SendRequest#coinSelector}.</p>
+ */
+public interface CoinSelector {
+    /**
+     * Picks outputs whose total value is at least the given target. The candidates are the confirmed, mature,
+     * unspent outputs the wallet owns and are provided in ascending order of value. Implementations must not modify
+     * the list.
+     *
+     * @return a {@link CoinSelection} whose value gathered may be less than target if the candidates cannot cover it.
+     */
+    public CoinSelection select(BigInteger target, List<TransactionOutput> candidates);
+}
@@ -20,11 +20,7 @@ import com.google.common.base.Preconditions;
 import org.spongycastle.asn1.*;
 import org.spongycastle.asn1.sec.SECNamedCurves;
 import org.spongycastle.asn1.x9.X9ECParameters;
-import org.spongycastle.crypto.AsymmetricCipherKeyPair;
-import org.spongycastle.crypto.generators.ECKeyPairGenerator;
 import org.spongycastle.crypto.params.ECDomainParameters;
-import org.spongycastle.crypto.params.ECKeyGenerationParameters;
-import org.spongycastle.crypto.params.ECPrivateKeyParameters;
 import org.spongycastle.crypto.params.ECPublicKeyParameters;
 import org.spongycastle.crypto.signers.ECDSASigner;
 import org.spongycastle.math.ec.ECCurve;
@@ -39,7 +35,9 @@ import java.math.BigInteger;
 import java.nio.charset.Charset;
 import java.security.SecureRandom;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
@@ -90,22 +88,47 @@ public class ECKey implements Serializable {
      * (32 for the co-ordinate and 1 byte to represent the y bit).
      */
     public ECKey() {
-        ECKeyPairGenerator generator = new ECKeyPairGenerator();
-        ECKeyGenerationParameters keygenParams = new ECKeyGenerationParameters(ecParams, secureRandom);
-        generator.init(keygenParams);
-        AsymmetricCipherKeyPair keypair = generator.generateKeyPair();
-        ECPrivateKeyParameters privParams = (ECPrivateKeyParameters) keypair.getPrivate();
-        ECPublicKeyParameters pubParams = (ECPublicKeyParameters) keypair.getPublic();
-        priv = privParams.getD();
-        // Unfortunately Bouncy Castle does not let us explicitly change a point to be compressed, even though it
-        // could easily do so. We must re-build it here so the ECPoints withCompression flag can be set to true.
-        ECPoint uncompressed = pubParams.getQ();
-        ECPoint compressed = new ECPoint.Fp(ecParams.getCurve(), uncompressed.getX(), uncompressed.getY(), true);
-        pub = compressed.getEncoded();
-
+        priv = newPrivateKey();
+        pub = publicKeyFromPrivate(priv, true);
         creationTimeSeconds = Utils.now().getTime() / 1000;
     }
 
+    /**
+     * Generates count new keypairs, as the empty constructor would. Making the public keys together is cheaper than
+     * making them one at a time, so use this when you need many keys, for example to fill a wallet.
+     */
+    public static List<ECKey> generateKeys(int count) {
+        checkArgument(count >= 0);
+        List<ECKey> keys = new ArrayList<ECKey>(count);
+        if (count == 0)
+            return keys;
+        BigInteger[] privKeys = new BigInteger[count];
+        Secp256k1.JacobianPoint[] points = new Secp256k1.JacobianPoint[count];
+        for (int i = 0; i < count; i++) {
+            privKeys[i] = newPrivateKey();
+            points[i] = Secp256k1.multiplyG(privKeys[i]);
+        }
+        // One field inversion for the whole lot.
+        int[][] affine = Secp256k1.toAffine(points);
+        long now = Utils.now().getTime() / 1000;
+        for (int i = 0; i < count; i++) {
+            ECKey key = new ECKey(privKeys[i], Secp256k1.encode(affine[2 * i], affine[2 * i + 1], true));
+            key.creationTimeSeconds = now;
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    /** Picks a private key uniformly from [1, n - 1], the same way Bouncy Castle's ECKeyPairGenerator does. */
+    private static BigInteger newPrivateKey() {
+        BigInteger n = ecParams.getN();
+        BigInteger d;
+        do {
+            d = new BigInteger(n.bitLength(), secureRandom);
+        } while (d.signum() == 0 || d.compareTo(n) >= 0);
+        return d;
+    }
+
     /**
      * Construct an ECKey from an ASN.1 encoded private key. These are produced by OpenSSL and stored by the BitCoin
      * reference implementation in its wallet. Note that this is slow because it requires an EC point multiply.
@@ -184,7 +207,16 @@ public class ECKey implements Serializable {
      * new BigInteger(1, bytes);</tt>
      */
     public static byte[] publicKeyFromPrivate(BigInteger privKey) {
-        return ecParams.getG().multiply(privKey).getEncoded();
+        // Keys out of range are left to Bouncy Castle, which has its own ideas about what they mean.
+        if (privKey.signum() <= 0 || privKey.compareTo(ecParams.getN()) >= 0)
+            return ecParams.getG().multiply(privKey).getEncoded();
+        return publicKeyFromPrivate(privKey, false);
+    }
+
+    /** Derives the public key from a private key in [1, n - 1] using the precomputed multiples of the generator. */
+    private static byte[] publicKeyFromPrivate(BigInteger privKey, boolean compressed) {
+        int[][] affine = Secp256k1.toAffine(new Secp256k1.JacobianPoint[] { Secp256k1.multiplyG(privKey) });
+        return Secp256k1.encode(affine[0], affine[1], compressed);
     }
 
     /** Gets the hash160 form of the public key (as seen in addresses). */
@@ -278,11 +310,20 @@ public class ECKey implements Serializable {
     public ECDSASignature sign(Sha256Hash input) {
         if (priv == null)
             throw new IllegalStateException("This ECKey does not have the private key necessary for signing.");
-        ECDSASigner signer = new ECDSASigner();
-        ECPrivateKeyParameters privKey = new ECPrivateKeyParameters(priv, ecParams);
-        signer.init(true, privKey);
-        BigInteger[] sigs = signer.generateSignature(input.getBytes());
-        return new ECDSASignature(sigs[0], sigs[1]);
+        // This is ECDSASigner.generateSignature, with k * G worked out from the precomputed multiples of G.
+        BigInteger n = ecParams.getN();
+        BigInteger e = new BigInteger(1, input.getBytes());
+        BigInteger r, s;
+        do {
+            BigInteger k;
+            do {
+                k = newPrivateKey();
+                int[][] affine = Secp256k1.toAffine(new Secp256k1.JacobianPoint[] { Secp256k1.multiplyG(k) });
+                r = Secp256k1Field.toBigInteger(affine[0]).mod(n);
+            } while (r.signum() == 0);
+            s = k.modInverse(n).multiply(e.add(priv.multiply(r))).mod(n);
+        } while (s.signum() == 0);
+        return new ECDSASignature(r, s);
     }
 
     /**
@@ -293,6 +334,14 @@ public class ECKey implements Serializable {
      * @param pub       The public key bytes to use.
      */
     public static boolean verify(byte[] data, byte[] signature, byte[] pub) {
+        return Secp256k1Verifier.verify(data, signature, pub);
+    }
+
+    /**
+     * Does the same as {@link #verify(byte[], byte[], byte[])} using Bouncy Castle. {@link Secp256k1Verifier} falls
+     * back to this for inputs it doesn't handle itself.
+     */
+    static boolean verifyWithBouncyCastle(byte[] data, byte[] signature, byte[] pub) {
         ECDSASigner signer = new ECDSASigner();
         ECPublicKeyParameters params = new ECPublicKeyParameters(ecParams.getCurve().decodePoint(pub), ecParams);
         signer.init(false, params);
@@ -23,8 +23,12 @@ import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 /**
  * <p>A FullPrunedBlockChain works in conjunction with a {@link FullPrunedBlockStore} to verify all the rules of the
@@ -90,8 +94,6 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         return true;
     }
     
-    //TODO: Remove lots of duplicated code in the two connectTransactions
-    
     ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
     
     @Override
@@ -103,139 +105,15 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new VerificationException("Block failed checkpoint lockin at " + height);
 
         blockStore.beginDatabaseBatchWrite();
-
-        LinkedList<StoredTransactionOutput> txOutsSpent = new LinkedList<StoredTransactionOutput>();
-        LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();  
-        long sigOps = 0;
-        final boolean enforceBIP16 = block.getTimeSeconds() >= params.BIP16_ENFORCE_TIME;
-        
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
         try {
-            if (!params.isCheckpoint(height)) {
-                // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
-                // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
-                // BIP30 document for more details on this: https://en.bitcoin.it/wiki/BIP_0030
-                for (Transaction tx : block.transactions) {
-                    Sha256Hash hash = tx.getHash();
-                    // If we already have unspent outputs for this hash, we saw the tx already. Either the block is
-                    // being added twice (bug) or the block is a BIP30 violator.
-                    if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
-                        throw new VerificationException("Block failed BIP30 test!");
-                    if (enforceBIP16) // We already check non-BIP16 sigops in Block.verifyTransactions(true)
-                        sigOps += tx.getSigOpCount();
-                }
-            }
-            BigInteger totalFees = BigInteger.ZERO;
-            BigInteger coinbaseValue = null;
-            for (Transaction tx : block.transactions) {
-                boolean isCoinBase = tx.isCoinBase();
-                BigInteger valueIn = BigInteger.ZERO;
-                BigInteger valueOut = BigInteger.ZERO;
-                if (!isCoinBase) {
-                    // For each input of the transaction remove the corresponding output from the set of unspent
-                    // outputs.
-                    for (int index = 0; index < tx.getInputs().size(); index++) {
-                        TransactionInput in = tx.getInputs().get(index);
-                        StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                          in.getOutpoint().getIndex());
-                        if (prevOut == null)
-                            throw new VerificationException("Attempted to spend a non-existent or already spent output!");
-                        // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
-                        // chains. The assumption is there will ~never be re-orgs deeper than the spendable coinbase
-                        // chain depth.
-                        if (height - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
-                            throw new VerificationException("Tried to spend coinbase at depth " + (height - prevOut.getHeight()));
-                        // TODO: Check we're not spending the genesis transaction here. Satoshis code won't allow it.
-                        valueIn = valueIn.add(prevOut.getValue());
-                        if (enforceBIP16) {
-                            if (new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length).isPayToScriptHash())
-                                sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
-                            if (sigOps > Block.MAX_BLOCK_SIGOPS)
-                                throw new VerificationException("Too many P2SH SigOps in block");
-                        }
-                        
-                        // All of these copies are terribly ugly, however without them,
-                        // I see some odd concurrency issues where scripts throw exceptions
-                        // (mostly "Attempted OP_* on empty stack" or similar) when they shouldn't.
-                        // In my tests, total time spent in com.google.bitcoin.core when
-                        // downloading the chain is < 0.5%, so doing this is no big efficiency issue.
-                        // TODO: Find out the underlying issue and create a better work-around
-                        final int currentIndex = index;
-                        final Transaction txCache;
-                        try {
-                            txCache = new Transaction(params, tx.unsafeBitcoinSerialize());
-                        } catch (ProtocolException e1) {
-                            throw new RuntimeException(e1);
-                        }
-                        final Script scriptSig = in.getScriptSig();
-                        final Script scriptPubKey = new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length);
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Callable<VerificationException>() {
-                            public VerificationException call() {
-                                try{
-                                    scriptSig.correctlySpends(txCache, currentIndex, scriptPubKey, enforceBIP16);
-                                } catch (VerificationException e) {
-                                    return e;
-                                }
-                                return null;
-                            }});
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
-                        
-                        //in.getScriptSig().correctlySpends(tx, index, new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length));
-                        
-                        blockStore.removeUnspentTransactionOutput(prevOut);
-                        txOutsSpent.add(prevOut);
-                    }
-                }
-                Sha256Hash hash = tx.getHash();
-                for (TransactionOutput out : tx.getOutputs()) {
-                    valueOut = valueOut.add(out.getValue());
-                    // For each output, add it to the set of unspent outputs so it can be consumed in future.
-                    StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
-                            height, isCoinBase, out.getScriptBytes());
-                    blockStore.addUnspentTransactionOutput(newOut);
-                    txOutsCreated.add(newOut);
-                }
-                // All values were already checked for being non-negative (as it is verified in Transaction.verify())
-                // but we check again here just for defence in depth. Transactions with zero output value are OK.
-                if (valueOut.compareTo(BigInteger.ZERO) < 0 || valueOut.compareTo(params.MAX_MONEY) > 0)
-                    throw new VerificationException("Transaction output value out of rage");
-                if (isCoinBase) {
-                    coinbaseValue = valueOut;
-                } else {
-                    if (valueIn.compareTo(valueOut) < 0 || valueIn.compareTo(params.MAX_MONEY) > 0)
-                        throw new VerificationException("Transaction input value out of range");
-                    totalFees = totalFees.add(valueIn.subtract(valueOut));
-                }
-            }
-            if (totalFees.compareTo(params.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
-                throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.");
-                }
-                if (e != null)
-                    throw e;
-            }
+            return connectTransactions(height, block, block.transactions);
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
-        return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
     }
 
     @Override
@@ -258,110 +136,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
-                LinkedList<StoredTransactionOutput> txOutsSpent = new LinkedList<StoredTransactionOutput>();
-                LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();
-                long sigOps = 0;
-                final boolean enforcePayToScriptHash = newBlock.getHeader().getTimeSeconds() >= params.BIP16_ENFORCE_TIME;
-                if (!params.isCheckpoint(newBlock.getHeight())) {
-                    for(Transaction tx : transactions) {
-                        Sha256Hash hash = tx.getHash();
-                        if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
-                            throw new VerificationException("Block failed BIP30 test!");
-                    }
-                }
-                BigInteger totalFees = BigInteger.ZERO;
-                BigInteger coinbaseValue = null;
-                
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
-                for(final Transaction tx : transactions) {
-                    boolean isCoinBase = tx.isCoinBase();
-                    BigInteger valueIn = BigInteger.ZERO;
-                    BigInteger valueOut = BigInteger.ZERO;
-                    if (!isCoinBase) {
-                        for (int index = 0; index < tx.getInputs().size(); index++) {
-                            final TransactionInput in = tx.getInputs().get(index);
-                            final StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                                    in.getOutpoint().getIndex());
-                            if (prevOut == null)
-                                throw new VerificationException("Attempted spend of a non-existent or already spent output!");
-                            if (newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
-                                throw new VerificationException("Tried to spend coinbase at depth " + (newBlock.getHeight() - prevOut.getHeight()));
-                            valueIn = valueIn.add(prevOut.getValue());
-                            if (enforcePayToScriptHash) {
-                                Script script = new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length);
-                                if (script.isPayToScriptHash())
-                                    sigOps += Script.getP2SHSigOpCount(in.getScriptBytes());
-                                if (sigOps > Block.MAX_BLOCK_SIGOPS)
-                                    throw new VerificationException("Too many P2SH SigOps in block");
-                            }
-                            
-                            // All of these copies are terribly ugly, however without them,
-                            // I see some odd concurrency issues where scripts throw exceptions
-                            // (mostly "Attempted OP_* on empty stack" or similar) when they shouldn't.
-                            // In my tests, total time spent in com.google.bitcoin.core when
-                            // downloading the chain is < 0.5%, so doing this is no big efficiency issue.
-                            // TODO: Find out the underlying issue and create a better work-around
-                            // TODO: Thoroughly test that this fixes the issue like the non-StoredBlock version does
-                            final int currentIndex = index;
-                            final Script scriptSig  = in.getScriptSig();
-                            final Script scriptPubKey = new Script(params, prevOut.getScriptBytes(), 0, prevOut.getScriptBytes().length);
-                            FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Callable<VerificationException>() {
-                                public VerificationException call() {
-                                    try{
-                                        scriptSig.correctlySpends(tx, currentIndex, scriptPubKey, enforcePayToScriptHash);
-                                    } catch (VerificationException e) {
-                                        return e;
-                                    }
-                                    return null;
-                                }
-                            });
-                            scriptVerificationExecutor.execute(future);
-                            listScriptVerificationResults.add(future);
-                            
-                            blockStore.removeUnspentTransactionOutput(prevOut);
-                            txOutsSpent.add(prevOut);
-                        }
-                    }
-                    Sha256Hash hash = tx.getHash();
-                    for (TransactionOutput out : tx.getOutputs()) {
-                        valueOut = valueOut.add(out.getValue());
-                        StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
-                                                                                     newBlock.getHeight(), isCoinBase,
-                                                                                     out.getScriptBytes());
-                        blockStore.addUnspentTransactionOutput(newOut);
-                        txOutsCreated.add(newOut);
-                    }
-                    // All values were already checked for being non-negative (as it is verified in Transaction.verify())
-                    // but we check again here just for defence in depth. Transactions with zero output value are OK.
-                    if (valueOut.compareTo(BigInteger.ZERO) < 0 || valueOut.compareTo(params.MAX_MONEY) > 0)
-                        throw new VerificationException("Transaction output value out of rage");
-                    if (isCoinBase) {
-                        coinbaseValue = valueOut;
-                    } else {
-                        if (valueIn.compareTo(valueOut) < 0 || valueIn.compareTo(params.MAX_MONEY) > 0)
-                            throw new VerificationException("Transaction input value out of range");
-                        totalFees = totalFees.add(valueIn.subtract(valueOut));
-                    }
-                }
-                if (totalFees.compareTo(params.MAX_MONEY) > 0 ||
-                        newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
-                    throw new VerificationException("Transaction fees out of range");
-                txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.");
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                txOutChanges = connectTransactions(newBlock.getHeight(), newBlock.getHeader(), transactions);
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -376,16 +151,228 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
         return txOutChanges;
     }
+
+    /**
+     * Checks the transactions of a block against the unspent outputs and then makes the changes to them, in stages:
+     * <ol>
+     * <li>On this thread, find the output each input spends, in the store or earlier in the block. This is the only
+     * stage that reads the store, which may only show its uncommitted changes to this thread.</li>
+     * <li>Check each transaction's values, coinbase maturity and signature operations as a task on
+     * {@link #scriptVerificationExecutor}, started as soon as its inputs have been found.</li>
+     * <li>Check the script of each input as another task, started at the same time.</li>
+     * <li>Once every check has passed, remove the spent outputs from the store and add the new ones, in block
+     * order.</li>
+     * </ol>
+     * Nothing in the store is changed if the block is invalid. Failures are reported in block order, transaction
+     * checks before scripts, whatever order the tasks finish in.
+     */
+    private TransactionOutputChanges connectTransactions(final int height, Block header,
+                                                         List<Transaction> transactions)
+            throws VerificationException, BlockStoreException {
+        final boolean enforceBIP16 = header.getTimeSeconds() >= params.BIP16_ENFORCE_TIME;
+        final boolean checkBIP30 = !params.isCheckpoint(height);
+        if (scriptVerificationExecutor.isShutdown())
+            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            if (checkBIP30) {
+                // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
+                // checkpoints list and we therefore only check non-checkpoints for duplicated transactions here. See the
+                // BIP30 document for more details on this: https://en.bitcoin.it/wiki/BIP_0030
+                for (Transaction tx : transactions) {
+                    // If we already have unspent outputs for this hash, we saw the tx already. Either the block is
+                    // being added twice (bug) or the block is a BIP30 violator.
+                    if (blockStore.hasUnspentOutputs(tx.getHash(), tx.getOutputs().size()))
+                        throw new VerificationException("Block failed BIP30 test!");
+                }
+            }
+
+            int count = transactions.size();
+            final StoredTransactionOutput[][] spent = new StoredTransactionOutput[count][];
+            StoredTransactionOutput[][] created = new StoredTransactionOutput[count][];
+            // Filled in by the transaction checks: the fee (or the coinbase value) and signature operations of each.
+            final BigInteger[] values = new BigInteger[count];
+            final long[] sigOps = new long[count];
+            List<Future<VerificationException>> transactionChecks = new ArrayList<Future<VerificationException>>(count);
+            List<Future<VerificationException>> scriptChecks = new ArrayList<Future<VerificationException>>(count);
+            Map<Sha256Hash, StoredTransactionOutput[]> createdInBlock = new HashMap<Sha256Hash, StoredTransactionOutput[]>();
+            Set<StoredTransactionOutput> spentInBlock = new HashSet<StoredTransactionOutput>();
+
+            for (int i = 0; i < count; i++) {
+                final Transaction tx = transactions.get(i);
+                if (!tx.isCoinBase()) {
+                    List<TransactionInput> inputs = tx.getInputs();
+                    spent[i] = new StoredTransactionOutput[inputs.size()];
+                    for (int index = 0; index < inputs.size(); index++) {
+                        TransactionInput in = inputs.get(index);
+                        TransactionOutPoint outpoint = in.getOutpoint();
+                        StoredTransactionOutput[] outputs = createdInBlock.get(outpoint.getHash());
+                        StoredTransactionOutput prevOut = null;
+                        if (outputs != null && outpoint.getIndex() < outputs.length)
+                            prevOut = outputs[(int) outpoint.getIndex()];
+                        if (prevOut == null)
+                            prevOut = blockStore.getTransactionOutput(outpoint.getHash(), outpoint.getIndex());
+                        if (prevOut == null || !spentInBlock.add(prevOut))
+                            throw new VerificationException("Attempted to spend a non-existent or already spent output!");
+                        spent[i][index] = prevOut;
+
+                        // Signature hashing doesn't modify the transaction, so the inputs of one transaction can all
+                        // be checked at once, whilst this thread carries on reading the block.
+                        final int currentIndex = index;
+                        final byte[] scriptSig = in.getScriptBytes();
+                        final StoredTransactionOutput spentOutput = prevOut;
+                        scriptChecks.add(submit(new Callable<VerificationException>() {
+                            public VerificationException call() {
+                                try {
+                                    Script.correctlySpends(params, tx, currentIndex, scriptSig, spentOutput, enforceBIP16);
+                                } catch (VerificationException e) {
+                                    return e;
+                                }
+                                return null;
+                            }
+                        }));
+                    }
+                }
+                final int txIndex = i;
+                transactionChecks.add(submit(new Callable<VerificationException>() {
+                    public VerificationException call() {
+                        try {
+                            checkTransaction(tx, spent[txIndex], height, enforceBIP16, checkBIP30, values, sigOps, txIndex);
+                        } catch (VerificationException e) {
+                            return e;
+                        }
+                        return null;
+                    }
+                }));
+
+                Sha256Hash hash = tx.getHash();
+                List<TransactionOutput> outputs = tx.getOutputs();
+                created[i] = new StoredTransactionOutput[outputs.size()];
+                for (TransactionOutput out : outputs) {
+                    StoredTransactionOutput newOut = new StoredTransactionOutput(hash, out.getIndex(), out.getValue(),
+                            height, tx.isCoinBase(), out.getScriptBytes());
+                    created[i][out.getIndex()] = newOut;
+                    // Adding an output replaces any spent one with the same hash and index, as the store would.
+                    spentInBlock.remove(newOut);
+                }
+                createdInBlock.put(hash, created[i]);
+            }
+
+            waitFor(transactionChecks);
+            long totalSigOps = 0;
+            BigInteger totalFees = BigInteger.ZERO;
+            BigInteger coinbaseValue = null;
+            for (int i = 0; i < count; i++) {
+                totalSigOps += sigOps[i];
+                if (transactions.get(i).isCoinBase())
+                    coinbaseValue = values[i];
+                else
+                    totalFees = totalFees.add(values[i]);
+            }
+            // Block.verifyTransactions has already checked the signature operations that don't need the outputs.
+            if (enforceBIP16 && totalSigOps > Block.MAX_BLOCK_SIGOPS)
+                throw new VerificationException("Too many P2SH SigOps in block");
+            if (totalFees.compareTo(params.MAX_MONEY) > 0 || header.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
+                throw new VerificationException("Transaction fees out of range");
+            waitFor(scriptChecks);
+
+            LinkedList<StoredTransactionOutput> txOutsSpent = new LinkedList<StoredTransactionOutput>();
+            LinkedList<StoredTransactionOutput> txOutsCreated = new LinkedList<StoredTransactionOutput>();
+            for (int i = 0; i < count; i++) {
+                if (spent[i] != null) {
+                    for (StoredTransactionOutput prevOut : spent[i]) {
+                        blockStore.removeUnspentTransactionOutput(prevOut);
+                        txOutsSpent.add(prevOut);
+                    }
+                }
+                for (StoredTransactionOutput newOut : created[i]) {
+                    blockStore.addUnspentTransactionOutput(newOut);
+                    txOutsCreated.add(newOut);
+                }
+            }
+            return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
+        } catch (VerificationException e) {
+            scriptVerificationExecutor.shutdownNow();
+            throw e;
+        } catch (BlockStoreException e) {
+            scriptVerificationExecutor.shutdownNow();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks the values of a transaction and the maturity of the coinbases it spends, given the outputs it spends
+     * (null for a coinbase), storing its fee, or its value for a coinbase, and its signature operation count at
+     * index. Runs on the executor.
+     */
+    private void checkTransaction(Transaction tx, StoredTransactionOutput[] prevOuts, int height, boolean enforceBIP16,
+                                  boolean checkBIP30, BigInteger[] values, long[] sigOps, int index)
+            throws VerificationException {
+        long txSigOps = 0;
+        if (enforceBIP16 && checkBIP30) // We already check non-BIP16 sigops in Block.verifyTransactions(true)
+            txSigOps += tx.getSigOpCount();
+        BigInteger valueIn = BigInteger.ZERO;
+        if (prevOuts != null) {
+            List<TransactionInput> inputs = tx.getInputs();
+            for (int i = 0; i < prevOuts.length; i++) {
+                StoredTransactionOutput prevOut = prevOuts[i];
+                // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
+                // chains. The assumption is there will ~never be re-orgs deeper than the spendable coinbase
+                // chain depth.
+                if (height - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
+                    throw new VerificationException("Tried to spend coinbase at depth " + (height - prevOut.getHeight()));
+                // TODO: Check we're not spending the genesis transaction here. Satoshis code won't allow it.
+                valueIn = valueIn.add(prevOut.getValue());
+                if (enforceBIP16 && prevOut.getScriptTemplate() == ScriptTemplates.PAY_TO_SCRIPT_HASH)
+                    txSigOps += Script.getP2SHSigOpCount(inputs.get(i).getScriptBytes());
+            }
+        }
+        BigInteger valueOut = BigInteger.ZERO;
+        for (TransactionOutput out : tx.getOutputs())
+            valueOut = valueOut.add(out.getValue());
+        // All values were already checked for being non-negative (as it is verified in Transaction.verify())
+        // but we check again here just for defence in depth. Transactions with zero output value are OK.
+        if (valueOut.compareTo(BigInteger.ZERO) < 0 || valueOut.compareTo(params.MAX_MONEY) > 0)
+            throw new VerificationException("Transaction output value out of rage");
+        if (prevOuts == null) {
+            values[index] = valueOut;
+        } else {
+            if (valueIn.compareTo(valueOut) < 0 || valueIn.compareTo(params.MAX_MONEY) > 0)
+                throw new VerificationException("Transaction input value out of range");
+            values[index] = valueIn.subtract(valueOut);
+        }
+        sigOps[index] = txSigOps;
+    }
+
+    private Future<VerificationException> submit(Callable<VerificationException> check) {
+        FutureTask<VerificationException> future = new FutureTask<VerificationException>(check);
+        scriptVerificationExecutor.execute(future);
+        return future;
+    }
+
+    /** Waits for the checks, in order, throwing the first failure. */
+    private static void waitFor(List<Future<VerificationException>> checks) throws VerificationException {
+        for (Future<VerificationException> future : checks) {
+            VerificationException e;
+            try {
+                e = future.get();
+            } catch (InterruptedException thrownE) {
+                throw new RuntimeException(thrownE); // Shouldn't happen
+            } catch (ExecutionException thrownE) {
+                log.error("Block verification threw a non-normal exception: " + thrownE.getCause());
+                throw new VerificationException("Bug in block verification, likely script malformed in some new and interesting way.");
+            }
+            if (e != null)
+                throw e;
+        }
+    }
     
     /**
      * This is broken for blocks that do not pass BIP30, so all BIP30-failing blocks which are allowed to fail BIP30
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Hashes pairs of Merkle tree nodes with the thread's {@link Sha256Hasher} and no allocation per pair. Nodes are 32 byte
+ * hashes in the order they are hashed in (the reverse of {@link Sha256Hash}'s), stored in plain byte arrays.
+ * An instance isn't thread safe.
+ */
+final class MerkleTreeHasher {
+    /** Blocks with fewer transactions than this have their Merkle root calculated on the calling thread. */
+    static final int PARALLEL_THRESHOLD = 1024;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final Sha256Hasher hasher = Sha256Hasher.get();
+
+    /**
+     * Writes the double SHA-256 hash of the 64 bytes at inOffset, which are the left and then the right node, to
+     * the 32 bytes at outOffset. The ranges may overlap.
+     */
+    void hashPair(byte[] in, int inOffset, byte[] out, int outOffset) {
+        hashPair(in, inOffset, in, inOffset + 32, out, outOffset);
+    }
+
+    /** Writes the double SHA-256 hash of the left node followed by the right node to the 32 bytes at outOffset. */
+    void hashPair(byte[] left, int leftOffset, byte[] right, int rightOffset, byte[] out, int outOffset) {
+        hasher.update(left, leftOffset, 32).update(right, rightOffset, 32).doubleDigest(out, outOffset);
+    }
+
+    /**
+     * Replaces the size nodes starting at offset with the level above them, levels times, leaving the result at
+     * offset. Where a level has an odd number of nodes the last is paired with itself, as in {@link Block}.
+     */
+    void reduce(byte[] tree, int offset, int size, int levels) {
+        for (int level = 0; level < levels; level++) {
+            int parents = (size + 1) / 2;
+            // Parent i is written over node i, which pairs 2i and 2i+1 have already been read past.
+            for (int i = 0; i < parents; i++) {
+                int left = offset + i * 64;
+                if (2 * i + 1 < size)
+                    hashPair(tree, left, tree, offset + i * 32);
+                else
+                    hashPair(tree, left, tree, left, tree, offset + i * 32);
+            }
+            size = parents;
+        }
+    }
+
+    /**
+     * Calculates the Merkle root of the given transactions, which must not be empty, as documented in
+     * {@link Block#getMerkleRoot()}. Large blocks have subtrees of their lower levels hashed in parallel.
+     */
+    static Sha256Hash calculateRoot(List<Transaction> transactions) {
+        int count = transactions.size();
+        byte[] tree = new byte[count * 32];
+        for (int i = 0; i < count; i++) {
+            byte[] hash = transactions.get(i).getHash().getBytes();
+            for (int j = 0; j < 32; j++)
+                tree[i * 32 + j] = hash[31 - j];
+        }
+        reduceTree(tree, count, count >= PARALLEL_THRESHOLD ? THREADS : 1);
+        byte[] root = new byte[32];
+        for (int j = 0; j < 32; j++)
+            root[j] = tree[31 - j];
+        return new Sha256Hash(root);
+    }
+
+    /**
+     * Reduces the count leaves at the start of tree to the root, leaving it in the first 32 bytes. If threads is
+     * more than one, subtrees of the lower levels are hashed on that many threads, including this one.
+     */
+    static void reduceTree(final byte[] tree, int count, int threads) {
+        MerkleTreeHasher hasher = new MerkleTreeHasher();
+        int size = count;
+        if (threads > 1) {
+            // Split the leaves into subtrees of 2^levels nodes, one per thread. Because the subtrees are aligned, the
+            // only odd level ends fall in the last one, so each reduces independently of the others to the node the
+            // whole tree would have had there.
+            int levels = 0;
+            while ((1 << levels) * threads < count)
+                levels++;
+            final int subtreeLevels = levels;
+            final int subtreeSize = 1 << levels;
+            int subtrees = (count + subtreeSize - 1) / subtreeSize;
+            List<Future<?>> futures = new ArrayList<Future<?>>(subtrees);
+            for (int s = 1; s < subtrees; s++) {
+                final int offset = s * subtreeSize * 32;
+                final int nodes = Math.min(subtreeSize, count - s * subtreeSize);
+                futures.add(Workers.EXECUTOR.submit(new Callable<Void>() {
+                    public Void call() {
+                        new MerkleTreeHasher().reduce(tree, offset, nodes, subtreeLevels);
+                        return null;
+                    }
+                }));
+            }
+            hasher.reduce(tree, 0, Math.min(subtreeSize, count), subtreeLevels);
+            for (int s = 1; s < subtrees; s++) {
+                try {
+                    futures.get(s - 1).get();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+                System.arraycopy(tree, s * subtreeSize * 32, tree, s * 32, 32);
+            }
+            size = subtrees;
+        }
+        while (size > 1) {
+            hasher.reduce(tree, 0, size, 1);
+            size = (size + 1) / 2;
+        }
+    }
+
+    /** Created the first time a large block is hashed. */
+    private static class Workers {
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Math.max(1, THREADS - 1), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Merkle tree hashing");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * A {@link CoinSelector} that spends the most deeply buried outputs first, taking them in turn until the target is
+ * reached. This is the default selector used by the {@link Wallet}. Spending old coins first tends to keep the
+ * number of outputs in the wallet down over time, at the cost of not trying to make the transaction small.
+ */
+public class OldestFirstCoinSelector implements CoinSelector {
+    public CoinSelection select(BigInteger target, List<TransactionOutput> candidates) {
+        ArrayList<TransactionOutput> sorted = new ArrayList<TransactionOutput>(candidates);
+        // The sort is stable, so outputs at the same depth stay smallest first.
+        Collections.sort(sorted, new Comparator<TransactionOutput>() {
+            public int compare(TransactionOutput a, TransactionOutput b) {
+                return depthOf(b) - depthOf(a);
+            }
+        });
+        BigInteger valueGathered = BigInteger.ZERO;
+        LinkedList<TransactionOutput> gathered = new LinkedList<TransactionOutput>();
+        for (TransactionOutput output : sorted) {
+            if (valueGathered.compareTo(target) >= 0) break;
+            gathered.add(output);
+            valueGathered = valueGathered.add(output.getValue());
+        }
+        return new CoinSelection(valueGathered, gathered);
+    }
+
+    private static int depthOf(TransactionOutput output) {
+        TransactionConfidence confidence = output.parentTransaction.getConfidence();
+        if (confidence.getConfidenceType() != TransactionConfidence.ConfidenceType.BUILDING)
+            return 0;
+        return confidence.getDepthInBlocks();
+    }
+}
@@ -97,33 +97,38 @@ public class PartialMerkleTree extends Message {
     }
     
     // recursive function that traverses tree nodes, consuming the bits and hashes produced by TraverseAndBuild.
-    // it returns the hash of the respective node.
-    private Sha256Hash recursiveExtractHashes(int height, int pos, ValuesUsed used, Set<Sha256Hash> matchedHashes) throws VerificationException {
+    // it writes the hash of the respective node, in hashing order, to its slot in nodes: the two children of a node
+    // at height h are written next to each other at (h-1)*64, so the pair can be hashed where it is.
+    private void recursiveExtractHashes(int height, int pos, ValuesUsed used, Set<Sha256Hash> matchedHashes,
+                                        byte[] nodes, MerkleTreeHasher hasher) throws VerificationException {
         if (used.bitsUsed >= matchedChildBits.length*8) {
             // overflowed the bits array - failure
             throw new VerificationException("CPartialMerkleTree overflowed its bits array");
         }
         boolean parentOfMatch = Utils.checkBitLE(matchedChildBits, used.bitsUsed++);
+        int slot = height*64 + (pos & 1)*32;
         if (height == 0 || !parentOfMatch) {
             // if at height 0, or nothing interesting below, use stored hash and do not descend
             if (used.hashesUsed >= hashes.size()) {
                 // overflowed the hash array - failure
                 throw new VerificationException("CPartialMerkleTree overflowed its hash array");
             }
+            Sha256Hash hash = hashes.get(used.hashesUsed++);
             if (height == 0 && parentOfMatch) // in case of height 0, we have a matched txid
-                matchedHashes.add(hashes.get(used.hashesUsed));
-            return hashes.get(used.hashesUsed++);
+                matchedHashes.add(hash);
+            byte[] bytes = hash.getBytes();
+            for (int i = 0; i < 32; i++)
+                nodes[slot + i] = bytes[31 - i];
         } else {
             // otherwise, descend into the subtrees to extract matched txids and hashes
-            byte[] left = recursiveExtractHashes(height-1, pos*2, used, matchedHashes).getBytes(), right;
+            int children = (height-1)*64;
+            recursiveExtractHashes(height-1, pos*2, used, matchedHashes, nodes, hasher);
             if (pos*2+1 < getTreeWidth(height-1))
-                right = recursiveExtractHashes(height-1, pos*2+1, used, matchedHashes).getBytes();
+                recursiveExtractHashes(height-1, pos*2+1, used, matchedHashes, nodes, hasher);
             else
-                right = left;
-            // and combine them before returning
-            return new Sha256Hash(Utils.reverseBytes(Utils.doubleDigestTwoBuffers(
-                    Utils.reverseBytes(left), 0, 32,
-                    Utils.reverseBytes(right), 0, 32)));
+                System.arraycopy(nodes, children, nodes, children + 32, 32);
+            // and combine them
+            hasher.hashPair(nodes, children, nodes, slot);
         }
     }
     
@@ -159,13 +164,17 @@ public class PartialMerkleTree extends Message {
             height++;
         // traverse the partial tree
         ValuesUsed used = new ValuesUsed();
-        Sha256Hash merkleRoot = recursiveExtractHashes(height, 0, used, matchedHashes);
+        byte[] nodes = new byte[(height+1)*64];
+        recursiveExtractHashes(height, 0, used, matchedHashes, nodes, new MerkleTreeHasher());
         // verify that all bits were consumed (except for the padding caused by serializing it as a byte sequence)
         if ((used.bitsUsed+7)/8 != matchedChildBits.length ||
                 // verify that all hashes were consumed
                 used.hashesUsed != hashes.size())
             throw new VerificationException("Got a CPartialMerkleTree that didn't need all the data it provided");
         
-        return merkleRoot;
+        byte[] merkleRoot = new byte[32];
+        for (int i = 0; i < 32; i++)
+            merkleRoot[i] = nodes[height*64 + 31 - i];
+        return new Sha256Hash(merkleRoot);
     }
 }
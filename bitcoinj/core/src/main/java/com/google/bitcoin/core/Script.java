@@ -622,6 +622,23 @@ public class Script {
         return new Address(params, getPubKeyHash());
     }
 
+    /**
+     * Returns the address an output script pays to in the sense of {@link TransactionOutput#isMine(Wallet)}, or null if
+     * it isn't in one of those forms or can't be parsed. Used to find the wallets an output might belong to.
+     */
+    static Address getIsMineAddress(NetworkParameters params, byte[] scriptBytes) {
+        try {
+            Script script = new Script(params, scriptBytes, 0, scriptBytes.length);
+            if (script.isSentToRawPubKey())
+                return new Address(params, Utils.sha256hash160(script.getPubKey()));
+            else if (script.isSentToAddress())
+                return script.getToAddress();
+        } catch (ScriptException e) {
+            // Just means we didn't understand the output script: it can't be ours.
+        }
+        return null;
+    }
+
     ////////////////////// Interface for writing scripts from scratch ////////////////////////////////
 
     /**
@@ -750,13 +767,41 @@ public class Script {
      * Gets the count of regular SigOps in the script program (counting multisig ops as 20)
      */
     public static int getSigOpCount(byte[] program) throws ScriptException {
-        Script script = new Script();
-        try {
-            script.parse(program, 0, program.length);
-        } catch (ScriptException e) {
-            // Ignore errors and count up to the parse-able length
+        // Walks the opcodes as parse() would, without copying the pushes out, stopping where parse() would fail.
+        int sigOps = 0;
+        int cursor = 0;
+        while (cursor < program.length) {
+            int opcode = 0xFF & program[cursor++];
+            long pushLength;
+            if (opcode < OP_PUSHDATA1) {
+                pushLength = opcode;
+            } else if (opcode == OP_PUSHDATA1) {
+                if (program.length - cursor < 1)
+                    break;
+                pushLength = 0xFF & program[cursor];
+                cursor += 1;
+            } else if (opcode == OP_PUSHDATA2) {
+                if (program.length - cursor < 2)
+                    break;
+                pushLength = (0xFF & program[cursor]) | ((0xFF & program[cursor + 1]) << 8);
+                cursor += 2;
+            } else if (opcode == OP_PUSHDATA4) {
+                if (program.length - cursor < 4)
+                    break;
+                pushLength = Utils.readUint32(program, cursor);
+                cursor += 4;
+            } else {
+                if (opcode == OP_CHECKSIG || opcode == OP_CHECKSIGVERIFY)
+                    sigOps++;
+                else if (opcode == OP_CHECKMULTISIG || opcode == OP_CHECKMULTISIGVERIFY)
+                    sigOps += 20;
+                continue;
+            }
+            if (pushLength > program.length - cursor)
+                break;
+            cursor += (int) pushLength;
         }
-        return getSigOpCount(script.chunks, false);
+        return sigOps;
     }
     
     /**
@@ -836,7 +881,10 @@ public class Script {
             if (!skip) {
                 try {
                     bos.write(opcode);
-                    bos.write(Arrays.copyOfRange(inputScript, cursor, cursor + additionalBytes));
+                    if (additionalBytes >= 0 && cursor + additionalBytes <= inputScript.length)
+                        bos.write(inputScript, cursor, additionalBytes);
+                    else
+                        bos.write(Arrays.copyOfRange(inputScript, cursor, cursor + additionalBytes));
                 } catch (IOException e) {
                     throw new RuntimeException(e);
                 }
@@ -875,16 +923,118 @@ public class Script {
         return Utils.decodeMPI(Utils.reverseBytes(chunk), false);
     }
     
-    private static void executeScript(Transaction txContainingThis, long index,
-                                      Script script, LinkedList<byte[]> stack) throws ScriptException {
+    private static volatile SignatureCache signatureCache = new SignatureCache();
+
+    /**
+     * Sets the cache of successfully checked signatures that OP_CHECKSIG and OP_CHECKMULTISIG consult, shared by
+     * every script in this process. Pass null to check every signature in full.
+     */
+    public static void setSignatureCache(SignatureCache cache) {
+        signatureCache = cache;
+    }
+
+    /** Returns the cache set by {@link #setSignatureCache(SignatureCache)}, or null if there isn't one. */
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    static boolean verifySignature(Sha256Hash hash, byte[] sigWithHashType, byte[] pubKey) {
+        byte[] signature = Arrays.copyOf(sigWithHashType, sigWithHashType.length - 1);
+        SignatureCache cache = signatureCache;
+        if (cache == null)
+            return ECKey.verify(hash.getBytes(), signature, pubKey);
+        return cache.verify(hash.getBytes(), signature, pubKey);
+    }
+
+    // What each of OP_1NEGATE, OP_0 (unused) and OP_1 to OP_16 pushes, and the results of the boolean ops. Stack
+    // entries are never written to, so these can be shared.
+    private static final byte[][] SMALL_NUMBERS = new byte[18][];
+    static {
+        for (int i = 0; i < SMALL_NUMBERS.length; i++)
+            SMALL_NUMBERS[i] = Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(i - 1), false));
+    }
+    private static final byte[] TRUE_BYTES = {1};
+    private static final byte[] FALSE_BYTES = {0};
+
+    /**
+     * The OP_IF/OP_NOTIF/OP_ELSE nesting of a script. Keeps a count of the false entries, so whether the current
+     * chunk runs is known without looking through the whole stack.
+     */
+    private static final class ConditionStack {
+        private boolean[] conditions = new boolean[16];
+        private int size;
+        private int falseCount;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        boolean allTrue() {
+            return falseCount == 0;
+        }
+
+        void push(boolean condition) {
+            if (size == conditions.length)
+                conditions = Arrays.copyOf(conditions, size * 2);
+            conditions[size++] = condition;
+            if (!condition)
+                falseCount++;
+        }
+
+        void pop() {
+            if (!conditions[--size])
+                falseCount--;
+        }
+
+        void invertTop() {
+            boolean condition = !conditions[size - 1];
+            conditions[size - 1] = condition;
+            falseCount += condition ? -1 : 1;
+        }
+
+        void clear() {
+            size = 0;
+            falseCount = 0;
+        }
+    }
+
+    /**
+     * The stacks used to check a scriptSig against a scriptPubKey. Each thread keeps one and reuses it, so checking
+     * a script doesn't have to allocate them.
+     */
+    private static final class ExecutionState {
+        final ScriptStack stack = new ScriptStack();
+        final ScriptStack p2shStack = new ScriptStack();
+        final ScriptStack altstack = new ScriptStack();
+        final ConditionStack ifStack = new ConditionStack();
+
+        void clear() {
+            stack.clear();
+            p2shStack.clear();
+            altstack.clear();
+            ifStack.clear();
+        }
+    }
+
+    private static final ThreadLocal<ExecutionState> executionState = new ThreadLocal<ExecutionState>() {
+        @Override
+        protected ExecutionState initialValue() {
+            return new ExecutionState();
+        }
+    };
+
+    private static void executeScript(Transaction txContainingThis, long index, Script script, ScriptStack stack,
+                                      ExecutionState state) throws ScriptException {
         int opCount = 0;
         int lastCodeSepLocation = 0;
         
-        LinkedList<byte[]> altstack = new LinkedList<byte[]>();
-        LinkedList<Boolean> ifStack = new LinkedList<Boolean>();
+        ScriptStack altstack = state.altstack;
+        ConditionStack ifStack = state.ifStack;
+        altstack.clear();
+        ifStack.clear();
         
         for (ScriptChunk chunk : script.chunks) {
-            boolean shouldExecute = !ifStack.contains(false);
+            boolean shouldExecute = ifStack.allTrue();
             
             if (!chunk.isOpCode) {
                 if (chunk.data.length > 520)
@@ -893,7 +1043,7 @@ public class Script {
                 if (!shouldExecute)
                     continue;
                 
-                stack.add(chunk.data);
+                stack.push(chunk.data);
             } else {
                 int opcode = 0xFF & chunk.data[0];
                 if (opcode > OP_16) {
@@ -914,31 +1064,31 @@ public class Script {
                 switch (opcode) {
                 case OP_IF:
                     if (!shouldExecute) {
-                        ifStack.add(false);
+                        ifStack.push(false);
                         continue;
                     }
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_IF on an empty stack");
-                    ifStack.add(castToBool(stack.pollLast()));
+                    ifStack.push(castToBool(stack.pop()));
                     continue;
                 case OP_NOTIF:
                     if (!shouldExecute) {
-                        ifStack.add(false);
+                        ifStack.push(false);
                         continue;
                     }
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_NOTIF on an empty stack");
-                    ifStack.add(!castToBool(stack.pollLast()));
+                    ifStack.push(!castToBool(stack.pop()));
                     continue;
                 case OP_ELSE:
                     if (ifStack.isEmpty())
                         throw new ScriptException("Attempted OP_ELSE without OP_IF/NOTIF");
-                    ifStack.add(!ifStack.pollLast());
+                    ifStack.invertTop();
                     continue;
                 case OP_ENDIF:
                     if (ifStack.isEmpty())
                         throw new ScriptException("Attempted OP_ENDIF without OP_IF/NOTIF");
-                    ifStack.pollLast();
+                    ifStack.pop();
                     continue;
                 }
                 
@@ -948,7 +1098,7 @@ public class Script {
                 switch(opcode) {
                 //case OP_0: dont know why this isnt also here in the reference client
                 case OP_1NEGATE:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE.negate(), false)));
+                    stack.push(SMALL_NUMBERS[0]);
                     break;
                 case OP_1:
                 case OP_2:
@@ -966,14 +1116,14 @@ public class Script {
                 case OP_14:
                 case OP_15:
                 case OP_16:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(getOpNValue(opcode)), false)));
+                    stack.push(SMALL_NUMBERS[getOpNValue(opcode) + 1]);
                     break;
                 case OP_NOP:
                     break;
                 case OP_VERIFY:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_VERIFY on an empty stack");
-                    if (!castToBool(stack.pollLast()))
+                    if (!castToBool(stack.pop()))
                         throw new ScriptException("OP_VERIFY failed");
                     break;
                 case OP_RETURN:
@@ -981,143 +1131,131 @@ public class Script {
                 case OP_TOALTSTACK:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_TOALTSTACK on an empty stack");
-                    altstack.add(stack.pollLast());
+                    altstack.push(stack.pop());
                     break;
                 case OP_FROMALTSTACK:
                     if (altstack.size() < 1)
                         throw new ScriptException("Attempted OP_TOALTSTACK on an empty altstack");
-                    stack.add(altstack.pollLast());
+                    stack.push(altstack.pop());
                     break;
                 case OP_2DROP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_2DROP on a stack with size < 2");
-                    stack.pollLast();
-                    stack.pollLast();
+                    stack.pop();
+                    stack.pop();
                     break;
                 case OP_2DUP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_2DUP on a stack with size < 2");
-                    Iterator<byte[]> it2DUP = stack.descendingIterator();
-                    byte[] OP2DUPtmpChunk2 = it2DUP.next();
-                    stack.add(it2DUP.next());
-                    stack.add(OP2DUPtmpChunk2);
+                    byte[] OP2DUPtmpChunk2 = stack.peek(0);
+                    stack.push(stack.peek(1));
+                    stack.push(OP2DUPtmpChunk2);
                     break;
                 case OP_3DUP:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_3DUP on a stack with size < 3");
-                    Iterator<byte[]> it3DUP = stack.descendingIterator();
-                    byte[] OP3DUPtmpChunk3 = it3DUP.next();
-                    byte[] OP3DUPtmpChunk2 = it3DUP.next();
-                    stack.add(it3DUP.next());
-                    stack.add(OP3DUPtmpChunk2);
-                    stack.add(OP3DUPtmpChunk3);
+                    byte[] OP3DUPtmpChunk3 = stack.peek(0);
+                    byte[] OP3DUPtmpChunk2 = stack.peek(1);
+                    stack.push(stack.peek(2));
+                    stack.push(OP3DUPtmpChunk2);
+                    stack.push(OP3DUPtmpChunk3);
                     break;
                 case OP_2OVER:
                     if (stack.size() < 4)
                         throw new ScriptException("Attempted OP_2OVER on a stack with size < 4");
-                    Iterator<byte[]> it2OVER = stack.descendingIterator();
-                    it2OVER.next();
-                    it2OVER.next();
-                    byte[] OP2OVERtmpChunk2 = it2OVER.next();
-                    stack.add(it2OVER.next());
-                    stack.add(OP2OVERtmpChunk2);
+                    byte[] OP2OVERtmpChunk2 = stack.peek(2);
+                    stack.push(stack.peek(3));
+                    stack.push(OP2OVERtmpChunk2);
                     break;
                 case OP_2ROT:
                     if (stack.size() < 6)
                         throw new ScriptException("Attempted OP_2ROT on a stack with size < 6");
-                    byte[] OP2ROTtmpChunk6 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk5 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk4 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk3 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk2 = stack.pollLast();
-                    byte[] OP2ROTtmpChunk1 = stack.pollLast();
-                    stack.add(OP2ROTtmpChunk3);
-                    stack.add(OP2ROTtmpChunk4);
-                    stack.add(OP2ROTtmpChunk5);
-                    stack.add(OP2ROTtmpChunk6);
-                    stack.add(OP2ROTtmpChunk1);
-                    stack.add(OP2ROTtmpChunk2);
+                    byte[] OP2ROTtmpChunk6 = stack.pop();
+                    byte[] OP2ROTtmpChunk5 = stack.pop();
+                    byte[] OP2ROTtmpChunk4 = stack.pop();
+                    byte[] OP2ROTtmpChunk3 = stack.pop();
+                    byte[] OP2ROTtmpChunk2 = stack.pop();
+                    byte[] OP2ROTtmpChunk1 = stack.pop();
+                    stack.push(OP2ROTtmpChunk3);
+                    stack.push(OP2ROTtmpChunk4);
+                    stack.push(OP2ROTtmpChunk5);
+                    stack.push(OP2ROTtmpChunk6);
+                    stack.push(OP2ROTtmpChunk1);
+                    stack.push(OP2ROTtmpChunk2);
                     break;
                 case OP_2SWAP:
                     if (stack.size() < 4)
                         throw new ScriptException("Attempted OP_2SWAP on a stack with size < 4");
-                    byte[] OP2SWAPtmpChunk4 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk3 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk2 = stack.pollLast();
-                    byte[] OP2SWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OP2SWAPtmpChunk3);
-                    stack.add(OP2SWAPtmpChunk4);
-                    stack.add(OP2SWAPtmpChunk1);
-                    stack.add(OP2SWAPtmpChunk2);
+                    byte[] OP2SWAPtmpChunk4 = stack.pop();
+                    byte[] OP2SWAPtmpChunk3 = stack.pop();
+                    byte[] OP2SWAPtmpChunk2 = stack.pop();
+                    byte[] OP2SWAPtmpChunk1 = stack.pop();
+                    stack.push(OP2SWAPtmpChunk3);
+                    stack.push(OP2SWAPtmpChunk4);
+                    stack.push(OP2SWAPtmpChunk1);
+                    stack.push(OP2SWAPtmpChunk2);
                     break;
                 case OP_IFDUP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_IFDUP on an empty stack");
-                    if (castToBool(stack.getLast()))
-                        stack.add(stack.getLast());
+                    if (castToBool(stack.peek(0)))
+                        stack.push(stack.peek(0));
                     break;
                 case OP_DEPTH:
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
+                    stack.push(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.size()), false)));
                     break;
                 case OP_DROP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_DROP on an empty stack");
-                    stack.pollLast();
+                    stack.pop();
                     break;
                 case OP_DUP:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_DUP on an empty stack");
-                    stack.add(stack.getLast());
+                    stack.push(stack.peek(0));
                     break;
                 case OP_NIP:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_NIP on a stack with size < 2");
-                    byte[] OPNIPtmpChunk = stack.pollLast();
-                    stack.pollLast();
-                    stack.add(OPNIPtmpChunk);
+                    byte[] OPNIPtmpChunk = stack.pop();
+                    stack.pop();
+                    stack.push(OPNIPtmpChunk);
                     break;
                 case OP_OVER:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_OVER on a stack with size < 2");
-                    Iterator<byte[]> itOVER = stack.descendingIterator();
-                    itOVER.next();
-                    stack.add(itOVER.next());
+                    stack.push(stack.peek(1));
                     break;
                 case OP_PICK:
                 case OP_ROLL:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_PICK/OP_ROLL on an empty stack");
-                    long val = castToBigInteger(stack.pollLast()).longValue();
+                    long val = castToBigInteger(stack.pop()).longValue();
                     if (val < 0 || val >= stack.size())
                         throw new ScriptException("OP_PICK/OP_ROLL attempted to get data deeper than stack size");
-                    Iterator<byte[]> itPICK = stack.descendingIterator();
-                    for (long i = 0; i < val; i++)
-                        itPICK.next();
-                    byte[] OPROLLtmpChunk = itPICK.next();
-                    if (opcode == OP_ROLL)
-                        itPICK.remove();
-                    stack.add(OPROLLtmpChunk);
+                    byte[] OPROLLtmpChunk = opcode == OP_ROLL ? stack.remove((int) val) : stack.peek((int) val);
+                    stack.push(OPROLLtmpChunk);
                     break;
                 case OP_ROT:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_ROT on a stack with size < 3");
-                    byte[] OPROTtmpChunk3 = stack.pollLast();
-                    byte[] OPROTtmpChunk2 = stack.pollLast();
-                    byte[] OPROTtmpChunk1 = stack.pollLast();
-                    stack.add(OPROTtmpChunk2);
-                    stack.add(OPROTtmpChunk3);
-                    stack.add(OPROTtmpChunk1);
+                    byte[] OPROTtmpChunk3 = stack.pop();
+                    byte[] OPROTtmpChunk2 = stack.pop();
+                    byte[] OPROTtmpChunk1 = stack.pop();
+                    stack.push(OPROTtmpChunk2);
+                    stack.push(OPROTtmpChunk3);
+                    stack.push(OPROTtmpChunk1);
                     break;
                 case OP_SWAP:
                 case OP_TUCK:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_SWAP on a stack with size < 2");
-                    byte[] OPSWAPtmpChunk2 = stack.pollLast();
-                    byte[] OPSWAPtmpChunk1 = stack.pollLast();
-                    stack.add(OPSWAPtmpChunk2);
-                    stack.add(OPSWAPtmpChunk1);
+                    byte[] OPSWAPtmpChunk2 = stack.pop();
+                    byte[] OPSWAPtmpChunk1 = stack.pop();
+                    stack.push(OPSWAPtmpChunk2);
+                    stack.push(OPSWAPtmpChunk1);
                     if (opcode == OP_TUCK)
-                        stack.add(OPSWAPtmpChunk2);
+                        stack.push(OPSWAPtmpChunk2);
                     break;
                 case OP_CAT:
                 case OP_SUBSTR:
@@ -1127,7 +1265,7 @@ public class Script {
                 case OP_SIZE:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SIZE on an empty stack");
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.getLast().length), false)));
+                    stack.push(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(stack.peek(0).length), false)));
                     break;
                 case OP_INVERT:
                 case OP_AND:
@@ -1137,12 +1275,12 @@ public class Script {
                 case OP_EQUAL:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    stack.add(Arrays.equals(stack.pollLast(), stack.pollLast()) ? new byte[] {1} : new byte[] {0});
+                    stack.push(Arrays.equals(stack.pop(), stack.pop()) ? TRUE_BYTES : FALSE_BYTES);
                     break;
                 case OP_EQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_EQUALVERIFY on a stack with size < 2");
-                    if (!Arrays.equals(stack.pollLast(), stack.pollLast()))
+                    if (!Arrays.equals(stack.pop(), stack.pop()))
                         throw new ScriptException("OP_EQUALVERIFY: non-equal data");
                     break;
                 case OP_1ADD:
@@ -1153,7 +1291,7 @@ public class Script {
                 case OP_0NOTEQUAL:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted a numeric op on an empty stack");
-                    BigInteger numericOPnum = castToBigInteger(stack.pollLast());
+                    BigInteger numericOPnum = castToBigInteger(stack.pop());
                                         
                     switch (opcode) {
                     case OP_1ADD:
@@ -1183,7 +1321,7 @@ public class Script {
                         break;
                     }
                     
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)));
+                    stack.push(Utils.reverseBytes(Utils.encodeMPI(numericOPnum, false)));
                     break;
                 case OP_2MUL:
                 case OP_2DIV:
@@ -1202,8 +1340,8 @@ public class Script {
                 case OP_MAX:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted a numeric op on a stack with size < 2");
-                    BigInteger numericOPnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger numericOPnum1 = castToBigInteger(stack.pollLast());
+                    BigInteger numericOPnum2 = castToBigInteger(stack.pop());
+                    BigInteger numericOPnum1 = castToBigInteger(stack.pop());
 
                     BigInteger numericOPresult;
                     switch (opcode) {
@@ -1277,7 +1415,7 @@ public class Script {
                         throw new RuntimeException("Opcode switched at runtime?");
                     }
                     
-                    stack.add(Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)));
+                    stack.push(Utils.reverseBytes(Utils.encodeMPI(numericOPresult, false)));
                     break;
                 case OP_MUL:
                 case OP_DIV:
@@ -1288,8 +1426,8 @@ public class Script {
                 case OP_NUMEQUALVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_NUMEQUALVERIFY on a stack with size < 2");
-                    BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(stack.pollLast());
+                    BigInteger OPNUMEQUALVERIFYnum2 = castToBigInteger(stack.pop());
+                    BigInteger OPNUMEQUALVERIFYnum1 = castToBigInteger(stack.pop());
                     
                     if (!OPNUMEQUALVERIFYnum1.equals(OPNUMEQUALVERIFYnum2))
                         throw new ScriptException("OP_NUMEQUALVERIFY failed");
@@ -1297,29 +1435,29 @@ public class Script {
                 case OP_WITHIN:
                     if (stack.size() < 3)
                         throw new ScriptException("Attempted OP_WITHIN on a stack with size < 3");
-                    BigInteger OPWITHINnum3 = castToBigInteger(stack.pollLast());
-                    BigInteger OPWITHINnum2 = castToBigInteger(stack.pollLast());
-                    BigInteger OPWITHINnum1 = castToBigInteger(stack.pollLast());
+                    BigInteger OPWITHINnum3 = castToBigInteger(stack.pop());
+                    BigInteger OPWITHINnum2 = castToBigInteger(stack.pop());
+                    BigInteger OPWITHINnum1 = castToBigInteger(stack.pop());
                     if (OPWITHINnum2.compareTo(OPWITHINnum1) <= 0 && OPWITHINnum1.compareTo(OPWITHINnum3) < 0)
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE, false)));
+                        stack.push(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ONE, false)));
                     else
-                        stack.add(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ZERO, false)));
+                        stack.push(Utils.reverseBytes(Utils.encodeMPI(BigInteger.ZERO, false)));
                     break;
                 case OP_RIPEMD160:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_RIPEMD160 on an empty stack");
                     RIPEMD160Digest digest = new RIPEMD160Digest();
-                    byte[] dataToHash = stack.pollLast();
+                    byte[] dataToHash = stack.pop();
                     digest.update(dataToHash, 0, dataToHash.length);
                     byte[] ripmemdHash = new byte[20];
                     digest.doFinal(ripmemdHash, 0);
-                    stack.add(ripmemdHash);
+                    stack.push(ripmemdHash);
                     break;
                 case OP_SHA1:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA1 on an empty stack");
                     try {
-                        stack.add(MessageDigest.getInstance("SHA-1").digest(stack.pollLast()));
+                        stack.push(MessageDigest.getInstance("SHA-1").digest(stack.pop()));
                     } catch (NoSuchAlgorithmException e) {
                         throw new RuntimeException(e);  // Cannot happen.
                     }
@@ -1327,21 +1465,17 @@ public class Script {
                 case OP_SHA256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    try {
-                        stack.add(MessageDigest.getInstance("SHA-256").digest(stack.pollLast()));
-                    } catch (NoSuchAlgorithmException e) {
-                        throw new RuntimeException(e);  // Cannot happen.
-                    }
+                    stack.push(Sha256Hasher.get().update(stack.pop()).digest());
                     break;
                 case OP_HASH160:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_HASH160 on an empty stack");
-                    stack.add(Utils.sha256hash160(stack.pollLast()));
+                    stack.push(Utils.sha256hash160(stack.pop()));
                     break;
                 case OP_HASH256:
                     if (stack.size() < 1)
                         throw new ScriptException("Attempted OP_SHA256 on an empty stack");
-                    stack.add(Utils.doubleDigest(stack.pollLast()));
+                    stack.push(Utils.doubleDigest(stack.pop()));
                     break;
                 case OP_CODESEPARATOR:
                     lastCodeSepLocation = chunk.startLocationInProgram + 1;
@@ -1350,8 +1484,8 @@ public class Script {
                 case OP_CHECKSIGVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
-                    byte[] CHECKSIGpubKey = stack.pollLast();
-                    byte[] CHECKSIGsig = stack.pollLast();
+                    byte[] CHECKSIGpubKey = stack.pop();
+                    byte[] CHECKSIGsig = stack.pop();
                     
                     byte[] CHECKSIGconnectedScript = Arrays.copyOfRange(script.program, lastCodeSepLocation, script.program.length);
                     
@@ -1369,7 +1503,7 @@ public class Script {
                                         
                     boolean CHECKSIGsigValid;
                     try {
-                        CHECKSIGsigValid = ECKey.verify(CHECKSIGhash.getBytes(), Arrays.copyOf(CHECKSIGsig, CHECKSIGsig.length - 1), CHECKSIGpubKey);
+                        CHECKSIGsigValid = verifySignature(CHECKSIGhash, CHECKSIGsig, CHECKSIGpubKey);
                     } catch (Exception e1) {
                         // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
                         // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1377,7 +1511,7 @@ public class Script {
                     }
                     
                     if (opcode == OP_CHECKSIG)
-                        stack.add(CHECKSIGsigValid ? new byte[] {1} : new byte[] {0});
+                        stack.push(CHECKSIGsigValid ? TRUE_BYTES : FALSE_BYTES);
                     else if (opcode == OP_CHECKSIGVERIFY)
                         if (!CHECKSIGsigValid)
                             throw new ScriptException("Script failed OP_CHECKSIGVERIFY");
@@ -1386,7 +1520,7 @@ public class Script {
                 case OP_CHECKMULTISIGVERIFY:
                     if (stack.size() < 2)
                         throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < 2");
-                    int CHECKMULTISIGpubKeyCount = castToBigInteger(stack.pollLast()).intValue();
+                    int CHECKMULTISIGpubKeyCount = castToBigInteger(stack.pop()).intValue();
                     if (CHECKMULTISIGpubKeyCount < 0 || CHECKMULTISIGpubKeyCount > 20)
                         throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
                     opCount += CHECKMULTISIGpubKeyCount;
@@ -1397,9 +1531,9 @@ public class Script {
                     
                     LinkedList<byte[]> CHECKMULTISIGpubkeys = new LinkedList<byte[]>();
                     for (int i = 0; i < CHECKMULTISIGpubKeyCount; i++)
-                        CHECKMULTISIGpubkeys.add(stack.pollLast());
+                        CHECKMULTISIGpubkeys.add(stack.pop());
                     
-                    int CHECKMULTISIGsigCount = castToBigInteger(stack.pollLast()).intValue();
+                    int CHECKMULTISIGsigCount = castToBigInteger(stack.pop()).intValue();
                     if (CHECKMULTISIGsigCount < 0 || CHECKMULTISIGsigCount > CHECKMULTISIGpubKeyCount)
                         throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with sig count out of range");
                     if (stack.size() < CHECKMULTISIGsigCount + 1)
@@ -1407,7 +1541,7 @@ public class Script {
                     
                     LinkedList<byte[]> CHECKMULTISIGsigs = new LinkedList<byte[]>();
                     for (int i = 0; i < CHECKMULTISIGsigCount; i++)
-                        CHECKMULTISIGsigs.add(stack.pollLast());
+                        CHECKMULTISIGsigs.add(stack.pop());
                     
                     byte[] CHECKMULTISIGconnectedScript = Arrays.copyOfRange(script.program, lastCodeSepLocation, script.program.length);
                     
@@ -1431,7 +1565,7 @@ public class Script {
                         Sha256Hash CHECKMULTISIGhash = txContainingThis.hashTransactionForSignature((int)index, CHECKMULTISIGconnectedScript,
                                 CHECKMULTISIGsig[CHECKMULTISIGsig.length - 1]);
                         try {
-                            if (ECKey.verify(CHECKMULTISIGhash.getBytes(), Arrays.copyOf(CHECKMULTISIGsig, CHECKMULTISIGsig.length - 1), CHECKMULTISIGpubKey))
+                            if (verifySignature(CHECKMULTISIGhash, CHECKMULTISIGsig, CHECKMULTISIGpubKey))
                                 CHECKMULTISIGsigs.pollFirst();
                         } catch (Exception e) {
                             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
@@ -1445,10 +1579,10 @@ public class Script {
                     }
                     
                     // We uselessly remove a stack object to emulate a reference client bug
-                    stack.pollLast();
+                    stack.pop();
                     
                     if (opcode == OP_CHECKMULTISIG)
-                        stack.add(CHECKMULTISIGValid ? new byte[] {1} : new byte[] {0});
+                        stack.push(CHECKMULTISIGValid ? TRUE_BYTES : FALSE_BYTES);
                     else if (opcode == OP_CHECKMULTISIGVERIFY)
                         if (!CHECKMULTISIGValid)
                             throw new ScriptException("Script failed OP_CHECKMULTISIGVERIFY");
@@ -1488,21 +1622,74 @@ public class Script {
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 boolean enforceP2SH) throws ScriptException {
+        if (ScriptTemplates.correctlySpends(txContainingThis, scriptSigIndex, program, scriptPubKey.program, enforceP2SH))
+            return;
+        runScripts(txContainingThis, scriptSigIndex, scriptPubKey, enforceP2SH);
+    }
+
+    /**
+     * Verifies that the scriptSig scriptSigBytes correctly spends the scriptPubKey scriptPubKeyBytes, in the same way
+     * as {@link #correctlySpends(Transaction, long, Script, boolean)}. The standard kinds of spend are checked
+     * without parsing either script, so this is the quicker way to check an input when you only have the bytes.
+     * @throws ScriptException if the scriptSig does not correctly spend the scriptPubKey, or either can't be parsed
+     */
+    public static void correctlySpends(NetworkParameters params, Transaction txContainingThis, long scriptSigIndex,
+                                       byte[] scriptSigBytes, byte[] scriptPubKeyBytes,
+                                       boolean enforceP2SH) throws ScriptException {
+        if (ScriptTemplates.correctlySpends(txContainingThis, scriptSigIndex, scriptSigBytes, scriptPubKeyBytes, enforceP2SH))
+            return;
+        Script scriptSig = new Script(params, scriptSigBytes, 0, scriptSigBytes.length);
+        Script scriptPubKey = new Script(params, scriptPubKeyBytes, 0, scriptPubKeyBytes.length);
+        scriptSig.runScripts(txContainingThis, scriptSigIndex, scriptPubKey, enforceP2SH);
+    }
+
+    /**
+     * As {@link #correctlySpends(NetworkParameters, Transaction, long, byte[], byte[], boolean)}, for an input spending
+     * prevOut, using its classification of its script.
+     */
+    static void correctlySpends(NetworkParameters params, Transaction txContainingThis, long scriptSigIndex,
+                                byte[] scriptSigBytes, StoredTransactionOutput prevOut,
+                                boolean enforceP2SH) throws ScriptException {
+        byte[] scriptPubKeyBytes = prevOut.getScriptBytes();
+        if (ScriptTemplates.correctlySpends(txContainingThis, scriptSigIndex, scriptSigBytes, scriptPubKeyBytes,
+                prevOut.getScriptTemplate(), enforceP2SH))
+            return;
+        Script scriptSig = new Script(params, scriptSigBytes, 0, scriptSigBytes.length);
+        Script scriptPubKey = new Script(params, scriptPubKeyBytes, 0, scriptPubKeyBytes.length);
+        scriptSig.runScripts(txContainingThis, scriptSigIndex, scriptPubKey, enforceP2SH);
+    }
+
+    /**
+     * Does the work of {@link #correctlySpends(Transaction, long, Script, boolean)} by running the scripts, whatever
+     * they are. The scripts {@link ScriptTemplates} handles are always small enough to pass the size check here.
+     */
+    void runScripts(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                    boolean enforceP2SH) throws ScriptException {
         if (program.length > 10000 || scriptPubKey.program.length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
         
-        LinkedList<byte[]> stack = new LinkedList<byte[]>();
-        LinkedList<byte[]> p2shStack = null;
+        ExecutionState state = executionState.get();
+        try {
+            correctlySpends(txContainingThis, scriptSigIndex, scriptPubKey, enforceP2SH, state);
+        } finally {
+            state.clear();
+        }
+    }
+
+    private void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
+                                 boolean enforceP2SH, ExecutionState state) throws ScriptException {
+        ScriptStack stack = state.stack;
+        ScriptStack p2shStack = state.p2shStack;
         
-        executeScript(txContainingThis, scriptSigIndex, this, stack);
+        executeScript(txContainingThis, scriptSigIndex, this, stack, state);
         if (enforceP2SH)
-            p2shStack = new LinkedList<byte[]>(stack);
-        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack);
+            p2shStack.setTo(stack);
+        executeScript(txContainingThis, scriptSigIndex, scriptPubKey, stack, state);
         
         if (stack.size() == 0)
             throw new ScriptException("Stack empty at end of script execution.");
         
-        if (!castToBool(stack.pollLast()))
+        if (!castToBool(stack.pop()))
             throw new ScriptException("Script resulted in a non-true stack");
 
         // P2SH is pay to script hash. It means that the scriptPubKey has a special form which is a valid
@@ -1523,15 +1710,15 @@ public class Script {
                 if (chunk.isOpCode && (chunk.data[0] & 0xff) > OP_16)
                     throw new ScriptException("Attempted to spend a P2SH scriptPubKey with a script that contained script ops");
             
-            byte[] scriptPubKeyBytes = p2shStack.pollLast();
+            byte[] scriptPubKeyBytes = p2shStack.pop();
             Script scriptPubKeyP2SH = new Script(params, scriptPubKeyBytes, 0, scriptPubKeyBytes.length);
             
-            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack);
+            executeScript(txContainingThis, scriptSigIndex, scriptPubKeyP2SH, p2shStack, state);
             
             if (p2shStack.size() == 0)
                 throw new ScriptException("P2SH stack empty at end of script execution.");
             
-            if (!castToBool(p2shStack.pollLast()))
+            if (!castToBool(p2shStack.pop()))
                 throw new ScriptException("P2SH script execution resulted in a non-true stack");
         }
     }
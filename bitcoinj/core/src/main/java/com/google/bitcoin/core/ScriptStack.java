@@ -0,0 +1,77 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.util.Arrays;
+
+/**
+ * The stack that scripts run on: an array of references to the byte arrays pushed, which are shared with the
+ * script chunks and the other stack entries and never modified, so pushing, duplicating and dropping entries copies
+ * no data. The array is kept between uses, so once it has grown to fit the scripts being run a stack allocates
+ * nothing. Not thread safe.
+ */
+final class ScriptStack {
+    private byte[][] items = new byte[16][];
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    void push(byte[] item) {
+        if (size == items.length)
+            items = Arrays.copyOf(items, size * 2);
+        items[size++] = item;
+    }
+
+    /** Removes and returns the top item. The caller checks that there is one. */
+    byte[] pop() {
+        byte[] item = items[--size];
+        items[size] = null;
+        return item;
+    }
+
+    /** Returns the item depth places below the top, where 0 is the top. */
+    byte[] peek(int depth) {
+        return items[size - 1 - depth];
+    }
+
+    /** Removes and returns the item depth places below the top, moving the items above it down. */
+    byte[] remove(int depth) {
+        int index = size - 1 - depth;
+        byte[] item = items[index];
+        System.arraycopy(items, index + 1, items, index, depth);
+        items[--size] = null;
+        return item;
+    }
+
+    /** Makes this stack a copy of the other one. The items themselves are shared. */
+    void setTo(ScriptStack other) {
+        clear();
+        if (items.length < other.size)
+            items = new byte[other.items.length][];
+        System.arraycopy(other.items, 0, items, 0, other.size);
+        size = other.size;
+    }
+
+    /** Empties the stack, letting go of the items so they can be collected. */
+    void clear() {
+        Arrays.fill(items, 0, size, null);
+        size = 0;
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.util.Arrays;
+
+/**
+ * Checks the common kinds of spend straight from the script bytes, without parsing the scripts into chunks or running
+ * them: pay to address (DUP HASH160 &lt;hash&gt; EQUALVERIFY CHECKSIG), pay to public key (&lt;pubkey&gt; CHECKSIG) and
+ * pay to script hash where the redeem script is a plain m of n CHECKMULTISIG. The outcome, including the message of
+ * any ScriptException, is the same as running the scripts with {@link Script#correctlySpends}.<p>
+ *
+ * Anything unusual about a spend, such as a scriptSig with extra pushes, an empty signature or a signature that is
+ * also a piece of the script being signed, is left to the interpreter rather than reproduced here.
+ */
+final class ScriptTemplates {
+    // What classify makes of a scriptPubKey. Zero is left free to mean "not classified yet".
+    static final int NONSTANDARD = 1;
+    static final int PAY_TO_PUBKEY_HASH = 2;
+    static final int PAY_TO_PUBKEY = 3;
+    static final int PAY_TO_SCRIPT_HASH = 4;
+
+    // The interpreter refuses bigger pushes; let it say so.
+    private static final int MAX_PUSH = 520;
+    // Enough for a 16 of n multisig scriptSig: the dummy, the signatures and the redeem script.
+    private static final int MAX_PUSHES = 18;
+
+    private ScriptTemplates() {}
+
+    /**
+     * Checks that scriptSig spends scriptPubKey if they are one of the forms handled here. Returns true if it does,
+     * throws the ScriptException the interpreter would throw if it doesn't, and returns false if the scripts have to be
+     * run instead.
+     */
+    static boolean correctlySpends(Transaction txContainingThis, long index, byte[] scriptSig, byte[] scriptPubKey,
+                                   boolean enforceP2SH) throws ScriptException {
+        return correctlySpends(txContainingThis, index, scriptSig, scriptPubKey, classify(scriptPubKey), enforceP2SH);
+    }
+
+    /** As {@link #correctlySpends(Transaction, long, byte[], byte[], boolean)}, given what classify made of scriptPubKey. */
+    static boolean correctlySpends(Transaction txContainingThis, long index, byte[] scriptSig, byte[] scriptPubKey,
+                                   int template, boolean enforceP2SH) throws ScriptException {
+        switch (template) {
+        case PAY_TO_PUBKEY_HASH:
+            return spendPayToPubKeyHash(txContainingThis, index, scriptSig, scriptPubKey);
+        case PAY_TO_PUBKEY:
+            return spendPayToPubKey(txContainingThis, index, scriptSig, scriptPubKey);
+        case PAY_TO_SCRIPT_HASH:
+            return spendPayToScriptHash(txContainingThis, index, scriptSig, scriptPubKey, enforceP2SH);
+        default:
+            return false;
+        }
+    }
+
+    /** Returns which of the forms handled here scriptPubKey takes, or NONSTANDARD. */
+    static int classify(byte[] scriptPubKey) {
+        if (isPayToPubKeyHash(scriptPubKey))
+            return PAY_TO_PUBKEY_HASH;
+        if (isPayToPubKey(scriptPubKey))
+            return PAY_TO_PUBKEY;
+        if (isPayToScriptHash(scriptPubKey))
+            return PAY_TO_SCRIPT_HASH;
+        return NONSTANDARD;
+    }
+
+    static boolean isPayToPubKeyHash(byte[] script) {
+        return script.length == 25 &&
+               (script[0] & 0xff) == Script.OP_DUP &&
+               (script[1] & 0xff) == Script.OP_HASH160 &&
+               script[2] == 20 &&
+               (script[23] & 0xff) == Script.OP_EQUALVERIFY &&
+               (script[24] & 0xff) == Script.OP_CHECKSIG;
+    }
+
+    static boolean isPayToPubKey(byte[] script) {
+        return script.length > 0 && isPubKeyLength(script[0]) && script.length == script[0] + 2 &&
+               (script[script.length - 1] & 0xff) == Script.OP_CHECKSIG;
+    }
+
+    static boolean isPayToScriptHash(byte[] script) {
+        return script.length == 23 &&
+               (script[0] & 0xff) == Script.OP_HASH160 &&
+               script[1] == 20 &&
+               (script[22] & 0xff) == Script.OP_EQUAL;
+    }
+
+    private static boolean isPubKeyLength(int length) {
+        return length == 33 || length == 65;
+    }
+
+    private static boolean spendPayToPubKeyHash(Transaction txContainingThis, long index, byte[] scriptSig,
+                                                byte[] scriptPubKey) throws ScriptException {
+        byte[][] pushes = readPushes(scriptSig);
+        if (pushes == null || pushes.length != 2)
+            return false;
+        byte[] sig = pushes[0], pubKey = pushes[1];
+        // A 20 byte signature could be the hash push, which would then be cut out of the script that is signed.
+        if (sig.length == 0 || sig.length == 20)
+            return false;
+        if (!equalsRange(Utils.sha256hash160(pubKey), scriptPubKey, 3))
+            throw new ScriptException("OP_EQUALVERIFY: non-equal data");
+        if (!checkSignature(txContainingThis, index, scriptPubKey, sig, pubKey))
+            throw new ScriptException("Script resulted in a non-true stack");
+        return true;
+    }
+
+    private static boolean spendPayToPubKey(Transaction txContainingThis, long index, byte[] scriptSig,
+                                            byte[] scriptPubKey) throws ScriptException {
+        byte[][] pushes = readPushes(scriptSig);
+        if (pushes == null || pushes.length != 1)
+            return false;
+        byte[] sig = pushes[0];
+        byte[] pubKey = Arrays.copyOfRange(scriptPubKey, 1, scriptPubKey.length - 1);
+        if (sig.length == 0 || Arrays.equals(sig, pubKey))
+            return false;
+        if (!checkSignature(txContainingThis, index, scriptPubKey, sig, pubKey))
+            throw new ScriptException("Script resulted in a non-true stack");
+        return true;
+    }
+
+    private static boolean spendPayToScriptHash(Transaction txContainingThis, long index, byte[] scriptSig,
+                                                byte[] scriptPubKey, boolean enforceP2SH) throws ScriptException {
+        byte[][] pushes = readPushes(scriptSig);
+        if (pushes == null || pushes.length < 3)
+            return false;
+        byte[] redeemScript = pushes[pushes.length - 1];
+        byte[][] pubKeys = readMultiSigKeys(redeemScript);
+        if (pubKeys == null)
+            return false;
+        int sigCount = (redeemScript[0] & 0xff) - Script.OP_1 + 1;
+        // The dummy value CHECKMULTISIG pops, then exactly the signatures.
+        if (pushes.length != sigCount + 2)
+            return false;
+        for (int i = 1; i <= sigCount; i++) {
+            if (pushes[i].length == 0)
+                return false;
+            for (byte[] pubKey : pubKeys)
+                if (Arrays.equals(pushes[i], pubKey))
+                    return false;
+        }
+        if (!equalsRange(Utils.sha256hash160(redeemScript), scriptPubKey, 2))
+            throw new ScriptException("Script resulted in a non-true stack");
+        if (!enforceP2SH)
+            return true;
+        // Match signatures to keys as the interpreter does, both taken from the top of the stack.
+        int sigsLeft = sigCount, keysLeft = pubKeys.length;
+        while (sigsLeft > 0) {
+            byte[] pubKey = pubKeys[--keysLeft];
+            if (checkSignature(txContainingThis, index, redeemScript, pushes[sigsLeft], pubKey))
+                sigsLeft--;
+            if (sigsLeft > keysLeft)
+                throw new ScriptException("P2SH script execution resulted in a non-true stack");
+        }
+        return true;
+    }
+
+    /**
+     * Returns the public keys of a redeem script of the form OP_m &lt;pubkey&gt;... OP_n CHECKMULTISIG, with
+     * 0 &lt; m &lt;= n, or null if the script isn't like that.
+     */
+    private static byte[][] readMultiSigKeys(byte[] script) {
+        if (script.length < 3)
+            return null;
+        int m = (script[0] & 0xff) - Script.OP_1 + 1;
+        int n = (script[script.length - 2] & 0xff) - Script.OP_1 + 1;
+        if (m < 1 || n < m || n > 16 || (script[script.length - 1] & 0xff) != Script.OP_CHECKMULTISIG)
+            return null;
+        byte[][] pubKeys = new byte[n][];
+        int cursor = 1;
+        for (int i = 0; i < n; i++) {
+            if (cursor >= script.length - 2 || !isPubKeyLength(script[cursor]))
+                return null;
+            int length = script[cursor];
+            if (cursor + 1 + length > script.length - 2)
+                return null;
+            pubKeys[i] = Arrays.copyOfRange(script, cursor + 1, cursor + 1 + length);
+            cursor += 1 + length;
+        }
+        return cursor == script.length - 2 ? pubKeys : null;
+    }
+
+    /**
+     * Reads a script made only of data pushes, returning the data, or null if it contains anything else, is
+     * malformed, or pushes more or bigger items than handled here.
+     */
+    private static byte[][] readPushes(byte[] script) {
+        byte[][] pushes = new byte[MAX_PUSHES][];
+        int count = 0;
+        int cursor = 0;
+        while (cursor < script.length) {
+            if (count == MAX_PUSHES)
+                return null;
+            int opcode = script[cursor++] & 0xff;
+            int length;
+            if (opcode < Script.OP_PUSHDATA1) {
+                length = opcode;
+            } else if (opcode == Script.OP_PUSHDATA1 && cursor < script.length) {
+                length = script[cursor++] & 0xff;
+            } else if (opcode == Script.OP_PUSHDATA2 && cursor + 1 < script.length) {
+                length = (script[cursor] & 0xff) | (script[cursor + 1] & 0xff) << 8;
+                cursor += 2;
+            } else {
+                return null;
+            }
+            if (length > MAX_PUSH || cursor + length > script.length)
+                return null;
+            pushes[count++] = Arrays.copyOfRange(script, cursor, cursor + length);
+            cursor += length;
+        }
+        return Arrays.copyOf(pushes, count);
+    }
+
+    private static boolean equalsRange(byte[] a, byte[] b, int start) {
+        for (int i = 0; i < a.length; i++)
+            if (a[i] != b[start + i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Checks a signature as OP_CHECKSIG does, where nothing has to be cut out of the script that is signed. Any
+     * exception from the signature check means the signature is bad.
+     */
+    private static boolean checkSignature(Transaction txContainingThis, long index, byte[] connectedScript,
+                                          byte[] sig, byte[] pubKey) throws ScriptException {
+        Sha256Hash hash = txContainingThis.hashTransactionForSignature((int) index, connectedScript, sig[sig.length - 1]);
+        try {
+            return Script.verifySignature(hash, sig, pubKey);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,484 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+
+import static com.google.bitcoin.core.Secp256k1Field.*;
+
+/**
+ * Point arithmetic on the secp256k1 curve, y^2 = x^3 + 7, using the field code in {@link Secp256k1Field}. Points
+ * are added in Jacobian coordinates so there is no inversion per step. Scalar multiplications use the curve's
+ * endomorphism (x, y) -> (beta * x, y), which multiplies by lambda, to split each 256 bit scalar into two of about
+ * 128 bits that share their doublings (the "GLV" method), and are written in windowed non-adjacent form over
+ * precomputed odd multiples of the points.
+ */
+final class Secp256k1 {
+    static final BigInteger N = new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16);
+    static final int[] GX = fromBigInteger(
+            new BigInteger("79BE667EF9DCBBAC55A06295CE870B07029BFCDB2DCE28D959F2815B16F81798", 16));
+    static final int[] GY = fromBigInteger(
+            new BigInteger("483ADA7726A3C4655DA4FBFC0E1108A8FD17B448A68554199C47D08FFB10D4B8", 16));
+    static final BigInteger LAMBDA =
+            new BigInteger("5363AD4CC05C30E0A5261C028812645A122E22EA20816678DF02967C1B23BD72", 16);
+    static final int[] BETA = fromBigInteger(
+            new BigInteger("7AE96A2B657C07106E64479EAC3434E99CF0497512F58995C1396C28719501EE", 16));
+    // A short basis of the lattice of (a, b) with a + b * lambda = 0 (mod n), used to split scalars.
+    private static final BigInteger A1 = new BigInteger("3086D221A7D46BCDE86C90E49284EB15", 16);
+    private static final BigInteger B1 = new BigInteger("-E4437ED6010E88286F547FA90ABFE4C3", 16);
+    private static final BigInteger A2 = new BigInteger("114CA50F7A8E2F3F657C1108D9D44CFD8", 16);
+    private static final BigInteger B2 = A1;
+    private static final BigInteger HALF_N = N.shiftRight(1);
+
+    // Digits of the generator's multipliers come from a big table, as it only has to be built once.
+    static final int G_WINDOW = 8;
+    static final AffineTable G_TABLE = new AffineTable(new int[][] { GX }, new int[][] { GY }).oddMultiples(G_WINDOW);
+    static final int KEY_WINDOW = 5;
+
+    private Secp256k1() {}
+
+    static boolean isOnCurve(int[] x, int[] y) {
+        int[] lhs = newElement(), rhs = newElement();
+        sqr(lhs, y);
+        sqr(rhs, x);
+        mul(rhs, rhs, x);
+        add(rhs, rhs, SEVEN);
+        return equal(lhs, rhs);
+    }
+
+    private static final int[] SEVEN = fromBigInteger(BigInteger.valueOf(7));
+
+    /** Returns the y coordinate with the given parity for x, or null if x isn't on the curve. */
+    static int[] decompress(int[] x, boolean odd) {
+        int[] y = newElement();
+        sqr(y, x);
+        mul(y, y, x);
+        add(y, y, SEVEN);
+        if (!Secp256k1Field.sqrt(y, y) || isZero(y))
+            return null;
+        if (isOdd(y) != odd)
+            negate(y, y);
+        return y;
+    }
+
+    /**
+     * Affine points, along with their images under the endomorphism, which share the y coordinates. Immutable once
+     * built.
+     */
+    static final class AffineTable {
+        final int[][] x, y, betaX;
+
+        AffineTable(int[][] x, int[][] y) {
+            this.x = x;
+            this.y = y;
+            betaX = new int[x.length][];
+            for (int i = 0; i < x.length; i++) {
+                betaX[i] = newElement();
+                mul(betaX[i], x[i], BETA);
+            }
+        }
+
+        /**
+         * Returns a table of the odd multiples 1P, 3P, ... up to (2^(window - 1) - 1)P of the first point here, for
+         * use with digits from {@link Secp256k1#wnaf(BigInteger, int)}.
+         */
+        AffineTable oddMultiples(int window) {
+            int count = 1 << (window - 2);
+            JacobianPoint twice = new JacobianPoint();
+            twice.set(x[0], y[0]);
+            twice.twice();
+            int[][] twiceAffine = toAffine(new JacobianPoint[] { twice });
+            JacobianPoint[] points = new JacobianPoint[count];
+            points[0] = new JacobianPoint();
+            points[0].set(x[0], y[0]);
+            for (int i = 1; i < count; i++) {
+                points[i] = points[i - 1].copy();
+                points[i].addAffine(twiceAffine[0], twiceAffine[1]);
+            }
+            int[][] affine = toAffine(points);
+            int[][] xs = new int[count][], ys = new int[count][];
+            for (int i = 0; i < count; i++) {
+                xs[i] = affine[2 * i];
+                ys[i] = affine[2 * i + 1];
+            }
+            return new AffineTable(xs, ys);
+        }
+    }
+
+    /**
+     * Converts points to affine coordinates with a single inversion, returning x and y of each in turn. None of the
+     * points may be at infinity.
+     */
+    static int[][] toAffine(JacobianPoint[] points) {
+        int n = points.length;
+        // Running products of the z coordinates, then one inversion that is unwound to give each inverse.
+        int[][] products = new int[n][];
+        products[0] = points[0].z.clone();
+        for (int i = 1; i < n; i++) {
+            products[i] = newElement();
+            mul(products[i], products[i - 1], points[i].z);
+        }
+        // Inverted in the field code rather than with BigInteger, as the points may be secret.
+        int[] inverse = newElement();
+        invert(inverse, products[n - 1]);
+        int[][] result = new int[2 * n][];
+        int[] zInv = newElement(), zInv2 = newElement();
+        for (int i = n - 1; i >= 0; i--) {
+            if (i > 0) {
+                mul(zInv, inverse, products[i - 1]);
+                mul(inverse, inverse, points[i].z);
+            } else {
+                Secp256k1Field.copy(zInv, inverse);
+            }
+            sqr(zInv2, zInv);
+            int[] x = newElement(), y = newElement();
+            mul(x, points[i].x, zInv2);
+            mul(zInv2, zInv2, zInv);
+            mul(y, points[i].y, zInv2);
+            result[2 * i] = x;
+            result[2 * i + 1] = y;
+        }
+        return result;
+    }
+
+    /**
+     * A point in Jacobian coordinates, standing for (x / z^2, y / z^3), which is changed in place. Not thread safe.
+     */
+    static final class JacobianPoint {
+        final int[] x = newElement(), y = newElement(), z = newElement();
+        boolean infinity = true;
+        // Scratch space for the formulas.
+        private final int[] t1 = newElement(), t2 = newElement(), t3 = newElement(), t4 = newElement(),
+                t5 = newElement(), t6 = newElement();
+
+        void set(int[] ax, int[] ay) {
+            Secp256k1Field.copy(x, ax);
+            Secp256k1Field.copy(y, ay);
+            java.util.Arrays.fill(z, 0);
+            z[0] = 1;
+            infinity = false;
+        }
+
+        void setInfinity() {
+            infinity = true;
+        }
+
+        JacobianPoint copy() {
+            JacobianPoint p = new JacobianPoint();
+            Secp256k1Field.copy(p.x, x);
+            Secp256k1Field.copy(p.y, y);
+            Secp256k1Field.copy(p.z, z);
+            p.infinity = infinity;
+            return p;
+        }
+
+        /** Doubles this point ("dbl-2009-l" from the Explicit-Formulas Database). */
+        void twice() {
+            if (infinity)
+                return;
+            if (isZero(y)) {
+                infinity = true;
+                return;
+            }
+            int[] a = t1, b = t2, c = t3, d = t4, e = t5, f = t6;
+            sqr(a, x);
+            sqr(b, y);
+            sqr(c, b);
+            add(d, x, b);
+            sqr(d, d);
+            sub(d, d, a);
+            sub(d, d, c);
+            add(d, d, d);
+            mulSmall(e, a, 3);
+            sqr(f, e);
+            // z3 = 2 * y1 * z1
+            mul(z, y, z);
+            add(z, z, z);
+            // x3 = f - 2d
+            sub(x, f, d);
+            sub(x, x, d);
+            // y3 = e * (d - x3) - 8c
+            sub(d, d, x);
+            mul(y, e, d);
+            mulSmall(c, c, 8);
+            sub(y, y, c);
+        }
+
+        /** Adds an affine point to this one ("madd-2007-bl" from the Explicit-Formulas Database). */
+        void addAffine(int[] x2, int[] y2) {
+            if (infinity) {
+                set(x2, y2);
+                return;
+            }
+            int[] z1z1 = t1, u2 = t2, s2 = t3, h = t4, r = t5, hh = t6;
+            sqr(z1z1, z);
+            mul(u2, x2, z1z1);
+            mul(s2, y2, z);
+            mul(s2, s2, z1z1);
+            sub(h, u2, x);
+            sub(r, s2, y);
+            if (isZero(h)) {
+                if (isZero(r))
+                    twice();
+                else
+                    infinity = true;
+                return;
+            }
+            add(r, r, r);
+            sqr(hh, h);
+            // i = 4 * hh, j = h * i, v = x1 * i; z1z1, u2 and s2 are no longer needed.
+            int[] i = z1z1, j = u2, v = s2;
+            add(i, hh, hh);
+            add(i, i, i);
+            mul(j, h, i);
+            mul(v, x, i);
+            // z3 = 2 * z1 * h
+            mul(z, z, h);
+            add(z, z, z);
+            // x3 = r^2 - j - 2v
+            sqr(x, r);
+            sub(x, x, j);
+            sub(x, x, v);
+            sub(x, x, v);
+            // y3 = r * (v - x3) - 2 * y1 * j
+            mul(j, j, y);
+            add(j, j, j);
+            sub(v, v, x);
+            mul(y, r, v);
+            sub(y, y, j);
+        }
+
+        /** Returns true if this point's affine x coordinate is the given value. */
+        boolean hasX(int[] affineX) {
+            if (infinity)
+                return false;
+            int[] zz = t1;
+            sqr(zz, z);
+            mul(zz, zz, affineX);
+            return equal(zz, x);
+        }
+    }
+
+    /**
+     * Splits k into k1 + k2 * lambda (mod n), returning {k1, k2}. Both are around 128 bits and may be negative.
+     */
+    static BigInteger[] split(BigInteger k) {
+        // c1 = round(b2 * k / n), c2 = round(-b1 * k / n)
+        BigInteger c1 = B2.multiply(k).add(HALF_N).divide(N);
+        BigInteger c2 = B1.negate().multiply(k).add(HALF_N).divide(N);
+        BigInteger k1 = k.subtract(c1.multiply(A1)).subtract(c2.multiply(A2));
+        BigInteger k2 = c1.multiply(B1).add(c2.multiply(B2)).negate();
+        return new BigInteger[] { k1, k2 };
+    }
+
+    /**
+     * Writes a non-negative k in windowed non-adjacent form: digits that are zero or odd and less than
+     * 2^(window - 1) in size, at most one in any window bits, with k equal to the sum of digit[i] * 2^i.
+     */
+    static byte[] wnaf(BigInteger k, int window) {
+        int length = k.bitLength() + 1;
+        byte[] magnitude = k.toByteArray();
+        byte[] digits = new byte[length];
+        int carry = 0;
+        for (int bit = 0; bit < length; ) {
+            if (bit(magnitude, bit) == carry) {
+                bit++;
+                continue;
+            }
+            int now = Math.min(window, length - bit);
+            int word = bits(magnitude, bit, now) + carry;
+            carry = (word >>> (window - 1)) & 1;
+            word -= carry << window;
+            digits[bit] = (byte) word;
+            bit += now;
+        }
+        return digits;
+    }
+
+    private static int bit(byte[] bigEndian, int i) {
+        int index = bigEndian.length - 1 - (i >>> 3);
+        return index < 0 ? 0 : (bigEndian[index] >>> (i & 7)) & 1;
+    }
+
+    private static int bits(byte[] bigEndian, int from, int count) {
+        int word = 0;
+        for (int i = count - 1; i >= 0; i--)
+            word = (word << 1) | bit(bigEndian, from + i);
+        return word;
+    }
+
+    /**
+     * Multiples of the generator for {@link #multiplyG(BigInteger)}: entry [i][j] is j * 16^i * G + O_i. The offsets
+     * O_i are 2^i * U for i below 63 and -(2^63 - 1) * U for the last window, so they add up to nothing, where U is
+     * a point found by hashing whose discrete log nobody knows. They mean no entry is the point at infinity and, short
+     * of solving a discrete log, no addition while multiplying meets the doubling or infinity cases. This is about
+     * 80kb and takes some milliseconds to build, so it is made the first time a key is derived or something is
+     * signed, not when signatures are checked.
+     */
+    private static final class GeneratorWindows {
+        static final int WINDOWS = 64;
+        static final int[][][] X = new int[WINDOWS][][], Y = new int[WINDOWS][][];
+
+        static {
+            int[][] offsets = offsets();
+            int[] baseX = GX, baseY = GY;
+            JacobianPoint[] points = new JacobianPoint[17];
+            for (int i = 0; i < WINDOWS; i++) {
+                JacobianPoint p = new JacobianPoint();
+                p.set(offsets[2 * i], offsets[2 * i + 1]);
+                points[0] = p.copy();
+                for (int j = 1; j < 16; j++) {
+                    p.addAffine(baseX, baseY);
+                    points[j] = p.copy();
+                }
+                // The last point is 16 times this window's base, the next window's one.
+                points[16] = new JacobianPoint();
+                points[16].set(baseX, baseY);
+                for (int j = 0; j < 4; j++)
+                    points[16].twice();
+                int[][] affine = toAffine(points);
+                X[i] = new int[16][];
+                Y[i] = new int[16][];
+                for (int j = 0; j < 16; j++) {
+                    X[i][j] = affine[2 * j];
+                    Y[i][j] = affine[2 * j + 1];
+                }
+                baseX = affine[32];
+                baseY = affine[33];
+            }
+        }
+
+        /** Returns the affine x and y of each offset in turn. */
+        private static int[][] offsets() {
+            // U is the first point whose x coordinate is the SHA-256 of this string, counted up from.
+            byte[] seed = Sha256Hash.create("bitcoinj secp256k1 generator table offset".getBytes()).getBytes();
+            int[] ux = fromBytes(seed, 0), uy = null;
+            while (ux == null || (uy = decompress(ux, false)) == null) {
+                if (ux == null)
+                    ux = newElement();
+                add(ux, ux, ONE);
+            }
+            JacobianPoint[] points = new JacobianPoint[WINDOWS];
+            JacobianPoint p = new JacobianPoint();
+            p.set(ux, uy);
+            for (int i = 0; i < WINDOWS - 1; i++) {
+                points[i] = p.copy();
+                p.twice();
+            }
+            // p is now 2^63 * U, and U - p is the last offset.
+            int[][] top = toAffine(new JacobianPoint[] { p });
+            negate(top[1], top[1]);
+            points[WINDOWS - 1] = new JacobianPoint();
+            points[WINDOWS - 1].set(top[0], top[1]);
+            points[WINDOWS - 1].addAffine(ux, uy);
+            return toAffine(points);
+        }
+    }
+
+    private static final int[] ONE = fromBigInteger(BigInteger.ONE);
+
+    /**
+     * Returns k * G in Jacobian coordinates, for 0 < k < n. It takes one addition from a precomputed table for each
+     * four bits of k, always 64, and no doublings. Each addition reads every entry of its window and keeps the one
+     * wanted with masks, so neither the time taken nor the memory read depends on k, which may be a private key or a
+     * signing nonce.
+     */
+    static JacobianPoint multiplyG(BigInteger k) {
+        byte[] bytes = Utils.bigIntegerToBytes(k, 32);
+        JacobianPoint result = new JacobianPoint();
+        int[] x = newElement(), y = newElement();
+        for (int i = 0; i < GeneratorWindows.WINDOWS; i++) {
+            int nibble = (bytes[31 - (i >>> 1)] >>> ((i & 1) * 4)) & 0xf;
+            select(x, y, GeneratorWindows.X[i], GeneratorWindows.Y[i], nibble);
+            if (i == 0)
+                result.set(x, y);
+            else
+                result.addAffine(x, y);
+        }
+        return result;
+    }
+
+    // Sets x and y to entry index of the tables, touching every entry.
+    private static void select(int[] x, int[] y, int[][] xs, int[][] ys, int index) {
+        java.util.Arrays.fill(x, 0);
+        java.util.Arrays.fill(y, 0);
+        for (int j = 0; j < xs.length; j++) {
+            // All ones when j is the index, zero otherwise.
+            int mask = ((j ^ index) - 1) >> 31;
+            int[] ex = xs[j], ey = ys[j];
+            for (int l = 0; l < 8; l++) {
+                x[l] |= ex[l] & mask;
+                y[l] |= ey[l] & mask;
+            }
+        }
+    }
+
+    /**
+     * Encodes affine points as public keys, in the 33 byte compressed form or the 65 byte uncompressed one. The
+     * coordinates are given as {@link #toAffine(JacobianPoint[])} returns them.
+     */
+    static byte[] encode(int[] x, int[] y, boolean compressed) {
+        byte[] encoded = new byte[compressed ? 33 : 65];
+        encoded[0] = (byte) (compressed ? (isOdd(y) ? 3 : 2) : 4);
+        toBytes(x, encoded, 1);
+        if (!compressed)
+            toBytes(y, encoded, 33);
+        return encoded;
+    }
+
+    /**
+     * Returns a * G + b * Q in Jacobian coordinates, where Q is given by its table of odd multiples with
+     * {@link #KEY_WINDOW}.
+     */
+    static JacobianPoint multiplyAdd(BigInteger a, BigInteger b, AffineTable keyTable) {
+        BigInteger[] aSplit = split(a), bSplit = split(b);
+        byte[][] digits = new byte[4][];
+        boolean[] negative = new boolean[4];
+        for (int i = 0; i < 2; i++) {
+            negative[i] = aSplit[i].signum() < 0;
+            digits[i] = wnaf(aSplit[i].abs(), G_WINDOW);
+            negative[2 + i] = bSplit[i].signum() < 0;
+            digits[2 + i] = wnaf(bSplit[i].abs(), KEY_WINDOW);
+        }
+        AffineTable[] tables = { G_TABLE, G_TABLE, keyTable, keyTable };
+        int length = 0;
+        for (byte[] d : digits)
+            length = Math.max(length, d.length);
+        JacobianPoint result = new JacobianPoint();
+        int[] negY = newElement();
+        for (int bit = length - 1; bit >= 0; bit--) {
+            result.twice();
+            for (int i = 0; i < 4; i++) {
+                if (bit >= digits[i].length || digits[i][bit] == 0)
+                    continue;
+                int digit = digits[i][bit];
+                int index = (Math.abs(digit) - 1) >>> 1;
+                AffineTable table = tables[i];
+                // The second half of each split scalar multiplies the endomorphism's image of the point.
+                int[] px = (i & 1) == 0 ? table.x[index] : table.betaX[index];
+                int[] py = table.y[index];
+                if ((digit < 0) != negative[i]) {
+                    negate(negY, py);
+                    py = negY;
+                }
+                result.addAffine(px, py);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+
+/**
+ * Arithmetic modulo the secp256k1 field prime p = 2^256 - 2^32 - 977. An element is an int[8] holding the value as
+ * eight unsigned 32 bit limbs, least significant first, always fully reduced. Results may be written over the
+ * arguments. Adding, subtracting, multiplying and inverting don't branch on the values or index by them, as they are
+ * used on secret points when keys are derived and messages signed.
+ */
+final class Secp256k1Field {
+    static final BigInteger P = new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEFFFFFC2F", 16);
+    // 2^256 - p, which is what a carry out of the top limb is worth.
+    private static final long C_LOW = 977;
+    private static final long M = 0xffffffffL;
+    private static final int[] P_LIMBS = fromBigInteger(P);
+    private static final int[] P_MINUS_2 = fromBigInteger(P.subtract(BigInteger.valueOf(2)));
+    private static final int[] SQRT_EXPONENT = fromBigInteger(P.add(BigInteger.ONE).shiftRight(2));
+
+    private Secp256k1Field() {}
+
+    static int[] newElement() {
+        return new int[8];
+    }
+
+    static int[] fromBigInteger(BigInteger value) {
+        int[] r = new int[8];
+        for (int i = 0; i < 8; i++)
+            r[i] = value.shiftRight(32 * i).intValue();
+        return r;
+    }
+
+    /** Reads a big endian 32 byte value, returning null if it isn't less than p. */
+    static int[] fromBytes(byte[] bytes, int offset) {
+        int[] r = new int[8];
+        for (int i = 0; i < 8; i++) {
+            int o = offset + 28 - 4 * i;
+            r[i] = (bytes[o] & 0xff) << 24 | (bytes[o + 1] & 0xff) << 16 | (bytes[o + 2] & 0xff) << 8 |
+                    (bytes[o + 3] & 0xff);
+        }
+        return compare(r, P_LIMBS) < 0 ? r : null;
+    }
+
+    /** Writes a as a big endian 32 byte value. */
+    static void toBytes(int[] a, byte[] bytes, int offset) {
+        for (int i = 0; i < 8; i++) {
+            int o = offset + 28 - 4 * i;
+            bytes[o] = (byte) (a[i] >>> 24);
+            bytes[o + 1] = (byte) (a[i] >>> 16);
+            bytes[o + 2] = (byte) (a[i] >>> 8);
+            bytes[o + 3] = (byte) a[i];
+        }
+    }
+
+    static BigInteger toBigInteger(int[] a) {
+        byte[] bytes = new byte[33];
+        for (int i = 0; i < 8; i++) {
+            int o = 29 - 4 * i;
+            bytes[o] = (byte) (a[i] >>> 24);
+            bytes[o + 1] = (byte) (a[i] >>> 16);
+            bytes[o + 2] = (byte) (a[i] >>> 8);
+            bytes[o + 3] = (byte) a[i];
+        }
+        return new BigInteger(bytes);
+    }
+
+    static void copy(int[] r, int[] a) {
+        System.arraycopy(a, 0, r, 0, 8);
+    }
+
+    static boolean isZero(int[] a) {
+        return (a[0] | a[1] | a[2] | a[3] | a[4] | a[5] | a[6] | a[7]) == 0;
+    }
+
+    static boolean isOdd(int[] a) {
+        return (a[0] & 1) != 0;
+    }
+
+    static boolean equal(int[] a, int[] b) {
+        return ((a[0] ^ b[0]) | (a[1] ^ b[1]) | (a[2] ^ b[2]) | (a[3] ^ b[3]) | (a[4] ^ b[4]) | (a[5] ^ b[5]) |
+                (a[6] ^ b[6]) | (a[7] ^ b[7])) == 0;
+    }
+
+    private static int compare(int[] a, int[] b) {
+        for (int i = 7; i >= 0; i--) {
+            long x = a[i] & M, y = b[i] & M;
+            if (x != y)
+                return x < y ? -1 : 1;
+        }
+        return 0;
+    }
+
+    static void add(int[] r, int[] a, int[] b) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (a[i] & M) + (b[i] & M);
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+        reduceOnce(r, c);
+    }
+
+    static void sub(int[] r, int[] a, int[] b) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (a[i] & M) - (b[i] & M);
+            r[i] = (int) c;
+            c >>= 32;
+        }
+        // On a borrow add p back, dropping the carry out of the top limb. The borrow is all ones or zero.
+        long mask = c & M;
+        c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (r[i] & M) + (P_LIMBS[i] & mask);
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+    }
+
+    static void negate(int[] r, int[] a) {
+        if (isZero(a)) {
+            copy(r, a);
+            return;
+        }
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (P_LIMBS[i] & M) - (a[i] & M);
+            r[i] = (int) c;
+            c >>= 32;
+        }
+    }
+
+    /** Multiplies by a small non-negative number. */
+    static void mulSmall(int[] r, int[] a, int n) {
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (a[i] & M) * n;
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+        reduceTop(r, c);
+    }
+
+    static void mul(int[] r, int[] a, int[] b) {
+        long a0 = a[0] & M, a1 = a[1] & M, a2 = a[2] & M, a3 = a[3] & M;
+        long a4 = a[4] & M, a5 = a[5] & M, a6 = a[6] & M, a7 = a[7] & M;
+        long b0 = b[0] & M, b1 = b[1] & M, b2 = b[2] & M, b3 = b[3] & M;
+        long b4 = b[4] & M, b5 = b[5] & M, b6 = b[6] & M, b7 = b[7] & M;
+        int[] t = new int[16];
+        // Each product fits in 64 unsigned bits, so the low and high halves are added up separately.
+        long lo, hi, p, carry = 0;
+        p = a0 * b0; lo = p & M; hi = p >>> 32;
+        carry = column(t, 0, carry, lo, hi);
+        lo = 0; hi = 0;
+        p = a0 * b1; lo += p & M; hi += p >>> 32; p = a1 * b0; lo += p & M; hi += p >>> 32;
+        carry = column(t, 1, carry, lo, hi);
+        lo = 0; hi = 0;
+        p = a0 * b2; lo += p & M; hi += p >>> 32; p = a1 * b1; lo += p & M; hi += p >>> 32;
+        p = a2 * b0; lo += p & M; hi += p >>> 32;
+        carry = column(t, 2, carry, lo, hi);
+        lo = 0; hi = 0;
+        p = a0 * b3; lo += p & M; hi += p >>> 32; p = a1 * b2; lo += p & M; hi += p >>> 32;
+        p = a2 * b1; lo += p & M; hi += p >>> 32; p = a3 * b0; lo += p & M; hi += p >>> 32;
+        carry = column(t, 3, carry, lo, hi);
+        lo = 0; hi = 0;
+        p = a0 * b4; lo += p & M; hi += p >>> 32; p = a1 * b3; lo += p & M; hi += p >>> 32;
+        p = a2 * b2; lo += p & M; hi += p >>> 32; p = a3 * b1; lo += p & M; hi += p >>> 32;
+        p = a4 * b0; lo += p & M; hi += p >>> 32;
+        carry = column(t, 4, carry, lo, hi);
+        lo = 0; hi = 0;
+        p = a0 * b5; lo += p & M; hi += p >>> 32; p = a1 * b4; lo += p & M; hi += p >>> 32;
+        p = a2 * b3; lo += p & M; hi += p >>> 32; p = a3 * b2; lo += p & M; hi += p >>> 32;
+        p = a4 * b1; lo += p & M; hi += p >>> 32; p = a5 * b0; lo += p & M; hi += p >>> 32;
+        carry = column(t, 5, carry, lo, hi);
+        lo = 0; hi = 0;
+        p = a0 * b6; lo += p & M; hi += p >>> 32; p = a1 * b5; lo += p & M; hi += p >>> 32;
+        p = a2 * b4; lo += p & M; hi += p >>> 32; p = a3 * b3; lo += p & M; hi += p >>> 32;
+        p = a4 * b2; lo += p & M; hi += p >>> 32; p = a5 * b1; lo += p & M; hi += p >>> 32;
+        p = a6 * b0; lo += p & M; hi += p >>> 32;
+        carry = column(t, 6, carry, lo, hi);
+        lo = 0; hi = 0;
+        p = a0 * b7; lo += p & M; hi += p >>> 32; p = a1 * b6; lo += p & M; hi += p >>> 32;
+        p = a2 * b5; lo += p & M; hi += p >>> 32; p = a3 * b4; lo += p & M; hi += p >>> 32;
+        p = a4 * b3; lo += p & M; hi += p >>> 32; p = a5 * b2; lo += p & M; hi += p >>> 32;
+        p = a6 * b1; lo += p & M; hi += p >>> 32; p = a7 * b0; lo += p & M; hi += p >>> 32;
+        carry = column(t, 7, carry, lo, hi);
+        lo = 0; hi = 0;
+        p = a1 * b7; lo += p & M; hi += p >>> 32; p = a2 * b6; lo += p & M; hi += p >>> 32;
+        p = a3 * b5; lo += p & M; hi += p >>> 32; p = a4 * b4; lo += p & M; hi += p >>> 32;
+        p = a5 * b3; lo += p & M; hi += p >>> 32; p = a6 * b2; lo += p & M; hi += p >>> 32;
+        p = a7 * b1; lo += p & M; hi += p >>> 32;
+        carry = column(t, 8, carry, lo, hi);
+        lo = 0; hi = 0;
+        p = a2 * b7; lo += p & M; hi += p >>> 32; p = a3 * b6; lo += p & M; hi += p >>> 32;
+        p = a4 * b5; lo += p & M; hi += p >>> 32; p = a5 * b4; lo += p & M; hi += p >>> 32;
+        p = a6 * b3; lo += p & M; hi += p >>> 32; p = a7 * b2; lo += p & M; hi += p >>> 32;
+        carry = column(t, 9, carry, lo, hi);
+        lo = 0; hi = 0;
+        p = a3 * b7; lo += p & M; hi += p >>> 32; p = a4 * b6; lo += p & M; hi += p >>> 32;
+        p = a5 * b5; lo += p & M; hi += p >>> 32; p = a6 * b4; lo += p & M; hi += p >>> 32;
+        p = a7 * b3; lo += p & M; hi += p >>> 32;
+        carry = column(t, 10, carry, lo, hi);
+        lo = 0; hi = 0;
+        p = a4 * b7; lo += p & M; hi += p >>> 32; p = a5 * b6; lo += p & M; hi += p >>> 32;
+        p = a6 * b5; lo += p & M; hi += p >>> 32; p = a7 * b4; lo += p & M; hi += p >>> 32;
+        carry = column(t, 11, carry, lo, hi);
+        lo = 0; hi = 0;
+        p = a5 * b7; lo += p & M; hi += p >>> 32; p = a6 * b6; lo += p & M; hi += p >>> 32;
+        p = a7 * b5; lo += p & M; hi += p >>> 32;
+        carry = column(t, 12, carry, lo, hi);
+        lo = 0; hi = 0;
+        p = a6 * b7; lo += p & M; hi += p >>> 32; p = a7 * b6; lo += p & M; hi += p >>> 32;
+        carry = column(t, 13, carry, lo, hi);
+        p = a7 * b7; lo = p & M; hi = p >>> 32;
+        carry = column(t, 14, carry, lo, hi);
+        t[15] = (int) carry;
+        reduce(r, t);
+    }
+
+    private static long column(int[] t, int i, long carry, long lo, long hi) {
+        long c = carry + lo;
+        t[i] = (int) c;
+        return (c >>> 32) + hi;
+    }
+
+    static void sqr(int[] r, int[] a) {
+        mul(r, a, a);
+    }
+
+    // Reduces a 512 bit product, using 2^256 = 2^32 + 977 (mod p).
+    private static void reduce(int[] r, int[] t) {
+        long c = 0;
+        // low + high * 977 + (high << 32)
+        for (int i = 0; i < 8; i++) {
+            long high = t[8 + i] & M;
+            c += (t[i] & M) + high * C_LOW;
+            if (i > 0)
+                c += t[7 + i] & M;
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+        c += t[15] & M;
+        reduceTop(r, c);
+    }
+
+    // Folds a value of top * 2^256 back into r, then brings r below p. top is small, so the first fold carries out
+    // at most one, and if it does r is then small enough that the second can't carry at all.
+    private static void reduceTop(int[] r, long top) {
+        addReduction(r, addReduction(r, top));
+        reduceOnce(r, 0);
+    }
+
+    // Subtracts p from carry * 2^256 + r if that is at least p, which is below 2p.
+    private static void reduceOnce(int[] r, long carry) {
+        // The borrow out of r - p is zero exactly when r is at least p.
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            c += (r[i] & M) - (P_LIMBS[i] & M);
+            c >>= 32;
+        }
+        addReduction(r, carry | (c + 1));
+    }
+
+    // Adds n * (2^256 - p), returning the carry out of the top limb.
+    private static long addReduction(int[] r, long n) {
+        long c = (r[0] & M) + C_LOW * n;
+        r[0] = (int) c;
+        c = (c >>> 32) + (r[1] & M) + n;
+        r[1] = (int) c;
+        c >>>= 32;
+        for (int i = 2; i < 8; i++) {
+            c += r[i] & M;
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+        return c;
+    }
+
+    private static void pow(int[] r, int[] a, int[] exponent) {
+        int[] result = new int[8];
+        result[0] = 1;
+        int[] base = a.clone();
+        for (int i = 0; i < 256; i++) {
+            if ((exponent[i >>> 5] >>> (i & 31) & 1) != 0)
+                mul(result, result, base);
+            sqr(base, base);
+        }
+        copy(r, result);
+    }
+
+    static void invert(int[] r, int[] a) {
+        pow(r, a, P_MINUS_2);
+    }
+
+    /** Sets r to a square root of a and returns true, or returns false if a has none. */
+    static boolean sqrt(int[] r, int[] a) {
+        int[] root = new int[8];
+        // p = 3 (mod 4), so a^((p + 1) / 4) is a root if there is one.
+        pow(root, a, SQRT_EXPONENT);
+        int[] check = new int[8];
+        sqr(check, root);
+        if (!equal(check, a))
+            return false;
+        copy(r, root);
+        return true;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checks ECDSA signatures on secp256k1 without going through the general purpose Bouncy Castle code. This is what
+ * {@link ECKey#verify(byte[], byte[], byte[])} uses. It reads DER itself, uses field arithmetic written for the
+ * curve's prime, splits the scalars with the curve's endomorphism, multiplies the generator using a table built
+ * once, and keeps the tables for recently seen public keys.<p>
+ *
+ * The answers are the same as Bouncy Castle's, exceptions included. Only strict DER signatures and 33 or 65 byte
+ * keys that are on the curve are handled here. Anything else, such as other DER encodings, odd key formats or
+ * points off the curve, which Bouncy Castle accepts without checking, goes to the old code, as does the rare
+ * case where the sum of the multiples is the point at infinity. This class is thread safe.
+ */
+public class Secp256k1Verifier {
+    private static final int KEY_CACHE_SIZE = 1000;
+    private static final BigInteger N = Secp256k1.N;
+    private static final BigInteger P_MINUS_N = Secp256k1Field.P.subtract(N);
+
+    private static final Cache<ByteBuffer, Secp256k1.AffineTable> keyTables =
+            CacheBuilder.newBuilder().maximumSize(KEY_CACHE_SIZE).build();
+
+    private Secp256k1Verifier() {}
+
+    /**
+     * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key, in the same way as
+     * {@link ECKey#verify(byte[], byte[], byte[])}.
+     *
+     * @param data      Hash of the data to verify.
+     * @param signature ASN.1 encoded signature.
+     * @param pub       The public key bytes to use.
+     */
+    public static boolean verify(byte[] data, byte[] signature, byte[] pub) {
+        Secp256k1.AffineTable key = keyTable(pub);
+        BigInteger[] rs = key == null ? null : parseSignature(signature);
+        if (rs == null)
+            return ECKey.verifyWithBouncyCastle(data, signature, pub);
+        BigInteger r = rs[0], s = rs[1];
+        if (r.signum() <= 0 || r.compareTo(N) >= 0 || s.signum() <= 0 || s.compareTo(N) >= 0)
+            return false;
+        BigInteger e = new BigInteger(1, data);
+        if (data.length * 8 > N.bitLength())
+            e = e.shiftRight(data.length * 8 - N.bitLength());
+        BigInteger c = s.modInverse(N);
+        BigInteger u1 = e.multiply(c).mod(N);
+        BigInteger u2 = r.multiply(c).mod(N);
+        Secp256k1.JacobianPoint point = Secp256k1.multiplyAdd(u1, u2, key);
+        if (point.infinity)
+            return ECKey.verifyWithBouncyCastle(data, signature, pub);
+        // The signature is good if x mod n = r. Rather than working out x, which needs an inversion, compare the
+        // candidates r and r + n, scaled to the point's z.
+        if (point.hasX(Secp256k1Field.fromBigInteger(r)))
+            return true;
+        return r.compareTo(P_MINUS_N) < 0 && point.hasX(Secp256k1Field.fromBigInteger(r.add(N)));
+    }
+
+    /**
+     * Checks a number of signatures, in the same way as {@link #verify(byte[], byte[], byte[])}. Element i of the
+     * result says whether signatures[i] of data[i] is good for pubKeys[i]. A check that would throw counts as a
+     * failure, as it does when scripts are run.<p>
+     *
+     * ECDSA doesn't allow checking several signatures for less than the cost of checking them one by one, so the
+     * saving over individual calls comes from keys that appear more than once only being decoded once.
+     */
+    public static boolean[] verify(byte[][] data, byte[][] signatures, byte[][] pubKeys) {
+        if (data.length != signatures.length || data.length != pubKeys.length)
+            throw new IllegalArgumentException("Arrays must be the same length");
+        boolean[] results = new boolean[data.length];
+        for (int i = 0; i < data.length; i++) {
+            try {
+                results[i] = verify(data[i], signatures[i], pubKeys[i]);
+            } catch (Exception e) {
+                results[i] = false;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Reads a signature encoded as SEQUENCE { INTEGER r, INTEGER s } with single byte lengths and nothing after it,
+     * returning null for anything else.
+     */
+    static BigInteger[] parseSignature(byte[] signature) {
+        int length = signature.length;
+        if (length < 8 || length - 2 >= 0x80 || signature[0] != 0x30 || (signature[1] & 0xff) != length - 2)
+            return null;
+        if (signature[2] != 0x02)
+            return null;
+        int rLength = signature[3] & 0xff;
+        if (rLength == 0 || rLength >= 0x80 || 4 + rLength + 2 >= length)
+            return null;
+        int sStart = 4 + rLength;
+        if (signature[sStart] != 0x02)
+            return null;
+        int sLength = signature[sStart + 1] & 0xff;
+        if (sLength == 0 || sLength >= 0x80 || sStart + 2 + sLength != length)
+            return null;
+        // Bouncy Castle takes both as unsigned, like OpenSSL. See ECKey.verify().
+        BigInteger r = new BigInteger(1, Arrays.copyOfRange(signature, 4, 4 + rLength));
+        BigInteger s = new BigInteger(1, Arrays.copyOfRange(signature, sStart + 2, length));
+        return new BigInteger[] { r, s };
+    }
+
+    /** Returns the table of multiples for a public key, or null if it isn't a key handled here. */
+    static Secp256k1.AffineTable keyTable(byte[] pub) {
+        if (pub.length != 33 && pub.length != 65)
+            return null;
+        ByteBuffer cacheKey = ByteBuffer.wrap(pub.clone());
+        Secp256k1.AffineTable table = keyTables.getIfPresent(cacheKey);
+        if (table != null)
+            return table;
+        int[] x = Secp256k1Field.fromBytes(pub, 1), y;
+        if (x == null)
+            return null;
+        if (pub.length == 33 && (pub[0] == 2 || pub[0] == 3)) {
+            y = Secp256k1.decompress(x, pub[0] == 3);
+        } else if (pub.length == 65 && pub[0] == 4) {
+            y = Secp256k1Field.fromBytes(pub, 33);
+            if (y != null && !Secp256k1.isOnCurve(x, y))
+                y = null;
+        } else {
+            y = null;
+        }
+        if (y == null)
+            return null;
+        table = new Secp256k1.AffineTable(new int[][] { x }, new int[][] { y }).oddMultiples(Secp256k1.KEY_WINDOW);
+        keyTables.put(cacheKey, table);
+        return table;
+    }
+}
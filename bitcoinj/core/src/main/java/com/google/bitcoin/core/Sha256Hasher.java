@@ -0,0 +1,119 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>A reusable SHA-256 hashing context. Looking up and creating a new {@link MessageDigest} costs more than hashing
+ * a transaction, so each thread keeps one context, returned by {@link #get()}, which the hashing methods in
+ * {@link Utils} and {@link Sha256Hash} use.</p>
+ *
+ * <p>A context is fed with the update methods and then finished with one of the digest methods, which leaves it
+ * ready for the next hash. As the context is shared by all the code on a thread, nothing that may itself hash
+ * should be called between getting it and finishing with it:</p>
+ *
+ * <pre>
+ * byte[] hash = Sha256Hasher.get().update(header).update(body).doubleDigest();
+ * </pre>
+ */
+public final class Sha256Hasher {
+    private static final ThreadLocal<Sha256Hasher> context = new ThreadLocal<Sha256Hasher>() {
+        @Override
+        protected Sha256Hasher initialValue() {
+            return new Sha256Hasher();
+        }
+    };
+
+    private final MessageDigest digest;
+    private final byte[] first = new byte[32];
+
+    private Sha256Hasher() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /** Returns the calling thread's context, discarding anything left in it by a hash that wasn't finished. */
+    public static Sha256Hasher get() {
+        Sha256Hasher hasher = context.get();
+        hasher.digest.reset();
+        return hasher;
+    }
+
+    public Sha256Hasher update(byte input) {
+        digest.update(input);
+        return this;
+    }
+
+    public Sha256Hasher update(byte[] input) {
+        digest.update(input);
+        return this;
+    }
+
+    public Sha256Hasher update(byte[] input, int offset, int length) {
+        digest.update(input, offset, length);
+        return this;
+    }
+
+    /** Hashes the remaining bytes of the buffer, leaving its position at its limit. */
+    public Sha256Hasher update(ByteBuffer input) {
+        digest.update(input);
+        return this;
+    }
+
+    /** Returns the SHA-256 hash of what has been hashed. */
+    public byte[] digest() {
+        return digest.digest();
+    }
+
+    /** Writes the SHA-256 hash of what has been hashed to the 32 bytes at offset. */
+    public void digest(byte[] output, int offset) {
+        try {
+            digest.digest(output, offset, 32);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException(e);  // Not enough room for the hash.
+        }
+    }
+
+    /** Returns the SHA-256 hash of the SHA-256 hash of what has been hashed. This is standard procedure in Bitcoin. */
+    public byte[] doubleDigest() {
+        byte[] output = new byte[32];
+        doubleDigest(output, 0);
+        return output;
+    }
+
+    /**
+     * Writes the SHA-256 hash of the SHA-256 hash of what has been hashed to the 32 bytes at offset, which may be in
+     * a buffer that was hashed.
+     */
+    public void doubleDigest(byte[] output, int offset) {
+        try {
+            digest.digest(first, 0, 32);
+            digest.update(first, 0, 32);
+            digest.digest(output, offset, 32);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException(e);  // Not enough room for the hash.
+        }
+    }
+}
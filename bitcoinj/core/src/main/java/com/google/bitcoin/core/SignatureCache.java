@@ -0,0 +1,123 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers signatures that have been checked successfully, so that checking the same one again skips the elliptic
+ * curve maths. A transaction that has been checked once, for instance when it was relayed to us, is usually checked
+ * again when it appears in a block or is reconnected in a re-org.<p>
+ *
+ * Only successful checks are remembered: a signature that fails is always checked in full, so nobody can fill the
+ * cache with junk without making valid signatures. Each entry is a SHA-256 digest of the signature hash, public key
+ * and signature rather than the data itself, which keeps entries small. Once the cache is full the least recently
+ * used entries are dropped.<p>
+ *
+ * {@link Script} consults the instance set with {@link Script#setSignatureCache(SignatureCache)}. This class is
+ * thread safe.
+ */
+public class SignatureCache {
+    /** Enough for the signatures of several full blocks. */
+    public static final int DEFAULT_MAX_ENTRIES = 50000;
+
+    private final Cache<Sha256Hash, Boolean> verified;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SignatureCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public SignatureCache(int maxEntries) {
+        Preconditions.checkArgument(maxEntries > 0);
+        verified = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+    }
+
+    /**
+     * Returns true if the given ASN.1 encoded signature of the hash is valid for the public key. The result comes
+     * from the cache if this signature has been checked successfully before, and from
+     * {@link ECKey#verify(byte[], byte[], byte[])} otherwise. Exceptions thrown whilst checking are passed on.
+     */
+    public boolean verify(byte[] hash, byte[] signature, byte[] pubKey) {
+        Sha256Hash key = key(hash, signature, pubKey);
+        if (verified.getIfPresent(key) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        boolean valid = ECKey.verify(hash, signature, pubKey);
+        if (valid)
+            verified.put(key, Boolean.TRUE);
+        return valid;
+    }
+
+    private static Sha256Hash key(byte[] hash, byte[] signature, byte[] pubKey) {
+        Sha256Hasher hasher = Sha256Hasher.get();
+        // Scripts can put anything in the public key and signature, so each part is preceded by its length. That
+        // way bytes moved from the end of one to the start of the next can't make a different check look the same.
+        update(hasher, hash);
+        update(hasher, pubKey);
+        update(hasher, signature);
+        return new Sha256Hash(hasher.digest());
+    }
+
+    private static void update(Sha256Hasher hasher, byte[] bytes) {
+        byte[] length = new byte[4];
+        Utils.uint32ToByteArrayBE(bytes.length, length, 0);
+        hasher.update(length).update(bytes);
+    }
+
+    /** Returns how many checks were answered from the cache. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Returns how many checks had to do the elliptic curve maths. */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** Returns the fraction of checks that were answered from the cache, or zero if there have been none. */
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /** Returns the number of signatures currently remembered. */
+    public long size() {
+        return verified.size();
+    }
+
+    /** Forgets every signature and resets the counts. */
+    public void clear() {
+        verified.invalidateAll();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SignatureCache: %d entries, %d hits, %d misses", size(), getHitCount(), getMissCount());
+    }
+}
@@ -45,6 +45,9 @@ public class StoredTransactionOutput implements Serializable {
     /** The height of the creating block (for coinbases, NONCOINBASE_HEIGHT otherwise) */
     private int height;
 
+    /** What {@link ScriptTemplates#classify} makes of scriptBytes, worked out whenever scriptBytes is set. */
+    private transient int scriptTemplate;
+
     /**
      * Creates a stored transaction output
      * @param hash the hash of the containing transaction
@@ -59,6 +62,7 @@ public class StoredTransactionOutput implements Serializable {
         this.value = value;
         this.height = isCoinbase ? height : NONCOINBASE_HEIGHT;
         this.scriptBytes = scriptBytes;
+        this.scriptTemplate = ScriptTemplates.classify(scriptBytes);
     }
 
     public StoredTransactionOutput(Sha256Hash hash, TransactionOutput out, int height, boolean isCoinbase) {
@@ -67,6 +71,7 @@ public class StoredTransactionOutput implements Serializable {
         this.value = out.getValue();
         this.height = isCoinbase ? height : NONCOINBASE_HEIGHT;
         this.scriptBytes = out.getScriptBytes();
+        this.scriptTemplate = ScriptTemplates.classify(scriptBytes);
     }
 
     public StoredTransactionOutput(InputStream in) throws IOException {
@@ -81,6 +86,7 @@ public class StoredTransactionOutput implements Serializable {
         scriptBytes = new byte[scriptBytesLength];
         if (in.read(scriptBytes) != scriptBytesLength)
             throw new EOFException();
+        scriptTemplate = ScriptTemplates.classify(scriptBytes);
         
         byte[] hashBytes = new byte[32];
         if (in.read(hashBytes) != 32)
@@ -114,6 +120,15 @@ public class StoredTransactionOutput implements Serializable {
         return scriptBytes;
     }
 
+    /**
+     * Returns which of the {@link ScriptTemplates} forms the script takes. It's worked out when the output is built,
+     * which for the stores is when it's read back, so checking the spend of this output and counting its signature
+     * operations don't each have to.
+     */
+    int getScriptTemplate() {
+        return scriptTemplate;
+    }
+
     /**
      * The hash of the transaction which holds this output
      * @return the hash
@@ -151,6 +166,11 @@ public class StoredTransactionOutput implements Serializable {
                 ((StoredTransactionOutput) o).getHash().equals(this.getHash());
     }
 
+    private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+        ois.defaultReadObject();
+        scriptTemplate = ScriptTemplates.classify(scriptBytes);
+    }
+
     public void serializeToStream(OutputStream bos) throws IOException {
         Utils.uint64ToByteStreamLE(value, bos);
         
@@ -821,7 +821,10 @@ public class Transaction extends ChildMessage implements Serializable {
      * is simplified is specified by the type and anyoneCanPay parameters.<p>
      *
      * You don't normally ever need to call this yourself. It will become more useful in future as the contracts
-     * features of Bitcoin are developed.
+     * features of Bitcoin are developed.<p>
+     *
+     * The transaction itself is not modified, so several threads can calculate hashes for different inputs of the
+     * same transaction at once as long as nothing is changing it.
      *
      * @param inputIndex input the signature is being calculated for. Tx signatures are always relative to an input.
      * @param connectedScript the bytes that should be in the given input during signing.
@@ -829,16 +832,20 @@ public class Transaction extends ChildMessage implements Serializable {
      * @param anyoneCanPay should be false.
      * @throws ScriptException if connectedScript is invalid
      */
-    public synchronized Sha256Hash hashTransactionForSignature(int inputIndex, byte[] connectedScript,
-                                                               SigHash type, boolean anyoneCanPay) throws ScriptException {
+    public Sha256Hash hashTransactionForSignature(int inputIndex, byte[] connectedScript,
+                                                  SigHash type, boolean anyoneCanPay) throws ScriptException {
         return hashTransactionForSignature(inputIndex, connectedScript, (byte)((type.ordinal() + 1) | (anyoneCanPay ? 0x80 : 0x00)));
     }
-    
+
+    // A "null" output as SIGHASH_SINGLE writes it: a value of -1 as a signed 64 bit integer and an empty script.
+    private static final byte[] NULL_OUTPUT_FOR_SIGNATURE = {
+            (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0 };
+
     /**
      * This is required for signatures which use a sigHashType which cannot be represented using SigHash and anyoneCanPay
      * See transaction c99c49da4c38af669dea436d3e73780dfdb6c1ecf9958baa52960e8baee30e73, which has sigHashType 0
      */
-    synchronized Sha256Hash hashTransactionForSignature(int inputIndex, byte[] connectedScript,
+    Sha256Hash hashTransactionForSignature(int inputIndex, byte[] connectedScript,
             byte sigHashType) throws ScriptException {
         // TODO: This whole separate method should be un-necessary if we fix how we deserialize sighash flags.
 
@@ -846,105 +853,123 @@ public class Transaction extends ChildMessage implements Serializable {
         // the purposes of the code in this method:
         //
         //   https://en.bitcoin.it/wiki/Contracts
+        //
+        // Rather than modifying the transaction and serializing it, the simplified form is written straight into the
+        // digest. The steps below follow the order of the serialization.
+        maybeParse();
 
-        try {
-            // Store all the input scripts and clear them in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
+        // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the main chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, Script.OP_CODESEPARATOR);
+
+        // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+        boolean none = (sigHashType & 0x1f) == (SigHash.NONE.ordinal() + 1);
+        // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
+        boolean single = (sigHashType & 0x1f) == (SigHash.SINGLE.ordinal() + 1);
+        // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+        // of other inputs. For example, this is useful for building assurance contracts.
+        boolean anyoneCanPay = (sigHashType & 0x80) == 0x80;
+
+        if (single && inputIndex >= outputs.size()) {
+            // The input index is beyond the number of outputs, it's a buggy signature made by a broken
+            // Bitcoin implementation. The reference client also contains a bug in handling this case:
+            // any transaction output that is signed in this case will result in both the signed output
+            // and any future outputs to this public key being steal-able by anyone who has
+            // the resulting signature and the public key (both of which are part of the signed tx input).
             //
-            // Also store the input sequence numbers in case we are clearing them with SigHash.NONE/SINGLE
-            byte[][] inputScripts = new byte[inputs.size()][];
-            long[] inputSequenceNumbers = new long[inputs.size()];
-            for (int i = 0; i < inputs.size(); i++) {
-                inputScripts[i] = inputs.get(i).getScriptBytes();
-                inputSequenceNumbers[i] = inputs.get(i).getSequenceNumber();
-                inputs.get(i).setScriptBytes(TransactionInput.EMPTY_ARRAY);
-            }
+            // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
+            //
+            // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+        }
 
-            // This step has no purpose beyond being synchronized with the reference clients bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Bitcoin 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the main chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, Script.OP_CODESEPARATOR);
-            
-            // Set the input to the script of its output. Satoshi does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-            
-            ArrayList<TransactionOutput> outputs = this.outputs;
-            if ((sigHashType & 0x1f) == (SigHash.NONE.ordinal() + 1)) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                this.outputs = new ArrayList<TransactionOutput>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < inputs.size(); i++)
-                    if (i != inputIndex)
-                        inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == (SigHash.SINGLE.ordinal() + 1)) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= this.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Bitcoin implementation. The reference client also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-                    // Put the transaction back to how we found it.
-                    //
-                    // TODO: Only allow this to happen if we are checking a signature, not signing a transactions
-                    for (int i = 0; i < inputs.size(); i++) {
-                        inputs.get(i).setScriptBytes(inputScripts[i]);
-                        inputs.get(i).setSequenceNumber(inputSequenceNumbers[i]);
-                    }
-                    this.outputs = outputs;
-                    // Satoshis bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+        try {
+            // Serializing inputs and outputs doesn't hash anything, so the thread's context can be fed as it goes.
+            Sha256Hasher hasher = Sha256Hasher.get();
+            OutputStream stream = new DigestStream(hasher);
+            uint32ToByteStreamLE(version, stream);
+
+            // All input scripts are blanked except the one being signed, which is set to the script of its output.
+            // Satoshi does this but the step has no obvious purpose as the signature covers the hash of the prevout
+            // transaction which obviously includes the output script already. Perhaps it felt safer to him in some
+            // way, or is another leftover from how the code was written.
+            if (anyoneCanPay) {
+                stream.write(new VarInt(1).encode());
+                TransactionInput input = inputs.get(inputIndex);
+                writeInputForSignature(stream, input, connectedScript, input.getSequenceNumber());
+            } else {
+                // With NONE and SINGLE the signature isn't broken by new versions of the transaction issued by other
+                // parties, so the sequence numbers of the other inputs are left out.
+                stream.write(new VarInt(inputs.size()).encode());
+                for (int i = 0; i < inputs.size(); i++) {
+                    TransactionInput input = inputs.get(i);
+                    if (i == inputIndex)
+                        writeInputForSignature(stream, input, connectedScript, input.getSequenceNumber());
+                    else
+                        writeInputForSignature(stream, input, TransactionInput.EMPTY_ARRAY,
+                                none || single ? 0 : input.getSequenceNumber());
                 }
+            }
+
+            if (none) {
+                stream.write(new VarInt(0).encode());
+            } else if (single) {
                 // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
                 // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                this.outputs = new ArrayList<TransactionOutput>(this.outputs.subList(0, inputIndex + 1));
+                stream.write(new VarInt(inputIndex + 1).encode());
                 for (int i = 0; i < inputIndex; i++)
-                    this.outputs.set(i, new TransactionOutput(params, this, BigInteger.valueOf(-1), new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < inputs.size(); i++)
-                    if (i != inputIndex)
-                        inputs.get(i).setSequenceNumber(0);
-            }
-            
-            ArrayList<TransactionInput> inputs = this.inputs;
-            if ((sigHashType & 0x80) == 0x80) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                this.inputs = new ArrayList<TransactionInput>();
-                this.inputs.add(input);
+                    stream.write(NULL_OUTPUT_FOR_SIGNATURE);
+                outputs.get(inputIndex).bitcoinSerialize(stream);
+            } else {
+                stream.write(new VarInt(outputs.size()).encode());
+                for (TransactionOutput output : outputs)
+                    output.bitcoinSerialize(stream);
             }
 
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(length == UNKNOWN_LENGTH ? 256 : length + 4);
-            bitcoinSerialize(bos);
+            uint32ToByteStreamLE(lockTime, stream);
             // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
+            uint32ToByteStreamLE(0x000000ff & sigHashType, stream);
             // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
             // however then we would expect that it is IS reversed.
-            Sha256Hash hash = new Sha256Hash(doubleDigest(bos.toByteArray()));
-            bos.close();
-
-            // Put the transaction back to how we found it.
-            this.inputs = inputs;
-            for (int i = 0; i < inputs.size(); i++) {
-                inputs.get(i).setScriptBytes(inputScripts[i]);
-                inputs.get(i).setSequenceNumber(inputSequenceNumbers[i]);
-            }
-            this.outputs = outputs;
-            return hash;
+            return new Sha256Hash(hasher.doubleDigest());
         } catch (IOException e) {
             throw new RuntimeException(e);  // Cannot happen.
         }
     }
 
+    private static void writeInputForSignature(OutputStream stream, TransactionInput input, byte[] scriptBytes,
+                                               long sequence) throws IOException {
+        input.getOutpoint().bitcoinSerialize(stream);
+        stream.write(new VarInt(scriptBytes.length).encode());
+        stream.write(scriptBytes);
+        uint32ToByteStreamLE(sequence, stream);
+    }
+
+    /** Feeds everything written to it into a hashing context. */
+    private static class DigestStream extends OutputStream {
+        private final Sha256Hasher hasher;
+
+        DigestStream(Sha256Hasher hasher) {
+            this.hasher = hasher;
+        }
+
+        @Override
+        public void write(int b) {
+            hasher.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            hasher.update(b, off, len);
+        }
+    }
+
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         uint32ToByteStreamLE(version, stream);
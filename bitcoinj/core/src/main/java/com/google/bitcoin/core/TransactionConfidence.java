@@ -19,6 +19,8 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.utils.EventListenerInvoker;
 import com.google.common.base.Preconditions;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.ArrayList;
@@ -50,7 +52,9 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * been double spent and will never confirm unless there is another re-org.</p>
  *
  * <p>TransactionConfidence is updated via the {@link com.google.bitcoin.core.TransactionConfidence#notifyWorkDone(Block)}
- * method to ensure the block depth and work done are up to date.</p>
+ * method to ensure the block depth and work done are up to date, unless the owning wallet has been put into lazy
+ * confidence depth mode with {@link Wallet#setLazyConfidenceDepth(boolean)}, in which case they are worked out from
+ * the chain head when read.</p>
  * To make a copy that won't be changed, use {@link com.google.bitcoin.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence implements Serializable {
@@ -79,6 +83,13 @@ public class TransactionConfidence implements Serializable {
      */
     private BigInteger workDone = BigInteger.ZERO;
 
+    // If set, depth and workDone are as of when the tracker stood at these counts, and blocks the tracker has seen
+    // since then are added on when read. This is how a wallet in lazy confidence depth mode avoids touching every
+    // transaction on every block.
+    private transient BestChainTracker chainTracker;
+    private transient int trackerBlocksAtDepth;
+    private transient BigInteger trackerWorkAtWorkDone;
+
     /**
      * <p>Adds an event listener that will be run when this confidence object is updated. The listener will be locked and
      * is likely to be invoked on a peer thread.</p>
@@ -327,7 +338,7 @@ public class TransactionConfidence implements Serializable {
         if (getConfidenceType() != ConfidenceType.BUILDING) {
             throw new IllegalStateException("Confidence type is not BUILDING");
         }
-        return depth;
+        return currentDepth();
     }
 
     /*
@@ -335,6 +346,8 @@ public class TransactionConfidence implements Serializable {
      */
     public synchronized void setDepthInBlocks(int depth) {
         this.depth = depth;
+        if (chainTracker != null)
+            trackerBlocksAtDepth = chainTracker.getBlocks();
     }
 
     /**
@@ -350,11 +363,38 @@ public class TransactionConfidence implements Serializable {
         if (getConfidenceType() != ConfidenceType.BUILDING) {
             throw new IllegalStateException("Confidence type is not BUILDING");
         }
-        return workDone;
+        return currentWorkDone();
     }
 
     public synchronized void setWorkDone(BigInteger workDone) {
         this.workDone = workDone;
+        if (chainTracker != null)
+            trackerWorkAtWorkDone = chainTracker.getWork();
+    }
+
+    /**
+     * Makes depth and work done follow the given tracker from now on, instead of being updated by
+     * {@link TransactionConfidence#notifyWorkDone(Block)}. Passing null goes back to storing them directly.
+     */
+    synchronized void setChainTracker(BestChainTracker tracker) {
+        if (tracker == chainTracker)
+            return;
+        // Fold in whatever the old tracker saw, then start counting from where the new one is now.
+        depth = currentDepth();
+        workDone = currentWorkDone();
+        chainTracker = tracker;
+        if (tracker != null) {
+            trackerBlocksAtDepth = tracker.getBlocks();
+            trackerWorkAtWorkDone = tracker.getWork();
+        }
+    }
+
+    private int currentDepth() {
+        return chainTracker == null ? depth : depth + chainTracker.getBlocks() - trackerBlocksAtDepth;
+    }
+
+    private BigInteger currentWorkDone() {
+        return chainTracker == null ? workDone : workDone.add(chainTracker.getWork()).subtract(trackerWorkAtWorkDone);
     }
 
     /**
@@ -395,6 +435,17 @@ public class TransactionConfidence implements Serializable {
         }
     }
 
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        // The tracker isn't serialized, so store what it adds up to.
+        depth = currentDepth();
+        workDone = currentWorkDone();
+        if (chainTracker != null) {
+            trackerBlocksAtDepth = chainTracker.getBlocks();
+            trackerWorkAtWorkDone = chainTracker.getWork();
+        }
+        out.defaultWriteObject();
+    }
+
     private void runListeners() {
         EventListenerInvoker.invoke(listeners, new EventListenerInvoker<Listener>() {
             @Override
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * <p>Keeps the outputs of a {@link Wallet} that are available to be spent, ordered by value, so that a
+ * {@link CoinSelector} can be handed its candidates without walking every unspent transaction and re-checking every
+ * output against the keychain each time a spend is created.</p>
+ *
+ * <p>The wallet updates the index as transactions move in and out of the unspent pool and as outputs are marked as
+ * spent. Anything more complicated, like a re-org or new keys being added, just throws the index away so it gets
+ * rebuilt from scratch the next time it is needed. Not thread safe: the wallet lock guards it.</p>
+ */
+class UnspentOutputIndex {
+    // Ascending by value. Ties are broken by the outpoint so distinct outputs of equal value don't collide.
+    private static final Comparator<TransactionOutput> VALUE_ORDER = new Comparator<TransactionOutput>() {
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            if (a == b) return 0;
+            int result = a.getValue().compareTo(b.getValue());
+            if (result != 0) return result;
+            byte[] hashA = a.parentTransaction.getHash().getBytes();
+            byte[] hashB = b.parentTransaction.getHash().getBytes();
+            for (int i = 0; i < hashA.length; i++) {
+                if (hashA[i] != hashB[i])
+                    return (hashA[i] & 0xff) - (hashB[i] & 0xff);
+            }
+            return a.getIndex() - b.getIndex();
+        }
+    };
+
+    private final TreeSet<TransactionOutput> outputs = new TreeSet<TransactionOutput>(VALUE_ORDER);
+    private BigInteger totalValue = BigInteger.ZERO;
+
+    /** Builds an index over the owned, available outputs of the given unspent transactions. */
+    UnspentOutputIndex(Wallet wallet, Collection<Transaction> unspent) {
+        for (Transaction tx : unspent)
+            addTransaction(wallet, tx);
+    }
+
+    /** Adds every output of the given transaction that belongs to the wallet and is not yet spent. */
+    void addTransaction(Wallet wallet, Transaction tx) {
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (output.isAvailableForSpending() && output.isMine(wallet))
+                add(output);
+        }
+    }
+
+    /** Removes every output of the given transaction from the index. */
+    void removeTransaction(Transaction tx) {
+        for (TransactionOutput output : tx.getOutputs())
+            remove(output);
+    }
+
+    void add(TransactionOutput output) {
+        if (outputs.add(output))
+            totalValue = totalValue.add(output.getValue());
+    }
+
+    void remove(TransactionOutput output) {
+        if (outputs.remove(output))
+            totalValue = totalValue.subtract(output.getValue());
+    }
+
+    int size() {
+        return outputs.size();
+    }
+
+    /** Returns the sum of every indexed output, including immature coinbase outputs. */
+    BigInteger getTotalValue() {
+        return totalValue;
+    }
+
+    /**
+     * Returns the outputs that can be spent right now, in ascending order of value. Immature coinbase outputs are
+     * skipped, and anything that got spent behind our back is dropped from the index.
+     */
+    List<TransactionOutput> getCandidates() {
+        List<TransactionOutput> candidates = new ArrayList<TransactionOutput>(outputs.size());
+        for (Iterator<TransactionOutput> it = outputs.iterator(); it.hasNext(); ) {
+            TransactionOutput output = it.next();
+            if (!output.isAvailableForSpending()) {
+                it.remove();
+                totalValue = totalValue.subtract(output.getValue());
+                continue;
+            }
+            // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
+            if (!output.parentTransaction.isMature())
+                continue;
+            candidates.add(output);
+        }
+        return candidates;
+    }
+}
@@ -21,6 +21,7 @@ import com.google.bitcoin.core.WalletTransaction.Pool;
 import com.google.bitcoin.store.WalletProtobufSerializer;
 import com.google.bitcoin.utils.EventListenerInvoker;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.slf4j.Logger;
@@ -41,7 +42,6 @@ import static com.google.common.base.Preconditions.*;
 // - Make the keychain member protected and switch it to be a hashmap of some kind so key lookup ops are faster.
 // - Refactor how keys are managed to better handle things like deterministic wallets in future.
 // - Decompose the class where possible: break logic out into classes that can be customized/replaced by the user.
-//     - Coin selection
 //     - [Auto]saving to a backing store
 //     - Key management
 //     - just generally make Wallet smaller and easier to work with
@@ -195,6 +195,21 @@ public class Wallet implements Serializable, BlockChainListener {
     // Whether or not to ignore nLockTime > 0 transactions that are received to the mempool.
     private boolean acceptTimeLockedTransactions;
 
+    // Picks which outputs get spent by completeTx, unless the SendRequest overrides it.
+    private transient CoinSelector coinSelector;
+    // The outputs of the unspent pool that are ours and available, kept sorted for the coin selector. Built lazily
+    // and set back to null whenever something happens that is easier to recompute than to track, eg a re-org.
+    private transient UnspentOutputIndex unspentOutputIndex;
+    // If non-null, the wallet is in lazy confidence depth mode: confidences of our transactions read their depth and
+    // work done off this tracker, and new blocks only advance the tracker.
+    private transient BestChainTracker chainTracker;
+    // If non-null, the spent and dead pools haven't been loaded yet. Anything that needs them calls maybeLoadHistory().
+    private transient HistoryLoader historyLoader;
+    // Blocks, and the work in them, that arrived while the history was unloaded. They are added to the confidences
+    // of the transactions it holds once they are loaded.
+    private transient int blocksBeforeHistory;
+    private transient BigInteger workBeforeHistory;
+
     /**
      * Creates a new, empty wallet with no keys and no transactions. If you want to restore a wallet from disk instead,
      * see loadFromFile.
@@ -229,6 +244,7 @@ public class Wallet implements Serializable, BlockChainListener {
             }
         };
         acceptTimeLockedTransactions = false;
+        coinSelector = new OldestFirstCoinSelector();
     }
 
     public NetworkParameters getNetworkParameters() {
@@ -315,6 +331,34 @@ public class Wallet implements Serializable, BlockChainListener {
         return acceptTimeLockedTransactions;
     }
 
+    /**
+     * <p>By default every new block on the best chain updates the depth and work done of every transaction in the
+     * wallet, which gets slow for wallets with a lot of history. In lazy mode the wallet instead only tracks the chain
+     * head, and each {@link TransactionConfidence} works out its depth and work done from that when it is read. New
+     * blocks then only touch the transactions that appear in them.</p>
+     *
+     * <p>The catch is that confidence listeners are no longer run for every transaction whenever a block buries it
+     * deeper, so code that relied on that to see depth changes should poll the confidence objects, for example from
+     * {@link WalletEventListener#onWalletChanged(Wallet)}, instead.</p>
+     *
+     * <p>Like {@link Wallet#setAcceptTimeLockedTransactions(boolean)} this property is not serialized.</p>
+     */
+    public synchronized void setLazyConfidenceDepth(boolean lazy) {
+        if (lazy == (chainTracker != null))
+            return;
+        chainTracker = lazy ? new BestChainTracker(getLastBlockSeenHash()) : null;
+        for (Transaction tx : getTransactions(true, true)) {
+            tx.getConfidence().setChainTracker(chainTracker);
+        }
+    }
+
+    /**
+     * See {@link Wallet#setLazyConfidenceDepth(boolean)} for an explanation of this property.
+     */
+    public synchronized boolean isLazyConfidenceDepth() {
+        return chainTracker != null;
+    }
+
     // Auto-saving can be done on a background thread if the user wishes it, this is to avoid stalling threads calling
     // into the wallet on serialization/disk access all the time which is important in GUI apps where you don't want
     // the main thread to ever wait on disk (otherwise you lose a lot of responsiveness). The primary case where it
@@ -436,6 +480,66 @@ public class Wallet implements Serializable, BlockChainListener {
         return false;
     }
 
+    /**
+     * <p>Supplies the spent and dead transactions of a wallet that was loaded without them, so that the balance is
+     * available without waiting for the entire history to be read. See
+     * {@link WalletProtobufSerializer#readWalletLazily(java.io.InputStream)}.</p>
+     *
+     * <p>The loader is run at most once, with the wallet locked, the first time anything needs to look at those pools,
+     * for example to receive a block, commit a spend, save the wallet or list its transactions.</p>
+     */
+    public interface HistoryLoader {
+        /**
+         * Adds the missing transactions using {@link Wallet#addWalletTransaction(WalletTransaction)}.
+         */
+        public void loadHistory(Wallet wallet);
+
+        /**
+         * Returns the pool the transaction with the given hash will be added to, or null if it isn't one of the
+         * missing transactions. This lets the wallet tell whether it already knows a transaction without loading them.
+         */
+        public Pool getPool(Sha256Hash hash);
+    }
+
+    /**
+     * Sets the loader for the spent and dead pools, which the wallet will run the first time it needs them. This is
+     * intended for usage by deserialization code, such as the {@link WalletProtobufSerializer} class.
+     */
+    public synchronized void setHistoryLoader(HistoryLoader historyLoader) {
+        this.historyLoader = historyLoader;
+    }
+
+    /**
+     * Returns false if the wallet was loaded lazily and the spent and dead pools have not been loaded yet.
+     */
+    public synchronized boolean isHistoryLoaded() {
+        return historyLoader == null;
+    }
+
+    private synchronized void maybeLoadHistory() {
+        if (historyLoader == null)
+            return;
+        // Clear it first: the loader adds transactions back into this wallet, which must not recurse.
+        HistoryLoader loader = historyLoader;
+        historyLoader = null;
+        Set<Sha256Hash> alreadyLoaded = new HashSet<Sha256Hash>(spent.keySet());
+        alreadyLoaded.addAll(dead.keySet());
+        loader.loadHistory(this);
+        if (blocksBeforeHistory > 0) {
+            // Catch the loaded transactions up with the blocks notifyNewBestBlock() couldn't give them.
+            for (Transaction tx : Iterables.concat(spent.values(), dead.values())) {
+                TransactionConfidence confidence = tx.getConfidence();
+                if (alreadyLoaded.contains(tx.getHash()) ||
+                        confidence.getConfidenceType() != TransactionConfidence.ConfidenceType.BUILDING)
+                    continue;
+                confidence.setDepthInBlocks(confidence.getDepthInBlocks() + blocksBeforeHistory);
+                confidence.setWorkDone(confidence.getWorkDone().add(workBeforeHistory));
+            }
+            blocksBeforeHistory = 0;
+            workBeforeHistory = null;
+        }
+    }
+
     /**
      * Implementors can handle exceptions thrown during wallet auto-save, and to do pre/post treatment of the wallet.
      */
@@ -539,6 +643,7 @@ public class Wallet implements Serializable, BlockChainListener {
     }
     
     public boolean isConsistent() {
+        maybeLoadHistory();
         boolean success = true;
         // Pending and inactive can overlap, so merge them before counting
         HashSet<Transaction> pendingInactive = new HashSet<Transaction>();
@@ -614,6 +719,11 @@ public class Wallet implements Serializable, BlockChainListener {
         return wallet;
     }
 
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        maybeLoadHistory();
+        out.defaultWriteObject();
+    }
+
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         createTransientState();
@@ -668,6 +778,22 @@ public class Wallet implements Serializable, BlockChainListener {
         receive(tx, block, blockType, false);
     }
 
+    /**
+     * <p>Called by {@link WalletRescanner} to replay a transaction from a block on the best chain that is already
+     * buried under the given chain head. Unlike {@link Wallet#receiveFromBlock(Transaction, StoredBlock,
+     * BlockChain.NewBlockType)} no call to {@link Wallet#notifyNewBestBlock(Block)} is expected to follow: the depth
+     * and work done are set from the distance to the chain head. Transactions the wallet already has in a block are
+     * ignored.</p>
+     */
+    synchronized void receiveFromBuriedBlock(Transaction tx, StoredBlock block,
+                                             StoredBlock chainHead) throws VerificationException {
+        maybeLoadHistory();
+        Sha256Hash txHash = tx.getHash();
+        if (unspent.containsKey(txHash) || spent.containsKey(txHash) || dead.containsKey(txHash))
+            return;
+        receive(tx, block, BlockChain.NewBlockType.BEST_CHAIN, false, chainHead);
+    }
+
     /** The results of examining the dependency graph of a pending transaction for protocol abuse. */
     protected static class AnalysisResult {
         // Which tx, if any, had a non-zero lock time.
@@ -824,7 +950,16 @@ public class Wallet implements Serializable, BlockChainListener {
     private synchronized void receive(Transaction tx, StoredBlock block,
                                       BlockChain.NewBlockType blockType,
                                       boolean reorg) throws VerificationException {
+        receive(tx, block, blockType, reorg, null);
+    }
+
+    // If buriedUnder is set, block is already part of the best chain ending at that block, so the depth is worked out
+    // here rather than by the notifyNewBestBlock() calls that would otherwise follow.
+    private synchronized void receive(Transaction tx, StoredBlock block,
+                                      BlockChain.NewBlockType blockType,
+                                      boolean reorg, StoredBlock buriedUnder) throws VerificationException {
         // Runs in a peer thread.
+        maybeLoadHistory();
         BigInteger prevBalance = getBalance();
 
         Sha256Hash txHash = tx.getHash();
@@ -909,8 +1044,19 @@ public class Wallet implements Serializable, BlockChainListener {
         if (block != null) {
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its work done/depth appropriately.
+            if (chainTracker != null) {
+                // Move the head on first, so the depth of one set below is relative to this block.
+                if (bestChain && buriedUnder == null)
+                    chainTracker.advance(block.getHeader());
+                tx.getConfidence().setChainTracker(chainTracker);
+            }
             tx.setBlockAppearance(block, bestChain);
-            if (bestChain) {
+            if (buriedUnder != null) {
+                TransactionConfidence confidence = tx.getConfidence();
+                confidence.setDepthInBlocks(buriedUnder.getHeight() - block.getHeight() + 1);
+                confidence.setWorkDone(buriedUnder.getChainWork().subtract(block.getChainWork())
+                        .add(block.getHeader().getWork()));
+            } else if (bestChain) {
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
                 // count.
@@ -970,7 +1116,26 @@ public class Wallet implements Serializable, BlockChainListener {
         // Notify all the BUILDING transactions of the new block.
         // This is so that they can update their work done and depth.
         onWalletChangedSuppressions++;
-        Set<Transaction> transactions = getTransactions(true, false);
+        if (chainTracker != null) {
+            // Transactions read their depth off the tracker, so there's nothing to do for each of them. The ones
+            // that appeared in this block were set up in receive(), which already advanced the tracker.
+            chainTracker.advance(block);
+            ignoreNextNewBlock.clear();
+            queueAutoSave();
+            onWalletChangedSuppressions--;
+            invokeOnWalletChanged();
+            return;
+        }
+        // The pools are read directly rather than through getTransactions(), which would load the history.
+        Set<Transaction> transactions = new HashSet<Transaction>();
+        transactions.addAll(unspent.values());
+        transactions.addAll(spent.values());
+        transactions.addAll(pending.values());
+        transactions.addAll(dead.values());
+        if (historyLoader != null) {
+            blocksBeforeHistory++;
+            workBeforeHistory = (workBeforeHistory == null ? BigInteger.ZERO : workBeforeHistory).add(block.getWork());
+        }
         for (Transaction tx : transactions) {
             if (ignoreNextNewBlock.contains(tx.getHash())) {
                 // tx was already processed in receive() due to it appearing in this block, so we don't want to
@@ -1109,6 +1274,8 @@ public class Wallet implements Serializable, BlockChainListener {
                 // The outputs are already marked as spent by the connect call above, so check if there are any more for
                 // us to use. Move if not.
                 Transaction connected = checkNotNull(input.getOutpoint().fromTx);
+                if (unspentOutputIndex != null)
+                    unspentOutputIndex.remove(input.getOutpoint().getConnectedOutput());
                 maybeMoveTxToSpent(connected, "prevtx");
             }
         }
@@ -1121,6 +1288,8 @@ public class Wallet implements Serializable, BlockChainListener {
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
+                if (unspentOutputIndex != null)
+                    unspentOutputIndex.removeTransaction(tx);
                 if (log.isInfoEnabled()) {
                     log.info("  {} {} <-unspent", tx.getHashAsString(), context);
                     log.info("  {} {} ->spent", tx.getHashAsString(), context);
@@ -1163,6 +1332,7 @@ public class Wallet implements Serializable, BlockChainListener {
      */
     public synchronized void commitTx(Transaction tx) throws VerificationException {
         checkArgument(!pending.containsKey(tx.getHash()), "commitTx called on the same transaction twice");
+        maybeLoadHistory();
         log.info("commitTx of {}", tx.getHashAsString());
         BigInteger balance = getBalance();
         tx.setUpdateTime(Utils.now());
@@ -1201,6 +1371,7 @@ public class Wallet implements Serializable, BlockChainListener {
      * @param includeInactive If true, transactions that are on side chains (are unspendable) are included.
      */
     public synchronized Set<Transaction> getTransactions(boolean includeDead, boolean includeInactive) {
+        maybeLoadHistory();
         Set<Transaction> all = new HashSet<Transaction>();
         all.addAll(unspent.values());
         all.addAll(spent.values());
@@ -1216,6 +1387,7 @@ public class Wallet implements Serializable, BlockChainListener {
      * Returns a set of all WalletTransactions in the wallet.
      */
     public synchronized Iterable<WalletTransaction> getWalletTransactions() {
+        maybeLoadHistory();
         HashSet<Transaction> pendingInactive = new HashSet<Transaction>();
         pendingInactive.addAll(pending.values());
         pendingInactive.retainAll(inactive.values());
@@ -1260,6 +1432,8 @@ public class Wallet implements Serializable, BlockChainListener {
         switch (pool) {
         case UNSPENT:
             Preconditions.checkState(unspent.put(tx.getHash(), tx) == null);
+            if (unspentOutputIndex != null)
+                unspentOutputIndex.addTransaction(this, tx);
             break;
         case SPENT:
             Preconditions.checkState(spent.put(tx.getHash(), tx) == null);
@@ -1283,6 +1457,8 @@ public class Wallet implements Serializable, BlockChainListener {
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener);
+        if (chainTracker != null)
+            tx.getConfidence().setChainTracker(chainTracker);
     }
 
     /**
@@ -1333,10 +1509,11 @@ public class Wallet implements Serializable, BlockChainListener {
             return tx;
         else if ((tx = unspent.get(hash)) != null)
             return tx;
-        else if ((tx = spent.get(hash)) != null)
-            return tx;
         else if ((tx = inactive.get(hash)) != null)
             return tx;
+        maybeLoadHistory();
+        if ((tx = spent.get(hash)) != null)
+            return tx;
         else if ((tx = dead.get(hash)) != null)
             return tx;
         return null;
@@ -1354,6 +1531,10 @@ public class Wallet implements Serializable, BlockChainListener {
             pending.clear();
             inactive.clear();
             dead.clear();
+            unspentOutputIndex = null;
+            historyLoader = null;
+            blocksBeforeHistory = 0;
+            workBeforeHistory = null;
             queueAutoSave();
         } else {
             throw new UnsupportedOperationException();
@@ -1363,6 +1544,12 @@ public class Wallet implements Serializable, BlockChainListener {
     synchronized EnumSet<Pool> getContainingPools(Transaction tx) {
         EnumSet<Pool> result = EnumSet.noneOf(Pool.class);
         Sha256Hash txHash = tx.getHash();
+        if (historyLoader != null) {
+            // Ask the loader about the transactions it still holds, rather than loading them all to find out.
+            Pool pool = historyLoader.getPool(txHash);
+            if (pool != null)
+                result.add(pool);
+        }
         if (unspent.containsKey(txHash)) {
             result.add(Pool.UNSPENT);
         }
@@ -1382,6 +1569,8 @@ public class Wallet implements Serializable, BlockChainListener {
     }
 
     synchronized int getPoolSize(WalletTransaction.Pool pool) {
+        if (pool == Pool.SPENT || pool == Pool.DEAD || pool == Pool.ALL)
+            maybeLoadHistory();
         switch (pool) {
             case UNSPENT:
                 return unspent.size();
@@ -1430,7 +1619,9 @@ public class Wallet implements Serializable, BlockChainListener {
         /**
          * "Change" means the difference between the value gathered by a transactions inputs (the size of which you
          * don't really control as it depends on who sent you money), and the value being sent somewhere else. The
-         * change address should be selected from this wallet, normally. <b>If null this will be chosen for you.</b>
+         * change address should be selected from this wallet, normally. <b>If null this will be chosen for you</b>, by
+         * the coin selector if it names one in its {@link CoinSelection}, or else {@link Wallet#getChangeAddress()},
+         * which is always the same address. For privacy, give each send a fresh key of its own.
          */
         public Address changeAddress;
 
@@ -1444,6 +1635,12 @@ public class Wallet implements Serializable, BlockChainListener {
          */
         public BigInteger fee = BigInteger.ZERO;
 
+        /**
+         * Decides which outputs of the wallet are spent to fund the transaction. <b>If null the wallets own
+         * selector is used</b>, see {@link Wallet#setCoinSelector(CoinSelector)}.
+         */
+        public CoinSelector coinSelector;
+
         // Tracks if this has been passed to wallet.completeTx already: just a safety check.
         private boolean completed;
 
@@ -1615,23 +1812,11 @@ public class Wallet implements Serializable, BlockChainListener {
                 req.tx.getOutputs().size(), bitcoinValueToFriendlyString(value));
 
         // To send money to somebody else, we need to do gather up transactions with unspent outputs until we have
-        // sufficient value. Many coin selection algorithms are possible, we use a simple but suboptimal one.
-        // TODO: Sort coins so we use the smallest first, to combat wallet fragmentation and reduce fees.
-        BigInteger valueGathered = BigInteger.ZERO;
-        List<TransactionOutput> gathered = new LinkedList<TransactionOutput>();
-        for (Transaction tx : unspent.values()) {
-            // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-            if (!tx.isMature()) {
-                continue;
-            }
-            for (TransactionOutput output : tx.getOutputs()) {
-                if (!output.isAvailableForSpending()) continue;
-                if (!output.isMine(this)) continue;
-                gathered.add(output);
-                valueGathered = valueGathered.add(output.getValue());
-            }
-            if (valueGathered.compareTo(value) >= 0) break;
-        }
+        // sufficient value. Which ones to use is up to the coin selector, which picks from our spendable outputs.
+        CoinSelector selector = req.coinSelector != null ? req.coinSelector : coinSelector;
+        CoinSelection selection = selector.select(value, getUnspentOutputIndex().getCandidates());
+        BigInteger valueGathered = selection.valueGathered;
+        Collection<TransactionOutput> gathered = selection.gathered;
         // Can we afford this?
         if (valueGathered.compareTo(value) < 0) {
             log.info("Insufficient value in wallet for send, missing " +
@@ -1645,8 +1830,10 @@ public class Wallet implements Serializable, BlockChainListener {
         if (change.compareTo(BigInteger.ZERO) > 0) {
             // The value of the inputs is greater than what we want to send. Just like in real life then,
             // we need to take back some coins ... this is called "change". Add another output that sends the change
-            // back to us. The address comes either from the request or getChangeAddress() as a default.
-            Address changeAddress = req.changeAddress != null ? req.changeAddress : getChangeAddress();
+            // back to us. The address comes from the request, then the selector, then getChangeAddress() as a default.
+            Address changeAddress = req.changeAddress;
+            if (changeAddress == null)
+                changeAddress = selection.changeAddress != null ? selection.changeAddress : getChangeAddress();
             log.info("  with {} coins change", bitcoinValueToFriendlyString(change));
             req.tx.addOutput(new TransactionOutput(params, req.tx, change, changeAddress));
         }
@@ -1667,6 +1854,27 @@ public class Wallet implements Serializable, BlockChainListener {
         return true;
     }
 
+    /**
+     * Sets the {@link CoinSelector} used by {@link Wallet#completeTx(com.google.bitcoin.core.Wallet.SendRequest)} to
+     * decide which outputs to spend. The default is an {@link OldestFirstCoinSelector}. Like the other transient
+     * settings this is not serialized, so it has to be set again after the wallet is loaded.
+     */
+    public synchronized void setCoinSelector(CoinSelector coinSelector) {
+        this.coinSelector = checkNotNull(coinSelector);
+    }
+
+    /** Returns the {@link CoinSelector} used when a {@link SendRequest} does not specify one. */
+    public synchronized CoinSelector getCoinSelector() {
+        return coinSelector;
+    }
+
+    /** Returns the index of spendable outputs, building it from the unspent pool first if necessary. */
+    synchronized UnspentOutputIndex getUnspentOutputIndex() {
+        if (unspentOutputIndex == null)
+            unspentOutputIndex = new UnspentOutputIndex(this, unspent.values());
+        return unspentOutputIndex;
+    }
+
     synchronized Address getChangeAddress() {
         // For now let's just pick the first key in our keychain. In future we might want to do something else to
         // give the user better privacy here, eg in incognito mode.
@@ -1706,6 +1914,9 @@ public class Wallet implements Serializable, BlockChainListener {
             });
             added++;
         }
+        // Outputs we already had may belong to the new keys, so the index has to be rebuilt.
+        if (added > 0)
+            unspentOutputIndex = null;
         if (autosaveToFile != null) {
             autoSave();
         }
@@ -1835,6 +2046,7 @@ public class Wallet implements Serializable, BlockChainListener {
      * @return
      */
     public synchronized String toString(boolean includePrivateKeys, AbstractBlockChain chain) {
+        maybeLoadHistory();
         StringBuilder builder = new StringBuilder();
         builder.append(String.format("Wallet containing %s BTC in:%n", bitcoinValueToFriendlyString(getBalance())));
         builder.append(String.format("  %d unspent transactions%n", unspent.size()));
@@ -1914,6 +2126,7 @@ public class Wallet implements Serializable, BlockChainListener {
         // transactions in the old branch, all transactions in the new branch and find the difference of those sets.
         //
         // receive() has been called on the block that is triggering the re-org before this is called.
+        maybeLoadHistory();
 
         List<Sha256Hash> oldBlockHashes = new ArrayList<Sha256Hash>(oldBlocks.size());
         List<Sha256Hash> newBlockHashes = new ArrayList<Sha256Hash>(newBlocks.size());
@@ -1985,6 +2198,9 @@ public class Wallet implements Serializable, BlockChainListener {
         // Avoid spuriously informing the user of wallet changes whilst we're re-organizing. This also prevents the
         // user from modifying wallet contents (eg, trying to spend) whilst we're in the middle of the process.
         onWalletChangedSuppressions++;
+        // Connections are about to be broken and remade wholesale, so forget the spendable outputs index. It'll be
+        // rebuilt from the new unspent pool when it's next needed.
+        unspentOutputIndex = null;
 
         // For simplicity we will reprocess every transaction to ensure it's in the right bucket and has the right
         // connections. Attempting to update each one with minimal work is possible but complex and was leading to
@@ -2069,9 +2285,14 @@ public class Wallet implements Serializable, BlockChainListener {
 
         // Remove depthToSubtract and workDoneToSubtract from all transactions in the wallet except for pending and inactive
         // (i.e. the transactions in the two chains of blocks we are reorganising).
-        subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, spent.values());
-        subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, unspent.values());
-        subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, dead.values());
+        if (chainTracker != null) {
+            // In lazy mode rewinding the tracker has the same effect, without visiting each transaction.
+            chainTracker.rewind(depthToSubtract, workDoneToSubtract, splitPoint.getHeader().getHash());
+        } else {
+            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, spent.values());
+            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, unspent.values());
+            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, dead.values());
+        }
 
         // The effective last seen block is now the split point so set the lastSeenBlockHash.
         setLastBlockSeenHash(splitPoint.getHeader().getHash());
@@ -2133,6 +2354,7 @@ public class Wallet implements Serializable, BlockChainListener {
         for (Transaction tx : toReprocess.values()) {
             reprocessUnincludedTxAfterReorg(pool, tx);
         }
+        unspentOutputIndex = null;
 
         log.info("post-reorg balance is {}", Utils.bitcoinValueToFriendlyString(getBalance()));
 
@@ -2282,12 +2504,27 @@ public class Wallet implements Serializable, BlockChainListener {
         this.lastBlockSeenHash = lastBlockSeenHash;
     }
     
+    /**
+     * Returns the transactions whose outputs go in a Bloom filter: every transaction in the unspent, spent, pending and
+     * inactive pools. Spent transactions are needed too, so that a resync from an earlier height finds what spent
+     * them. Building a filter doesn't load the history, though: until something else does, only the spent
+     * transactions that were loaded up front are included.
+     */
+    private synchronized Set<Transaction> getBloomFilterTransactions() {
+        Set<Transaction> transactions = new HashSet<Transaction>();
+        transactions.addAll(unspent.values());
+        transactions.addAll(spent.values());
+        transactions.addAll(pending.values());
+        transactions.addAll(inactive.values());
+        return transactions;
+    }
+
     /**
      * Gets the number of elements that will be added to a bloom filter returned by getBloomFilter
      */
     public int getBloomFilterElementCount() {
         int size = getKeychainSize() * 2;
-        for (Transaction tx : getTransactions(false, true)) {
+        for (Transaction tx : getBloomFilterTransactions()) {
             for (TransactionOutput out : tx.getOutputs()) {
                 try {
                     if (out.isMine(this) && out.getScriptPubKey().isSentToRawPubKey())
@@ -2326,7 +2563,7 @@ public class Wallet implements Serializable, BlockChainListener {
             filter.insert(key.getPubKey());
             filter.insert(key.getPubKeyHash());
         }
-        for (Transaction tx : getTransactions(false, true)) {
+        for (Transaction tx : getBloomFilterTransactions()) {
             for (int i = 0; i < tx.getOutputs().size(); i++) {
                 TransactionOutput out = tx.getOutputs().get(i);
                 try {
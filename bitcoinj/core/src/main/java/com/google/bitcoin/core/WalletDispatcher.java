@@ -0,0 +1,267 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import com.google.common.collect.HashMultimap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Connects many {@link Wallet}s to a block chain through a single {@link BlockChainListener}. Adding each wallet
+ * to the chain separately means every transaction in every block is offered to every wallet, which each scan it
+ * against all of their keys. With thousands of wallets that dominates block processing. Instead, the dispatcher
+ * keeps one combined index from key hash and from outpoint to the wallets that own them, and only asks the wallets
+ * a transaction actually touches.</p>
+ *
+ * <p>Use it by adding the wallets here, and the dispatcher to the chain with
+ * {@link AbstractBlockChain#addListener(BlockChainListener)}. Don't also add the wallets to the chain directly.</p>
+ *
+ * <p>Keys added to a wallet after it was added here are picked up automatically, via a {@link WalletEventListener}.
+ * New blocks and re-orgs are still passed on to every wallet, as they all need to update their confidence data.</p>
+ */
+public class WalletDispatcher implements BlockChainListener {
+    private static final Logger log = LoggerFactory.getLogger(WalletDispatcher.class);
+
+    private final NetworkParameters params;
+    private final List<Wallet> wallets = new ArrayList<Wallet>();
+    private final Map<Wallet, WalletEventListener> walletListeners = new HashMap<Wallet, WalletEventListener>();
+    // How many of each wallets keys are in walletsByAddress. The keychain only ever grows, so new keys are at the end.
+    private final Map<Wallet, Integer> indexedKeyCounts = new HashMap<Wallet, Integer>();
+
+    // Key hashes (for raw pubkey outputs, the hash of the key) to the wallets holding the key.
+    private final HashMultimap<Address, Wallet> walletsByAddress = HashMultimap.create();
+    // Outputs the wallets have received in blocks, to find their spends. Spent outputs are left in, so a conflicting
+    // spend still reaches the wallet, until the next re-org rebuilds the index.
+    private final HashMultimap<TransactionOutPoint, Wallet> walletsByOutPoint = HashMultimap.create();
+    // Outpoints spent or created by pending transactions, so double spends against those are routed too.
+    private final HashMultimap<TransactionOutPoint, Wallet> walletsByPendingOutPoint = HashMultimap.create();
+    private final HashMultimap<Wallet, TransactionOutPoint> pendingOutPointsByWallet = HashMultimap.create();
+
+    // Wallets whose keys or pending transactions may have changed. Wallet event listeners run with the wallet locked,
+    // possibly on a peer thread, so they only mark the wallet here and the index is brought up to date under our own
+    // lock before it's next used. Taking our lock from inside the listener could deadlock against the chain.
+    private final Set<Wallet> changedWallets = Collections.newSetFromMap(new ConcurrentHashMap<Wallet, Boolean>());
+
+    public WalletDispatcher(NetworkParameters params) {
+        this.params = params;
+    }
+
+    /**
+     * Adds a wallet, indexing its keys and transactions. Like {@link AbstractBlockChain#addWallet(Wallet)}, the wallet
+     * won't be told about blocks the chain processed before it was added.
+     */
+    public synchronized void addWallet(final Wallet wallet) {
+        if (walletListeners.containsKey(wallet))
+            return;
+        WalletEventListener listener = new AbstractWalletEventListener() {
+            @Override
+            public void onKeyAdded(ECKey key) {
+                changedWallets.add(wallet);
+            }
+
+            @Override
+            public void onWalletChanged(Wallet w) {
+                changedWallets.add(wallet);
+            }
+        };
+        wallets.add(wallet);
+        walletListeners.put(wallet, listener);
+        indexedKeyCounts.put(wallet, 0);
+        wallet.addEventListener(listener);
+        indexKeys(wallet);
+        indexTransactions(wallet);
+        indexPending(wallet);
+    }
+
+    /**
+     * Removes a wallet and everything about it from the index.
+     */
+    public synchronized void removeWallet(Wallet wallet) {
+        WalletEventListener listener = walletListeners.remove(wallet);
+        if (listener == null)
+            return;
+        wallet.removeEventListener(listener);
+        wallets.remove(wallet);
+        indexedKeyCounts.remove(wallet);
+        changedWallets.remove(wallet);
+        removeFromIndex(walletsByAddress, wallet);
+        removeFromIndex(walletsByOutPoint, wallet);
+        removeFromIndex(walletsByPendingOutPoint, wallet);
+        pendingOutPointsByWallet.removeAll(wallet);
+    }
+
+    /** Returns the wallets that have been added, in the order they were added. */
+    public synchronized List<Wallet> getWallets() {
+        return new ArrayList<Wallet>(wallets);
+    }
+
+    public synchronized boolean isTransactionRelevant(Transaction tx) throws ScriptException {
+        updateChangedWallets();
+        for (Wallet wallet : findCandidates(tx)) {
+            if (wallet.isTransactionRelevant(tx))
+                return true;
+        }
+        return false;
+    }
+
+    public synchronized void receiveFromBlock(Transaction tx, StoredBlock block,
+                                              AbstractBlockChain.NewBlockType blockType) throws VerificationException {
+        updateChangedWallets();
+        boolean first = true;
+        for (Wallet wallet : findCandidates(tx)) {
+            try {
+                if (!wallet.isTransactionRelevant(tx))
+                    continue;
+                // Wallets must not share transaction objects, see the comment in AbstractBlockChain.add().
+                Transaction walletTx = first ? tx : new Transaction(params, tx.bitcoinSerialize());
+                first = false;
+                wallet.receiveFromBlock(walletTx, block, blockType);
+                indexOutputs(wallet, walletTx);
+            } catch (ScriptException e) {
+                log.warn("Failed to parse a script: " + e.toString());
+            } catch (ProtocolException e) {
+                // Failed to duplicate tx, should never happen.
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    public synchronized void notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
+                                                        AbstractBlockChain.NewBlockType blockType)
+            throws VerificationException {
+        // This only looks the hash up in each wallets pending pool, which is cheap.
+        for (Wallet wallet : wallets) {
+            wallet.notifyTransactionIsInBlock(txHash, block, blockType);
+        }
+    }
+
+    public synchronized void notifyNewBestBlock(Block block) throws VerificationException {
+        for (Wallet wallet : wallets) {
+            wallet.notifyNewBestBlock(block);
+        }
+    }
+
+    public synchronized void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks,
+                                        List<StoredBlock> newBlocks) throws VerificationException {
+        for (Wallet wallet : wallets) {
+            wallet.reorganize(splitPoint, oldBlocks, newBlocks);
+        }
+        // Outputs can vanish in a re-org, so start again from what the wallets now contain.
+        walletsByOutPoint.clear();
+        walletsByPendingOutPoint.clear();
+        pendingOutPointsByWallet.clear();
+        for (Wallet wallet : wallets) {
+            indexTransactions(wallet);
+            indexPending(wallet);
+        }
+    }
+
+    private Collection<Wallet> findCandidates(Transaction tx) {
+        Set<Wallet> candidates = null;
+        for (TransactionInput input : tx.getInputs()) {
+            if (input.isCoinBase())
+                continue;
+            TransactionOutPoint outpoint = input.getOutpoint();
+            candidates = addAll(candidates, walletsByOutPoint.get(outpoint));
+            candidates = addAll(candidates, walletsByPendingOutPoint.get(outpoint));
+        }
+        for (TransactionOutput output : tx.getOutputs()) {
+            Address address = Script.getIsMineAddress(params, output.getScriptBytes());
+            if (address != null)
+                candidates = addAll(candidates, walletsByAddress.get(address));
+        }
+        return candidates == null ? Collections.<Wallet>emptySet() : candidates;
+    }
+
+    private static Set<Wallet> addAll(Set<Wallet> candidates, Set<Wallet> more) {
+        if (more.isEmpty())
+            return candidates;
+        if (candidates == null)
+            candidates = new LinkedHashSet<Wallet>();
+        candidates.addAll(more);
+        return candidates;
+    }
+
+    private void updateChangedWallets() {
+        if (changedWallets.isEmpty())
+            return;
+        for (Iterator<Wallet> it = changedWallets.iterator(); it.hasNext(); ) {
+            Wallet wallet = it.next();
+            it.remove();
+            if (!walletListeners.containsKey(wallet))
+                continue;
+            indexKeys(wallet);
+            indexPending(wallet);
+        }
+    }
+
+    private void indexKeys(Wallet wallet) {
+        int indexed = indexedKeyCounts.get(wallet);
+        if (wallet.getKeychainSize() == indexed)
+            return;
+        int i = 0;
+        for (ECKey key : wallet.getKeys()) {
+            if (i++ < indexed)
+                continue;
+            walletsByAddress.put(key.toAddress(params), wallet);
+        }
+        indexedKeyCounts.put(wallet, i);
+    }
+
+    private void indexTransactions(Wallet wallet) {
+        for (Transaction tx : wallet.getTransactions(true, true)) {
+            indexOutputs(wallet, tx);
+        }
+    }
+
+    private void indexOutputs(Wallet wallet, Transaction tx) {
+        List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            if (outputs.get(i).isMine(wallet))
+                walletsByOutPoint.put(new TransactionOutPoint(params, i, tx.getHash()), wallet);
+        }
+    }
+
+    private void indexPending(Wallet wallet) {
+        for (TransactionOutPoint outpoint : pendingOutPointsByWallet.removeAll(wallet)) {
+            walletsByPendingOutPoint.remove(outpoint, wallet);
+        }
+        for (Transaction tx : wallet.getPendingTransactions()) {
+            for (TransactionInput input : tx.getInputs()) {
+                pendingOutPointsByWallet.put(wallet, input.getOutpoint());
+            }
+            List<TransactionOutput> outputs = tx.getOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                pendingOutPointsByWallet.put(wallet, new TransactionOutPoint(params, i, tx.getHash()));
+            }
+        }
+        for (TransactionOutPoint outpoint : pendingOutPointsByWallet.get(wallet)) {
+            walletsByPendingOutPoint.put(outpoint, wallet);
+        }
+    }
+
+    private static <K> void removeFromIndex(HashMultimap<K, Wallet> index, Wallet wallet) {
+        for (Iterator<Map.Entry<K, Wallet>> it = index.entries().iterator(); it.hasNext(); ) {
+            if (it.next().getValue() == wallet)
+                it.remove();
+        }
+    }
+}
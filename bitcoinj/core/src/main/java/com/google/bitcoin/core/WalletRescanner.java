@@ -0,0 +1,282 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Replays the blocks held by a {@link FullPrunedBlockStore} into a {@link Wallet}, so a wallet that has had keys
+ * imported, or had {@link Wallet#clearTransactions(int)} called on it, can find its transactions again without
+ * downloading the chain from the network.</p>
+ *
+ * <p>Once a {@link FullPrunedBlockChain} has verified a block the store only keeps the outputs it created and spent,
+ * not the transactions themselves. Those outputs are enough to tell whether a block concerns the wallet, as the scripts
+ * of both sides are there, and checking them is spread over several threads. For the handful of blocks that match, the
+ * full block is then requested from a {@link BlockProvider}, for instance one that asks a peer for it. Blocks that
+ * have not been verified yet are stored whole and need no provider. Blocks the store has pruned entirely can't be
+ * scanned at all, see {@link Result#getBlocksUnavailable()}.</p>
+ *
+ * <p>Matching transactions are handed to the wallet in chain order, with their depth set relative to the verified
+ * chain head of the store, which should therefore be the same chain the wallet is following.</p>
+ */
+public class WalletRescanner {
+    private static final Logger log = LoggerFactory.getLogger(WalletRescanner.class);
+
+    // How many blocks each scanning task looks at. Small enough to give reasonably smooth progress reports.
+    private static final int BLOCKS_PER_TASK = 100;
+
+    /** Supplies full blocks for those the store only holds output changes for. */
+    public interface BlockProvider {
+        /** Returns the block with the given hash, or null if it can't be had. */
+        public Block getBlock(Sha256Hash blockHash);
+    }
+
+    /** Receives progress reports while the store is being scanned. */
+    public interface ProgressListener {
+        /**
+         * Called on the thread running the rescan as blocks are scanned.
+         *
+         * @param pct the percentage of blocks scanned so far
+         * @param blocksLeft the number of blocks still to scan
+         * @param date the date of the last block scanned
+         */
+        public void progress(double pct, int blocksLeft, Date date);
+    }
+
+    /** What a rescan found. */
+    public static class Result {
+        private int blocksScanned;
+        private int blocksUnavailable;
+        private int transactionsReceived;
+        private final List<Sha256Hash> missingBlocks = new ArrayList<Sha256Hash>();
+
+        /** The number of blocks whose transactions or output changes were checked against the wallet. */
+        public int getBlocksScanned() {
+            return blocksScanned;
+        }
+
+        /** The number of blocks in the requested range that the store had no transaction data for at all. */
+        public int getBlocksUnavailable() {
+            return blocksUnavailable;
+        }
+
+        /** The number of transactions handed to the wallet. Ones it already had are counted too. */
+        public int getTransactionsReceived() {
+            return transactionsReceived;
+        }
+
+        /**
+         * Blocks that concern the wallet but that the {@link BlockProvider} couldn't supply, or all of them if there
+         * is no provider. Their transactions are not in the wallet.
+         */
+        public List<Sha256Hash> getMissingBlocks() {
+            return missingBlocks;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d blocks scanned, %d unavailable, %d transactions received, %d blocks missing",
+                    blocksScanned, blocksUnavailable, transactionsReceived, missingBlocks.size());
+        }
+    }
+
+    // The outcome of scanning a single block.
+    private static class ScannedBlock {
+        final StoredBlock block;
+        // Set if the store has the full block. Spends can't be picked out of those until the wallet has seen the
+        // transactions before them, so they're all kept and checked against the wallet when the time comes.
+        List<Transaction> transactions;
+        // Set if the output changes pay to or spend from one of the wallets keys.
+        boolean matched;
+        boolean unavailable;
+
+        ScannedBlock(StoredBlock block) {
+            this.block = block;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final FullPrunedBlockStore blockStore;
+    private final Wallet wallet;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private BlockProvider blockProvider;
+    private ProgressListener progressListener;
+
+    public WalletRescanner(NetworkParameters params, FullPrunedBlockStore blockStore, Wallet wallet) {
+        this.params = params;
+        this.blockStore = blockStore;
+        this.wallet = wallet;
+    }
+
+    /** Sets how many threads scan the store. Defaults to the number of processors. */
+    public void setThreads(int threads) {
+        checkArgument(threads > 0);
+        this.threads = threads;
+    }
+
+    /** Sets where to get the full blocks that the store only holds output changes for. */
+    public void setBlockProvider(BlockProvider blockProvider) {
+        this.blockProvider = blockProvider;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Scans the best chain of the store from the given height up to its verified chain head, and gives the wallet any
+     * transactions it finds.
+     */
+    public Result rescan(int fromHeight) throws BlockStoreException, VerificationException {
+        StoredBlock chainHead = blockStore.getVerifiedChainHead();
+        List<StoredBlock> blocks = getBestChain(chainHead, fromHeight);
+        final Set<Address> addresses = getAddresses();
+        log.info("Rescanning {} blocks for {} keys on {} threads", new Object[]{blocks.size(), addresses.size(), threads});
+        Result result = new Result();
+        List<ScannedBlock> scanned = scan(blocks, addresses, result);
+        for (ScannedBlock scannedBlock : scanned) {
+            if (scannedBlock.transactions != null) {
+                receive(scannedBlock.block, scannedBlock.transactions, chainHead, result);
+            } else if (scannedBlock.matched) {
+                Sha256Hash hash = scannedBlock.block.getHeader().getHash();
+                Block block = blockProvider == null ? null : blockProvider.getBlock(hash);
+                if (block == null) {
+                    log.warn("Could not get block {} to rescan it", hash);
+                    result.missingBlocks.add(hash);
+                    continue;
+                }
+                if (!block.getHash().equals(hash))
+                    throw new VerificationException("Block provider returned " + block.getHash() + " for " + hash);
+                block.verify();
+                receive(scannedBlock.block, block.getTransactions(), chainHead, result);
+            }
+        }
+        log.info("Rescan done: {}", result);
+        return result;
+    }
+
+    // The blocks of the best chain from the given height up to the chain head, oldest first.
+    private List<StoredBlock> getBestChain(StoredBlock chainHead, int fromHeight) throws BlockStoreException {
+        LinkedList<StoredBlock> blocks = new LinkedList<StoredBlock>();
+        StoredBlock cursor = chainHead;
+        while (cursor != null && cursor.getHeight() >= fromHeight) {
+            blocks.addFirst(cursor);
+            cursor = cursor.getPrev(blockStore);
+        }
+        return new ArrayList<StoredBlock>(blocks);
+    }
+
+    private Set<Address> getAddresses() {
+        Set<Address> addresses = new HashSet<Address>();
+        for (ECKey key : wallet.getKeys())
+            addresses.add(key.toAddress(params));
+        return addresses;
+    }
+
+    private List<ScannedBlock> scan(List<StoredBlock> blocks, final Set<Address> addresses, Result result)
+            throws BlockStoreException {
+        final List<ScannedBlock> scanned = new ArrayList<ScannedBlock>(blocks.size());
+        for (StoredBlock block : blocks)
+            scanned.add(new ScannedBlock(block));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(executor);
+            int tasks = 0;
+            for (int i = 0; i < scanned.size(); i += BLOCKS_PER_TASK) {
+                final int from = i;
+                final int to = Math.min(i + BLOCKS_PER_TASK, scanned.size());
+                completionService.submit(new Callable<Integer>() {
+                    public Integer call() throws BlockStoreException {
+                        for (ScannedBlock scannedBlock : scanned.subList(from, to))
+                            scan(scannedBlock, addresses);
+                        return from;
+                    }
+                });
+                tasks++;
+            }
+            int blocksDone = 0;
+            for (int i = 0; i < tasks; i++) {
+                // Each task hands back the start of its range.
+                int from = completionService.take().get();
+                int to = Math.min(from + BLOCKS_PER_TASK, scanned.size());
+                blocksDone += to - from;
+                if (progressListener != null) {
+                    double pct = 100.0 * blocksDone / scanned.size();
+                    Date date = new Date(scanned.get(to - 1).block.getHeader().getTimeSeconds() * 1000);
+                    progressListener.progress(pct, scanned.size() - blocksDone, date);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BlockStoreException)
+                throw (BlockStoreException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        for (ScannedBlock scannedBlock : scanned) {
+            if (scannedBlock.unavailable)
+                result.blocksUnavailable++;
+            else
+                result.blocksScanned++;
+        }
+        return scanned;
+    }
+
+    // Runs on the scanning threads.
+    private void scan(ScannedBlock scannedBlock, Set<Address> addresses) throws BlockStoreException {
+        StoredUndoableBlock undoBlock = blockStore.getUndoBlock(scannedBlock.block.getHeader().getHash());
+        if (undoBlock == null) {
+            scannedBlock.unavailable = true;
+        } else if (undoBlock.getTransactions() != null) {
+            scannedBlock.transactions = undoBlock.getTransactions();
+        } else {
+            TransactionOutputChanges changes = undoBlock.getTxOutChanges();
+            scannedBlock.matched = matches(changes.txOutsCreated, addresses) ||
+                    matches(changes.txOutsSpent, addresses);
+        }
+    }
+
+    private boolean matches(List<StoredTransactionOutput> outputs, Set<Address> addresses) {
+        for (StoredTransactionOutput output : outputs) {
+            Address address = Script.getIsMineAddress(params, output.getScriptBytes());
+            if (address != null && addresses.contains(address))
+                return true;
+        }
+        return false;
+    }
+
+    private void receive(StoredBlock block, List<Transaction> transactions, StoredBlock chainHead, Result result)
+            throws VerificationException {
+        for (Transaction tx : transactions) {
+            if (!wallet.isTransactionRelevant(tx))
+                continue;
+            wallet.receiveFromBuriedBlock(tx, block, chainHead);
+            result.transactionsReceived++;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An on-disk open addressing hash table from block hash to the number of the record holding that block, used by
+ * {@link BoundedOverheadBlockStore} so a lookup takes a couple of small reads rather than a scan of the store. Each
+ * slot holds the whole hash, so a hit can be confirmed without reading and hashing the block header.</p>
+ *
+ * <p>The file starts with a version byte, the number of slots, the number of slots in use and the number of store
+ * records that have been indexed, which lets the store catch the index up after a crash. The slots follow, each a
+ * 32 byte hash and a 4 byte record number plus one, so an all zero slot is empty. The table is kept at most half
+ * full, and doubles in size by copying the slots to a new file and renaming it over the old one.</p>
+ *
+ * <p>This class is not thread safe, the store synchronizes access to it.</p>
+ */
+class BlockHashIndex {
+    private static final byte FILE_FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 1 + 4 + 4 + 4;
+    private static final int SLOT_SIZE = 32 + 4;
+    private static final int INITIAL_CAPACITY = 4096;
+    // How many slots to move at a time when growing the table.
+    private static final int COPY_BATCH = 1024;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private int capacity;
+    private int size;
+    private int records;
+    private final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+    private final byte[] slotHash = new byte[32];
+
+    /**
+     * Opens the index in the given file, or creates an empty one if the file doesn't exist or can't be understood.
+     * Writes are not synchronous: after a crash the caller should check {@link BlockHashIndex#getRecords()} against
+     * the store and {@link BlockHashIndex#clear()} the index if it looks wrong.
+     */
+    BlockHashIndex(File file) throws IOException {
+        this.file = file;
+        open();
+        if (!readHeader())
+            reset(INITIAL_CAPACITY);
+    }
+
+    private void open() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+    }
+
+    private boolean readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.read(header, 0) < HEADER_SIZE)
+            return false;
+        header.flip();
+        if (header.get() != FILE_FORMAT_VERSION)
+            return false;
+        capacity = header.getInt();
+        size = header.getInt();
+        records = header.getInt();
+        // The capacity must be a power of two for the slot arithmetic to work.
+        return capacity > 0 && (capacity & (capacity - 1)) == 0 && size <= capacity && records >= 0 &&
+                channel.size() == HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(FILE_FORMAT_VERSION).putInt(capacity).putInt(size).putInt(records);
+        header.flip();
+        channel.write(header, 0);
+    }
+
+    // Empties the file and sizes it for the given number of slots.
+    private void reset(int newCapacity) throws IOException {
+        capacity = newCapacity;
+        size = 0;
+        records = 0;
+        channel.truncate(0);
+        // Extending the file with a single write at the end leaves the slots in between zeroed, ie, empty.
+        channel.write(ByteBuffer.allocate(1), HEADER_SIZE + (long) capacity * SLOT_SIZE - 1);
+        writeHeader();
+    }
+
+    /** Removes all entries. */
+    void clear() throws IOException {
+        reset(INITIAL_CAPACITY);
+    }
+
+    /** Returns how many records of the store have been indexed, ie, one more than the highest put record number. */
+    int getRecords() {
+        return records;
+    }
+
+    /**
+     * Returns the number of the record holding the block with the given hash, or -1 if it isn't in the index. Throws
+     * if every slot is in use, which the table never lets happen unless the file is damaged.
+     */
+    int get(Sha256Hash hash) throws IOException {
+        byte[] hashBytes = hash.getBytes();
+        for (int n = 0, i = firstSlot(hashBytes); n < capacity; n++, i = (i + 1) & (capacity - 1)) {
+            int value = readSlot(i);
+            if (value == 0)
+                return -1;
+            if (Arrays.equals(slotHash, hashBytes))
+                return value - 1;
+        }
+        throw new IOException("Hash index " + file + " has no empty slots");
+    }
+
+    /** Records that the block with the given hash is held in the given record, replacing any earlier record. */
+    void put(Sha256Hash hash, int recordNumber) throws IOException {
+        checkArgument(recordNumber >= 0);
+        if ((size + 1) * 2 > capacity)
+            grow();
+        insert(hash.getBytes(), recordNumber + 1);
+        records = Math.max(records, recordNumber + 1);
+        writeHeader();
+    }
+
+    private void insert(byte[] hashBytes, int value) throws IOException {
+        int i = firstSlot(hashBytes);
+        while (true) {
+            if (readSlot(i) == 0) {
+                size++;
+                break;
+            }
+            if (Arrays.equals(slotHash, hashBytes))
+                break;
+            i = (i + 1) & (capacity - 1);
+        }
+        writeSlot(i, hashBytes, value);
+    }
+
+    private int firstSlot(byte[] hashBytes) {
+        // Hashes are already evenly distributed, bar the leading zeros that proof of work puts at the front, so the
+        // last four bytes make a good hash code.
+        return ByteBuffer.wrap(hashBytes).getInt(28) & (capacity - 1);
+    }
+
+    // Reads the given slot into slotHash and returns its value, zero if it's empty.
+    private int readSlot(int i) throws IOException {
+        slot.clear();
+        channel.read(slot, HEADER_SIZE + (long) i * SLOT_SIZE);
+        slot.flip();
+        slot.get(slotHash);
+        return slot.getInt();
+    }
+
+    private void writeSlot(int i, byte[] hashBytes, int value) throws IOException {
+        slot.clear();
+        slot.put(hashBytes).putInt(value);
+        slot.flip();
+        channel.write(slot, HEADER_SIZE + (long) i * SLOT_SIZE);
+    }
+
+    // Copies every entry into a table twice the size, which then replaces this one.
+    private void grow() throws IOException {
+        File newFile = new File(file.getPath() + ".tmp");
+        BlockHashIndex bigger = new BlockHashIndex(newFile);
+        bigger.reset(capacity * 2);
+        ByteBuffer batch = ByteBuffer.allocate(COPY_BATCH * SLOT_SIZE);
+        byte[] hashBytes = new byte[32];
+        for (int i = 0; i < capacity; i += COPY_BATCH) {
+            batch.clear();
+            channel.read(batch, HEADER_SIZE + (long) i * SLOT_SIZE);
+            batch.flip();
+            while (batch.remaining() >= SLOT_SIZE) {
+                batch.get(hashBytes);
+                int value = batch.getInt();
+                if (value != 0)
+                    bigger.insert(hashBytes, value);
+            }
+        }
+        bigger.records = records;
+        bigger.writeHeader();
+        bigger.close();
+        close();
+        if (!newFile.renameTo(file)) {
+            // Windows won't rename over an existing file.
+            if (!file.delete() || !newFile.renameTo(file))
+                throw new IOException("Could not replace " + file + " with " + newFile);
+        }
+        open();
+        if (!readHeader())
+            throw new IOException("Could not read grown index " + file);
+    }
+
+    void close() throws IOException {
+        randomAccessFile.close();
+    }
+}
@@ -27,7 +27,9 @@ import com.google.bitcoin.core.StoredBlock;
  * A BlockStore is a map of hashes to StoredBlock. The hash is the double digest of the BitCoin serialization
  * of the block header, <b>not</b> the header with the extra data as well.<p>
  *
- * BlockStores are thread safe.
+ * BlockStores are thread safe. Writers may be serialized, but {@link #getChainHead()} should not wait for a put() or
+ * setChainHead() that is blocked on the disk: a reader sees either the old head or the new one once it has been
+ * written. The implementations here also answer get() for recently stored blocks without waiting on the disk.
  */
 public interface BlockStore {
     /**
@@ -18,6 +18,8 @@ package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.*;
 import com.google.bitcoin.utils.NamedSemaphores;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,9 +32,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
-import java.util.Date;
-import java.util.LinkedHashMap;
-import java.util.Map;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -43,48 +42,49 @@ import static com.google.common.base.Preconditions.checkState;
  * stored. It exploits operating system level buffering and the fact that get() requests are, in normal usage,
  * localized in chain space.<p>
  *
- * Blocks are stored sequentially. Most blocks are fetched out of a small in-memory cache. The slowest part is
- * traversing difficulty transition points, which requires seeking backwards over around 2000 blocks. On a Google
- * Nexus S phone this takes a couple of seconds. On a MacBook Pro it takes around 50msec.<p>
+ * Blocks are stored sequentially. Most blocks are fetched out of a small in-memory cache. The rest are found through
+ * a hash index kept next to the store in a file with the same name plus ".index", see {@link BlockHashIndex}, so
+ * traversing difficulty transition points takes a few small reads per block rather than seeking backwards and
+ * hashing every header on the way. If the index is missing or out of date it is rebuilt when the store is opened.<p>
  *
- * The store has much room for optimization. Expanding the size of the cache will likely allow us to traverse
- * difficulty transitions without using too much memory and without hitting the disk at all, for the case of initial
- * block chain download. Storing the hashes on disk would allow us to avoid deserialization and hashing which is
- * expensive on Android.
+ * Writes and reads that miss the cache are serialized on the store, but the chain head and cached blocks are
+ * returned without taking that lock, so they are never held up behind a put() waiting on the disk.
  */
 public class BoundedOverheadBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(BoundedOverheadBlockStore.class);
     private static final byte FILE_FORMAT_VERSION = 1;
+    // The version byte and the chain head hash come before the first record.
+    private static final int RECORDS_START = 1 + 32;
     private static NamedSemaphores semaphores = new NamedSemaphores();
 
-    private RandomAccessFile file;
+    private volatile RandomAccessFile file;
     // We keep some recently found blocks in the blockCache. It can help to optimize some cases where we are
     // looking up blocks we recently stored or requested. When the cache gets too big older entries are deleted.
-    private LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    // A single segment keeps eviction close to least-recently-used; readers still never block on it.
+    private final Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .concurrencyLevel(1)
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker.
     private static final StoredBlock notFoundMarker = new StoredBlock(null, null, -1);
-    private LinkedHashMap<Sha256Hash, StoredBlock> notFoundCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    private final Cache<Sha256Hash, StoredBlock> notFoundCache = CacheBuilder.newBuilder()
+            .concurrencyLevel(1)
+            .maximumSize(100)  // This was chosen arbitrarily.
+            .build();
 
     private Sha256Hash chainHead;
+    // The block chainHead refers to, published once it has been written so getChainHead() needs no lock. Null until
+    // it is first looked up after opening the store.
+    private volatile StoredBlock chainHeadBlock;
     private final NetworkParameters params;
     private FileChannel channel;
     private FileLock lock;
     private String fileName;
+    private BlockHashIndex index;
 
     private static class Record {
         // A BigInteger representing the total amount of work done so far on this chain. As of May 2011 it takes 8
@@ -142,6 +142,10 @@ public class BoundedOverheadBlockStore implements BlockStore {
             return new Block(params, blockHeader);
         }
 
+        public Sha256Hash getHash() {
+            return new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(blockHeader)));
+        }
+
         public int getHeight() {
             return height;
         }
@@ -149,6 +153,11 @@ public class BoundedOverheadBlockStore implements BlockStore {
         public StoredBlock toStoredBlock(NetworkParameters params) throws ProtocolException {
             return new StoredBlock(getHeader(params), getChainWork(), getHeight());
         }
+
+        /** As {@link #toStoredBlock(NetworkParameters)}, for a record already checked to hold the given hash. */
+        public StoredBlock toStoredBlock(NetworkParameters params, Sha256Hash hash) throws ProtocolException {
+            return new StoredBlock(new Block(params, blockHeader, hash), getChainWork(), getHeight());
+        }
     }
 
     public BoundedOverheadBlockStore(NetworkParameters params, File file) throws BlockStoreException {
@@ -174,7 +183,8 @@ public class BoundedOverheadBlockStore implements BlockStore {
 
     private void createNewStore(NetworkParameters params, File file) throws BlockStoreException {
         // Create a new block store if the file wasn't found or anything went wrong whilst reading.
-        blockCache.clear();
+        blockCache.invalidateAll();
+        chainHeadBlock = null;
         try {
             if (file.exists()) {
                 if (!file.delete())
@@ -195,6 +205,7 @@ public class BoundedOverheadBlockStore implements BlockStore {
             StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
             this.chainHead = storedGenesis.getHeader().getHash();
             this.file.write(this.chainHead.getBytes());
+            openIndex();
             put(storedGenesis);
         } catch (VerificationException e1) {
             throw new RuntimeException(e1);  // Cannot happen.
@@ -227,6 +238,7 @@ public class BoundedOverheadBlockStore implements BlockStore {
             this.chainHead = new Sha256Hash(chainHeadHash);
             log.info("Read chain head from disk: {}", this.chainHead);
             channel.position(channel.size() - Record.SIZE);
+            openIndex();
         } catch (IOException e) {
             if (this.file != null)
                 this.file.close();
@@ -237,6 +249,48 @@ public class BoundedOverheadBlockStore implements BlockStore {
         }
     }
 
+    // Opens the hash index and brings it up to date with the records in the store, which it may not be if the index
+    // is new or the program died before the index writes made it to disk.
+    private void openIndex() throws IOException {
+        if (index != null)
+            index.close();
+        index = new BlockHashIndex(new File(fileName + ".index"));
+        int records = (int) ((channel.size() - RECORDS_START) / Record.SIZE);
+        int indexed = index.getRecords();
+        Record record = new Record();
+        if (indexed > records || (indexed > 0 && !isIndexed(record, indexed - 1))) {
+            log.info("Hash index does not match the block store, rebuilding it");
+            index.clear();
+            indexed = 0;
+        }
+        indexFrom(indexed);
+    }
+
+    // Adds the records from the given one on to the index.
+    private void indexFrom(int indexed) throws IOException {
+        int records = (int) ((channel.size() - RECORDS_START) / Record.SIZE);
+        if (indexed < records) {
+            log.info("Indexing {} blocks", records - indexed);
+            Record record = new Record();
+            for (int i = indexed; i < records; i++) {
+                if (!record.read(channel, RECORDS_START + (long) i * Record.SIZE, buf))
+                    throw new IOException("Failed to read buffer");
+                index.put(record.getHash(), i);
+            }
+        }
+    }
+
+    // Checks the index leads back to the given record, or to a later copy of the same block.
+    private boolean isIndexed(Record record, int recordNumber) throws IOException {
+        if (!record.read(channel, RECORDS_START + (long) recordNumber * Record.SIZE, buf))
+            return false;
+        try {
+            return index.get(record.getHash()) >= recordNumber;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     private void lock() throws IOException, BlockStoreException {
         if (!semaphores.tryAcquire(fileName)) {
             throw new BlockStoreException("File in use");
@@ -269,30 +323,41 @@ public class BoundedOverheadBlockStore implements BlockStore {
             Sha256Hash hash = block.getHeader().getHash();
             // Append to the end of the file.
             Record.write(channel, block);
+            index.put(hash, (int) ((channel.size() - RECORDS_START) / Record.SIZE) - 1);
             blockCache.put(hash, block);
+            notFoundCache.invalidate(hash);
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
     }
 
-    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         ensureOpen();
-        // Check the memory cache first.
-        StoredBlock fromMem = blockCache.get(hash);
+        // Check the memory cache first. This doesn't need the lock, so a reader never waits for a put() to finish.
+        StoredBlock fromMem = blockCache.getIfPresent(hash);
         if (fromMem != null) {
             return fromMem;
         }
-        if (notFoundCache.get(hash) == notFoundMarker) {
+        if (notFoundCache.getIfPresent(hash) == notFoundMarker) {
             return null;
         }
+        return getFromDisk(hash);
+    }
 
+    private synchronized StoredBlock getFromDisk(Sha256Hash hash) throws BlockStoreException {
+        ensureOpen();
+        // Another thread may have stored or fetched the block whilst we were waiting for the lock.
+        StoredBlock fromMem = blockCache.getIfPresent(hash);
+        if (fromMem != null) {
+            return fromMem;
+        }
         try {
             Record fromDisk = getRecord(hash);
             StoredBlock block = null;
             if (fromDisk == null) {
                 notFoundCache.put(hash, notFoundMarker);
             } else {
-                block = fromDisk.toStoredBlock(params);
+                block = fromDisk.toStoredBlock(params, hash);
                 blockCache.put(hash, block);
             }
             return block;
@@ -305,52 +370,46 @@ public class BoundedOverheadBlockStore implements BlockStore {
 
     private ByteBuffer buf = ByteBuffer.allocateDirect(Record.SIZE);
 
-    private Record getRecord(Sha256Hash hash) throws IOException, ProtocolException {
-        long startPos = channel.position();
-        // Use our own file pointer within the tight loop as updating channel positions is really expensive.
-        long pos = startPos;
-        Record record = new Record();
-        int numMoves = 0;
-        long startTime = new Date().getTime();
-        do {
-            if (!record.read(channel, pos, buf))
-                throw new IOException("Failed to read buffer");
-            if (record.getHeader(params).getHash().equals(hash)) {
-                // Found it. Update file position for next time.
-                channel.position(pos);
-                long endTime = new Date().getTime();
-                if (endTime - startTime > 100) {
-                    log.info("Spent {} seconds doing {} backwards seeks", (endTime - startTime) / 1000.0, numMoves);
-                }
-                return record;
-            }
-            // Did not find it.
-            if (pos == 1 + 32) {
-                // At the start so wrap around to the end.
-                pos = channel.size() - Record.SIZE;
-            } else {
-                // Move backwards.
-                pos = pos - Record.SIZE;
-                checkState(pos >= 1 + 32, pos);
-            }
-            numMoves++;
-        } while (pos != startPos);
-        // Was never stored.
-        channel.position(pos);
-        long endTime = new Date().getTime();
-        if (endTime - startTime > 1000) {
-            log.info("Spent {} seconds doing {} backwards seeks", (endTime - startTime) / 1000.0, numMoves);
+    private Record getRecord(Sha256Hash hash) throws IOException {
+        try {
+            return findRecord(hash);
+        } catch (IOException e) {
+            // Opening the store only checks the last record against the index, so damage elsewhere shows up here.
+            log.warn("Hash index does not match the block store, rebuilding it", e);
+            index.clear();
+            indexFrom(0);
+            return findRecord(hash);
         }
-        return null;
     }
 
-    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+    // Returns the record the index gives for the hash, or null if it isn't indexed. Throws if the index has no empty
+    // slots or leads to a record holding some other block.
+    private Record findRecord(Sha256Hash hash) throws IOException {
+        int recordNumber = index.get(hash);
+        if (recordNumber < 0)
+            return null;
+        Record record = new Record();
+        if (!record.read(channel, RECORDS_START + (long) recordNumber * Record.SIZE, buf))
+            throw new IOException("Hash index leads past the end of the block store");
+        if (!record.getHash().equals(hash))
+            throw new IOException("Hash index leads to the wrong record for " + hash);
+        return record;
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
         ensureOpen();
-        // This will hit the cache
-        StoredBlock head = get(chainHead);
-        if (head == null)
-            throw new BlockStoreException("Corrupted block store: chain head not found");
-        return head;
+        StoredBlock head = chainHeadBlock;
+        if (head != null)
+            return head;
+        synchronized (this) {
+            ensureOpen();
+            // This will usually hit the cache
+            head = get(chainHead);
+            if (head == null)
+                throw new BlockStoreException("Corrupted block store: chain head not found");
+            chainHeadBlock = head;
+            return head;
+        }
     }
 
     public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
@@ -359,6 +418,8 @@ public class BoundedOverheadBlockStore implements BlockStore {
             this.chainHead = chainHead.getHeader().getHash();
             // Write out new hash to the first 32 bytes of the file past one (first byte is version number).
             channel.write(ByteBuffer.wrap(this.chainHead.getBytes()), 1);
+            // Only publish the new head to readers once it is on disk.
+            chainHeadBlock = chainHead;
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
@@ -367,12 +428,16 @@ public class BoundedOverheadBlockStore implements BlockStore {
     public void close() throws BlockStoreException {
         ensureOpen();
         try {
+            if (index != null)
+                index.close();
             file.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
         } finally {
             semaphores.release(this.fileName);
             file = null;
+            index = null;
+            chainHeadBlock = null;
         }
     }
 }
@@ -0,0 +1,420 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.StoredUndoableBlock;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps a bounded, write-back cache of unspent transaction outputs in front of
+ * another FullPrunedBlockStore, typically an {@link H2FullPrunedBlockStore}.</p>
+ *
+ * <p>Most outputs are spent soon after they are created, so rather than issuing an insert and a delete to the
+ * underlying store for each of them, outputs created and spent while they are still in the cache never reach it at
+ * all. Other changes are held in memory and written out in one database batch write once enough of them have built
+ * up, when {@link #flush()} is called or when the store is closed. Outputs read from the underlying store are kept
+ * in a least-recently-used cache of the given size.</p>
+ *
+ * <p>The verified chain head of the underlying store is only moved when the changes are written out, together with
+ * them, so that after a crash the underlying store is left consistent at an earlier block and the chain resumes from
+ * there. Blocks and undo data are passed straight through.</p>
+ *
+ * <p>Writes are expected to come from a single thread at a time, as {@link com.google.bitcoin.core.FullPrunedBlockChain}
+ * does. Until a batch write is committed, other threads see outputs as they were before it began.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default number of outputs to cache. */
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+
+    private static class CachedOutput {
+        StoredTransactionOutput out;
+        // Whether the underlying store has (or had, if spent is set) this output.
+        boolean onDisk;
+        boolean spent;
+        // Whether an output the underlying store has was spent and then added again, so must be replaced.
+        boolean replaced;
+
+        CachedOutput(StoredTransactionOutput out, boolean onDisk) {
+            this.out = out;
+            this.onDisk = onDisk;
+        }
+
+        CachedOutput copy() {
+            CachedOutput copy = new CachedOutput(out, onDisk);
+            copy.spent = spent;
+            copy.replaced = replaced;
+            return copy;
+        }
+    }
+
+    private FullPrunedBlockStore store;
+    private final int cacheSize;
+
+    // Outputs the underlying store agrees with, least recently used first.
+    private final LinkedHashMap<StoredTransactionOutPoint, CachedOutput> clean;
+    // Outputs that have to be written to the underlying store.
+    private final HashMap<StoredTransactionOutPoint, CachedOutput> dirty;
+
+    // The verified chain head that goes with the dirty outputs, or null if the underlying store is up to date.
+    private StoredBlock pendingVerifiedChainHead;
+
+    // State of the batch write in progress, used to roll back an abort and to hide the batch from other threads.
+    private Thread batchThread;
+    private HashMap<StoredTransactionOutPoint, CachedOutput> journal;
+    private StoredBlock journalVerifiedChainHead;
+
+    /**
+     * Creates a cache of {@link #DEFAULT_CACHE_SIZE} outputs in front of the given store.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) {
+        this(store, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a cache in front of the given store. Up to cacheSize outputs read from the store are kept in memory,
+     * and changes are written back once cacheSize of them have built up, so memory use is bounded by roughly twice
+     * cacheSize outputs.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, final int cacheSize) {
+        Preconditions.checkArgument(cacheSize > 0, "cacheSize must be positive");
+        this.store = Preconditions.checkNotNull(store);
+        this.cacheSize = cacheSize;
+        this.clean = new LinkedHashMap<StoredTransactionOutPoint, CachedOutput>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StoredTransactionOutPoint, CachedOutput> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.dirty = new HashMap<StoredTransactionOutPoint, CachedOutput>();
+    }
+
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        checkOpen();
+        store.put(block);
+    }
+
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        checkOpen();
+        store.put(storedBlock, undoableBlock);
+    }
+
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        return store.get(hash);
+    }
+
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        return store.getUndoBlock(hash);
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        return store.getChainHead();
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        store.setChainHead(chainHead);
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkOpen();
+        StoredBlock head = isHiddenBatch() ? journalVerifiedChainHead : pendingVerifiedChainHead;
+        return head != null ? head : store.getVerifiedChainHead();
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        if (dirty.isEmpty()) {
+            // The underlying store already has every output up to this block.
+            pendingVerifiedChainHead = null;
+            store.setVerifiedChainHead(chainHead);
+            return;
+        }
+        pendingVerifiedChainHead = chainHead;
+        if (store.getChainHead().getHeight() < chainHead.getHeight())
+            store.setChainHead(chainHead);
+    }
+
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        checkOpen();
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        CachedOutput entry;
+        if (isHiddenBatch() && journal.containsKey(key)) {
+            entry = journal.get(key);
+            if (entry == null)
+                return store.getTransactionOutput(hash, index);
+        } else {
+            entry = lookup(key);
+        }
+        if (entry != null)
+            return entry.spent ? null : entry.out;
+        StoredTransactionOutput out = store.getTransactionOutput(hash, index);
+        if (out != null)
+            clean.put(key, new CachedOutput(out, true));
+        return out;
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        checkOpen();
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        CachedOutput entry = lookup(key);
+        record(key, entry);
+        if (entry == null) {
+            dirty.put(key, new CachedOutput(out, false));
+            return;
+        }
+        if (!entry.spent)
+            return;  // Already unspent, the underlying stores ignore or overwrite duplicates too.
+        if (entry.onDisk && isSameOutput(entry.out, out)) {
+            // Spent and added back again, as a re-org does, so the underlying store is right after all.
+            entry.spent = false;
+            entry.replaced = false;
+            dirty.remove(key);
+            clean.put(key, entry);
+            return;
+        }
+        entry.replaced = entry.onDisk;
+        entry.out = out;
+        entry.spent = false;
+        markDirty(key, entry);
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        checkOpen();
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        CachedOutput entry = lookup(key);
+        record(key, entry);
+        if (entry == null) {
+            StoredTransactionOutput stored = store.getTransactionOutput(out.getHash(), out.getIndex());
+            if (stored != null)
+                entry = new CachedOutput(stored, true);
+        }
+        if (entry == null || entry.spent)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+        if (!entry.onDisk) {
+            // Created and spent without ever reaching the underlying store.
+            dirty.remove(key);
+            return;
+        }
+        entry.spent = true;
+        markDirty(key, entry);
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        checkOpen();
+        if (isHiddenBatch()) {
+            for (int i = 0; i < numOutputs; i++)
+                if (getTransactionOutput(hash, i) != null)
+                    return true;
+            return false;
+        }
+        boolean spentOnDisk = false;
+        for (int i = 0; i < numOutputs; i++) {
+            CachedOutput entry = lookup(new StoredTransactionOutPoint(hash, i));
+            if (entry == null)
+                continue;
+            if (!entry.spent)
+                return true;
+            if (entry.onDisk)
+                spentOnDisk = true;
+        }
+        if (!store.hasUnspentOutputs(hash, numOutputs))
+            return false;
+        if (!spentOnDisk)
+            return true;
+        // Some of the outputs the underlying store has are spent here, so check the rest one by one.
+        for (int i = 0; i < numOutputs; i++)
+            if (lookup(new StoredTransactionOutPoint(hash, i)) == null && store.getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (batchThread != null)
+            return;
+        store.beginDatabaseBatchWrite();
+        batchThread = Thread.currentThread();
+        journal = new HashMap<StoredTransactionOutPoint, CachedOutput>();
+        journalVerifiedChainHead = pendingVerifiedChainHead;
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        endBatch();
+        if (dirty.size() >= cacheSize) {
+            try {
+                writeDirty();
+            } catch (BlockStoreException e) {
+                store.abortDatabaseBatchWrite();
+                throw e;
+            }
+        }
+        store.commitDatabaseBatchWrite();
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (journal != null) {
+            for (Map.Entry<StoredTransactionOutPoint, CachedOutput> e : journal.entrySet()) {
+                StoredTransactionOutPoint key = e.getKey();
+                CachedOutput entry = e.getValue();
+                clean.remove(key);
+                dirty.remove(key);
+                if (entry == null)
+                    continue;
+                if (entry.onDisk && !entry.spent && !entry.replaced)
+                    clean.put(key, entry);
+                else
+                    dirty.put(key, entry);
+            }
+            pendingVerifiedChainHead = journalVerifiedChainHead;
+        }
+        endBatch();
+        store.abortDatabaseBatchWrite();
+    }
+
+    /**
+     * Writes all changes held in memory to the underlying store in a single batch write. Must not be called while a
+     * batch write is in progress.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        checkOpen();
+        Preconditions.checkState(batchThread == null, "Cannot flush during a batch write");
+        if (dirty.isEmpty() && pendingVerifiedChainHead == null)
+            return;
+        store.beginDatabaseBatchWrite();
+        try {
+            writeDirty();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        store.commitDatabaseBatchWrite();
+    }
+
+    /**
+     * Writes out any changes held in memory, then closes the underlying store.
+     */
+    public synchronized void close() throws BlockStoreException {
+        if (store == null)
+            return;
+        try {
+            flush();
+        } finally {
+            store.close();
+            store = null;
+            clean.clear();
+            dirty.clear();
+        }
+    }
+
+    /** Returns the number of outputs held in memory, including changes not yet written out. */
+    public synchronized int getCachedOutputCount() {
+        return clean.size() + dirty.size();
+    }
+
+    /** Returns the number of changes not yet written to the underlying store. */
+    public synchronized int getDirtyOutputCount() {
+        return dirty.size();
+    }
+
+    private void writeDirty() throws BlockStoreException {
+        int written = 0;
+        for (Map.Entry<StoredTransactionOutPoint, CachedOutput> e : dirty.entrySet()) {
+            CachedOutput entry = e.getValue();
+            if (entry.onDisk && (entry.spent || entry.replaced)) {
+                store.removeUnspentTransactionOutput(entry.out);
+                written++;
+            }
+            if (!entry.spent && (!entry.onDisk || entry.replaced)) {
+                store.addUnspentTransactionOutput(entry.out);
+                written++;
+            }
+        }
+        if (pendingVerifiedChainHead != null)
+            store.setVerifiedChainHead(pendingVerifiedChainHead);
+        log.debug("Wrote {} outputs to the underlying store", written);
+        // Whatever is left unspent now matches the underlying store.
+        for (Map.Entry<StoredTransactionOutPoint, CachedOutput> e : dirty.entrySet()) {
+            CachedOutput entry = e.getValue();
+            if (entry.spent)
+                continue;
+            entry.onDisk = true;
+            entry.replaced = false;
+            clean.put(e.getKey(), entry);
+        }
+        dirty.clear();
+        pendingVerifiedChainHead = null;
+    }
+
+    private static boolean isSameOutput(StoredTransactionOutput a, StoredTransactionOutput b) {
+        return a.getHeight() == b.getHeight() && a.getValue().equals(b.getValue()) &&
+                Arrays.equals(a.getScriptBytes(), b.getScriptBytes());
+    }
+
+    private CachedOutput lookup(StoredTransactionOutPoint key) {
+        CachedOutput entry = dirty.get(key);
+        return entry != null ? entry : clean.get(key);
+    }
+
+    private void markDirty(StoredTransactionOutPoint key, CachedOutput entry) {
+        clean.remove(key);
+        dirty.put(key, entry);
+    }
+
+    // Remembers the state of an output before its first change in a batch write, so an abort can restore it.
+    private void record(StoredTransactionOutPoint key, CachedOutput entry) {
+        if (journal == null || journal.containsKey(key))
+            return;
+        journal.put(key, entry == null ? null : entry.copy());
+    }
+
+    private boolean isHiddenBatch() {
+        return batchThread != null && batchThread != Thread.currentThread();
+    }
+
+    private void endBatch() {
+        batchThread = null;
+        journal = null;
+        journalVerifiedChainHead = null;
+    }
+
+    private void checkOpen() {
+        Preconditions.checkState(store != null, "CachingFullPrunedBlockStore is closed");
+    }
+}
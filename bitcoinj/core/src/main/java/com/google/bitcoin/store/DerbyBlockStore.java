@@ -22,10 +22,15 @@ import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
 import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A block store using the Apache Derby pure-java embedded database.
  * 
+ * <p>Writes are committed by a background thread a couple of seconds after they are made, so a burst of new blocks
+ * shares one commit. Statements are prepared once and reused.</p>
+ * 
  * @author miron@google.com (Miron Cuperman)
  */
 public class DerbyBlockStore implements BlockStore {
@@ -33,10 +38,11 @@ public class DerbyBlockStore implements BlockStore {
 
     private static final Logger log = LoggerFactory.getLogger(DerbyBlockStore.class);
 
-    private StoredBlock chainHeadBlock;
+    private volatile StoredBlock chainHeadBlock;
     private Sha256Hash chainHeadHash;
     private NetworkParameters params;
     private Connection conn;
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
 
     private String dbName;
 
@@ -65,6 +71,7 @@ public class DerbyBlockStore implements BlockStore {
         try {
             if (conn != null) {
                 conn.commit();
+                closeStatements();
                 conn = null;
             }
             if (committerThread != null)
@@ -121,9 +128,10 @@ public class DerbyBlockStore implements BlockStore {
         }
     }
 
-    public void resetStore() throws BlockStoreException {
+    public synchronized void resetStore() throws BlockStoreException {
         Statement s;
         try {
+            closeStatements();
             s = conn.createStatement();
             s.executeUpdate("DROP TABLE settings");
             s.executeUpdate("DROP TABLE blocks");
@@ -155,6 +163,8 @@ public class DerbyBlockStore implements BlockStore {
             throw new BlockStoreException("corrupt Derby block store - no chain head pointer");
         }
         Sha256Hash hash = new Sha256Hash(rs.getBytes(1));
+        rs.close();
+        s.close();
         this.chainHeadBlock = get(hash);
         if (this.chainHeadBlock == null)
         {
@@ -192,40 +202,40 @@ public class DerbyBlockStore implements BlockStore {
         }
     }
 
-    public void put(StoredBlock stored) throws BlockStoreException {
+    public synchronized void put(StoredBlock stored) throws BlockStoreException {
         try {
-            PreparedStatement s =
-                conn.prepareStatement("INSERT INTO blocks(hash, chainWork, height, header)"
-                        + " VALUES(?, ?, ?, ?)");
+            PreparedStatement s = prepare("INSERT INTO blocks(hash, chainWork, height, header)"
+                    + " VALUES(?, ?, ?, ?)");
             s.setBytes(1, stored.getHeader().getHash().getBytes());
             s.setBytes(2, stored.getChainWork().toByteArray());
             s.setLong(3, stored.getHeight());
             s.setBytes(4, stored.getHeader().unsafeBitcoinSerialize());
             s.executeUpdate();
-            s.close();
             startCommitter();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
 
-    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         // Optimize for chain head
         if (chainHeadHash != null && chainHeadHash.equals(hash))
             return chainHeadBlock;
         try {
-            PreparedStatement s = conn
-                .prepareStatement("SELECT chainWork, height, header FROM blocks WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT chainWork, height, header FROM blocks WHERE hash = ?");
             s.setBytes(1, hash.getBytes());
             ResultSet results = s.executeQuery();
             if (!results.next()) {
+                results.close();
                 return null;
             }
             // Parse it.
 
             BigInteger chainWork = new BigInteger(results.getBytes(1));
             int height = results.getInt(2);
-            Block b = new Block(params, results.getBytes(3));
+            byte[] header = results.getBytes(3);
+            results.close();
+            Block b = new Block(params, header);
             StoredBlock stored;
             b.verifyHeader();
             stored = new StoredBlock(b, chainWork, height);
@@ -246,23 +256,42 @@ public class DerbyBlockStore implements BlockStore {
         return chainHeadBlock;
     }
 
-    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         Sha256Hash hash = chainHead.getHeader().getHash();
         this.chainHeadHash = hash;
         this.chainHeadBlock = chainHead;
         try {
-            PreparedStatement s = conn
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare("UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
             startCommitter();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
 
+    /** Returns the statement for the given SQL, preparing it the first time. */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement s = statements.get(sql);
+        if (s == null) {
+            s = conn.prepareStatement(sql);
+            statements.put(sql, s);
+        }
+        return s;
+    }
+
+    private void closeStatements() {
+        for (PreparedStatement s : statements.values()) {
+            try {
+                s.close();
+            } catch (SQLException e) {
+                log.warn("Failed to close PreparedStatement", e);
+            }
+        }
+        statements.clear();
+    }
+
     public void dump() throws SQLException {
         Statement s = conn.createStatement();
         System.out.println("settings");
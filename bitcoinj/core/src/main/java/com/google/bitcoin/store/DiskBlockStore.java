@@ -23,26 +23,52 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.checkState;
 
 /**
- * Stores the block chain to disk but still holds it in memory. This is intended for desktop apps and tests.
+ * <p>Stores the block chain to disk but still holds it in memory. This is intended for desktop apps and tests.
  * Constrained environments like mobile phones probably won't want to or be able to store all the block headers in RAM.
+ * </p>
+ *
+ * <p>The file starts with a version byte and the hash of the chain head. In version 1 the rest of the file is block
+ * headers, so loading has to hash each one and work out its height and chain work from the block before it. Version 2
+ * saves the hash, height and chain work next to each header, so loading is a straight decode of the file, spread over
+ * several threads for a big one. Version 1 stores are upgraded when they are opened, by writing the new file next to
+ * the old one and renaming it over the top once it is safely on disk.</p>
+ *
+ * <p>Writes are serialized on the store. Reads go to a concurrent map and a volatile chain head and never wait for a
+ * write to reach the disk.</p>
  */
 public class DiskBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(DiskBlockStore.class);
 
-    private RandomAccessFile file;
-    private Map<Sha256Hash, StoredBlock> blockMap;
+    private static final int VERSION_HEADERS = 1;
+    private static final int VERSION_RECORDS = 2;
+    // The version byte and the chain head hash come before the blocks.
+    private static final int BLOCKS_START = 1 + 32;
+    private static final int CHAIN_WORK_BYTES = 16;
+    // Hash, height, chain work and header.
+    private static final int RECORD_SIZE = 32 + 4 + CHAIN_WORK_BYTES + Block.HEADER_SIZE;
+    // Below this many blocks it isn't worth starting threads to decode them.
+    private static final int PARALLEL_LOAD_THRESHOLD = 20000;
+
+    private volatile RandomAccessFile file;
+    private volatile Map<Sha256Hash, StoredBlock> blockMap;
     private Sha256Hash chainHead;
+    // The block chainHead refers to, published after it has been written.
+    private volatile StoredBlock chainHeadBlock;
     private NetworkParameters params;
     private FileLock lock;
     private String fileName;
@@ -57,7 +83,11 @@ public class DiskBlockStore implements BlockStore {
             throw new RuntimeException(e);
         }
 
-        blockMap = new HashMap<Sha256Hash, StoredBlock>();
+        blockMap = new ConcurrentHashMap<Sha256Hash, StoredBlock>();
+        // An upgrade that went down between removing the old file and renaming the new one leaves just the new one.
+        File upgraded = upgradeFile(theFile);
+        if (!theFile.exists() && upgraded.exists() && !upgraded.renameTo(theFile))
+            throw new BlockStoreException("Could not rename " + upgraded + " to " + theFile);
         try {
             file = new RandomAccessFile(theFile, "rwd");
             // Lock the file from other processes.
@@ -70,6 +100,7 @@ public class DiskBlockStore implements BlockStore {
             createNewStore(params);
             // The file position is at EOF
         }
+        chainHeadBlock = blockMap.get(chainHead);
     }
     
     public void close() throws BlockStoreException {
@@ -88,7 +119,7 @@ public class DiskBlockStore implements BlockStore {
         // Create a new block store if the file wasn't found or anything went wrong whilst reading.
         blockMap.clear();
         try {
-            file.write(1);  // Version.
+            file.write(VERSION_RECORDS);
         } catch (IOException e1) {
             // We could not load a block store nor could we create a new one!
             throw new BlockStoreException(e1);
@@ -116,7 +147,7 @@ public class DiskBlockStore implements BlockStore {
                 // No such file or the file was empty.
                 throw new FileNotFoundException(theFile.getName() + " is empty");
             }
-            if (version != 1) {
+            if (version != VERSION_HEADERS && version != VERSION_RECORDS) {
                 throw new BlockStoreException("Bad version number: " + version);
             }
             // Chain head pointer is the first thing in the file.
@@ -126,6 +157,11 @@ public class DiskBlockStore implements BlockStore {
             this.chainHead = new Sha256Hash(chainHeadHash);
             log.info("Read chain head from disk: {}", this.chainHead);
             long now = System.currentTimeMillis();
+            if (version == VERSION_RECORDS) {
+                loadRecords();
+                log.info("Block chain read complete in {}ms", System.currentTimeMillis() - now);
+                return;
+            }
             // Rest of file is raw block headers.
             byte[] headerBytes = new byte[Block.HEADER_SIZE];
             try {
@@ -170,10 +206,134 @@ public class DiskBlockStore implements BlockStore {
             }
             long elapsed = System.currentTimeMillis() - now;
             log.info("Block chain read complete in {}ms", elapsed);
+            upgrade(theFile);
         } finally {
         }
     }
 
+    private void loadRecords() throws IOException, BlockStoreException {
+        long size = file.length() - BLOCKS_START;
+        if (size % RECORD_SIZE != 0)
+            throw new BlockStoreException("Truncated block store: partial block read");
+        final byte[] data = new byte[(int) size];
+        file.readFully(data);
+        final int count = (int) (size / RECORD_SIZE);
+        final StoredBlock[] blocks = new StoredBlock[count];
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (count < PARALLEL_LOAD_THRESHOLD || threads == 1) {
+            decodeRecords(data, blocks, 0, count);
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                int perThread = (count + threads - 1) / threads;
+                for (int i = 0; i < count; i += perThread) {
+                    final int from = i;
+                    final int to = Math.min(i + perThread, count);
+                    futures.add(executor.submit(new Callable<Void>() {
+                        public Void call() throws BlockStoreException {
+                            decodeRecords(data, blocks, from, to);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> future : futures)
+                    future.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof BlockStoreException)
+                    throw (BlockStoreException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            } finally {
+                executor.shutdown();
+            }
+        }
+        blockMap = new ConcurrentHashMap<Sha256Hash, StoredBlock>(count * 4 / 3 + 1);
+        for (StoredBlock block : blocks)
+            blockMap.put(block.getHeader().getHash(), block);
+    }
+
+    private void decodeRecords(byte[] data, StoredBlock[] blocks, int from, int to) throws BlockStoreException {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        byte[] hash = new byte[32];
+        byte[] chainWork = new byte[CHAIN_WORK_BYTES];
+        for (int i = from; i < to; i++) {
+            buf.position(i * RECORD_SIZE);
+            buf.get(hash);
+            int height = buf.getInt();
+            buf.get(chainWork);
+            byte[] header = new byte[Block.HEADER_SIZE];
+            buf.get(header);
+            try {
+                Block block = new Block(params, header, new Sha256Hash(hash.clone()));
+                blocks[i] = new StoredBlock(block, new BigInteger(1, chainWork), height);
+            } catch (ProtocolException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+    }
+
+    private static File upgradeFile(File theFile) {
+        return new File(theFile.getPath() + ".upgrade");
+    }
+
+    /**
+     * Rewrites a version 1 store that has just been loaded in the current format. The old file is only replaced once
+     * the new one has been synced, so if anything goes wrong before then the old one is left as it was, and the
+     * failure is thrown rather than starting a new chain over it.
+     */
+    private void upgrade(File theFile) throws BlockStoreException {
+        log.info("Upgrading block store to version {}", VERSION_RECORDS);
+        ByteBuffer buf = ByteBuffer.allocate(BLOCKS_START + blockMap.size() * RECORD_SIZE);
+        buf.put((byte) VERSION_RECORDS);
+        buf.put(chainHead.getBytes());
+        for (StoredBlock block : blockMap.values())
+            writeRecord(buf, block);
+        File upgraded = upgradeFile(theFile);
+        try {
+            FileOutputStream out = new FileOutputStream(upgraded);
+            try {
+                out.write(buf.array());
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            lock.release();
+            file.close();
+            // Renaming over an existing file fails on Windows, so the old one has to go first there.
+            if (!upgraded.renameTo(theFile) && !(theFile.delete() && upgraded.renameTo(theFile)))
+                throw new IOException("Could not rename " + upgraded + " to " + theFile);
+            file = new RandomAccessFile(theFile, "rwd");
+            lock = file.getChannel().tryLock();
+            if (lock == null)
+                throw new IOException("Could not lock " + theFile + " after upgrading it");
+            file.seek(file.length());
+        } catch (IOException e) {
+            semaphores.release(fileName);
+            try {
+                if (file != null)
+                    file.close();
+            } catch (IOException e2) {
+                log.error("Failed to close block store", e2);
+            }
+            file = null;
+            log.error("Could not upgrade block store " + theFile, e);
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static void writeRecord(ByteBuffer buf, StoredBlock block) {
+        buf.put(block.getHeader().getHash().getBytes());
+        buf.putInt(block.getHeight());
+        byte[] chainWork = block.getChainWork().toByteArray();
+        checkState(chainWork.length <= CHAIN_WORK_BYTES, "Ran out of space to store chain work!");
+        // Stored big endian, with leading zeros to fill the space.
+        buf.put(new byte[CHAIN_WORK_BYTES - chainWork.length]);
+        buf.put(chainWork);
+        buf.put(block.getHeader().cloneAsHeader().bitcoinSerialize());
+    }
+
     private void ensureOpen() throws BlockStoreException {
         if (file == null) {
             throw new BlockStoreException("BlockStore was closed");
@@ -185,23 +345,25 @@ public class DiskBlockStore implements BlockStore {
         try {
             Sha256Hash hash = block.getHeader().getHash();
             checkState(blockMap.get(hash) == null, "Attempt to insert duplicate");
-            // Append to the end of the file. The other fields in StoredBlock will be recalculated when it's reloaded.
-            byte[] bytes = block.getHeader().bitcoinSerialize();
-            file.write(bytes);
+            // Append to the end of the file.
+            ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE);
+            writeRecord(buf, block);
+            file.write(buf.array());
+            // Only published once it's on disk, so get() never returns a block that a failed write has lost.
             blockMap.put(hash, block);
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
     }
 
-    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         ensureOpen();
         return blockMap.get(hash);
     }
 
-    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+    public StoredBlock getChainHead() throws BlockStoreException {
         ensureOpen();
-        return blockMap.get(chainHead);
+        return chainHeadBlock;
     }
 
     public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
@@ -210,6 +372,7 @@ public class DiskBlockStore implements BlockStore {
             this.chainHead = chainHead.getHeader().getHash();
             // Write out new hash to the first 32 bytes of the file past one (first byte is version number).
             file.getChannel().write(ByteBuffer.wrap(this.chainHead.getBytes()), 1);
+            chainHeadBlock = chainHead;
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
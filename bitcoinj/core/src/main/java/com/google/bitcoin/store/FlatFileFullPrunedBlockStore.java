@@ -0,0 +1,1196 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} kept in a directory of flat files, without any database library.</p>
+ *
+ * <p>Block headers are appended to a single file and all kept in memory, as {@link DiskBlockStore} does. Undo blocks
+ * are appended to segment files which are deleted once every block in them is further than fullStoreDepth below the
+ * verified chain head. Unspent outputs are kept in a log: every change is appended to the current UTXO segment as an
+ * add or remove record, and an in-memory table maps each (transaction hash, index) pair to the add record that holds
+ * the output. Old segments are merged on a background thread into a single new one holding only the outputs that are
+ * still unspent, once at least half of what they hold has been spent or overwritten.</p>
+ *
+ * <p>Every batch write ends with a checksummed commit record in the UTXO log which also records the chain heads and
+ * how much of the header and undo files is part of the store. When the store is opened, the log is replayed up to
+ * the last complete commit and anything written after it is discarded, so a crash in the middle of a batch write
+ * loses the batch rather than corrupting the store. Commits are not forced to disk unless
+ * {@link #setSyncOnCommit(boolean)} is used, so a power failure can lose the most recent commits.</p>
+ *
+ * <p>As with the other stores, changes made during a batch write are only visible to the thread that began it until
+ * it is committed, and writes are expected to come from one thread at a time.</p>
+ */
+public class FlatFileFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(FlatFileFullPrunedBlockStore.class);
+
+    /** The size above which a new segment file is started. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int VERSION = 1;
+    private static final byte[] HEADERS_MAGIC = { 'H', 'D', 'R', 'S' };
+    private static final byte[] UTXO_MAGIC = { 'U', 'T', 'X', 'O' };
+    private static final byte[] UNDO_MAGIC = { 'U', 'N', 'D', 'O' };
+    // Magic, version, flags and the last segment id a base segment replaces.
+    private static final int SEGMENT_HEADER_SIZE = 4 + 1 + 1 + 4;
+    private static final int HEADERS_START = 4 + 1;
+    private static final int FLAG_BASE = 1;
+
+    private static final int CHAIN_WORK_BYTES = 16;
+    private static final int HEADER_RECORD_SIZE = 32 + 4 + CHAIN_WORK_BYTES + 1 + Block.HEADER_SIZE;
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final byte RECORD_COMMIT = 3;
+    private static final int REMOVE_RECORD_SIZE = 1 + 32 + 4;
+    private static final int COMMIT_RECORD_SIZE = 1 + 8 + 4 + 8 + 32 + 32 + 4;
+
+    private static final byte UNDO_TX_OUT_CHANGES = 0;
+    private static final byte UNDO_TRANSACTIONS = 1;
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        long size;
+        // For UTXO segments: whether this is a merged segment replacing all those up to coversUpTo, the number of
+        // add records in it and how many of them still hold unspent outputs.
+        boolean base;
+        int coversUpTo;
+        int records;
+        int live;
+        // The last commit record written to this segment.
+        Commit lastCommit;
+        // For undo segments: the greatest height of any block in it.
+        int maxHeight = -1;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.size = raf.length();
+        }
+
+        void close() throws IOException {
+            raf.close();
+        }
+    }
+
+    private static class Commit {
+        long headersLength;
+        int undoSegment;
+        long undoLength;
+        Sha256Hash chainHead;
+        Sha256Hash verifiedChainHead;
+    }
+
+    // Changes made since beginDatabaseBatchWrite, applied to the files and the maps below on commit.
+    private static class Batch {
+        final Thread thread = Thread.currentThread();
+        final LinkedHashMap<Sha256Hash, StoredBlock> blocks = new LinkedHashMap<Sha256Hash, StoredBlock>();
+        final Set<Sha256Hash> undoable = new HashSet<Sha256Hash>();
+        final LinkedHashMap<Sha256Hash, StoredUndoableBlock> undoBlocks = new LinkedHashMap<Sha256Hash, StoredUndoableBlock>();
+        // A null value means the output is removed.
+        final LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput> outputs =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        StoredBlock chainHead;
+        StoredBlock verifiedChainHead;
+    }
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int fullStoreDepth;
+    private final int segmentSize;
+    private boolean syncOnCommit;
+
+    private RandomAccessFile lockFile;
+    private FileLock lock;
+    private RandomAccessFile headersFile;
+    private long headersLength;
+
+    private final Map<Sha256Hash, StoredBlock> blocks = new HashMap<Sha256Hash, StoredBlock>();
+    private final Set<Sha256Hash> undoable = new HashSet<Sha256Hash>();
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+
+    // Undo segments by id and the location of each undo block in them.
+    private final TreeMap<Integer, Segment> undoSegments = new TreeMap<Integer, Segment>();
+    private final Map<Sha256Hash, Long> undoIndex = new HashMap<Sha256Hash, Long>();
+    private Segment activeUndo;
+
+    // UTXO segments in the order they are replayed, the last of which is appended to, and the location of the add
+    // record of each unspent output.
+    private final List<Segment> utxoSegments = new ArrayList<Segment>();
+    private final Map<Integer, Segment> utxoById = new HashMap<Integer, Segment>();
+    private final Map<StoredTransactionOutPoint, Long> outputs = new HashMap<StoredTransactionOutPoint, Long>();
+    private int nextUtxoSegmentId;
+
+    private Batch batch;
+
+    private final ExecutorService compactor;
+    private boolean compacting;
+    private volatile boolean closing;
+
+    /**
+     * Opens the store kept in the given directory, creating it if necessary.
+     *
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory the store is kept in
+     * @param fullStoreDepth The depth of blocks to keep undo blocks for
+     */
+    public FlatFileFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth) throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_SEGMENT_SIZE);
+    }
+
+    FlatFileFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth, int segmentSize) throws BlockStoreException {
+        this.params = params;
+        this.directory = directory;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.segmentSize = segmentSize;
+        this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "FlatFileFullPrunedBlockStore compaction");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create " + directory);
+            lock();
+            File headers = new File(directory, "headers.dat");
+            boolean exists = headers.exists() && headers.length() > 0;
+            headersFile = new RandomAccessFile(headers, "rw");
+            if (exists)
+                load();
+            else
+                create();
+        } catch (IOException e) {
+            closeFiles();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeFiles();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets whether each commit is forced to disk before it returns. Off by default, in which case a crash of the
+     * process loses nothing that was committed but a crash of the machine may lose recent commits.
+     */
+    public synchronized void setSyncOnCommit(boolean syncOnCommit) {
+        this.syncOnCommit = syncOnCommit;
+    }
+
+    private void create() throws IOException, BlockStoreException {
+        headersFile.setLength(0);
+        headersFile.write(HEADERS_MAGIC);
+        headersFile.write(VERSION);
+        headersLength = HEADERS_START;
+        activeUndo = newSegment(UNDO_MAGIC, "undo", 0);
+        undoSegments.put(activeUndo.id, activeUndo);
+        nextUtxoSegmentId = 0;
+        rollUtxoSegment();
+        try {
+            StoredBlock storedGenesis = new StoredBlock(params.genesisBlock.cloneAsHeader(), params.genesisBlock.getWork(), 0);
+            // The coinbase in the genesis block is not spendable.
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            beginDatabaseBatchWrite();
+            put(storedGenesis, new StoredUndoableBlock(params.genesisBlock.getHash(), genesisTransactions));
+            setChainHead(storedGenesis);
+            setVerifiedChainHead(storedGenesis);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private void load() throws IOException, BlockStoreException {
+        Commit commit = replayUtxoSegments();
+        if (commit == null)
+            throw new BlockStoreException("No commit found in " + directory);
+        loadHeaders(commit.headersLength);
+        loadUndoSegments(commit.undoSegment, commit.undoLength);
+        chainHead = blocks.get(commit.chainHead);
+        verifiedChainHead = blocks.get(commit.verifiedChainHead);
+        if (chainHead == null || verifiedChainHead == null)
+            throw new BlockStoreException("Chain head not found in " + directory);
+        Segment last = utxoSegments.get(utxoSegments.size() - 1);
+        if (last.base || last.size >= segmentSize)
+            rollUtxoSegment();
+        log.info("Loaded {} blocks and {} unspent outputs, chain head at height {}",
+                new Object[] { blocks.size(), outputs.size(), chainHead.getHeight() });
+    }
+
+    // Replays the UTXO log into the output table, returning the last commit found.
+    private Commit replayUtxoSegments() throws IOException, BlockStoreException {
+        TreeMap<Integer, File> files = listSegments("utxo");
+        // Find the newest merged segment, if any: everything it replaces is obsolete.
+        Segment base = null;
+        for (Map.Entry<Integer, File> e : files.descendingMap().entrySet()) {
+            Segment segment = openSegment(UTXO_MAGIC, e.getKey(), e.getValue());
+            if (segment.base) {
+                base = segment;
+                break;
+            }
+            segment.close();
+        }
+        List<Segment> order = new ArrayList<Segment>();
+        if (base != null)
+            order.add(base);
+        for (Map.Entry<Integer, File> e : files.entrySet()) {
+            if (base != null && e.getKey() == base.id)
+                continue;
+            if (base != null && e.getKey() <= base.coversUpTo) {
+                delete(e.getValue());
+                continue;
+            }
+            order.add(openSegment(UTXO_MAGIC, e.getKey(), e.getValue()));
+        }
+        nextUtxoSegmentId = files.isEmpty() ? 0 : files.lastKey() + 1;
+        Commit commit = null;
+        for (Segment segment : order) {
+            utxoSegments.add(segment);
+            utxoById.put(segment.id, segment);
+            long end = replay(segment);
+            if (segment.lastCommit != null)
+                commit = segment.lastCommit;
+            if (end < segment.size) {
+                log.warn("Discarding {} bytes of {} after the last commit", segment.size - end, segment.file);
+                segment.raf.setLength(end);
+                segment.size = end;
+            }
+        }
+        if (utxoSegments.isEmpty())
+            throw new BlockStoreException("No UTXO segments found in " + directory);
+        return commit;
+    }
+
+    // Applies the committed records of a segment, returning where the last commit in it ends.
+    private long replay(Segment segment) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 1 << 16));
+        try {
+            in.skipBytes(SEGMENT_HEADER_SIZE);
+            long pos = SEGMENT_HEADER_SIZE;
+            long committed = pos;
+            CRC32 crc = new CRC32();
+            List<StoredTransactionOutPoint> keys = new ArrayList<StoredTransactionOutPoint>();
+            List<Long> locations = new ArrayList<Long>();
+            while (true) {
+                byte[] record;
+                try {
+                    int type = in.readByte();
+                    if (type == RECORD_ADD) {
+                        int length = in.readInt();
+                        if (length < 0 || length > Block.MAX_BLOCK_SIZE)
+                            break;
+                        record = new byte[5 + length];
+                        in.readFully(record, 5, length);
+                        ByteBuffer.wrap(record).put((byte) type).putInt(length);
+                        StoredTransactionOutput out = new StoredTransactionOutput(new ByteArrayInputStream(record, 5, length));
+                        keys.add(new StoredTransactionOutPoint(out));
+                        locations.add(location(segment.id, pos));
+                    } else if (type == RECORD_REMOVE) {
+                        record = new byte[REMOVE_RECORD_SIZE];
+                        record[0] = (byte) type;
+                        in.readFully(record, 1, record.length - 1);
+                        ByteBuffer buf = ByteBuffer.wrap(record, 1, record.length - 1);
+                        byte[] hash = new byte[32];
+                        buf.get(hash);
+                        keys.add(new StoredTransactionOutPoint(new Sha256Hash(hash), buf.getInt() & 0xFFFFFFFFL));
+                        locations.add(null);
+                    } else if (type == RECORD_COMMIT) {
+                        record = new byte[COMMIT_RECORD_SIZE];
+                        record[0] = (byte) type;
+                        in.readFully(record, 1, record.length - 1);
+                        crc.update(record, 0, record.length - 4);
+                        ByteBuffer buf = ByteBuffer.wrap(record);
+                        if (buf.getInt(record.length - 4) != (int) crc.getValue())
+                            break;
+                        for (int i = 0; i < keys.size(); i++)
+                            applyOutput(keys.get(i), locations.get(i));
+                        keys.clear();
+                        locations.clear();
+                        segment.lastCommit = readCommit(buf);
+                        crc.reset();
+                        pos += record.length;
+                        committed = pos;
+                        continue;
+                    } else {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.update(record);
+                pos += record.length;
+            }
+            return committed;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void applyOutput(StoredTransactionOutPoint key, Long location) {
+        Long old = location == null ? outputs.remove(key) : outputs.put(key, location);
+        if (old != null)
+            utxoById.get(segmentOf(old)).live--;
+        if (location != null) {
+            Segment segment = utxoById.get(segmentOf(location));
+            segment.records++;
+            segment.live++;
+        }
+    }
+
+    private void loadHeaders(long committedLength) throws IOException, BlockStoreException {
+        if (headersFile.length() < committedLength)
+            throw new BlockStoreException("Header file is shorter than its last commit");
+        byte[] magic = new byte[HEADERS_MAGIC.length];
+        headersFile.seek(0);
+        headersFile.readFully(magic);
+        if (!Arrays.equals(magic, HEADERS_MAGIC) || headersFile.read() != VERSION)
+            throw new BlockStoreException("Not a header file: " + directory);
+        if (headersFile.length() > committedLength)
+            headersFile.setLength(committedLength);
+        headersLength = committedLength;
+        byte[] data = new byte[(int) (committedLength - HEADERS_START)];
+        headersFile.readFully(data);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        byte[] chainWork = new byte[CHAIN_WORK_BYTES];
+        while (buf.hasRemaining()) {
+            byte[] hashBytes = new byte[32];
+            buf.get(hashBytes);
+            int height = buf.getInt();
+            buf.get(chainWork);
+            boolean wasUndoable = buf.get() != 0;
+            byte[] header = new byte[Block.HEADER_SIZE];
+            buf.get(header);
+            Sha256Hash hash = new Sha256Hash(hashBytes);
+            try {
+                Block block = new Block(params, header, hash);
+                blocks.put(hash, new StoredBlock(block, new BigInteger(1, chainWork), height));
+            } catch (ProtocolException e) {
+                throw new BlockStoreException(e);
+            }
+            if (wasUndoable)
+                undoable.add(hash);
+            else
+                undoable.remove(hash);
+        }
+    }
+
+    private void loadUndoSegments(int committedId, long committedLength) throws IOException, BlockStoreException {
+        for (Map.Entry<Integer, File> e : listSegments("undo").entrySet()) {
+            int id = e.getKey();
+            if (id > committedId) {
+                delete(e.getValue());
+                continue;
+            }
+            Segment segment = openSegment(UNDO_MAGIC, id, e.getValue());
+            undoSegments.put(id, segment);
+            if (id == committedId) {
+                if (segment.size < committedLength)
+                    throw new BlockStoreException("Undo segment is shorter than its last commit");
+                segment.raf.setLength(committedLength);
+                segment.size = committedLength;
+                activeUndo = segment;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 1 << 16));
+            try {
+                in.skipBytes(SEGMENT_HEADER_SIZE);
+                long pos = SEGMENT_HEADER_SIZE;
+                byte[] hash = new byte[32];
+                while (pos < segment.size) {
+                    int length = in.readInt();
+                    in.readFully(hash);
+                    int height = in.readInt();
+                    skipFully(in, 1 + length);
+                    undoIndex.put(new Sha256Hash(hash.clone()), location(id, pos));
+                    segment.maxHeight = Math.max(segment.maxHeight, height);
+                    pos += 4 + 32 + 4 + 1 + length;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        if (activeUndo == null)
+            throw new BlockStoreException("Undo segment " + committedId + " is missing");
+    }
+
+    private static void skipFully(DataInputStream in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0)
+                throw new EOFException();
+            n -= skipped;
+        }
+    }
+
+    private TreeMap<Integer, File> listSegments(String prefix) {
+        TreeMap<Integer, File> segments = new TreeMap<Integer, File>();
+        File[] files = directory.listFiles();
+        if (files == null)
+            return segments;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(prefix + "-"))
+                continue;
+            if (name.endsWith(".tmp")) {
+                // Left over from an interrupted merge.
+                delete(file);
+            } else if (name.endsWith(".dat")) {
+                try {
+                    segments.put(Integer.parseInt(name.substring(prefix.length() + 1, name.length() - 4)), file);
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unexpected file {}", file);
+                }
+            }
+        }
+        return segments;
+    }
+
+    private File segmentFile(String prefix, int id, String extension) {
+        return new File(directory, String.format("%s-%08d.%s", prefix, id, extension));
+    }
+
+    private static ByteBuffer segmentHeader(byte[] magic, boolean base, int coversUpTo) {
+        ByteBuffer buf = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        buf.put(magic).put((byte) VERSION).put((byte) (base ? FLAG_BASE : 0)).putInt(coversUpTo);
+        buf.flip();
+        return buf;
+    }
+
+    private Segment newSegment(byte[] magic, String prefix, int id) throws IOException {
+        File file = segmentFile(prefix, id, "dat");
+        Segment segment = new Segment(id, file);
+        segment.raf.setLength(0);
+        writeFully(segment.channel, segmentHeader(magic, false, 0), 0);
+        segment.size = SEGMENT_HEADER_SIZE;
+        return segment;
+    }
+
+    private Segment openSegment(byte[] magic, int id, File file) throws IOException, BlockStoreException {
+        Segment segment = new Segment(id, file);
+        ByteBuffer buf = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        if (segment.size < SEGMENT_HEADER_SIZE)
+            throw new BlockStoreException("Truncated segment " + file);
+        readFully(segment.channel, buf, 0);
+        byte[] actual = new byte[magic.length];
+        buf.get(actual);
+        if (!Arrays.equals(actual, magic) || buf.get() != VERSION) {
+            segment.close();
+            throw new BlockStoreException("Not a segment file: " + file);
+        }
+        segment.base = (buf.get() & FLAG_BASE) != 0;
+        segment.coversUpTo = buf.getInt();
+        return segment;
+    }
+
+    private void rollUtxoSegment() throws IOException {
+        Segment segment = newSegment(UTXO_MAGIC, "utxo", nextUtxoSegmentId++);
+        utxoSegments.add(segment);
+        utxoById.put(segment.id, segment);
+    }
+
+    private Segment activeUtxo() {
+        return utxoSegments.get(utxoSegments.size() - 1);
+    }
+
+    private static long location(int segment, long offset) {
+        checkState(offset <= 0xFFFFFFFFL, "Segment too large");
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static long offsetOf(long location) {
+        return location & 0xFFFFFFFFL;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0)
+                throw new EOFException();
+            position += n;
+        }
+        buf.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining())
+            position += channel.write(buf, position);
+    }
+
+    private static void delete(File file) {
+        if (!file.delete())
+            log.warn("Could not delete {}", file);
+    }
+
+    private static Commit readCommit(ByteBuffer buf) {
+        Commit commit = new Commit();
+        buf.position(1);
+        commit.headersLength = buf.getLong();
+        commit.undoSegment = buf.getInt();
+        commit.undoLength = buf.getLong();
+        byte[] hash = new byte[32];
+        buf.get(hash);
+        commit.chainHead = new Sha256Hash(hash.clone());
+        buf.get(hash);
+        commit.verifiedChainHead = new Sha256Hash(hash);
+        return commit;
+    }
+
+    private static void writeCommit(DataOutputStream out, Commit commit, CRC32 crc, ByteArrayOutputStream bos, int batchStart) throws IOException {
+        out.writeByte(RECORD_COMMIT);
+        out.writeLong(commit.headersLength);
+        out.writeInt(commit.undoSegment);
+        out.writeLong(commit.undoLength);
+        out.write(commit.chainHead.getBytes());
+        out.write(commit.verifiedChainHead.getBytes());
+        out.flush();
+        byte[] bytes = bos.toByteArray();
+        crc.update(bytes, batchStart, bytes.length - batchStart);
+        out.writeInt((int) crc.getValue());
+        out.flush();
+    }
+
+    private void lock() throws IOException, BlockStoreException {
+        lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null)
+            throw new BlockStoreException("Store in use: " + directory);
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (headersFile == null)
+            throw new BlockStoreException("BlockStore was closed");
+    }
+
+    // The batch this thread may see, if any.
+    private Batch visibleBatch() {
+        return batch != null && batch.thread == Thread.currentThread() ? batch : null;
+    }
+
+    // Waits for any batch write on another thread to finish, then returns the batch to make a change in, starting a
+    // single change batch if none is in progress.
+    private Batch writeBatch() throws BlockStoreException {
+        checkOpen();
+        waitForOtherBatch();
+        return batch != null ? batch : new Batch();
+    }
+
+    // Commits a change made outside beginDatabaseBatchWrite/commitDatabaseBatchWrite straight away.
+    private void endWrite(Batch b) throws BlockStoreException {
+        if (b != batch)
+            writeOut(b);
+    }
+
+    private void waitForOtherBatch() throws BlockStoreException {
+        while (batch != null && batch.thread != Thread.currentThread()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new BlockStoreException(e);
+            }
+            checkOpen();
+        }
+    }
+
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        Batch b = writeBatch();
+        Sha256Hash hash = block.getHeader().getHash();
+        b.blocks.put(hash, block);
+        b.undoable.remove(hash);
+        endWrite(b);
+    }
+
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Batch b = writeBatch();
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        b.blocks.put(hash, storedBlock);
+        b.undoable.add(hash);
+        b.undoBlocks.put(hash, undoableBlock);
+        endWrite(b);
+    }
+
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        Batch b = visibleBatch();
+        StoredBlock block = b != null ? b.blocks.get(hash) : null;
+        return block != null ? block : blocks.get(hash);
+    }
+
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        Batch b = visibleBatch();
+        if (b != null && b.blocks.containsKey(hash))
+            return b.undoable.contains(hash) ? b.blocks.get(hash) : null;
+        return undoable.contains(hash) ? blocks.get(hash) : null;
+    }
+
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        Batch b = visibleBatch();
+        if (b != null && b.undoBlocks.containsKey(hash))
+            return b.undoBlocks.get(hash);
+        Long location = undoIndex.get(hash);
+        if (location == null)
+            return null;
+        try {
+            return readUndoBlock(location);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        Batch b = visibleBatch();
+        return b != null && b.chainHead != null ? b.chainHead : chainHead;
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Batch b = writeBatch();
+        b.chainHead = chainHead;
+        endWrite(b);
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkOpen();
+        Batch b = visibleBatch();
+        return b != null && b.verifiedChainHead != null ? b.verifiedChainHead : verifiedChainHead;
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Batch b = writeBatch();
+        b.verifiedChainHead = chainHead;
+        StoredBlock head = b.chainHead != null ? b.chainHead : this.chainHead;
+        if (head.getHeight() < chainHead.getHeight())
+            b.chainHead = chainHead;
+        endWrite(b);
+    }
+
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        checkOpen();
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        Batch b = visibleBatch();
+        if (b != null && b.outputs.containsKey(key))
+            return b.outputs.get(key);
+        Long location = outputs.get(key);
+        if (location == null)
+            return null;
+        try {
+            byte[] record = readAddRecord(utxoById.get(segmentOf(location)), offsetOf(location));
+            return new StoredTransactionOutput(new ByteArrayInputStream(record, 5, record.length - 5));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Batch b = writeBatch();
+        b.outputs.put(new StoredTransactionOutPoint(out), out);
+        endWrite(b);
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Batch b = writeBatch();
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        boolean stored = outputs.containsKey(key);
+        if (b.outputs.containsKey(key) ? b.outputs.get(key) == null : !stored)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from FlatFileFullPrunedBlockStore that it didn't have!");
+        if (stored)
+            b.outputs.put(key, null);
+        else
+            b.outputs.remove(key);  // Added in this batch, so never written.
+        endWrite(b);
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        checkOpen();
+        Batch b = visibleBatch();
+        for (int i = 0; i < numOutputs; i++) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, i);
+            if (b != null && b.outputs.containsKey(key) ? b.outputs.get(key) != null : outputs.containsKey(key))
+                return true;
+        }
+        return false;
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        waitForOtherBatch();
+        if (batch == null)
+            batch = new Batch();
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        Batch b = visibleBatch();
+        if (b == null)
+            return;
+        batch = null;
+        notifyAll();
+        writeOut(b);
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        if (visibleBatch() == null)
+            return;
+        batch = null;
+        notifyAll();
+    }
+
+    // Appends a batch to the files, then applies it to the in-memory state.
+    private void writeOut(Batch b) throws BlockStoreException {
+        try {
+            // Headers.
+            ByteBuffer headers = ByteBuffer.allocate(b.blocks.size() * HEADER_RECORD_SIZE);
+            for (Map.Entry<Sha256Hash, StoredBlock> e : b.blocks.entrySet())
+                writeHeaderRecord(headers, e.getValue(), b.undoable.contains(e.getKey()));
+            headers.flip();
+            writeFully(headersFile.getChannel(), headers, headersLength);
+
+            // Undo blocks, starting a new segment when the current one is full.
+            Segment undoSegment = activeUndo;
+            long undoPos = undoSegment.size;
+            List<Segment> newUndoSegments = new ArrayList<Segment>();
+            List<Long> undoLocations = new ArrayList<Long>();
+            for (Map.Entry<Sha256Hash, StoredUndoableBlock> e : b.undoBlocks.entrySet()) {
+                byte[] record = undoRecord(e.getKey(), b.blocks.get(e.getKey()).getHeight(), e.getValue());
+                if (undoPos + record.length > segmentSize && undoPos > SEGMENT_HEADER_SIZE) {
+                    if (syncOnCommit)
+                        undoSegment.channel.force(false);
+                    undoSegment = newSegment(UNDO_MAGIC, "undo", undoSegment.id + 1);
+                    newUndoSegments.add(undoSegment);
+                    undoPos = undoSegment.size;
+                }
+                writeFully(undoSegment.channel, ByteBuffer.wrap(record), undoPos);
+                undoLocations.add(location(undoSegment.id, undoPos));
+                undoPos += record.length;
+            }
+
+            // Output changes and the commit record.
+            Segment utxo = activeUtxo();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bos);
+            List<Long> outputLocations = new ArrayList<Long>(b.outputs.size());
+            for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> e : b.outputs.entrySet()) {
+                StoredTransactionOutput output = e.getValue();
+                out.flush();
+                if (output != null) {
+                    outputLocations.add(location(utxo.id, utxo.size + bos.size()));
+                    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                    output.serializeToStream(payload);
+                    out.writeByte(RECORD_ADD);
+                    out.writeInt(payload.size());
+                    payload.writeTo(out);
+                } else {
+                    outputLocations.add(null);
+                    out.writeByte(RECORD_REMOVE);
+                    out.write(e.getKey().getHash().getBytes());
+                    out.writeInt((int) e.getKey().getIndex());
+                }
+            }
+            Commit commit = new Commit();
+            commit.headersLength = headersLength + headers.limit();
+            commit.undoSegment = undoSegment.id;
+            commit.undoLength = undoPos;
+            commit.chainHead = (b.chainHead != null ? b.chainHead : chainHead).getHeader().getHash();
+            commit.verifiedChainHead = (b.verifiedChainHead != null ? b.verifiedChainHead : verifiedChainHead).getHeader().getHash();
+            writeCommit(out, commit, new CRC32(), bos, 0);
+            writeFully(utxo.channel, ByteBuffer.wrap(bos.toByteArray()), utxo.size);
+            if (syncOnCommit) {
+                headersFile.getChannel().force(false);
+                undoSegment.channel.force(false);
+                utxo.channel.force(false);
+            }
+
+            // It's all written, so apply it.
+            headersLength = commit.headersLength;
+            for (Map.Entry<Sha256Hash, StoredBlock> e : b.blocks.entrySet()) {
+                blocks.put(e.getKey(), e.getValue());
+                if (b.undoable.contains(e.getKey()))
+                    undoable.add(e.getKey());
+                else
+                    undoable.remove(e.getKey());
+            }
+            for (Segment segment : newUndoSegments)
+                undoSegments.put(segment.id, segment);
+            activeUndo = undoSegment;
+            activeUndo.size = undoPos;
+            int i = 0;
+            for (Map.Entry<Sha256Hash, StoredUndoableBlock> e : b.undoBlocks.entrySet()) {
+                long location = undoLocations.get(i++);
+                undoIndex.put(e.getKey(), location);
+                Segment segment = undoSegments.get(segmentOf(location));
+                segment.maxHeight = Math.max(segment.maxHeight, b.blocks.get(e.getKey()).getHeight());
+            }
+            i = 0;
+            for (StoredTransactionOutPoint key : b.outputs.keySet())
+                applyOutput(key, outputLocations.get(i++));
+            utxo.size += bos.size();
+            utxo.lastCommit = commit;
+            if (b.chainHead != null)
+                chainHead = b.chainHead;
+            if (b.verifiedChainHead != null) {
+                verifiedChainHead = b.verifiedChainHead;
+                pruneUndoSegments(verifiedChainHead.getHeight() - fullStoreDepth);
+            }
+            if (utxo.size >= segmentSize)
+                rollUtxoSegment();
+        } catch (IOException e) {
+            // Cut off anything partially written so that it can't be mistaken for part of a later batch.
+            try {
+                activeUtxo().raf.setLength(activeUtxo().size);
+            } catch (IOException e2) {
+                log.error("Failed to truncate " + activeUtxo().file, e2);
+            }
+            throw new BlockStoreException(e);
+        }
+        maybeCompact();
+    }
+
+    private static void writeHeaderRecord(ByteBuffer buf, StoredBlock block, boolean wasUndoable) {
+        buf.put(block.getHeader().getHash().getBytes());
+        buf.putInt(block.getHeight());
+        byte[] chainWork = block.getChainWork().toByteArray();
+        checkState(chainWork.length <= CHAIN_WORK_BYTES, "Ran out of space to store chain work!");
+        // Stored big endian, with leading zeros to fill the space.
+        buf.put(new byte[CHAIN_WORK_BYTES - chainWork.length]);
+        buf.put(chainWork);
+        buf.put((byte) (wasUndoable ? 1 : 0));
+        buf.put(block.getHeader().cloneAsHeader().bitcoinSerialize());
+    }
+
+    private static byte[] undoRecord(Sha256Hash hash, int height, StoredUndoableBlock undoableBlock) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        byte type;
+        if (undoableBlock.getTxOutChanges() != null) {
+            type = UNDO_TX_OUT_CHANGES;
+            undoableBlock.getTxOutChanges().serializeToStream(payload);
+        } else {
+            type = UNDO_TRANSACTIONS;
+            new DataOutputStream(payload).writeInt(undoableBlock.getTransactions().size());
+            for (Transaction tx : undoableBlock.getTransactions())
+                tx.bitcoinSerialize(payload);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(4 + 32 + 4 + 1 + payload.size());
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(payload.size());
+        out.write(hash.getBytes());
+        out.writeInt(height);
+        out.writeByte(type);
+        payload.writeTo(out);
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private StoredUndoableBlock readUndoBlock(long location) throws IOException, ProtocolException {
+        Segment segment = undoSegments.get(segmentOf(location));
+        ByteBuffer head = ByteBuffer.allocate(4 + 32 + 4 + 1);
+        readFully(segment.channel, head, offsetOf(location));
+        int length = head.getInt();
+        byte[] hashBytes = new byte[32];
+        head.get(hashBytes);
+        head.getInt();
+        byte type = head.get();
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(segment.channel, payload, offsetOf(location) + head.capacity());
+        byte[] data = payload.array();
+        Sha256Hash hash = new Sha256Hash(hashBytes);
+        if (type == UNDO_TX_OUT_CHANGES)
+            return new StoredUndoableBlock(hash, new TransactionOutputChanges(new ByteArrayInputStream(data)));
+        int numTxn = ByteBuffer.wrap(data).getInt();
+        int offset = 4;
+        List<Transaction> transactionList = new LinkedList<Transaction>();
+        for (int i = 0; i < numTxn; i++) {
+            Transaction tx = new Transaction(params, data, offset);
+            transactionList.add(tx);
+            offset += tx.getMessageSize();
+        }
+        return new StoredUndoableBlock(hash, transactionList);
+    }
+
+    private static byte[] readAddRecord(Segment segment, long offset) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(5);
+        readFully(segment.channel, head, offset);
+        checkState(head.get() == RECORD_ADD, "Corrupt output location");
+        ByteBuffer record = ByteBuffer.allocate(5 + head.getInt());
+        readFully(segment.channel, record, offset);
+        return record.array();
+    }
+
+    // Deletes undo segments holding only blocks at or below the given height.
+    private void pruneUndoSegments(int height) {
+        Iterator<Segment> it = undoSegments.values().iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment == activeUndo || segment.maxHeight > height)
+                continue;
+            Iterator<Long> locations = undoIndex.values().iterator();
+            while (locations.hasNext())
+                if (segmentOf(locations.next()) == segment.id)
+                    locations.remove();
+            it.remove();
+            try {
+                segment.close();
+            } catch (IOException e) {
+                log.warn("Failed to close " + segment.file, e);
+            }
+            delete(segment.file);
+        }
+    }
+
+    // Starts a merge of the older UTXO segments on the background thread if at least half of their add records are
+    // for outputs that have since been spent or overwritten.
+    private void maybeCompact() {
+        if (compacting || closing || utxoSegments.size() < 2)
+            return;
+        long records = 0, live = 0;
+        for (Segment segment : utxoSegments.subList(0, utxoSegments.size() - 1)) {
+            records += segment.records;
+            live += segment.live;
+        }
+        if (records - live < live || (records == 0 && utxoSegments.size() < 3))
+            return;
+        compacting = true;
+        compactor.execute(new Runnable() {
+            public void run() {
+                compact();
+            }
+        });
+    }
+
+    /** Merges all UTXO segments written so far into one, waiting for it to finish. Used by tests. */
+    void compactNow() throws Exception {
+        synchronized (this) {
+            while (compacting)
+                wait();
+            compacting = true;
+        }
+        compactor.submit(new Runnable() {
+            public void run() {
+                compact();
+            }
+        }).get();
+    }
+
+    private void compact() {
+        List<Segment> sealed;
+        Map<Integer, Segment> sealedById = new HashMap<Integer, Segment>();
+        List<StoredTransactionOutPoint> keys = new ArrayList<StoredTransactionOutPoint>();
+        List<Long> oldLocations = new ArrayList<Long>();
+        Commit commit = null;
+        int id;
+        File tmp;
+        synchronized (this) {
+            try {
+                if (closing) {
+                    compacting = false;
+                    notifyAll();
+                    return;
+                }
+                // The merged segment takes the next id and the one being appended to is retired, so everything
+                // before the merged segment is replaced by it and everything after replays on top of it.
+                id = nextUtxoSegmentId++;
+                rollUtxoSegment();
+            } catch (IOException e) {
+                log.error("Failed to start merging UTXO segments", e);
+                compacting = false;
+                notifyAll();
+                return;
+            }
+            sealed = new ArrayList<Segment>(utxoSegments.subList(0, utxoSegments.size() - 1));
+            for (Segment segment : sealed) {
+                sealedById.put(segment.id, segment);
+                if (segment.lastCommit != null)
+                    commit = segment.lastCommit;
+            }
+            checkState(commit != null);
+            for (Map.Entry<StoredTransactionOutPoint, Long> e : outputs.entrySet()) {
+                if (sealedById.containsKey(segmentOf(e.getValue()))) {
+                    keys.add(e.getKey());
+                    oldLocations.add(e.getValue());
+                }
+            }
+            tmp = segmentFile("utxo", id, "tmp");
+        }
+        long start = System.currentTimeMillis();
+        long[] newLocations = new long[keys.size()];
+        File file = segmentFile("utxo", id, "dat");
+        try {
+            // The old segments are not written to or deleted until the merged one is in place, so can be read here
+            // without holding the lock.
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream(1 << 20);
+                DataOutputStream out = new DataOutputStream(bos);
+                CRC32 crc = new CRC32();
+                int coversUpTo = id - 1;
+                byte[] header = segmentHeader(UTXO_MAGIC, true, coversUpTo).array();
+                fos.write(header);
+                long pos = header.length;
+                for (int i = 0; i < keys.size(); i++) {
+                    if (closing)
+                        throw new IOException("Store closed");
+                    long location = oldLocations.get(i);
+                    byte[] record = readAddRecord(sealedById.get(segmentOf(location)), offsetOf(location));
+                    newLocations[i] = location(id, pos);
+                    crc.update(record);
+                    pos += record.length;
+                    out.write(record);
+                    if (bos.size() >= 1 << 20) {
+                        out.flush();
+                        bos.writeTo(fos);
+                        bos.reset();
+                    }
+                }
+                out.flush();
+                int batchStart = bos.size();
+                // Keep the crc covering the records written out so far, then add the commit record itself.
+                writeCommit(out, commit, crc, bos, batchStart);
+                bos.writeTo(fos);
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("Could not rename " + tmp + " to " + file);
+        } catch (Exception e) {
+            if (!closing)
+                log.error("Failed to merge UTXO segments", e);
+            tmp.delete();
+            synchronized (this) {
+                compacting = false;
+                notifyAll();
+            }
+            return;
+        }
+        synchronized (this) {
+            try {
+                Segment merged = new Segment(id, file);
+                merged.base = true;
+                merged.coversUpTo = id - 1;
+                merged.lastCommit = commit;
+                merged.records = keys.size();
+                utxoById.put(id, merged);
+                for (int i = 0; i < keys.size(); i++) {
+                    if (oldLocations.get(i).equals(outputs.get(keys.get(i)))) {
+                        outputs.put(keys.get(i), newLocations[i]);
+                        merged.live++;
+                    }
+                }
+                for (Segment segment : sealed) {
+                    utxoSegments.remove(segment);
+                    utxoById.remove(segment.id);
+                    segment.close();
+                    delete(segment.file);
+                }
+                utxoSegments.add(0, merged);
+                log.info("Merged {} UTXO segments into {} outputs in {} ms",
+                        new Object[] { sealed.size(), keys.size(), System.currentTimeMillis() - start });
+            } catch (IOException e) {
+                log.error("Failed to install merged UTXO segment", e);
+            } finally {
+                compacting = false;
+                notifyAll();
+            }
+        }
+    }
+
+    public void close() throws BlockStoreException {
+        synchronized (this) {
+            if (headersFile == null)
+                return;
+            closing = true;
+            notifyAll();
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new BlockStoreException(e);
+        }
+        synchronized (this) {
+            closeFiles();
+            // Wake up any writers waiting for a batch to finish, so they see the store is closed.
+            notifyAll();
+        }
+    }
+
+    private void closeFiles() {
+        compactor.shutdown();
+        try {
+            for (Segment segment : utxoSegments)
+                segment.close();
+            for (Segment segment : undoSegments.values())
+                segment.close();
+            if (headersFile != null)
+                headersFile.close();
+            if (lock != null)
+                lock.release();
+            if (lockFile != null)
+                lockFile.close();
+        } catch (IOException e) {
+            log.error("Failed to close store", e);
+        } finally {
+            utxoSegments.clear();
+            utxoById.clear();
+            undoSegments.clear();
+            outputs.clear();
+            headersFile = null;
+            lock = null;
+            lockFile = null;
+        }
+    }
+}
@@ -27,8 +27,22 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 /**
@@ -38,19 +52,53 @@ import java.util.List;
  * you may see the database files grow quite large (around 1.5G).
  * H2 automatically frees some space at shutdown, so close()ing the database
  * decreases the space usage somewhat (to only around 1.3G).
+ *
+ * Each thread gets its own connection, and statements are prepared once per connection and reused. Output changes
+ * made within a batch write are sent to the database together as JDBC batches when it commits, and
+ * {@link #setGroupCommitSize(int)} can group several batch writes into one database commit.
+ *
+ * Undo data that has fallen out of the retention policy (the full store depth, and optionally a disk budget set with
+ * {@link #setUndoDiskBudget(long)}) is deleted by a background thread a few blocks at a time, so connecting blocks
+ * doesn't wait for it.
  */
 public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(H2FullPrunedBlockStore.class);
 
     private Sha256Hash chainHeadHash;
-    private StoredBlock chainHeadBlock;
+    private volatile StoredBlock chainHeadBlock;
     private Sha256Hash verifiedChainHeadHash;
-    private StoredBlock verifiedChainHeadBlock;
+    private volatile StoredBlock verifiedChainHeadBlock;
     private NetworkParameters params;
     private ThreadLocal<Connection> conn;
-    private List<Connection> allConnections;
+    private ThreadLocal<ConnectionState> state;
+    private List<ConnectionState> allConnections;
     private String connectionURL;
     private int fullStoreDepth;
+    private volatile int groupCommitSize = 1;
+
+    // Undo blocks are deleted a few heights at a time, so that the table lock each delete takes is only held briefly.
+    private static final int PRUNE_CHUNK_BLOCKS = 10;
+    // How long the pruner waits for the table lock before backing off, and how long it backs off for, in
+    // milliseconds. Block connection holds the lock for the whole of a batch write.
+    private static final int PRUNE_LOCK_TIMEOUT = 100;
+    private static final int PRUNE_RETRY_DELAY = 100;
+    // The disk budget needs a scan of the undo table, which is done at most this often.
+    private static final int PRUNE_BUDGET_CHECK_INTERVAL = 1000;
+    // H2's ErrorCode.LOCK_TIMEOUT_1
+    private static final int LOCK_TIMEOUT_ERROR = 50200;
+
+    private final ExecutorService pruner;
+    private final AtomicBoolean pruneScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+    // Undo blocks at or below this height are beyond the full store depth.
+    private volatile int pruneTargetHeight = Integer.MIN_VALUE;
+    private volatile long undoDiskBudget;
+    // Only used by the pruning thread, apart from the metrics. Integer.MIN_VALUE until it has looked at the table.
+    private volatile int prunedHeight = Integer.MIN_VALUE;
+    private int budgetTargetHeight = Integer.MIN_VALUE;
+    private volatile long lastBudgetCheck;
+    private final AtomicLong undoBlocksPruned = new AtomicLong();
+    private final AtomicLong pruningTime = new AtomicLong();
 
     static final String driver = "org.h2.Driver";
     static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings ( "
@@ -103,7 +151,15 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         connectionURL = "jdbc:h2:" + dbName + ";create=true";
         
         conn = new ThreadLocal<Connection>();
-        allConnections = new LinkedList<Connection>();
+        state = new ThreadLocal<ConnectionState>();
+        allConnections = new LinkedList<ConnectionState>();
+        pruner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "H2FullPrunedBlockStore pruning");
+                t.setDaemon(true);
+                return t;
+            }
+        });
 
         try {
             Class.forName(driver);
@@ -152,20 +208,36 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                 return;
             
             conn.set(DriverManager.getConnection(connectionURL));
-            allConnections.add(conn.get());
+            state.set(new ConnectionState(conn.get()));
+            allConnections.add(state.get());
             log.info("Made a new connection to database " + connectionURL);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
     
-    public synchronized void close() {
-        for (Connection conn : allConnections) {
+    public void close() {
+        closed = true;
+        pruner.shutdown();
+        try {
+            pruner.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        closeConnections();
+    }
+
+    private synchronized void closeConnections() {
+        for (ConnectionState state : allConnections) {
             try {
-                conn.rollback();
+                // Batches held back by group commit are complete, so keep them.
+                if (!state.inBatch && state.uncommittedBatches > 0)
+                    state.connection.commit();
+                state.connection.rollback();
             } catch (SQLException ex) {
                 throw new RuntimeException(ex);
             }
+            state.closeStatements();
         }
         allConnections.clear();
     }
@@ -173,6 +245,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     public void resetStore() throws BlockStoreException {
         maybeConnect();
         try {
+            state.get().clearOutputs();
+            state.get().closeStatements();
             Statement s = conn.get().createStatement();
             s.executeUpdate("DROP TABLE settings");
             s.executeUpdate("DROP TABLE headers");
@@ -280,6 +354,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
      */
     public void dumpSizes() throws SQLException, BlockStoreException {
         maybeConnect();
+        flushOutputs(state.get());
         Statement s = conn.get().createStatement();
         long size = 0;
         long totalSize = 0;
@@ -357,9 +432,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
-                            + " VALUES(?, ?, ?, ?, ?)");
+            PreparedStatement s = prepare("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
+                    + " VALUES(?, ?, ?, ?, ?)");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
@@ -369,21 +443,19 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
             if (e.getErrorCode() != 23505 || !wasUndoable)
                 throw e;
             
-            PreparedStatement s = conn.get().prepareStatement("UPDATE headers SET wasUndoable=? WHERE hash=?");
+            PreparedStatement s = prepare("UPDATE headers SET wasUndoable=? WHERE hash=?");
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
-            s.close();
         }
     }
 
@@ -426,9 +498,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         
         try {
             try {
-                PreparedStatement s =
-                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
-                                + " VALUES(?, ?, ?, ?)");
+                PreparedStatement s = prepare("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
+                        + " VALUES(?, ?, ?, ?)");
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
                 if (transactions == null) {
@@ -439,7 +510,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
-                s.close();
                 try {
                     putUpdateStoredBlock(storedBlock, true);
                 } catch (SQLException e) {
@@ -450,9 +520,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     throw new BlockStoreException(e);
                 
                 // There is probably an update-or-insert statement, but it wasn't obvious from the docs
-                PreparedStatement s =
-                        conn.get().prepareStatement("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
-                                + " WHERE hash = ?");
+                PreparedStatement s = prepare("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
+                        + " WHERE hash = ?");
                 s.setBytes(3, hashBytes);
                 if (transactions == null) {
                     s.setBytes(1, txOutChanges);
@@ -462,7 +531,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(2, transactions);
                 }
                 s.executeUpdate();
-                s.close();
             }
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
@@ -476,15 +544,14 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -509,10 +576,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // blocks.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            closeResults(results);
         }
     }
     
@@ -526,15 +590,14 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -576,10 +639,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // Corrupted database.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            closeResults(results);
         }
     }
 
@@ -593,12 +653,10 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare("UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -614,44 +672,188 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare("UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        int pruneHeight = chainHead.getHeight() - fullStoreDepth;
+        if (pruneHeight > pruneTargetHeight)
+            pruneTargetHeight = pruneHeight;
+        schedulePruning();
     }
 
-    private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
-        try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
-            s.setInt(1, height);
-            s.executeUpdate();
+    /**
+     * Sets a limit on the space used by undo data, in bytes, or 0 (the default) for none. The oldest undo blocks are
+     * deleted until the rest fit. This applies as well as the full store depth, so whichever keeps less wins: a
+     * budget smaller than fullStoreDepth blocks of undo data means re-orgs deeper than what is left fail with a
+     * {@link PrunedException}. The undo data of the verified chain head itself is always kept.
+     */
+    public void setUndoDiskBudget(long bytes) {
+        checkArgument(bytes >= 0);
+        undoDiskBudget = bytes;
+        lastBudgetCheck = 0;
+        schedulePruning();
+    }
+
+    /** Returns how many undo blocks the background pruner has deleted since the store was opened. */
+    public long getPrunedUndoBlockCount() {
+        return undoBlocksPruned.get();
+    }
+
+    /** Returns how long the background pruner has spent deleting undo blocks since the store was opened. */
+    public long getPruningTimeMillis() {
+        return pruningTime.get();
+    }
+
+    /** Returns how many heights of undo data beyond the full store depth are waiting to be deleted. */
+    public int getPruningBacklog() {
+        int target = pruneTargetHeight, pruned = prunedHeight;
+        if (target == Integer.MIN_VALUE)
+            return 0;
+        if (pruned == Integer.MIN_VALUE)
+            return target + 1;
+        return Math.max(0, target - pruned);
+    }
+
+    /** Waits for pruning scheduled so far to finish. Used by tests. */
+    void waitForPruning() throws Exception {
+        pruner.submit(new Runnable() {
+            public void run() {
+            }
+        }).get();
+    }
+
+    private void schedulePruning() {
+        if (!closed && pruneScheduled.compareAndSet(false, true)) {
+            pruner.execute(new Runnable() {
+                public void run() {
+                    runPruner();
+                }
+            });
+        }
+    }
+
+    private void runPruner() {
+        do {
+            try {
+                pruneUndoableBlocks();
+            } catch (SQLException e) {
+                log.error("Failed to prune undo blocks, will retry at the next block", e);
+            } catch (BlockStoreException e) {
+                log.error("Failed to prune undo blocks, will retry at the next block", e);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                pruneScheduled.set(false);
+            }
+            // Catch a target that moved after the last pass finished but before it was marked as done.
+        } while (!closed && prunedHeight < pruneTargetHeight && pruneScheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Runs on the pruning thread, with a connection of its own: deletes undo blocks up to the height the retention
+     * policy allows, {@link #PRUNE_CHUNK_BLOCKS} heights per statement. Each delete commits on its own, and when the
+     * table is locked by a batch write the pruner backs off rather than making that wait for it.
+     */
+    private void pruneUndoableBlocks() throws SQLException, BlockStoreException, InterruptedException {
+        maybeConnect();
+        if (prunedHeight == Integer.MIN_VALUE) {
+            Statement s = conn.get().createStatement();
+            s.executeUpdate("SET LOCK_TIMEOUT " + PRUNE_LOCK_TIMEOUT);
+            ResultSet rs = s.executeQuery("SELECT MIN(height) FROM undoableBlocks");
+            rs.next();
+            int lowest = rs.getInt(1);
+            // Heights start at zero, so -1 means nothing has been pruned.
+            prunedHeight = rs.wasNull() ? Math.max(pruneTargetHeight, -1) : lowest - 1;
+            rs.close();
             s.close();
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
         }
+        long start = System.currentTimeMillis();
+        long pruned = 0;
+        int target = prunedHeight;
+        while (!closed) {
+            try {
+                target = Math.max(Math.max(target, pruneTargetHeight), undoBudgetHeight());
+                if (prunedHeight >= target)
+                    break;
+                int to = Math.min(target, prunedHeight + PRUNE_CHUNK_BLOCKS);
+                // Undo blocks of side chains can turn up below the pruned height, so this isn't a range.
+                PreparedStatement s = prepare("DELETE FROM undoableBlocks WHERE height <= ?");
+                s.setInt(1, to);
+                pruned += s.executeUpdate();
+                prunedHeight = to;
+            } catch (SQLException e) {
+                if (e.getErrorCode() != LOCK_TIMEOUT_ERROR)
+                    throw e;
+                Thread.sleep(PRUNE_RETRY_DELAY);
+            }
+        }
+        if (pruned > 0) {
+            long time = System.currentTimeMillis() - start;
+            undoBlocksPruned.addAndGet(pruned);
+            pruningTime.addAndGet(time);
+            log.info("Pruned {} undo blocks up to height {} in {}ms", new Object[] { pruned, prunedHeight, time });
+        }
+    }
+
+    /**
+     * Returns the height at or below which undo blocks have to go for the rest to fit in the disk budget. Runs on the
+     * pruning thread.
+     */
+    private int undoBudgetHeight() throws SQLException {
+        long budget = undoDiskBudget;
+        if (budget <= 0)
+            return Integer.MIN_VALUE;
+        long now = System.currentTimeMillis();
+        if (now - lastBudgetCheck < PRUNE_BUDGET_CHECK_INTERVAL)
+            return budgetTargetHeight;
+        int headHeight = verifiedChainHeadBlock.getHeight();
+        PreparedStatement s = prepare("SELECT height, LENGTH(txOutChanges), LENGTH(transactions) FROM undoableBlocks " +
+                "ORDER BY height DESC");
+        ResultSet results = s.executeQuery();
+        long total = 0;
+        int height = Integer.MIN_VALUE;
+        try {
+            while (results.next()) {
+                total += results.getLong(2) + results.getLong(3);
+                if (total > budget) {
+                    height = Math.min(results.getInt(1), headHeight - 1);
+                    break;
+                }
+            }
+        } finally {
+            results.close();
+        }
+        lastBudgetCheck = now;
+        budgetTargetHeight = height;
+        return height;
     }
 
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        ConnectionState state = this.state.get();
+        if (state.inBatch) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            StoredTransactionOutput added = state.addedOutputs.get(outPoint);
+            if (added != null)
+                return added;
+            if (state.removedOutputs.contains(outPoint))
+                return null;
+        }
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT openOutputsIndex.height, openOutputs.value, openOutputs.scriptBytes " +
-                		"FROM openOutputsIndex NATURAL JOIN openOutputs " +
-                		"WHERE openOutputsIndex.hash = ? AND openOutputs.index = ?");
+            PreparedStatement s = prepare("SELECT openOutputsIndex.height, openOutputs.value, openOutputs.scriptBytes " +
+                    "FROM openOutputsIndex NATURAL JOIN openOutputs " +
+                    "WHERE openOutputsIndex.hash = ? AND openOutputs.index = ?");
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)index);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -664,118 +866,220 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+            closeResults(results);
         }
     }
 
+    /**
+     * Adds an output. Within a batch write the insert is held back and sent with the rest of the batch's output
+     * changes as one JDBC batch, so an output created and spent in the same block never reaches the database.
+     */
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
-        try {
-            try {
-                s = conn.get().prepareStatement("INSERT INTO openOutputsIndex(hash, height)"
-                        + " VALUES(?, ?)");
-                s.setBytes(1, out.getHash().getBytes());
-                s.setInt(2, out.getHeight());
-                s.executeUpdate();
-            } catch (SQLException e) {
-                if (e.getErrorCode() != 23505)
-                    throw e;
-            } finally {
-                if (s != null)
-                    s.close();
-            }
-            
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (id, index, value, scriptBytes) " +
-            		"VALUES ((SELECT id FROM openOutputsIndex WHERE hash = ?), " +
-            		"?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setBytes(3, out.getValue().toByteArray());
-            s.setBytes(4, out.getScriptBytes());
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException e) {
-            if (e.getErrorCode() != 23505)
-                throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
-        }
+        ConnectionState state = this.state.get();
+        state.addedOutputs.put(new StoredTransactionOutPoint(out), out);
+        state.changedHashes.add(out.getHash());
+        if (!state.inBatch)
+            flushOutputs(state);
     }
 
+    /**
+     * Removes an output. Within a batch write the delete is held back like the inserts of
+     * {@link #addUnspentTransactionOutput(StoredTransactionOutput)}, so removing an output the store didn't have may
+     * only be reported when the batch is written.
+     */
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        // TODO: This should only need one query (maybe a stored procedure)
-        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+        ConnectionState state = this.state.get();
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        if (state.addedOutputs.remove(outPoint) != null)
+            return;
+        if (!state.removedOutputs.add(outPoint))
             throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+        state.changedHashes.add(out.getHash());
+        if (!state.inBatch)
+            flushOutputs(state);
+    }
+
+    /**
+     * Sends the held back output changes of this thread's connection to the database. Deletes go first so that an
+     * output spent and then re-added in the same batch ends up in the table.
+     */
+    private void flushOutputs(ConnectionState state) throws BlockStoreException {
+        if (state.addedOutputs.isEmpty() && state.removedOutputs.isEmpty())
+            return;
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM openOutputs " +
-                		"WHERE id = (SELECT id FROM openOutputsIndex WHERE hash = ?) AND index = ?");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.executeUpdate();
-            s.close();
-            
-            // This is quite an ugly query, is there no better way?
-            s = conn.get().prepareStatement("DELETE FROM openOutputsIndex " +
-                            "WHERE hash = ? AND 1 = (CASE WHEN ((SELECT COUNT(*) FROM openOutputs WHERE id =" +
-                            "(SELECT id FROM openOutputsIndex WHERE hash = ?)) = 0) THEN 1 ELSE 0 END)");
-            s.setBytes(1, out.getHash().getBytes());
-            s.setBytes(2, out.getHash().getBytes());
-            s.executeUpdate();
-            s.close();
+            if (!state.removedOutputs.isEmpty()) {
+                PreparedStatement s = prepare("DELETE FROM openOutputs " +
+                        "WHERE id = (SELECT id FROM openOutputsIndex WHERE hash = ?) AND index = ?");
+                Set<Sha256Hash> hashes = new LinkedHashSet<Sha256Hash>();
+                for (StoredTransactionOutPoint outPoint : state.removedOutputs) {
+                    s.setBytes(1, outPoint.getHash().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int)outPoint.getIndex());
+                    s.addBatch();
+                    hashes.add(outPoint.getHash());
+                }
+                for (int count : s.executeBatch())
+                    if (count == 0)
+                        throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+
+                // This is quite an ugly query, is there no better way?
+                s = prepare("DELETE FROM openOutputsIndex " +
+                        "WHERE hash = ? AND 1 = (CASE WHEN ((SELECT COUNT(*) FROM openOutputs WHERE id =" +
+                        "(SELECT id FROM openOutputsIndex WHERE hash = ?)) = 0) THEN 1 ELSE 0 END)");
+                for (Sha256Hash hash : hashes) {
+                    s.setBytes(1, hash.getBytes());
+                    s.setBytes(2, hash.getBytes());
+                    s.addBatch();
+                }
+                s.executeBatch();
+            }
+            if (!state.addedOutputs.isEmpty()) {
+                // Outputs that are already stored are skipped, as inserting them one at a time used to ignore the
+                // duplicate key error.
+                PreparedStatement s = prepare("INSERT INTO openOutputsIndex(hash, height) SELECT ?, ? FROM DUAL " +
+                        "WHERE NOT EXISTS (SELECT id FROM openOutputsIndex WHERE hash = ?)");
+                Set<Sha256Hash> hashes = new HashSet<Sha256Hash>();
+                for (StoredTransactionOutput out : state.addedOutputs.values()) {
+                    if (!hashes.add(out.getHash()))
+                        continue;
+                    s.setBytes(1, out.getHash().getBytes());
+                    s.setInt(2, out.getHeight());
+                    s.setBytes(3, out.getHash().getBytes());
+                    s.addBatch();
+                }
+                s.executeBatch();
+
+                s = prepare("INSERT INTO openOutputs (id, index, value, scriptBytes) " +
+                        "SELECT id, ?, ?, ? FROM openOutputsIndex WHERE hash = ? AND NOT EXISTS " +
+                        "(SELECT id FROM openOutputs WHERE openOutputs.id = openOutputsIndex.id AND openOutputs.index = ?)");
+                for (StoredTransactionOutput out : state.addedOutputs.values()) {
+                    // index is actually an unsigned int
+                    s.setInt(1, (int)out.getIndex());
+                    s.setBytes(2, out.getValue().toByteArray());
+                    s.setBytes(3, out.getScriptBytes());
+                    s.setBytes(4, out.getHash().getBytes());
+                    s.setInt(5, (int)out.getIndex());
+                    s.addBatch();
+                }
+                s.executeBatch();
+            }
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            state.clearOutputs();
         }
     }
 
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        ConnectionState state = this.state.get();
+        if (state.inBatch)
+            return;
         try {
             conn.get().setAutoCommit(false);
+            // Batches held back by group commit share the open transaction, so an abort must only undo this one.
+            if (state.uncommittedBatches > 0)
+                state.savepoint = conn.get().setSavepoint();
+            state.inBatch = true;
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    /**
+     * Ends a batch write. With a group commit size above one (see {@link #setGroupCommitSize(int)}) the database
+     * commit only happens once that many batches have ended; called outside a batch this commits any batches that
+     * are being held back.
+     */
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        ConnectionState state = this.state.get();
+        if (!state.inBatch) {
+            if (state.uncommittedBatches > 0)
+                commitConnection(state);
+            return;
+        }
         try {
-            conn.get().commit();
-            conn.get().setAutoCommit(true);
+            flushOutputs(state);
+        } catch (BlockStoreException e) {
+            abortDatabaseBatchWrite();
+            throw e;
+        }
+        state.inBatch = false;
+        state.uncommittedBatches++;
+        if (state.uncommittedBatches >= groupCommitSize) {
+            commitConnection(state);
+        } else if (state.savepoint != null) {
+            try {
+                conn.get().releaseSavepoint(state.savepoint);
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
+            } finally {
+                state.savepoint = null;
+            }
+        }
+    }
+
+    private void commitConnection(ConnectionState state) throws BlockStoreException {
+        try {
+            state.connection.commit();
+            state.connection.setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            state.uncommittedBatches = 0;
+            state.savepoint = null;
         }
     }
 
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        ConnectionState state = this.state.get();
+        state.clearOutputs();
+        if (!state.inBatch && state.uncommittedBatches > 0)
+            return;
+        state.inBatch = false;
         try {
-            conn.get().rollback();
-            conn.get().setAutoCommit(true);
+            if (state.savepoint != null) {
+                conn.get().rollback(state.savepoint);
+            } else {
+                conn.get().rollback();
+                conn.get().setAutoCommit(true);
+            }
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            state.savepoint = null;
         }
     }
 
+    /**
+     * Sets how many batch writes (one per block connected by {@link com.google.bitcoin.core.FullPrunedBlockChain})
+     * are grouped into each database commit. The default of 1 commits every batch as it ends. Larger values save the
+     * per-commit log write during initial block download, at the cost of losing up to that many blocks if the
+     * process dies; the store stays consistent and simply resumes from an earlier chain head. Until they are committed
+     * the batches are only visible to the thread that wrote them, and other threads may block on them, so this is
+     * best left at 1 once the chain has caught up. {@link #close()} commits anything held back.
+     */
+    public void setGroupCommitSize(int batches) {
+        checkArgument(batches > 0);
+        this.groupCommitSize = batches;
+    }
+
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        // The held back changes only need writing first if they touch this transaction.
+        ConnectionState state = this.state.get();
+        if (state.changedHashes.contains(hash))
+            flushOutputs(state);
+        ResultSet results = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT COUNT(*) FROM openOutputsIndex " +
-                        "WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT COUNT(*) FROM openOutputsIndex " +
+                    "WHERE hash = ?");
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
@@ -784,10 +1088,63 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null)
+            closeResults(results);
+        }
+    }
+
+    /** Returns the statement for the given SQL on this thread's connection, preparing it the first time. */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        Map<String, PreparedStatement> statements = state.get().statements;
+        PreparedStatement s = statements.get(sql);
+        if (s == null) {
+            s = conn.get().prepareStatement(sql);
+            statements.put(sql, s);
+        }
+        return s;
+    }
+
+    private void closeResults(ResultSet results) throws BlockStoreException {
+        if (results != null)
+            try {
+                results.close();
+            } catch (SQLException e) { throw new BlockStoreException("Failed to close ResultSet"); }
+    }
+
+    /**
+     * The statements prepared on one connection, and the output changes and group commit progress of the batch write
+     * it is in.
+     */
+    private static class ConnectionState {
+        final Connection connection;
+        final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> addedOutputs =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        final Set<StoredTransactionOutPoint> removedOutputs = new LinkedHashSet<StoredTransactionOutPoint>();
+        // Transactions with outputs in either of the above.
+        final Set<Sha256Hash> changedHashes = new HashSet<Sha256Hash>();
+        boolean inBatch;
+        int uncommittedBatches;
+        Savepoint savepoint;
+
+        ConnectionState(Connection connection) {
+            this.connection = connection;
+        }
+
+        void clearOutputs() {
+            addedOutputs.clear();
+            removedOutputs.clear();
+            changedHashes.clear();
+        }
+
+        void closeStatements() {
+            for (PreparedStatement s : statements.values()) {
                 try {
                     s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+                } catch (SQLException e) {
+                    log.warn("Failed to close PreparedStatement", e);
+                }
+            }
+            statements.clear();
         }
     }
-}
\ No newline at end of file
+}
@@ -18,18 +18,18 @@ package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.*;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Keeps {@link com.google.bitcoin.core.StoredBlock}s in memory. Used primarily for unit testing.
  */
 public class MemoryBlockStore implements BlockStore {
-    private Map<Sha256Hash, StoredBlock> blockMap;
-    private StoredBlock chainHead;
+    private volatile Map<Sha256Hash, StoredBlock> blockMap;
+    private volatile StoredBlock chainHead;
 
     public MemoryBlockStore(NetworkParameters params) {
-        blockMap = new HashMap<Sha256Hash, StoredBlock>();
+        blockMap = new ConcurrentHashMap<Sha256Hash, StoredBlock>();
         // Insert the genesis block.
         try {
             Block genesisHeader = params.genesisBlock.cloneAsHeader();
@@ -43,13 +43,14 @@ public class MemoryBlockStore implements BlockStore {
         }
     }
 
-    public synchronized void put(StoredBlock block) throws BlockStoreException {
+    public void put(StoredBlock block) throws BlockStoreException {
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
         Sha256Hash hash = block.getHeader().getHash();
         blockMap.put(hash, block);
     }
 
-    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        Map<Sha256Hash, StoredBlock> blockMap = this.blockMap;
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
         return blockMap.get(hash);
     }
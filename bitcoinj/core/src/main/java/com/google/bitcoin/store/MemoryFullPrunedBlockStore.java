@@ -17,12 +17,12 @@
 package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.*;
-import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -114,73 +114,22 @@ class StoredTransaction implements Serializable {
     }
 }
 
-/**
- * Used as a key for memory map (to avoid having to think about NetworkParameters,
- * which is required for {@link TransactionOutPoint}
- */
-class StoredTransactionOutPoint implements Serializable {
-    private static final long serialVersionUID = -4064230006297064377L;
-
-    /** Hash of the transaction to which we refer. */
-    Sha256Hash hash;
-    /** Which output of that transaction we are talking about. */
-    long index;
-    
-    StoredTransactionOutPoint(Sha256Hash hash, long index) {
-        this.hash = hash;
-        this.index = index;
-    }
-    
-    StoredTransactionOutPoint(StoredTransactionOutput out) {
-        this.hash = out.getHash();
-        this.index = out.getIndex();
-    }
-    
-    /**
-     * The hash of the transaction to which we refer
-     */
-    Sha256Hash getHash() {
-        return hash;
-    }
-    
-    /**
-     * The index of the output in transaction to which we refer
-     */
-    long getIndex() {
-        return index;
-    }
-    
-    public int hashCode() {
-        return this.hash.hashCode() + (int)index;
-    }
-    
-    public String toString() {
-        return "Stored transaction out point: " + hash.toString() + ":" + index;
-    }
-    
-    public boolean equals(Object o) {
-        if (!(o instanceof StoredTransactionOutPoint)) return false;
-        return ((StoredTransactionOutPoint)o).getIndex() == this.index &&
-                Objects.equal(this.getHash(), ((StoredTransactionOutPoint)o).getHash());
-    }
-}
-
 /**
  * A HashMap<KeyType, ValueType> that is DB transaction-aware
- * This class is not thread-safe.
+ * Writes must be serialized by the caller, but committed entries can be read from any thread without locking.
  */
 class TransactionalHashMap<KeyType, ValueType> {
     ThreadLocal<HashMap<KeyType, ValueType>> tempMap;
     ThreadLocal<HashSet<KeyType>> tempSetRemoved;
     private ThreadLocal<Boolean> inTransaction;
     
-    HashMap<KeyType, ValueType> map;
+    Map<KeyType, ValueType> map;
     
     public TransactionalHashMap() {
         tempMap = new ThreadLocal<HashMap<KeyType, ValueType>>();
         tempSetRemoved = new ThreadLocal<HashSet<KeyType>>();
         inTransaction = new ThreadLocal<Boolean>();
-        map = new HashMap<KeyType, ValueType>();
+        map = new ConcurrentHashMap<KeyType, ValueType>();
     }
     
     public void beginDatabaseBatchWrite() {
@@ -305,7 +254,9 @@ class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
 
 /**
  * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link StoredTransactionOutput}s in memory.
- * Used primarily for unit testing.
+ * Used primarily for unit testing. Unspent outputs are packed into primitive arrays rather than kept as objects, so
+ * that large output sets fit in a reasonable heap. Blocks and the chain heads can be read whilst another thread is
+ * writing.
  */
 public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     class StoredBlockAndWasUndoableFlag {
@@ -313,12 +264,11 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         public boolean wasUndoable;
         public StoredBlockAndWasUndoableFlag(StoredBlock block, boolean wasUndoable) { this.block = block; this.wasUndoable = wasUndoable; }
     }
-    private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
+    private volatile TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
-    //TODO: Use something more suited to remove-heavy use?
-    private TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput> transactionOutputMap;
-    private StoredBlock chainHead;
-    private StoredBlock verifiedChainHead;
+    private TransactionalOutputTable transactionOutputMap;
+    private volatile StoredBlock chainHead;
+    private volatile StoredBlock verifiedChainHead;
     private int fullStoreDepth;
     
     /**
@@ -329,7 +279,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
         blockMap = new TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
         fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
-        transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        transactionOutputMap = new TransactionalOutputTable();
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
         try {
@@ -360,7 +310,8 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         blockMap.put(hash, new StoredBlockAndWasUndoableFlag(storedBlock, true));
     }
 
-    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap = this.blockMap;
         Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
         StoredBlockAndWasUndoableFlag storedBlock = blockMap.get(hash);
         return storedBlock == null ? null : storedBlock.block;
@@ -410,17 +361,17 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     
     public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        return transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
+        return transactionOutputMap.get(hash, index);
     }
 
     public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        transactionOutputMap.put(new StoredTransactionOutPoint(out), out);
+        transactionOutputMap.put(out);
     }
 
     public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        if (transactionOutputMap.remove(new StoredTransactionOutPoint(out)) == null)
+        if (!transactionOutputMap.remove(out.getHash(), out.getIndex()))
             throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MemoryFullPrunedBlockStore that it didn't have!");
     }
 
@@ -442,9 +393,10 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         transactionOutputMap.abortDatabaseBatchWrite();
     }
 
-    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
         for (int i = 0; i < numOutputs; i++)
-            if (getTransactionOutput(hash, i) != null)
+            if (transactionOutputMap.contains(hash, i))
                 return true;
         return false;
     }
@@ -0,0 +1,352 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Stores the most recent blocks of the chain in a fixed size, memory mapped file. This is all an SPV client needs:
+ * once a block is a few thousand deep it will never be re-organized away, so its header is of no further interest.</p>
+ *
+ * <p>The file holds a ring buffer of block records, the oldest being overwritten when it is full, and an open
+ * addressing hash table from block hash to record. Lookups read the table and the record in place in the mapping, so
+ * opening a store needs no load pass and memory use does not depend on how long the chain is. Readers share a read
+ * lock, so they only wait for a writer while it changes the mapping in memory, never on the disk.</p>
+ *
+ * <p>Changes reach the disk when the operating system gets round to it, or on {@link #close()}. A store that was
+ * being written to when the machine went down may be damaged, in which case delete it and sync again.</p>
+ *
+ * <p>The file layout is a header holding a magic number, the number of records, the ring buffer cursor and the chain
+ * head hash; then the hash table, with slots holding the last four bytes of a hash and the record number plus one, so
+ * an all zero slot is empty; then the records, each holding the block hash, chain work, height and header.</p>
+ */
+public class SPVBlockStore implements BlockStore {
+    private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
+
+    /** The number of blocks kept if not specified otherwise. Enough to get over a difficulty transition. */
+    public static final int DEFAULT_CAPACITY = 5000;
+
+    private static final byte[] MAGIC = { 'S', 'P', 'V', 'B' };
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int CURSOR_OFFSET = 8;
+    private static final int CHAIN_HEAD_OFFSET = 12;
+    private static final int HEADER_SIZE = 12 + 32;
+
+    private static final int SLOT_SIZE = 4 + 4;
+
+    private static final int CHAIN_WORK_BYTES = 16;
+    private static final int RECORD_CHAIN_WORK_OFFSET = 32;
+    private static final int RECORD_HEIGHT_OFFSET = RECORD_CHAIN_WORK_OFFSET + CHAIN_WORK_BYTES;
+    private static final int RECORD_HEADER_OFFSET = RECORD_HEIGHT_OFFSET + 4;
+    private static final int RECORD_SIZE = RECORD_HEADER_OFFSET + Block.HEADER_SIZE;
+
+    private final NetworkParameters params;
+    private final int capacity;
+    // The hash table has at least twice as many slots as there are records, and a power of two of them.
+    private final int slots;
+    private final int recordsOffset;
+    private RandomAccessFile randomAccessFile;
+    private FileLock lock;
+    private MappedByteBuffer buffer;
+
+    // Plain reads and writes of the mapping are not ordered between threads by anything else, so readers take the
+    // read lock and writers the write lock.
+    private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+
+    /** Opens the store in the given file, creating it with room for {@link #DEFAULT_CAPACITY} blocks if necessary. */
+    public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens the store in the given file, creating it with room for the given number of blocks if necessary. An
+     * existing store must have been created with the same capacity.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
+        checkArgument(capacity > 0);
+        this.params = params;
+        this.capacity = capacity;
+        this.slots = Integer.highestOneBit(capacity * 2 - 1) * 2;
+        this.recordsOffset = HEADER_SIZE + slots * SLOT_SIZE;
+        int fileSize = recordsOffset + capacity * RECORD_SIZE;
+        try {
+            boolean exists = file.exists() && file.length() > 0;
+            if (exists && file.length() != fileSize)
+                throw new BlockStoreException("Block store " + file + " is " + file.length() + " bytes, expected " +
+                        fileSize + " for a capacity of " + capacity);
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            FileChannel channel = randomAccessFile.getChannel();
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null)
+                throw new BlockStoreException("Could not lock file " + file);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            if (exists) {
+                byte[] magic = new byte[MAGIC.length];
+                buffer.get(magic);
+                if (!Arrays.equals(magic, MAGIC) || buffer.getInt(CAPACITY_OFFSET) != capacity)
+                    throw new BlockStoreException(file + " is not a block store with a capacity of " + capacity);
+                log.info("Opened block store {}", file);
+            } else {
+                // A newly mapped file is all zeros, which is an empty table and ring buffer.
+                buffer.put(MAGIC);
+                buffer.putInt(CAPACITY_OFFSET, capacity);
+                Block genesis = params.genesisBlock.cloneAsHeader();
+                StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+                put(storedGenesis);
+                setChainHead(storedGenesis);
+                log.info("Created block store {}", file);
+            }
+        } catch (IOException e) {
+            closeQuietly();
+            throw new BlockStoreException(e);
+        } catch (VerificationException e) {
+            closeQuietly();
+            throw new RuntimeException(e);  // Cannot happen.
+        } catch (BlockStoreException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    /** Returns the number of blocks the store keeps. */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        byte[] hash = block.getHeader().getHash().getBytes();
+        byte[] chainWork = block.getChainWork().toByteArray();
+        checkState(chainWork.length <= CHAIN_WORK_BYTES, "Ran out of space to store chain work!");
+        byte[] header = block.getHeader().cloneAsHeader().bitcoinSerialize();
+        rwLock.writeLock().lock();
+        try {
+            ensureOpen();
+            int record = findRecord(hash);
+            if (record < 0) {
+                // Take over the oldest record, first dropping whatever it held from the table.
+                record = buffer.getInt(CURSOR_OFFSET);
+                int slot = findSlot(recordHash(record));
+                if (slot >= 0 && buffer.getInt(slotOffset(slot) + 4) == record + 1)
+                    removeSlot(slot);
+                addSlot(hash, record);
+                buffer.putInt(CURSOR_OFFSET, (record + 1) % capacity);
+            }
+            ByteBuffer view = recordView(record);
+            view.put(hash);
+            // Chain work is stored big endian, with leading zeros to fill the space.
+            view.put(new byte[CHAIN_WORK_BYTES - chainWork.length]);
+            view.put(chainWork);
+            view.putInt(block.getHeight());
+            view.put(header);
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        rwLock.readLock().lock();
+        try {
+            ensureOpen();
+            int record = findRecord(hash.getBytes());
+            return record < 0 ? null : readRecord(record);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        byte[] hashBytes = new byte[32];
+        rwLock.readLock().lock();
+        try {
+            ensureOpen();
+            ByteBuffer view = buffer.duplicate();
+            view.position(CHAIN_HEAD_OFFSET);
+            view.get(hashBytes);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+        StoredBlock head = get(new Sha256Hash(hashBytes));
+        if (head == null)
+            throw new BlockStoreException("Corrupted block store: chain head not found");
+        return head;
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        rwLock.writeLock().lock();
+        try {
+            ensureOpen();
+            ByteBuffer view = buffer.duplicate();
+            view.position(CHAIN_HEAD_OFFSET);
+            view.put(chainHead.getHeader().getHash().getBytes());
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    public void close() throws BlockStoreException {
+        rwLock.writeLock().lock();
+        try {
+            ensureOpen();
+            buffer.force();
+            buffer = null;
+            closeQuietly();
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (lock != null)
+                lock.release();
+            if (randomAccessFile != null)
+                randomAccessFile.close();
+        } catch (IOException e) {
+            log.error("Failed to close block store", e);
+        }
+        lock = null;
+        randomAccessFile = null;
+    }
+
+    private void ensureOpen() throws BlockStoreException {
+        if (buffer == null)
+            throw new BlockStoreException("BlockStore was closed");
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private int recordOffset(int record) {
+        return recordsOffset + record * RECORD_SIZE;
+    }
+
+    private ByteBuffer recordView(int record) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(recordOffset(record));
+        return view;
+    }
+
+    // Hashes are evenly distributed, bar the leading zeros that proof of work puts at the front, so the last four
+    // bytes make a good hash code.
+    private static int hashCode(byte[] hash) {
+        return ((hash[28] & 0xFF) << 24) | ((hash[29] & 0xFF) << 16) | ((hash[30] & 0xFF) << 8) | (hash[31] & 0xFF);
+    }
+
+    // Returns the slot holding the given hash, or -1. The loop is bounded in case the table is damaged.
+    private int findSlot(byte[] hash) {
+        int code = hashCode(hash);
+        for (int i = 0, slot = code & (slots - 1); i < slots; i++, slot = (slot + 1) & (slots - 1)) {
+            int offset = slotOffset(slot);
+            int value = buffer.getInt(offset + 4);
+            if (value == 0)
+                return -1;
+            if (buffer.getInt(offset) == code && value > 0 && value <= capacity && recordHashEquals(value - 1, hash))
+                return slot;
+        }
+        return -1;
+    }
+
+    private int findRecord(byte[] hash) {
+        int slot = findSlot(hash);
+        return slot < 0 ? -1 : buffer.getInt(slotOffset(slot) + 4) - 1;
+    }
+
+    private boolean recordHashEquals(int record, byte[] hash) {
+        int offset = recordOffset(record);
+        for (int i = 0; i < 32; i++) {
+            if (buffer.get(offset + i) != hash[i])
+                return false;
+        }
+        return true;
+    }
+
+    private byte[] recordHash(int record) {
+        byte[] hash = new byte[32];
+        recordView(record).get(hash);
+        return hash;
+    }
+
+    private StoredBlock readRecord(int record) throws ProtocolException {
+        ByteBuffer view = recordView(record);
+        view.position(view.position() + RECORD_CHAIN_WORK_OFFSET);
+        byte[] chainWork = new byte[CHAIN_WORK_BYTES];
+        view.get(chainWork);
+        int height = view.getInt();
+        byte[] header = new byte[Block.HEADER_SIZE];
+        view.get(header);
+        // The hash was saved with the header, so it needn't be worked out again.
+        return new StoredBlock(new Block(params, header, new Sha256Hash(recordHash(record))),
+                new BigInteger(1, chainWork), height);
+    }
+
+    private void addSlot(byte[] hash, int record) {
+        int code = hashCode(hash);
+        int slot = code & (slots - 1);
+        while (buffer.getInt(slotOffset(slot) + 4) != 0)
+            slot = (slot + 1) & (slots - 1);
+        buffer.putInt(slotOffset(slot), code);
+        buffer.putInt(slotOffset(slot) + 4, record + 1);
+    }
+
+    // Empties the given slot, moving back any later entries of the same probe run that would no longer be found.
+    private void removeSlot(int slot) {
+        int empty = slot;
+        for (int next = (slot + 1) & (slots - 1); ; next = (next + 1) & (slots - 1)) {
+            int offset = slotOffset(next);
+            int value = buffer.getInt(offset + 4);
+            if (value == 0)
+                break;
+            int code = buffer.getInt(offset);
+            int home = code & (slots - 1);
+            // The entry can fill the gap if its home slot is not cyclically within (empty, next].
+            boolean inRange = empty <= next ? (home > empty && home <= next) : (home > empty || home <= next);
+            if (!inRange) {
+                buffer.putInt(slotOffset(empty), code);
+                buffer.putInt(slotOffset(empty) + 4, value);
+                empty = next;
+            }
+        }
+        buffer.putInt(slotOffset(empty), 0);
+        buffer.putInt(slotOffset(empty) + 4, 0);
+    }
+}
@@ -0,0 +1,418 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * <p>A map of (transaction hash, output index) to {@link StoredTransactionOutput} that is DB per-thread-transaction
+ * aware in the same way as {@link TransactionalHashMap}, but keeps committed outputs in primitive arrays rather than
+ * as objects.</p>
+ *
+ * <p>Committed outputs live in an open addressing table: the full hash as four longs, the index, the height and the
+ * value are held in parallel arrays, and the script bytes are appended to large byte pages, with pay-to-address and
+ * pay-to-script-hash scripts cut down to the hash they hold. This takes around a third of the memory per output of
+ * a HashMap of objects. The outputs returned are created on each call. Changes made during a batch write are held in
+ * per-thread maps of objects until committed, as they are small.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ */
+class TransactionalOutputTable {
+    private final ThreadLocal<HashMap<StoredTransactionOutPoint, StoredTransactionOutput>> tempMap;
+    private final ThreadLocal<HashSet<StoredTransactionOutPoint>> tempSetRemoved;
+    private final ThreadLocal<Boolean> inTransaction;
+
+    private final OutputTable table;
+
+    public TransactionalOutputTable() {
+        tempMap = new ThreadLocal<HashMap<StoredTransactionOutPoint, StoredTransactionOutput>>();
+        tempSetRemoved = new ThreadLocal<HashSet<StoredTransactionOutPoint>>();
+        inTransaction = new ThreadLocal<Boolean>();
+        table = new OutputTable();
+    }
+
+    public void beginDatabaseBatchWrite() {
+        inTransaction.set(true);
+    }
+
+    public void commitDatabaseBatchWrite() {
+        if (tempSetRemoved.get() != null)
+            for (StoredTransactionOutPoint key : tempSetRemoved.get())
+                table.remove(key.getHash(), key.getIndex());
+        if (tempMap.get() != null)
+            for (StoredTransactionOutput out : tempMap.get().values())
+                table.put(out);
+        abortDatabaseBatchWrite();
+    }
+
+    public void abortDatabaseBatchWrite() {
+        inTransaction.set(false);
+        tempSetRemoved.remove();
+        tempMap.remove();
+    }
+
+    public StoredTransactionOutput get(Sha256Hash hash, long index) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+            if (tempMap.get() != null) {
+                StoredTransactionOutput value = tempMap.get().get(key);
+                if (value != null)
+                    return value;
+            }
+            if (tempSetRemoved.get() != null && tempSetRemoved.get().contains(key))
+                return null;
+        }
+        return table.get(hash, index);
+    }
+
+    public boolean contains(Sha256Hash hash, long index) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+            if (tempMap.get() != null && tempMap.get().containsKey(key))
+                return true;
+            if (tempSetRemoved.get() != null && tempSetRemoved.get().contains(key))
+                return false;
+        }
+        return table.find(hash, index) >= 0;
+    }
+
+    public void put(StoredTransactionOutput out) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            if (tempSetRemoved.get() != null)
+                tempSetRemoved.get().remove(key);
+            if (tempMap.get() == null)
+                tempMap.set(new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>());
+            tempMap.get().put(key, out);
+        } else {
+            table.put(out);
+        }
+    }
+
+    /** Removes the output, returning whether it was there. */
+    public boolean remove(Sha256Hash hash, long index) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+            boolean removedTemp = tempMap.get() != null && tempMap.get().remove(key) != null;
+            boolean removedSet = tempSetRemoved.get() != null && tempSetRemoved.get().contains(key);
+            if (!removedSet && table.find(hash, index) >= 0) {
+                if (tempSetRemoved.get() == null)
+                    tempSetRemoved.set(new HashSet<StoredTransactionOutPoint>());
+                tempSetRemoved.get().add(key);
+                return true;
+            }
+            return removedTemp;
+        } else {
+            return table.remove(hash, index);
+        }
+    }
+
+    /** Returns the number of committed outputs. */
+    public int size() {
+        return table.size;
+    }
+
+    /**
+     * The committed outputs, stored like a compact dict: a sparse table of slots, probed linearly, points into dense
+     * arrays holding one entry each, so empty slots cost four bytes rather than a whole entry.
+     */
+    static class OutputTable {
+        private static final int INITIAL_CAPACITY = 1024;
+        private static final int PAGE_SIZE = 1 << 20;
+
+        // Script encodings. Lengths below SCRIPT_PAY_TO_ADDRESS are the length of a script stored as it is.
+        private static final int SCRIPT_PAY_TO_ADDRESS = 0xFD;
+        private static final int SCRIPT_PAY_TO_SCRIPT_HASH = 0xFE;
+        private static final int SCRIPT_LONG = 0xFF;
+
+        // Entry number plus one, or zero for an empty slot.
+        private int[] slots;
+        private int mask;
+
+        private long[] hashes;
+        private int[] indexes;
+        private int[] heights;
+        private long[] values;
+        // Page and offset of the encoded script.
+        private long[] scripts;
+        int size;
+
+        private final List<byte[]> pages = new ArrayList<byte[]>();
+        private int pageEnd;
+        private long scriptBytesUsed;
+        private long scriptBytesLive;
+
+        OutputTable() {
+            slots = new int[INITIAL_CAPACITY];
+            mask = INITIAL_CAPACITY - 1;
+            allocateEntries(INITIAL_CAPACITY * 3 / 4);
+            pages.add(new byte[PAGE_SIZE]);
+        }
+
+        private void allocateEntries(int capacity) {
+            hashes = copyOf(hashes, capacity * 4);
+            indexes = copyOf(indexes, capacity);
+            heights = copyOf(heights, capacity);
+            values = copyOf(values, capacity);
+            scripts = copyOf(scripts, capacity);
+        }
+
+        private static long[] copyOf(long[] array, int length) {
+            long[] copy = new long[length];
+            if (array != null)
+                System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+            return copy;
+        }
+
+        private static int[] copyOf(int[] array, int length) {
+            int[] copy = new int[length];
+            if (array != null)
+                System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+            return copy;
+        }
+
+        private static long word(byte[] hash, int i) {
+            return ByteBuffer.wrap(hash, i * 8, 8).getLong();
+        }
+
+        private int home(long w3, int index) {
+            // Transaction hashes are random, so mixing in the index is all that's needed.
+            long h = w3 ^ (index * 0x9E3779B97F4A7C15L);
+            h ^= h >>> 32;
+            return (int) h & mask;
+        }
+
+        private int homeOf(int entry) {
+            return home(hashes[entry * 4 + 3], indexes[entry]);
+        }
+
+        /** Returns the slot pointing to the given output, or -1. */
+        private int findSlot(Sha256Hash hash, long index) {
+            byte[] bytes = hash.getBytes();
+            long w0 = word(bytes, 0), w1 = word(bytes, 1), w2 = word(bytes, 2), w3 = word(bytes, 3);
+            int idx = (int) index;
+            for (int slot = home(w3, idx); slots[slot] != 0; slot = (slot + 1) & mask) {
+                int e = slots[slot] - 1;
+                if (indexes[e] == idx && hashes[e * 4 + 3] == w3 && hashes[e * 4] == w0 &&
+                        hashes[e * 4 + 1] == w1 && hashes[e * 4 + 2] == w2)
+                    return slot;
+            }
+            return -1;
+        }
+
+        /** Returns the entry holding the given output, or -1. */
+        int find(Sha256Hash hash, long index) {
+            int slot = findSlot(hash, index);
+            return slot < 0 ? -1 : slots[slot] - 1;
+        }
+
+        StoredTransactionOutput get(Sha256Hash hash, long index) {
+            int e = find(hash, index);
+            if (e < 0)
+                return null;
+            // The raw height is stored, which the coinbase constructor keeps as it is.
+            return new StoredTransactionOutput(hash, index, BigInteger.valueOf(values[e]), heights[e], true,
+                    readScript(pages, scripts[e]));
+        }
+
+        void put(StoredTransactionOutput out) {
+            BigInteger value = out.getValue();
+            if (value.bitLength() > 63)
+                throw new IllegalArgumentException("Value out of range: " + value);
+            int e = find(out.getHash(), out.getIndex());
+            if (e >= 0) {
+                freeScript(scripts[e]);
+            } else {
+                if ((size + 1) * 4L > (mask + 1) * 3L)
+                    resize((mask + 1) * 2);
+                if (size == indexes.length)
+                    allocateEntries(size + (size >> 1));
+                e = size++;
+                byte[] bytes = out.getHash().getBytes();
+                hashes[e * 4] = word(bytes, 0);
+                hashes[e * 4 + 1] = word(bytes, 1);
+                hashes[e * 4 + 2] = word(bytes, 2);
+                hashes[e * 4 + 3] = word(bytes, 3);
+                indexes[e] = (int) out.getIndex();
+                int slot = homeOf(e);
+                while (slots[slot] != 0)
+                    slot = (slot + 1) & mask;
+                slots[slot] = e + 1;
+            }
+            heights[e] = out.getHeight();
+            values[e] = value.longValue();
+            scripts[e] = writeScript(out.getScriptBytes());
+            maybeCompactScripts();
+        }
+
+        boolean remove(Sha256Hash hash, long index) {
+            int slot = findSlot(hash, index);
+            if (slot < 0)
+                return false;
+            int e = slots[slot] - 1;
+            freeScript(scripts[e]);
+            removeSlot(slot);
+            // Keep the entries dense by moving the last one into the gap.
+            int last = --size;
+            if (e != last) {
+                int lastSlot = homeOf(last);
+                while (slots[lastSlot] != last + 1)
+                    lastSlot = (lastSlot + 1) & mask;
+                System.arraycopy(hashes, last * 4, hashes, e * 4, 4);
+                indexes[e] = indexes[last];
+                heights[e] = heights[last];
+                values[e] = values[last];
+                scripts[e] = scripts[last];
+                slots[lastSlot] = e + 1;
+            }
+            return true;
+        }
+
+        // Empties a slot, shifting later slots of the probe sequence back so that lookups never stop at the hole.
+        private void removeSlot(int hole) {
+            for (int next = (hole + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+                int want = homeOf(slots[next] - 1);
+                if (((next - want) & mask) >= ((next - hole) & mask)) {
+                    slots[hole] = slots[next];
+                    hole = next;
+                }
+            }
+            slots[hole] = 0;
+        }
+
+        private void resize(int capacity) {
+            slots = new int[capacity];
+            mask = capacity - 1;
+            for (int e = 0; e < size; e++) {
+                int slot = homeOf(e);
+                while (slots[slot] != 0)
+                    slot = (slot + 1) & mask;
+                slots[slot] = e + 1;
+            }
+        }
+
+        private static boolean isPayToAddress(byte[] s) {
+            return s.length == 25 && (s[0] & 0xFF) == 0x76 && (s[1] & 0xFF) == 0xA9 && s[2] == 20 &&
+                    (s[23] & 0xFF) == 0x88 && (s[24] & 0xFF) == 0xAC;
+        }
+
+        private static boolean isPayToScriptHash(byte[] s) {
+            return s.length == 23 && (s[0] & 0xFF) == 0xA9 && s[1] == 20 && (s[22] & 0xFF) == 0x87;
+        }
+
+        private long writeScript(byte[] script) {
+            int type, offset, length;
+            if (isPayToAddress(script)) {
+                type = SCRIPT_PAY_TO_ADDRESS;
+                offset = 3;
+                length = 20;
+            } else if (isPayToScriptHash(script)) {
+                type = SCRIPT_PAY_TO_SCRIPT_HASH;
+                offset = 2;
+                length = 20;
+            } else {
+                type = script.length < SCRIPT_PAY_TO_ADDRESS ? script.length : SCRIPT_LONG;
+                offset = 0;
+                length = script.length;
+            }
+            int encoded = (type == SCRIPT_LONG ? 5 : 1) + length;
+            byte[] page = pages.get(pages.size() - 1);
+            if (pageEnd + encoded > page.length) {
+                page = new byte[Math.max(PAGE_SIZE, encoded)];
+                pages.add(page);
+                pageEnd = 0;
+            }
+            long ref = (long) (pages.size() - 1) << 32 | pageEnd;
+            page[pageEnd++] = (byte) type;
+            if (type == SCRIPT_LONG) {
+                ByteBuffer.wrap(page, pageEnd, 4).putInt(length);
+                pageEnd += 4;
+            }
+            System.arraycopy(script, offset, page, pageEnd, length);
+            pageEnd += length;
+            scriptBytesUsed += encoded;
+            scriptBytesLive += encoded;
+            return ref;
+        }
+
+        private static byte[] readScript(List<byte[]> pages, long ref) {
+            byte[] page = pages.get((int) (ref >>> 32));
+            int offset = (int) ref;
+            int type = page[offset++] & 0xFF;
+            byte[] script;
+            if (type == SCRIPT_PAY_TO_ADDRESS) {
+                script = new byte[25];
+                script[0] = (byte) 0x76;
+                script[1] = (byte) 0xA9;
+                script[2] = 20;
+                System.arraycopy(page, offset, script, 3, 20);
+                script[23] = (byte) 0x88;
+                script[24] = (byte) 0xAC;
+            } else if (type == SCRIPT_PAY_TO_SCRIPT_HASH) {
+                script = new byte[23];
+                script[0] = (byte) 0xA9;
+                script[1] = 20;
+                System.arraycopy(page, offset, script, 2, 20);
+                script[22] = (byte) 0x87;
+            } else {
+                int length = type;
+                if (type == SCRIPT_LONG) {
+                    length = ByteBuffer.wrap(page, offset, 4).getInt();
+                    offset += 4;
+                }
+                script = new byte[length];
+                System.arraycopy(page, offset, script, 0, length);
+            }
+            return script;
+        }
+
+        private void freeScript(long ref) {
+            byte[] page = pages.get((int) (ref >>> 32));
+            int offset = (int) ref;
+            int type = page[offset] & 0xFF;
+            if (type == SCRIPT_PAY_TO_ADDRESS || type == SCRIPT_PAY_TO_SCRIPT_HASH)
+                scriptBytesLive -= 1 + 20;
+            else if (type == SCRIPT_LONG)
+                scriptBytesLive -= 5 + ByteBuffer.wrap(page, offset + 1, 4).getInt();
+            else
+                scriptBytesLive -= 1 + type;
+        }
+
+        // Copies the live scripts into new pages once at least half of the script space is garbage.
+        private void maybeCompactScripts() {
+            if (scriptBytesUsed < PAGE_SIZE || scriptBytesUsed < scriptBytesLive * 2)
+                return;
+            List<byte[]> oldPages = new ArrayList<byte[]>(pages);
+            pages.clear();
+            pages.add(new byte[PAGE_SIZE]);
+            pageEnd = 0;
+            scriptBytesUsed = 0;
+            scriptBytesLive = 0;
+            for (int e = 0; e < size; e++)
+                scripts[e] = writeScript(readScript(oldPages, scripts[e]));
+        }
+    }
+}
@@ -20,7 +20,10 @@ import com.google.bitcoin.core.*;
 import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.common.base.Preconditions;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
+import com.google.protobuf.WireFormat;
 import org.bitcoinj.wallet.Protos;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,8 +58,6 @@ import java.util.*;
 public class WalletProtobufSerializer {
     private static final Logger log = LoggerFactory.getLogger(WalletProtobufSerializer.class);
 
-    // Used for de-serialization
-    private Map<ByteString, Transaction> txMap;
     private WalletExtensionSerializer helper;
 
     // Temporary hack for migrating 0.5 wallets to 0.6 wallets. In 0.5 transactions stored the height at which they
@@ -65,7 +66,6 @@ public class WalletProtobufSerializer {
     private int chainHeight;
 
     public WalletProtobufSerializer() {
-        txMap = new HashMap<ByteString, Transaction>();
         helper = new WalletExtensionSerializer();
     }
 
@@ -253,27 +253,18 @@ public class WalletProtobufSerializer {
         
         // Read all keys
         for (Protos.Key keyProto : walletProto.getKeyList()) {
-            if (keyProto.getType() != Protos.Key.Type.ORIGINAL) {
-                throw new IllegalArgumentException("Unknown key type in wallet");
-            }
-            byte[] privKey = null;
-            if (keyProto.hasPrivateKey()) {
-                privKey = keyProto.getPrivateKey().toByteArray();
-            }
-            byte[] pubKey = keyProto.hasPublicKey() ? keyProto.getPublicKey().toByteArray() : null;
-            ECKey ecKey = new ECKey(privKey, pubKey);
-            ecKey.setCreationTimeSeconds((keyProto.getCreationTimestamp() + 500) / 1000);
-            wallet.addKey(ecKey);
+            wallet.addKey(readKey(keyProto));
         }
         
         // Read all transactions and insert into the txMap.
+        Map<ByteString, Transaction> txMap = new HashMap<ByteString, Transaction>();
         for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            readTransaction(txProto, params);
+            readTransaction(txProto, params, txMap);
         }
 
         // Update transaction outputs to point to inputs that spend them
         for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            WalletTransaction wtx = connectTransactionOutputs(txProto);
+            WalletTransaction wtx = connectTransactionOutputs(txProto, txMap);
             wallet.addWalletTransaction(wtx);
         }
         
@@ -291,6 +282,196 @@ public class WalletProtobufSerializer {
         return wallet;
     }
 
+    /**
+     * <p>Like {@link WalletProtobufSerializer#readWallet(java.io.InputStream)}, but streams through the serialized
+     * wallet instead of parsing it in one go, and only builds the keys and the transactions that can affect the
+     * balance: the unspent, pending and inactive pools, plus any spent transactions that spend their outputs. The rest
+     * of the spent and dead pools is kept as raw bytes and turned into {@link Transaction}s the first time the wallet
+     * needs them, see {@link Wallet.HistoryLoader}.</p>
+     *
+     * <p>So the time until {@link Wallet#getBalance()} can be answered depends on how many transactions are unspent or
+     * pending, rather than on the size of the wallets history. Unlike {@link Wallet#loadFromFile(java.io.File)} this
+     * does not check the wallet for consistency, as that would need the history.</p>
+     */
+    public Wallet readWalletLazily(InputStream input) throws IOException {
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        // Big wallets are the point of this method, so lift the default 64mb limit on the total size.
+        codedInput.setSizeLimit(Integer.MAX_VALUE);
+        String networkId = null;
+        Sha256Hash lastSeenBlockHash = null;
+        List<ECKey> keys = new ArrayList<ECKey>();
+        List<Protos.Extension> extensions = new ArrayList<Protos.Extension>();
+        // Transactions to build now, and the serialized form of those left for the history loader, both by hash.
+        Map<ByteString, Protos.Transaction> loadNow = new LinkedHashMap<ByteString, Protos.Transaction>();
+        Map<ByteString, ByteString> loadLater = new LinkedHashMap<ByteString, ByteString>();
+        // Which of those are dead rather than spent.
+        Set<ByteString> deadLater = new HashSet<ByteString>();
+        boolean done = false;
+        while (!done) {
+            int tag = codedInput.readTag();
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case 0:
+                    done = true;
+                    break;
+                case Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER:
+                    networkId = codedInput.readString();
+                    break;
+                case Protos.Wallet.LAST_SEEN_BLOCK_HASH_FIELD_NUMBER:
+                    lastSeenBlockHash = byteStringToHash(codedInput.readBytes());
+                    break;
+                case Protos.Wallet.KEY_FIELD_NUMBER:
+                    keys.add(readKey(Protos.Key.parseFrom(codedInput.readBytes())));
+                    break;
+                case Protos.Wallet.TRANSACTION_FIELD_NUMBER:
+                    ByteString txBytes = codedInput.readBytes();
+                    Protos.Transaction header = readTransactionHeader(txBytes);
+                    Protos.Transaction.Pool pool = header.getPool();
+                    if (pool == Protos.Transaction.Pool.SPENT || pool == Protos.Transaction.Pool.DEAD) {
+                        loadLater.put(header.getHash(), txBytes);
+                        if (pool == Protos.Transaction.Pool.DEAD)
+                            deadLater.add(header.getHash());
+                    } else
+                        loadNow.put(header.getHash(), Protos.Transaction.parseFrom(txBytes));
+                    break;
+                case Protos.Wallet.EXTENSION_FIELD_NUMBER:
+                    extensions.add(Protos.Extension.parseFrom(codedInput.readBytes()));
+                    break;
+                default:
+                    done = !codedInput.skipField(tag);
+                    break;
+            }
+        }
+        if (networkId == null)
+            throw new InvalidProtocolBufferException("Wallet has no network identifier");
+
+        // An output spent by a transaction we don't build would look available, and a dead transaction needs the one
+        // that overrode it, so pull those forward too, and whatever they in turn refer to.
+        LinkedList<Protos.Transaction> toCheck = new LinkedList<Protos.Transaction>(loadNow.values());
+        while (!toCheck.isEmpty()) {
+            Protos.Transaction txProto = toCheck.poll();
+            List<ByteString> referenced = new ArrayList<ByteString>();
+            for (Protos.TransactionOutput outputProto : txProto.getTransactionOutputList()) {
+                if (outputProto.hasSpentByTransactionHash())
+                    referenced.add(outputProto.getSpentByTransactionHash());
+            }
+            if (txProto.hasConfidence() && txProto.getConfidence().hasOverridingTransaction())
+                referenced.add(txProto.getConfidence().getOverridingTransaction());
+            for (ByteString hash : referenced) {
+                ByteString txBytes = loadLater.remove(hash);
+                if (txBytes == null)
+                    continue;
+                Protos.Transaction referencedProto = Protos.Transaction.parseFrom(txBytes);
+                loadNow.put(hash, referencedProto);
+                toCheck.add(referencedProto);
+            }
+        }
+
+        NetworkParameters params = NetworkParameters.fromID(networkId);
+        Wallet wallet = helper.newWallet(params);
+        for (ECKey key : keys) {
+            wallet.addKey(key);
+        }
+        Map<ByteString, Transaction> txMap = new HashMap<ByteString, Transaction>();
+        for (Protos.Transaction txProto : loadNow.values()) {
+            readTransaction(txProto, params, txMap);
+        }
+        for (Protos.Transaction txProto : loadNow.values()) {
+            wallet.addWalletTransaction(connectTransactionOutputs(txProto, txMap));
+        }
+        log.info("Loaded {} transactions, deferred {}", loadNow.size(), loadLater.size());
+        if (!loadLater.isEmpty())
+            wallet.setHistoryLoader(new DeferredHistoryLoader(params, txMap, loadLater, deadLater));
+        wallet.setLastBlockSeenHash(lastSeenBlockHash);
+
+        for (Protos.Extension extProto : extensions) {
+            helper.readExtension(wallet, extProto);
+        }
+        return wallet;
+    }
+
+    // Reads only the hash and pool of a serialized transaction, skipping over everything else.
+    private static Protos.Transaction readTransactionHeader(ByteString txBytes) throws IOException {
+        Protos.Transaction.Builder builder = Protos.Transaction.newBuilder();
+        CodedInputStream codedInput = txBytes.newCodedInput();
+        while (true) {
+            int tag = codedInput.readTag();
+            int field = WireFormat.getTagFieldNumber(tag);
+            if (field == 0) {
+                break;
+            } else if (field == Protos.Transaction.HASH_FIELD_NUMBER) {
+                builder.setHash(codedInput.readBytes());
+            } else if (field == Protos.Transaction.POOL_FIELD_NUMBER) {
+                Protos.Transaction.Pool pool = Protos.Transaction.Pool.valueOf(codedInput.readEnum());
+                if (pool != null)
+                    builder.setPool(pool);
+            } else if (!codedInput.skipField(tag)) {
+                break;
+            }
+        }
+        if (!builder.hasHash())
+            throw new InvalidProtocolBufferException("Transaction has no hash");
+        return builder.buildPartial();
+    }
+
+    /**
+     * Builds the spent and dead transactions {@link WalletProtobufSerializer#readWalletLazily(java.io.InputStream)}
+     * left out, and connects them to the ones that were loaded up front.
+     */
+    private class DeferredHistoryLoader implements Wallet.HistoryLoader {
+        private final NetworkParameters params;
+        private final Map<ByteString, Transaction> txMap;
+        private final Map<ByteString, ByteString> deferred;
+        private final Set<ByteString> dead;
+
+        DeferredHistoryLoader(NetworkParameters params, Map<ByteString, Transaction> txMap,
+                              Map<ByteString, ByteString> deferred, Set<ByteString> dead) {
+            this.params = params;
+            this.txMap = txMap;
+            this.deferred = deferred;
+            this.dead = dead;
+        }
+
+        public WalletTransaction.Pool getPool(Sha256Hash hash) {
+            ByteString key = hashToByteString(hash);
+            if (!deferred.containsKey(key))
+                return null;
+            return dead.contains(key) ? WalletTransaction.Pool.DEAD : WalletTransaction.Pool.SPENT;
+        }
+
+        public void loadHistory(Wallet wallet) {
+            long start = System.currentTimeMillis();
+            List<Protos.Transaction> txProtos = new ArrayList<Protos.Transaction>(deferred.size());
+            for (ByteString txBytes : deferred.values()) {
+                Protos.Transaction txProto;
+                try {
+                    txProto = Protos.Transaction.parseFrom(txBytes);
+                } catch (InvalidProtocolBufferException e) {
+                    throw new IllegalArgumentException("Could not parse deferred wallet transaction", e);
+                }
+                readTransaction(txProto, params, txMap);
+                txProtos.add(txProto);
+            }
+            for (Protos.Transaction txProto : txProtos) {
+                wallet.addWalletTransaction(connectTransactionOutputs(txProto, txMap));
+            }
+            log.info("Loaded {} deferred transactions in {} msec", txProtos.size(), System.currentTimeMillis() - start);
+        }
+    }
+
+    private static ECKey readKey(Protos.Key keyProto) {
+        if (keyProto.getType() != Protos.Key.Type.ORIGINAL) {
+            throw new IllegalArgumentException("Unknown key type in wallet");
+        }
+        byte[] privKey = null;
+        if (keyProto.hasPrivateKey()) {
+            privKey = keyProto.getPrivateKey().toByteArray();
+        }
+        byte[] pubKey = keyProto.hasPublicKey() ? keyProto.getPublicKey().toByteArray() : null;
+        ECKey ecKey = new ECKey(privKey, pubKey);
+        ecKey.setCreationTimeSeconds((keyProto.getCreationTimestamp() + 500) / 1000);
+        return ecKey;
+    }
+
     /**
      * Returns the loaded protocol buffer from the given byte stream. You normally want
      * {@link Wallet#loadFromFile(java.io.File)} instead - this method is designed for low level work involving the
@@ -300,7 +481,8 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(input);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) {
+    private void readTransaction(Protos.Transaction txProto, NetworkParameters params,
+                                 Map<ByteString, Transaction> txMap) {
         Transaction tx = new Transaction(params);
         if (txProto.hasUpdatedAt()) {
             tx.setUpdateTime(new Date(txProto.getUpdatedAt()));
@@ -343,7 +525,8 @@ public class WalletProtobufSerializer {
         txMap.put(txProto.getHash(), tx);
     }
 
-    private WalletTransaction connectTransactionOutputs(org.bitcoinj.wallet.Protos.Transaction txProto) {
+    private WalletTransaction connectTransactionOutputs(org.bitcoinj.wallet.Protos.Transaction txProto,
+                                                        Map<ByteString, Transaction> txMap) {
         Transaction tx = txMap.get(txProto.getHash());
         WalletTransaction.Pool pool = WalletTransaction.Pool.valueOf(txProto.getPool().getNumber());
         for (int i = 0 ; i < tx.getOutputs().size() ; i++) {
@@ -360,14 +543,14 @@ public class WalletProtobufSerializer {
         if (txProto.hasConfidence()) {
             Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
             TransactionConfidence confidence = tx.getConfidence();
-            readConfidence(tx, confidenceProto, confidence);
+            readConfidence(tx, confidenceProto, confidence, txMap);
         }
 
         return new WalletTransaction(pool, tx);
     }
 
     private void readConfidence(Transaction tx, Protos.TransactionConfidence confidenceProto,
-                                TransactionConfidence confidence) {
+                                TransactionConfidence confidence, Map<ByteString, Transaction> txMap) {
         // We are lenient here because tx confidence is not an essential part of the wallet.
         // If the tx has an unknown type of confidence, ignore.
         if (!confidenceProto.hasType()) {
@@ -24,7 +24,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -182,4 +185,45 @@ public class BlockTest {
         assertEquals(block.length, origBlockLen + tx.length);
         assertEquals(tx.length, origTxLength + 41); // - 1 + 40 + 1 + 1
     }
+
+    @Test
+    public void merkleTreeHashing() throws Exception {
+        // Every size of tree, hashed on one thread and split across several, must match the straightforward
+        // level by level calculation.
+        Random random = new Random(1);
+        int[] sizes = new int[80];
+        for (int i = 0; i < 75; i++)
+            sizes[i] = i + 1;
+        sizes[75] = 127;
+        sizes[76] = 128;
+        sizes[77] = 129;
+        sizes[78] = MerkleTreeHasher.PARALLEL_THRESHOLD;
+        sizes[79] = 3001;
+        for (int size : sizes) {
+            List<byte[]> leaves = new ArrayList<byte[]>();
+            byte[] tree = new byte[size * 32];
+            random.nextBytes(tree);
+            for (int i = 0; i < size; i++)
+                leaves.add(Arrays.copyOfRange(tree, i * 32, i * 32 + 32));
+            byte[] expected = referenceMerkleRoot(leaves);
+            for (int threads = 1; threads <= 5; threads++) {
+                byte[] copy = tree.clone();
+                MerkleTreeHasher.reduceTree(copy, size, threads);
+                assertTrue(size + " leaves on " + threads + " threads",
+                        Arrays.equals(expected, Arrays.copyOf(copy, 32)));
+            }
+        }
+    }
+
+    private static byte[] referenceMerkleRoot(List<byte[]> level) {
+        while (level.size() > 1) {
+            List<byte[]> parents = new ArrayList<byte[]>();
+            for (int left = 0; left < level.size(); left += 2) {
+                int right = Math.min(left + 1, level.size() - 1);
+                parents.add(Utils.doubleDigestTwoBuffers(level.get(left), 0, 32, level.get(right), 0, 32));
+            }
+            level = parents;
+        }
+        return level.get(0);
+    }
 }
@@ -479,6 +479,13 @@ public class ChainSplitTest {
         assertEquals(newWork3.add(extraWork), txns.get(2).getConfidence().getWorkDone());
     }
 
+    @Test
+    public void txConfidenceLevelsLazy() throws Exception {
+        // Same again, but with depth and work done derived from the chain head rather than updated on every block.
+        wallet.setLazyConfidenceDepth(true);
+        txConfidenceLevels();
+    }
+
     @Test
     public void coinbaseDeath() throws Exception {
         // Check that a coinbase tx is marked as dead after a reorg rather than inactive as normal non-double-spent transactions would be.
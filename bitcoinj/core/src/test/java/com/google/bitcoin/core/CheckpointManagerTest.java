@@ -0,0 +1,148 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CheckpointManagerTest {
+    private static final long WEEK = 7 * 24 * 60 * 60;
+
+    private NetworkParameters params;
+    private Address coinbaseTo;
+    private List<Block> blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        coinbaseTo = new ECKey().toAddress(params);
+        // A chain that is "fast" for the purposes of difficulty calculations, so the difficulty goes up at every
+        // transition.
+        blocks = new ArrayList<Block>();
+        blocks.add(params.genesisBlock);
+        Block.fakeClock = params.genesisBlock.getTimeSeconds();
+        for (int height = 1; height <= 30; height++) {
+            Block.fakeClock += 2;
+            Block block = blocks.get(height - 1).createNextBlock(coinbaseTo, Block.fakeClock);
+            if (height % params.interval == 0) {
+                block.setDifficultyTarget(new long[] { 0x201fFFFFL, 0x2007FFFFL, 0x2001FFFFL }[height / params.interval - 1]);
+                block.solve();
+            }
+            blocks.add(block);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Block.fakeClock = 0;
+    }
+
+    // Checkpoints at the first two transitions, with the chain work a chain that includes them gives them.
+    private List<StoredBlock> checkpoints() throws Exception {
+        BlockStore store = new MemoryBlockStore(params);
+        BlockChain chain = new BlockChain(params, new Wallet(params), store);
+        for (Block block : blocks.subList(1, 21))
+            assertTrue(chain.add(block));
+        return Arrays.asList(store.get(blocks.get(10).getHash()), store.get(blocks.get(20).getHash()));
+    }
+
+    private byte[] write(List<StoredBlock> checkpoints) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        CheckpointManager.write(params, checkpoints, bos);
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        List<StoredBlock> checkpoints = checkpoints();
+        CheckpointManager manager = new CheckpointManager(params, new ByteArrayInputStream(write(checkpoints)));
+        assertEquals(checkpoints, manager.getCheckpoints());
+        assertEquals(checkpoints.get(1).getChainWork(), manager.getCheckpoints().get(1).getChainWork());
+        assertEquals(checkpoints.get(0), manager.getCheckpointBefore(blocks.get(15).getTimeSeconds()));
+        assertEquals(checkpoints.get(1), manager.getCheckpointBefore(blocks.get(20).getTimeSeconds()));
+        StoredBlock genesis = manager.getCheckpointBefore(blocks.get(5).getTimeSeconds());
+        assertEquals(0, genesis.getHeight());
+        assertEquals(params.genesisBlock.getHash(), genesis.getHeader().getHash());
+    }
+
+    @Test
+    public void rejectsBadFiles() throws Exception {
+        byte[] data = write(checkpoints());
+        try {
+            new CheckpointManager(NetworkParameters.testNet(), new ByteArrayInputStream(data));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("not"));
+        }
+        // Flip a bit in the last header's timestamp.
+        byte[] corrupt = data.clone();
+        corrupt[corrupt.length - 80 + 68] ^= 1;
+        try {
+            new CheckpointManager(params, new ByteArrayInputStream(corrupt));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("hash"));
+        }
+        try {
+            CheckpointManager.write(params, Arrays.asList(new StoredBlock[] { checkpoints().get(0).build(blocks.get(11)) }),
+                    new ByteArrayOutputStream());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void chainFromCheckpoint() throws Exception {
+        byte[] data = write(checkpoints());
+        BlockStore store = new MemoryBlockStore(params);
+        // An unknown key creation time leaves the store alone.
+        assertEquals(0, CheckpointManager.checkpoint(params, new ByteArrayInputStream(data), store, 0).getHeight());
+        // Keys made after the second checkpoint start from it, and the next difficulty transition is still checked.
+        long keyTime = blocks.get(25).getTimeSeconds() + WEEK;
+        StoredBlock head = CheckpointManager.checkpoint(params, new ByteArrayInputStream(data), store, keyTime);
+        assertEquals(20, head.getHeight());
+        assertEquals(head, store.getChainHead());
+        BlockChain chain = new BlockChain(params, new Wallet(params), store);
+        for (Block block : blocks.subList(21, 30))
+            assertTrue(chain.add(block));
+        Block wrongDifficulty = blocks.get(29).createNextBlock(coinbaseTo, Block.fakeClock);
+        try {
+            chain.add(wrongDifficulty);
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("difficulty"));
+        }
+        assertTrue(chain.add(blocks.get(30)));
+        assertEquals(30, chain.getBestChainHeight());
+        // A store that is already past the checkpoint is left alone.
+        assertEquals(30, CheckpointManager.checkpoint(params, new ByteArrayInputStream(data), store, keyTime).getHeight());
+    }
+}
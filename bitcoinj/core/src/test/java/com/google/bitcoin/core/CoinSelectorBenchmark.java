@@ -0,0 +1,73 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how long coin selection takes as the number of unspent outputs in the wallet grows, for each of the
+ * bundled {@link CoinSelector}s. Not a unit test: run the main method by hand.
+ */
+public class CoinSelectorBenchmark {
+    private static final NetworkParameters params = NetworkParameters.unitTests();
+    private static final int ROUNDS = 200;
+
+    public static void main(String[] args) throws Exception {
+        CoinSelector[] selectors = {
+                new OldestFirstCoinSelector(), new ClosestValueCoinSelector(), new BranchAndBoundCoinSelector()
+        };
+        for (int size : new int[] { 100, 1000, 10000, 50000 }) {
+            Wallet wallet = createWallet(size);
+            long start = System.nanoTime();
+            UnspentOutputIndex index = wallet.getUnspentOutputIndex();
+            System.out.println(String.format("%d outputs: index built in %.2f msec", index.size(),
+                    (System.nanoTime() - start) / 1000000.0));
+            Random random = new Random(size);
+            for (CoinSelector selector : selectors) {
+                start = System.nanoTime();
+                int inputs = 0;
+                for (int i = 0; i < ROUNDS; i++) {
+                    BigInteger target = BigInteger.valueOf(1000000 + random.nextInt(50000000));
+                    List<TransactionOutput> candidates = index.getCandidates();
+                    inputs += selector.select(target, candidates).gathered.size();
+                }
+                System.out.println(String.format("  %-28s %8.3f msec/selection, %.1f inputs on average",
+                        selector.getClass().getSimpleName(), (System.nanoTime() - start) / 1000000.0 / ROUNDS,
+                        inputs / (double) ROUNDS));
+            }
+        }
+    }
+
+    // A wallet with one key and the given number of unspent single output transactions of random small values.
+    private static Wallet createWallet(int size) {
+        ECKey key = new ECKey();
+        Address address = key.toAddress(params);
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(key);
+        Random random = new Random(0);
+        for (int i = 0; i < size; i++) {
+            Transaction tx = new Transaction(params);
+            tx.addOutput(BigInteger.valueOf(10000 + random.nextInt(1000000)), address);
+            // Give every transaction a distinct hash.
+            tx.setLockTime(i);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+        return wallet;
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.bitcoin.core.TestUtils.createFakeBlock;
+import static com.google.bitcoin.core.TestUtils.createFakeTx;
+import static com.google.bitcoin.core.Utils.toNanoCoins;
+import static org.junit.Assert.*;
+
+public class CoinSelectorTest {
+    static final NetworkParameters params = NetworkParameters.unitTests();
+
+    private Address myAddress;
+    private List<TransactionOutput> candidates;
+
+    @Before
+    public void setUp() throws Exception {
+        myAddress = new ECKey().toAddress(params);
+        candidates = new ArrayList<TransactionOutput>();
+    }
+
+    // Candidates have to be added in ascending order of value, as the wallet would provide them.
+    private TransactionOutput candidate(long nanocoins) {
+        Transaction tx = new Transaction(params);
+        TransactionOutput output = new TransactionOutput(params, tx, BigInteger.valueOf(nanocoins), myAddress);
+        tx.addOutput(output);
+        candidates.add(output);
+        return output;
+    }
+
+    private static long sum(CoinSelection selection) {
+        long total = 0;
+        for (TransactionOutput output : selection.gathered)
+            total += output.getValue().longValue();
+        assertEquals(total, selection.valueGathered.longValue());
+        return total;
+    }
+
+    @Test
+    public void closestValuePrefersSingleLargerOutput() throws Exception {
+        candidate(1);
+        candidate(2);
+        candidate(5);
+        TransactionOutput ten = candidate(10);
+        candidate(50);
+        // 5 + 2 + 1 doesn't reach 9 so the smallest output above the target is used.
+        CoinSelection selection = new ClosestValueCoinSelector().select(BigInteger.valueOf(9), candidates);
+        assertEquals(1, selection.gathered.size());
+        assertSame(ten, selection.gathered.iterator().next());
+        // 5 + 2 is exactly 7, which beats spending the 10.
+        selection = new ClosestValueCoinSelector().select(BigInteger.valueOf(7), candidates);
+        assertEquals(7, sum(selection));
+        assertEquals(2, selection.gathered.size());
+    }
+
+    @Test
+    public void closestValueInsufficient() throws Exception {
+        candidate(1);
+        candidate(2);
+        CoinSelection selection = new ClosestValueCoinSelector().select(BigInteger.valueOf(4), candidates);
+        assertEquals(3, sum(selection));
+    }
+
+    @Test
+    public void branchAndBoundFindsExactMatch() throws Exception {
+        for (long v : new long[] { 3, 7, 11, 13, 17, 40 })
+            candidate(v);
+        CoinSelection selection = new BranchAndBoundCoinSelector().select(BigInteger.valueOf(31), candidates);
+        assertEquals(31, sum(selection));
+        // Nothing adds up to 2, so the fallback picks the closest value instead.
+        selection = new BranchAndBoundCoinSelector().select(BigInteger.valueOf(2), candidates);
+        assertEquals(3, sum(selection));
+    }
+
+    @Test
+    public void branchAndBoundCostOfChange() throws Exception {
+        candidate(10);
+        candidate(25);
+        BranchAndBoundCoinSelector selector =
+                new BranchAndBoundCoinSelector(BigInteger.valueOf(2), 1000, new OldestFirstCoinSelector());
+        assertEquals(25, sum(selector.select(BigInteger.valueOf(24), candidates)));
+        assertEquals(35, sum(selector.select(BigInteger.valueOf(30), candidates)));
+    }
+
+    @Test
+    public void oldestFirst() throws Exception {
+        TransactionOutput young = candidate(10);
+        TransactionOutput old = candidate(20);
+        young.parentTransaction.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        young.parentTransaction.getConfidence().setDepthInBlocks(1);
+        old.parentTransaction.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+        old.parentTransaction.getConfidence().setDepthInBlocks(100);
+        CoinSelection selection = new OldestFirstCoinSelector().select(BigInteger.valueOf(5), candidates);
+        assertEquals(1, selection.gathered.size());
+        assertSame(old, selection.gathered.iterator().next());
+    }
+
+    @Test
+    public void walletIndexTracksSpends() throws Exception {
+        ECKey key = new ECKey();
+        Address address = key.toAddress(params);
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(key);
+        BlockStore blockStore = new MemoryBlockStore(params);
+        for (int i = 1; i <= 3; i++) {
+            Transaction tx = createFakeTx(params, toNanoCoins(i, 0), address);
+            TestUtils.BlockPair bp = createFakeBlock(blockStore, tx);
+            wallet.receiveFromBlock(tx, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+            wallet.notifyNewBestBlock(bp.block);
+        }
+        assertEquals(3, wallet.getUnspentOutputIndex().size());
+        assertEquals(toNanoCoins(6, 0), wallet.getUnspentOutputIndex().getTotalValue());
+
+        // Spending exactly 3 coins leaves the 1 and 2 coin outputs behind.
+        Wallet.SendRequest req = Wallet.SendRequest.to(new ECKey().toAddress(params), toNanoCoins(3, 0));
+        req.coinSelector = new BranchAndBoundCoinSelector();
+        assertTrue(wallet.completeTx(req));
+        assertEquals(1, req.tx.getOutputs().size());
+        wallet.commitTx(req.tx);
+        assertEquals(toNanoCoins(3, 0), wallet.getUnspentOutputIndex().getTotalValue());
+        assertEquals(wallet.getBalance(), wallet.getUnspentOutputIndex().getTotalValue());
+    }
+
+    @Test
+    public void selectorChoosesChangeAddress() throws Exception {
+        ECKey key = new ECKey();
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(key);
+        BlockStore blockStore = new MemoryBlockStore(params);
+        Transaction tx = createFakeTx(params, toNanoCoins(2, 0), key.toAddress(params));
+        TestUtils.BlockPair bp = createFakeBlock(blockStore, tx);
+        wallet.receiveFromBlock(tx, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.notifyNewBestBlock(bp.block);
+
+        // Change goes where the selector says rather than to the wallet's fixed change address.
+        final ECKey changeKey = new ECKey();
+        wallet.addKey(changeKey);
+        Wallet.SendRequest req = Wallet.SendRequest.to(new ECKey().toAddress(params), toNanoCoins(1, 0));
+        req.coinSelector = new CoinSelector() {
+            public CoinSelection select(BigInteger target, List<TransactionOutput> candidates) {
+                CoinSelection selection = new OldestFirstCoinSelector().select(target, candidates);
+                return new CoinSelection(selection.valueGathered, selection.gathered, changeKey.toAddress(params));
+            }
+        };
+        assertTrue(wallet.completeTx(req));
+        assertEquals(changeKey.toAddress(params), req.tx.getOutput(1).getScriptPubKey().getToAddress());
+
+        // An address on the request itself still comes first.
+        Address requested = new ECKey().toAddress(params);
+        Wallet.SendRequest req2 = Wallet.SendRequest.to(new ECKey().toAddress(params), toNanoCoins(1, 0));
+        req2.coinSelector = req.coinSelector;
+        req2.changeAddress = requested;
+        assertTrue(wallet.completeTx(req2));
+        assertEquals(requested, req2.tx.getOutput(1).getScriptPubKey().getToAddress());
+    }
+}
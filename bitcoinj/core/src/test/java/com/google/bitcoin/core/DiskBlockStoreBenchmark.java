@@ -0,0 +1,86 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.DiskBlockStore;
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Measures how long a {@link DiskBlockStore} takes to open with a main chain sized set of headers, in the original
+ * format that stores bare headers and in the current one. The headers are generated on the unit test network as
+ * there is no way of getting the real ones here. Not a unit test: run the main method by hand, optionally passing the
+ * number of headers.
+ */
+public class DiskBlockStoreBenchmark {
+    private static final NetworkParameters params = NetworkParameters.unitTests();
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 250000;
+        // The unit test genesis block is timestamped when it's created and every block after is at least a second
+        // later, so move the clock forward to stop the later ones being rejected as too far in the future.
+        Block.fakeClock = System.currentTimeMillis() / 1000 + count;
+        File dir = Files.createTempDir();
+        File headersFile = new File(dir, "headers");
+        File storeFile = new File(dir, "store");
+        try {
+            System.out.println("Generating " + count + " headers");
+            writeHeadersFile(headersFile, count);
+            for (int i = 0; i < 3; i++) {
+                Files.copy(headersFile, storeFile);
+                long start = System.nanoTime();
+                DiskBlockStore store = new DiskBlockStore(params, storeFile);
+                double upgrade = (System.nanoTime() - start) / 1000000.0;
+                store.close();
+
+                start = System.nanoTime();
+                store = new DiskBlockStore(params, storeFile);
+                double load = (System.nanoTime() - start) / 1000000.0;
+                store.close();
+                System.out.println(String.format("Headers only: %.0f msec to open (including the upgrade), " +
+                        "hash, height and chain work saved: %.0f msec", upgrade, load));
+            }
+        } finally {
+            headersFile.delete();
+            storeFile.delete();
+            dir.delete();
+        }
+    }
+
+    // Writes a store in the original format: version 1, the chain head hash, then the headers.
+    private static void writeHeadersFile(File file, int count) throws Exception {
+        Address to = new ECKey().toAddress(params);
+        StoredBlock block = new StoredBlock(params.genesisBlock.cloneAsHeader(), params.genesisBlock.getWork(), 0);
+        byte[][] headers = new byte[count][];
+        headers[0] = block.getHeader().bitcoinSerialize();
+        for (int i = 1; i < count; i++) {
+            block = block.build(block.getHeader().createNextBlock(to).cloneAsHeader());
+            headers[i] = block.getHeader().bitcoinSerialize();
+        }
+        OutputStream stream = new BufferedOutputStream(new FileOutputStream(file));
+        stream.write(1);
+        stream.write(block.getHeader().getHash().getBytes());
+        for (byte[] header : headers)
+            stream.write(header);
+        stream.close();
+    }
+}
@@ -17,10 +17,16 @@
 package com.google.bitcoin.core;
 
 import org.junit.Test;
+import org.spongycastle.asn1.sec.SECNamedCurves;
+import org.spongycastle.asn1.x9.X9ECParameters;
 import org.spongycastle.util.encoders.Hex;
 
 import java.math.BigInteger;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import static com.google.bitcoin.core.Utils.reverseBytes;
 import static org.junit.Assert.*;
@@ -173,4 +179,42 @@ public class ECKeyTest {
         }
         assertTrue(found);
     }
+
+    @Test
+    public void publicKeysMatchBouncyCastle() throws Exception {
+        X9ECParameters curve = SECNamedCurves.getByName("secp256k1");
+        BigInteger n = curve.getN();
+        Random random = new Random(1);
+        List<BigInteger> privKeys = new ArrayList<BigInteger>();
+        privKeys.add(BigInteger.ONE);
+        privKeys.add(BigInteger.valueOf(16));
+        privKeys.add(n.subtract(BigInteger.ONE));
+        privKeys.add(n.shiftRight(1));
+        privKeys.add(BigInteger.ONE.shiftLeft(255));
+        for (int i = 0; i < 100; i++)
+            privKeys.add(new BigInteger(1 + random.nextInt(256), random).mod(n.subtract(BigInteger.ONE)).add(BigInteger.ONE));
+        for (BigInteger privKey : privKeys)
+            assertArrayEquals(curve.getG().multiply(privKey).getEncoded(), ECKey.publicKeyFromPrivate(privKey));
+        // Out of range keys give what they always did.
+        assertArrayEquals(curve.getG().multiply(n.add(BigInteger.ONE)).getEncoded(),
+                ECKey.publicKeyFromPrivate(n.add(BigInteger.ONE)));
+    }
+
+    @Test
+    public void generateKeys() throws Exception {
+        List<ECKey> keys = ECKey.generateKeys(20);
+        assertEquals(20, keys.size());
+        assertEquals(0, ECKey.generateKeys(0).size());
+        for (ECKey key : keys) {
+            assertTrue(key.isCompressed());
+            assertTrue(key.getCreationTimeSeconds() > 0);
+            byte[] uncompressed = ECKey.publicKeyFromPrivate(new BigInteger(1, key.getPrivKeyBytes()));
+            byte[] pub = key.getPubKey();
+            assertEquals(2 + (uncompressed[64] & 1), pub[0]);
+            assertArrayEquals(Arrays.copyOfRange(uncompressed, 1, 33), Arrays.copyOfRange(pub, 1, 33));
+            byte[] hash = Sha256Hash.create(key.getPubKey()).getBytes();
+            assertTrue(ECKey.verifyWithBouncyCastle(hash, key.sign(new Sha256Hash(hash)).encodeToDER(), key.getPubKey()));
+        }
+        assertTrue(new ECKey().isCompressed());
+    }
 }
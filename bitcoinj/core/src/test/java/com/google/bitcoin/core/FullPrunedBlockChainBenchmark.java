@@ -0,0 +1,53 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
+
+import java.util.List;
+
+/**
+ * Measures how quickly a {@link FullPrunedBlockChain} connects the blocks made by {@link FullBlockTestGenerator},
+ * including the invalid ones and the re-orgs, into a memory store. Not a unit test: run the main method by hand.
+ */
+public class FullPrunedBlockChainBenchmark {
+    public static void main(String[] args) throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        params.interval = 10000;
+        List<BlockAndValidity> blocks = new FullBlockTestGenerator(params).getBlocksToTest(true);
+        int inputs = 0;
+        for (BlockAndValidity block : blocks)
+            for (Transaction tx : block.block.getTransactions())
+                inputs += tx.getInputs().size();
+        for (int round = 0; round < 5; round++) {
+            FullPrunedBlockChain chain = new FullPrunedBlockChain(params, new MemoryFullPrunedBlockStore(params, 10));
+            long start = System.nanoTime();
+            for (BlockAndValidity block : blocks) {
+                try {
+                    chain.add(block.block);
+                } catch (VerificationException e) {
+                    // Some of the blocks are meant to be rejected.
+                }
+            }
+            double secs = (System.nanoTime() - start) / 1000000000.0;
+            System.out.println(String.format("%d blocks, %d inputs in %.2f s: %.0f blocks/sec, %.0f inputs/sec",
+                    blocks.size(), inputs, secs, blocks.size() / secs, inputs / secs));
+        }
+        System.exit(0);
+    }
+}
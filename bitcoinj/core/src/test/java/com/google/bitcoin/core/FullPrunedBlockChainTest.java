@@ -18,19 +18,26 @@
 package com.google.bitcoin.core;
 
 import com.google.bitcoin.core.Transaction.SigHash;
+import com.google.bitcoin.store.CachingFullPrunedBlockStore;
+import com.google.bitcoin.store.FlatFileFullPrunedBlockStore;
 import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.H2FullPrunedBlockStore;
 import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
 import com.google.bitcoin.utils.BriefLogFormatter;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -41,6 +48,9 @@ import static org.junit.Assert.fail;
 public class FullPrunedBlockChainTest {
     private static final Logger log = LoggerFactory.getLogger(FullPrunedBlockChainTest.class);
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     // The number of undoable blocks to keep around
     private static final int UNDOABLE_BLOCKS_STORED = 10;
     
@@ -60,6 +70,57 @@ public class FullPrunedBlockChainTest {
     
     @Test
     public void testGeneratedChain() throws Exception {
+        runGeneratedChain();
+    }
+
+    @Test
+    public void testGeneratedChainWithCachingStore() throws Exception {
+        // A tiny cache so that outputs are written back, evicted and re-read while blocks are connected and re-orged.
+        CachingFullPrunedBlockStore cachingStore = new CachingFullPrunedBlockStore(
+                new MemoryFullPrunedBlockStore(unitTestParams, UNDOABLE_BLOCKS_STORED), 5);
+        store = cachingStore;
+        chain = new FullPrunedBlockChain(unitTestParams, store);
+        runGeneratedChain();
+        cachingStore.flush();
+        assertTrue(cachingStore.getDirtyOutputCount() == 0);
+    }
+
+    @Test
+    public void testGeneratedChainWithFlatFileStore() throws Exception {
+        FlatFileFullPrunedBlockStore flatStore =
+                new FlatFileFullPrunedBlockStore(unitTestParams, folder.newFolder("flat"), UNDOABLE_BLOCKS_STORED);
+        store = flatStore;
+        chain = new FullPrunedBlockChain(unitTestParams, store);
+        try {
+            runGeneratedChain();
+            StoredBlock head = store.getVerifiedChainHead();
+            flatStore.close();
+            store = new FlatFileFullPrunedBlockStore(unitTestParams, new File(folder.getRoot(), "flat"), UNDOABLE_BLOCKS_STORED);
+            assertEquals(head, store.getVerifiedChainHead());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testGeneratedChainWithH2Store() throws Exception {
+        String path = new File(folder.getRoot(), "h2").getPath();
+        H2FullPrunedBlockStore h2Store = new H2FullPrunedBlockStore(unitTestParams, path, UNDOABLE_BLOCKS_STORED);
+        h2Store.setGroupCommitSize(3);
+        store = h2Store;
+        chain = new FullPrunedBlockChain(unitTestParams, store);
+        try {
+            runGeneratedChain();
+            StoredBlock head = store.getVerifiedChainHead();
+            h2Store.close();
+            store = new H2FullPrunedBlockStore(unitTestParams, path, UNDOABLE_BLOCKS_STORED);
+            assertEquals(head, store.getVerifiedChainHead());
+        } finally {
+            store.close();
+        }
+    }
+
+    private void runGeneratedChain() throws Exception {
         // Tests various test cases from FullBlockTestGenerator
         FullBlockTestGenerator generator = new FullBlockTestGenerator(unitTestParams);
         List<BlockAndValidity> blockList = generator.getBlocksToTest(false);
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Compares double SHA-256 hashes per second of block header, transaction and Merkle node sized inputs through a new
+ * MessageDigest per hash, as Utils used to, and through the thread's {@link Sha256Hasher}. Not a unit test: run the
+ * main method by hand.
+ */
+public class HashingBenchmark {
+    private static final int COUNT = 500000;
+    private static final int[] SIZES = {64, 80, 250};
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(1);
+        byte[] output = new byte[32];
+        for (int round = 0; round < 3; round++) {
+            for (int size : SIZES) {
+                byte[] input = new byte[size];
+                random.nextBytes(input);
+
+                long start = System.nanoTime();
+                for (int i = 0; i < COUNT; i++) {
+                    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                    digest.update(input, 0, size);
+                    digest.digest(digest.digest());
+                }
+                report("new MessageDigest", size, start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < COUNT; i++)
+                    Sha256Hasher.get().update(input, 0, size).doubleDigest();
+                report("Sha256Hasher", size, start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < COUNT; i++)
+                    Sha256Hasher.get().update(input, 0, size).doubleDigest(output, 0);
+                report("Sha256Hasher into array", size, start);
+            }
+        }
+    }
+
+    private static void report(String name, int size, long start) {
+        double secs = (System.nanoTime() - start) / 1000000000.0;
+        System.out.println(String.format("%24s, %3d bytes: %8.0f/sec", name, size, COUNT / secs));
+    }
+}
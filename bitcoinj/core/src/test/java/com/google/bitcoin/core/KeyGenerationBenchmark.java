@@ -0,0 +1,79 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import org.spongycastle.asn1.sec.SECNamedCurves;
+import org.spongycastle.asn1.x9.X9ECParameters;
+import org.spongycastle.crypto.generators.ECKeyPairGenerator;
+import org.spongycastle.crypto.params.ECDomainParameters;
+import org.spongycastle.crypto.params.ECKeyGenerationParameters;
+import org.spongycastle.crypto.params.ECPrivateKeyParameters;
+import org.spongycastle.crypto.signers.ECDSASigner;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * Compares keys generated and hashes signed per second through Bouncy Castle and through ECKey, which multiplies the
+ * generator from a precomputed table. Not a unit test: run the main method by hand.
+ */
+public class KeyGenerationBenchmark {
+    private static final int COUNT = 2000;
+
+    public static void main(String[] args) throws Exception {
+        X9ECParameters curve = SECNamedCurves.getByName("secp256k1");
+        ECDomainParameters params = new ECDomainParameters(curve.getCurve(), curve.getG(), curve.getN(), curve.getH());
+        SecureRandom random = new SecureRandom();
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.create(key.getPubKey());
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            ECKeyPairGenerator generator = new ECKeyPairGenerator();
+            generator.init(new ECKeyGenerationParameters(params, random));
+            for (int i = 0; i < COUNT; i++)
+                generator.generateKeyPair();
+            report("bouncy castle keys", start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < COUNT; i++)
+                new ECKey();
+            report("ECKey keys", start);
+
+            start = System.nanoTime();
+            ECKey.generateKeys(COUNT);
+            report("ECKey.generateKeys", start);
+
+            start = System.nanoTime();
+            ECDSASigner signer = new ECDSASigner();
+            signer.init(true, new ECPrivateKeyParameters(new BigInteger(1, key.getPrivKeyBytes()), params));
+            for (int i = 0; i < COUNT; i++)
+                signer.generateSignature(hash.getBytes());
+            report("bouncy castle signatures", start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < COUNT; i++)
+                key.sign(hash);
+            report("ECKey signatures", start);
+        }
+    }
+
+    private static void report(String name, long start) {
+        double secs = (System.nanoTime() - start) / 1000000000.0;
+        System.out.println(String.format("%26s: %8.0f/sec", name, COUNT / secs));
+    }
+}
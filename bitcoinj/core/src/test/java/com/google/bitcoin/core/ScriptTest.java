@@ -17,9 +17,14 @@
 package com.google.bitcoin.core;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -28,6 +33,9 @@ import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -67,6 +75,153 @@ public class ScriptTest {
         assertTrue(s.isSentToRawPubKey());
     }
     
+    @Test
+    public void nestedConditions() throws Exception {
+        // OP_ELSE inside a branch that isn't taken must not start running code.
+        Script empty = parseScriptString(params, "");
+        empty.correctlySpends(new Transaction(params), 0,
+                parseScriptString(params, "0 IF 1 IF RETURN ELSE RETURN ENDIF ELSE 1 ENDIF"), true);
+        empty.correctlySpends(new Transaction(params), 0,
+                parseScriptString(params, "1 IF 0 IF RETURN ELSE 1 ENDIF ENDIF"), true);
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            deep.append("0 NOTIF ");
+        deep.append("1 ");
+        for (int i = 0; i < 100; i++)
+            deep.append("ENDIF ");
+        empty.correctlySpends(new Transaction(params), 0, parseScriptString(params, deep.toString()), true);
+    }
+
+    @Test
+    public void failedScriptLeavesNothingBehind() throws Exception {
+        // Stacks are reused between scripts on the same thread, so a failure part way through must not leak into the
+        // next script.
+        Script empty = parseScriptString(params, "");
+        try {
+            parseScriptString(params, "1 2 3 TOALTSTACK 0 IF").correctlySpends(new Transaction(params), 0,
+                    parseScriptString(params, "RETURN"), true);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+        empty.correctlySpends(new Transaction(params), 0, parseScriptString(params, "DEPTH 0 EQUAL"), true);
+        try {
+            empty.correctlySpends(new Transaction(params), 0, parseScriptString(params, "FROMALTSTACK"), true);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void standardSpendsMatchInterpreter() throws Exception {
+        ECKey[] keys = { new ECKey(), new ECKey(), new ECKey(new BigInteger(1, Utils.doubleDigest(new byte[] { 1 }))) };
+        Transaction prev = new Transaction(params);
+        prev.addOutput(Utils.toNanoCoins(1, 0), keys[0]);
+        Transaction tx = new Transaction(params);
+        tx.addInput(prev.getOutput(0));
+        tx.addOutput(Utils.toNanoCoins(1, 0), keys[1]);
+
+        byte[] payToAddress = Script.createOutputScript(keys[0].toAddress(params));
+        checkStandardSpend(tx, Script.createInputScript(sign(tx, payToAddress, keys[0]), keys[0].getPubKey()),
+                payToAddress, true);
+        checkStandardSpend(tx, Script.createInputScript(sign(tx, payToAddress, keys[1]), keys[1].getPubKey()),
+                payToAddress, false);
+        checkStandardSpend(tx, Script.createInputScript(sign(tx, new byte[] { 1 }, keys[0]), keys[0].getPubKey()),
+                payToAddress, false);
+
+        byte[] payToKey = Script.createOutputScript(keys[2]);
+        checkStandardSpend(tx, Script.createInputScript(sign(tx, payToKey, keys[2])), payToKey, true);
+        checkStandardSpend(tx, Script.createInputScript(sign(tx, payToKey, keys[0])), payToKey, false);
+
+        UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream();
+        bos.write(Script.OP_2);
+        for (ECKey key : keys)
+            Script.writeBytes(bos, key.getPubKey());
+        bos.write(Script.OP_3);
+        bos.write(Script.OP_CHECKMULTISIG);
+        byte[] redeemScript = bos.toByteArray();
+        bos = new UnsafeByteArrayOutputStream();
+        bos.write(Script.OP_HASH160);
+        Script.writeBytes(bos, Utils.sha256hash160(redeemScript));
+        bos.write(Script.OP_EQUAL);
+        byte[] payToScriptHash = bos.toByteArray();
+        byte[][] sigs = new byte[3][];
+        for (int i = 0; i < 3; i++)
+            sigs[i] = sign(tx, redeemScript, keys[i]);
+        checkStandardSpend(tx, pushes(new byte[0], sigs[0], sigs[1], redeemScript), payToScriptHash, true);
+        checkStandardSpend(tx, pushes(new byte[0], sigs[0], sigs[2], redeemScript), payToScriptHash, true);
+        checkStandardSpend(tx, pushes(new byte[0], sigs[1], sigs[2], redeemScript), payToScriptHash, true);
+        // Signatures must be in the same order as the keys.
+        checkStandardSpend(tx, pushes(new byte[0], sigs[1], sigs[0], redeemScript), payToScriptHash, false);
+        checkStandardSpend(tx, pushes(new byte[0], sigs[0], sigs[0], redeemScript), payToScriptHash, false);
+        checkStandardSpend(tx, pushes(new byte[] { 1 }, sigs[2], sigs[2], redeemScript), payToScriptHash, false);
+        byte[] otherRedeemScript = redeemScript.clone();
+        otherRedeemScript[0] = (byte) Script.OP_1;
+        checkStandardSpend(tx, pushes(new byte[0], sigs[0], otherRedeemScript), payToScriptHash, false);
+        // Before P2SH only the hash of the redeem script is checked.
+        Script scriptSig = new Script(params, pushes(new byte[0], sigs[1], sigs[0], redeemScript), 0,
+                pushes(new byte[0], sigs[1], sigs[0], redeemScript).length);
+        correctlySpends(scriptSig, tx, 0, new Script(params, payToScriptHash, 0, payToScriptHash.length), false);
+    }
+
+    private static byte[] sign(Transaction tx, byte[] connectedScript, ECKey key) throws Exception {
+        Sha256Hash hash = tx.hashTransactionForSignature(0, connectedScript, Transaction.SigHash.ALL, false);
+        byte[] der = key.sign(hash).encodeToDER();
+        byte[] sig = Arrays.copyOf(der, der.length + 1);
+        sig[der.length] = (byte) (Transaction.SigHash.ALL.ordinal() + 1);
+        return sig;
+    }
+
+    private static byte[] pushes(byte[]... items) throws Exception {
+        UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream();
+        for (byte[] item : items)
+            Script.writeBytes(bos, item);
+        return bos.toByteArray();
+    }
+
+    // Checks that the spend is one the fast path decides, and that it decides it the same way as the interpreter.
+    private static void checkStandardSpend(Transaction tx, byte[] scriptSigBytes, byte[] scriptPubKeyBytes,
+                                           boolean valid) throws Exception {
+        try {
+            assertTrue(ScriptTemplates.correctlySpends(tx, 0, scriptSigBytes, scriptPubKeyBytes, true));
+            assertTrue(valid);
+        } catch (ScriptException e) {
+            assertFalse(valid);
+        }
+        Script scriptSig = new Script(params, scriptSigBytes, 0, scriptSigBytes.length);
+        try {
+            correctlySpends(scriptSig, tx, 0, new Script(params, scriptPubKeyBytes, 0, scriptPubKeyBytes.length), true);
+            assertTrue(valid);
+        } catch (ScriptException e) {
+            assertFalse(valid);
+        }
+    }
+
+    /**
+     * Checks the spend both with {@link Script#correctlySpends(NetworkParameters, Transaction, long, byte[], byte[],
+     * boolean)}, which takes the fast path for standard scripts, and by running the scripts, and that both give the
+     * same result. Throws the interpreter's exception if there is one.
+     */
+    private static void correctlySpends(Script scriptSig, Transaction tx, int index, Script scriptPubKey,
+                                        boolean enforceP2SH) throws ScriptException {
+        ScriptException expected = null;
+        try {
+            scriptSig.runScripts(tx, index, scriptPubKey, enforceP2SH);
+        } catch (ScriptException e) {
+            expected = e;
+        }
+        try {
+            Script.correctlySpends(params, tx, index, scriptSig.program, scriptPubKey.program, enforceP2SH);
+            assertNull(expected);
+        } catch (ScriptException e) {
+            assertNotNull(expected);
+            assertEquals(expected.getMessage(), e.getMessage());
+        }
+        if (expected != null)
+            throw expected;
+    }
+
     static HashMap<String, Integer> mapOpNames;
     private Script parseScriptString(NetworkParameters params, String string) throws Exception {
         if (mapOpNames == null) {
@@ -115,6 +270,53 @@ public class ScriptTest {
         return new Script(params, out.toByteArray(), 0, out.size());
     }
     
+    @Test
+    public void sigOpCounts() throws Exception {
+        int checkSig = Script.OP_CHECKSIG, multiSig = Script.OP_CHECKMULTISIG;
+        assertEquals(1, Script.getSigOpCount(Hex.decode(pubkeyProg)));
+        assertEquals(21, Script.getSigOpCount(new byte[] {(byte) checkSig, Script.OP_1, (byte) multiSig}));
+        // Opcode values inside pushes don't count.
+        assertEquals(0, Script.getSigOpCount(new byte[] {2, (byte) checkSig, (byte) multiSig}));
+        assertEquals(1, Script.getSigOpCount(new byte[] {Script.OP_PUSHDATA1, 1, (byte) checkSig, (byte) checkSig}));
+        assertEquals(1, Script.getSigOpCount(new byte[] {Script.OP_PUSHDATA2, 1, 0, (byte) multiSig, (byte) checkSig}));
+        assertEquals(1, Script.getSigOpCount(new byte[] {Script.OP_PUSHDATA4, 1, 0, 0, 0, 0, (byte) checkSig}));
+        // Counting stops where a push runs off the end, as parsing does.
+        assertEquals(1, Script.getSigOpCount(new byte[] {(byte) checkSig, 3, (byte) checkSig}));
+        assertEquals(1, Script.getSigOpCount(new byte[] {(byte) checkSig, Script.OP_PUSHDATA1}));
+        assertEquals(1, Script.getSigOpCount(new byte[] {(byte) checkSig, Script.OP_PUSHDATA2, 1}));
+        assertEquals(0, Script.getSigOpCount(new byte[] {Script.OP_PUSHDATA4, 0, 0, 0, (byte) 0x80, (byte) checkSig}));
+    }
+
+    @Test
+    public void storedOutputTemplates() throws Exception {
+        assertEquals(ScriptTemplates.PAY_TO_PUBKEY_HASH, storedOutput(Hex.decode(pubkeyProg)).getScriptTemplate());
+        byte[] payToPubKey = Script.createOutputScript(new ECKey());
+        assertEquals(ScriptTemplates.PAY_TO_PUBKEY, storedOutput(payToPubKey).getScriptTemplate());
+        byte[] payToScriptHash = new byte[23];
+        payToScriptHash[0] = (byte) Script.OP_HASH160;
+        payToScriptHash[1] = 20;
+        payToScriptHash[22] = (byte) Script.OP_EQUAL;
+        assertEquals(ScriptTemplates.PAY_TO_SCRIPT_HASH, storedOutput(payToScriptHash).getScriptTemplate());
+        assertEquals(ScriptTemplates.NONSTANDARD, storedOutput(new byte[] {Script.OP_1}).getScriptTemplate());
+
+        // Outputs read back from a store are classified as they're built.
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        storedOutput(payToScriptHash).serializeToStream(bos);
+        StoredTransactionOutput read = new StoredTransactionOutput(new ByteArrayInputStream(bos.toByteArray()));
+        assertEquals(ScriptTemplates.PAY_TO_SCRIPT_HASH, read.getScriptTemplate());
+        bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(storedOutput(payToPubKey));
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        read = (StoredTransactionOutput) ois.readObject();
+        assertEquals(ScriptTemplates.PAY_TO_PUBKEY, read.getScriptTemplate());
+    }
+
+    private static StoredTransactionOutput storedOutput(byte[] scriptBytes) {
+        return new StoredTransactionOutput(Sha256Hash.ZERO_HASH, 0, BigInteger.ONE, 1, false, scriptBytes);
+    }
+
     @Test
     public void dataDrivenValidScripts() throws Exception {
         BufferedReader in = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("script_valid.json")));
@@ -134,7 +336,7 @@ public class ScriptTest {
                 Script scriptSig = parseScriptString(params, scripts[0].replaceAll("[\"\\[\\]]", "").trim());
                 Script scriptPubKey = parseScriptString(params, scripts[1].replaceAll("[\"\\[\\]]", "").trim());
 
-                scriptSig.correctlySpends(new Transaction(params), 0, scriptPubKey, true);
+                correctlySpends(scriptSig, new Transaction(params), 0, scriptPubKey, true);
                 script = "";
             }
         }
@@ -160,7 +362,7 @@ public class ScriptTest {
                     Script scriptSig = parseScriptString(params, scripts[0].replaceAll("[\"\\[\\]]", "").trim());
                     Script scriptPubKey = parseScriptString(params, scripts[1].replaceAll("[\"\\[\\]]", "").trim());
 
-                    scriptSig.correctlySpends(new Transaction(params), 0, scriptPubKey, true);
+                    correctlySpends(scriptSig, new Transaction(params), 0, scriptPubKey, true);
                     fail();
                 } catch (VerificationException e) {}
                 script = "";
@@ -297,7 +499,7 @@ public class ScriptTest {
                     if (input.getOutpoint().getIndex() == 0xffffffffL)
                         input.getOutpoint().setIndex(-1);
                     assertTrue(scriptPubKeys.containsKey(input.getOutpoint()));
-                    input.getScriptSig().correctlySpends(transaction, i, scriptPubKeys.get(input.getOutpoint()), enforceP2SH);
+                    correctlySpends(input.getScriptSig(), transaction, i, scriptPubKeys.get(input.getOutpoint()), enforceP2SH);
                 }
                 tx.clear();
             }
@@ -359,7 +561,7 @@ public class ScriptTest {
                     TransactionInput input = transaction.getInputs().get(i);
                     assertTrue(scriptPubKeys.containsKey(input.getOutpoint()));
                     try {
-                        input.getScriptSig().correctlySpends(transaction, i, scriptPubKeys.get(input.getOutpoint()), enforceP2SH);
+                        correctlySpends(input.getScriptSig(), transaction, i, scriptPubKeys.get(input.getOutpoint()), enforceP2SH);
                     } catch (VerificationException e) {
                         valid = false;
                     }
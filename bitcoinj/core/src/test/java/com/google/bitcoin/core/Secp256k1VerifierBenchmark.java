@@ -0,0 +1,66 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.util.Random;
+
+/**
+ * Compares signature checks per second through Bouncy Castle and through {@link Secp256k1Verifier}, once with a
+ * small set of keys that stay in the verifier's key cache and once with a new key for every signature. Not a unit
+ * test: run the main method by hand.
+ */
+public class Secp256k1VerifierBenchmark {
+    private static final int SIGNATURES = 2000;
+    private static final int CACHED_KEYS = 10;
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(1);
+        byte[][] hashes = new byte[SIGNATURES][32], signatures = new byte[SIGNATURES][];
+        byte[][] freshKeys = new byte[SIGNATURES][], cachedKeys = new byte[SIGNATURES][];
+        byte[][] cachedSignatures = new byte[SIGNATURES][];
+        ECKey[] keys = new ECKey[CACHED_KEYS];
+        for (int i = 0; i < CACHED_KEYS; i++)
+            keys[i] = new ECKey();
+        for (int i = 0; i < SIGNATURES; i++) {
+            random.nextBytes(hashes[i]);
+            ECKey key = new ECKey();
+            freshKeys[i] = key.getPubKey();
+            signatures[i] = key.sign(new Sha256Hash(hashes[i])).encodeToDER();
+            cachedKeys[i] = keys[i % CACHED_KEYS].getPubKey();
+            cachedSignatures[i] = keys[i % CACHED_KEYS].sign(new Sha256Hash(hashes[i])).encodeToDER();
+        }
+        for (int round = 0; round < 3; round++) {
+            run("bouncy castle, fresh keys", false, hashes, signatures, freshKeys);
+            run("verifier, fresh keys", true, hashes, signatures, freshKeys);
+            run("bouncy castle, cached keys", false, hashes, cachedSignatures, cachedKeys);
+            run("verifier, cached keys", true, hashes, cachedSignatures, cachedKeys);
+        }
+    }
+
+    private static void run(String name, boolean fast, byte[][] hashes, byte[][] signatures, byte[][] keys) {
+        long start = System.nanoTime();
+        for (int i = 0; i < hashes.length; i++) {
+            boolean valid = fast ? Secp256k1Verifier.verify(hashes[i], signatures[i], keys[i])
+                    : ECKey.verifyWithBouncyCastle(hashes[i], signatures[i], keys[i]);
+            if (!valid)
+                throw new IllegalStateException("Signature " + i + " did not verify");
+        }
+        double secs = (System.nanoTime() - start) / 1000000000.0;
+        System.out.println(String.format("%28s: %8.0f signatures/sec", name, hashes.length / secs));
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import org.junit.Test;
+import org.spongycastle.asn1.sec.SECNamedCurves;
+import org.spongycastle.asn1.x9.X9ECParameters;
+import org.spongycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class Secp256k1VerifierTest {
+    private static final BigInteger P = Secp256k1Field.P;
+    private static final X9ECParameters curve = SECNamedCurves.getByName("secp256k1");
+    private final Random random = new Random(1);
+
+    @Test
+    public void fieldArithmetic() throws Exception {
+        BigInteger[] special = { BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(977), P.subtract(BigInteger.ONE),
+                P.subtract(BigInteger.valueOf(2)), BigInteger.ONE.shiftLeft(255), BigInteger.ONE.shiftLeft(32),
+                P.shiftRight(1) };
+        for (int i = 0; i < 2000; i++) {
+            BigInteger a = i < special.length * special.length ? special[i % special.length] : randomElement();
+            BigInteger b = i < special.length * special.length ? special[i / special.length] : randomElement();
+            int[] x = Secp256k1Field.fromBigInteger(a), y = Secp256k1Field.fromBigInteger(b);
+            int[] r = Secp256k1Field.newElement();
+            Secp256k1Field.add(r, x, y);
+            assertEquals(a.add(b).mod(P), Secp256k1Field.toBigInteger(r));
+            Secp256k1Field.sub(r, x, y);
+            assertEquals(a.subtract(b).mod(P), Secp256k1Field.toBigInteger(r));
+            Secp256k1Field.mul(r, x, y);
+            assertEquals(a.multiply(b).mod(P), Secp256k1Field.toBigInteger(r));
+            Secp256k1Field.mulSmall(r, x, 8);
+            assertEquals(a.shiftLeft(3).mod(P), Secp256k1Field.toBigInteger(r));
+            Secp256k1Field.negate(r, x);
+            assertEquals(a.negate().mod(P), Secp256k1Field.toBigInteger(r));
+            if (a.signum() != 0) {
+                Secp256k1Field.invert(r, x);
+                assertEquals(a.modInverse(P), Secp256k1Field.toBigInteger(r));
+            }
+            boolean hasRoot = Secp256k1Field.sqrt(r, x);
+            assertEquals(a.modPow(P.subtract(BigInteger.ONE).shiftRight(1), P).compareTo(BigInteger.ONE) <= 0, hasRoot);
+            if (hasRoot)
+                assertEquals(a, Secp256k1Field.toBigInteger(r).pow(2).mod(P));
+        }
+        byte[] tooBig = new byte[32];
+        Arrays.fill(tooBig, (byte) 0xff);
+        assertNull(Secp256k1Field.fromBytes(tooBig, 0));
+    }
+
+    @Test
+    public void endomorphism() throws Exception {
+        ECPoint lambdaG = curve.getG().multiply(Secp256k1.LAMBDA);
+        int[] betaX = Secp256k1Field.newElement();
+        Secp256k1Field.mul(betaX, Secp256k1.GX, Secp256k1.BETA);
+        assertEquals(lambdaG.getX().toBigInteger(), Secp256k1Field.toBigInteger(betaX));
+        assertEquals(lambdaG.getY().toBigInteger(), Secp256k1Field.toBigInteger(Secp256k1.GY));
+        for (int i = 0; i < 1000; i++) {
+            BigInteger k = new BigInteger(256, random).mod(Secp256k1.N);
+            BigInteger[] split = Secp256k1.split(k);
+            assertEquals(k, split[0].add(split[1].multiply(Secp256k1.LAMBDA)).mod(Secp256k1.N));
+            assertTrue(split[0].abs().bitLength() <= 129);
+            assertTrue(split[1].abs().bitLength() <= 129);
+        }
+    }
+
+    @Test
+    public void generatorMultiples() throws Exception {
+        // Scalars with zero and full four bit windows at either end, as well as random ones.
+        BigInteger[] special = { BigInteger.ONE, BigInteger.valueOf(15), BigInteger.valueOf(16),
+                BigInteger.valueOf(0x10001), BigInteger.ONE.shiftLeft(252),
+                BigInteger.ONE.shiftLeft(255).subtract(BigInteger.ONE), Secp256k1.N.subtract(BigInteger.ONE),
+                Secp256k1.N.shiftRight(1) };
+        for (int i = 0; i < 100; i++) {
+            BigInteger k = i < special.length ? special[i] : new BigInteger(256, random).mod(Secp256k1.N);
+            ECPoint expected = curve.getG().multiply(k);
+            int[][] affine = Secp256k1.toAffine(new Secp256k1.JacobianPoint[] { Secp256k1.multiplyG(k) });
+            assertEquals(expected.getX().toBigInteger(), Secp256k1Field.toBigInteger(affine[0]));
+            assertEquals(expected.getY().toBigInteger(), Secp256k1Field.toBigInteger(affine[1]));
+        }
+    }
+
+    @Test
+    public void wnaf() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            BigInteger k = new BigInteger(1 + random.nextInt(256), random);
+            int window = 2 + random.nextInt(7);
+            byte[] digits = Secp256k1.wnaf(k, window);
+            BigInteger sum = BigInteger.ZERO;
+            int lastNonZero = -window;
+            for (int bit = 0; bit < digits.length; bit++) {
+                if (digits[bit] == 0)
+                    continue;
+                assertTrue(digits[bit] % 2 != 0);
+                assertTrue(Math.abs(digits[bit]) < 1 << (window - 1));
+                assertTrue(bit - lastNonZero >= window);
+                lastNonZero = bit;
+                sum = sum.add(BigInteger.valueOf(digits[bit]).shiftLeft(bit));
+            }
+            assertEquals(k, sum);
+        }
+    }
+
+    @Test
+    public void matchesBouncyCastle() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            // Compressed and uncompressed keys.
+            ECKey key = i % 2 == 0 ? new ECKey() : new ECKey(new BigInteger(256, random).mod(Secp256k1.N));
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            byte[] signature = key.sign(new Sha256Hash(hash)).encodeToDER();
+            assertTrue(ECKey.verify(hash, signature, key.getPubKey()));
+            check(hash, signature, key.getPubKey());
+            byte[] otherHash = hash.clone();
+            otherHash[random.nextInt(32)] ^= 1 << random.nextInt(8);
+            check(otherHash, signature, key.getPubKey());
+            byte[] otherSignature = signature.clone();
+            otherSignature[otherSignature.length - 1 - random.nextInt(20)] ^= 1;
+            check(hash, otherSignature, key.getPubKey());
+            check(hash, signature, new ECKey().getPubKey());
+            // Hashes that aren't 32 bytes are cut down or used as they are, as Bouncy Castle does.
+            check(Arrays.copyOf(hash, 40), signature, key.getPubKey());
+            check(Arrays.copyOf(hash, 20), signature, key.getPubKey());
+        }
+    }
+
+    @Test
+    public void oddInputsMatchBouncyCastle() throws Exception {
+        ECKey key = new ECKey();
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        ECKey.ECDSASignature sig = key.sign(new Sha256Hash(hash));
+        byte[] der = sig.encodeToDER();
+        byte[] pub = key.getPubKey();
+        byte[] uncompressed = new ECKey(new BigInteger(256, random)).getPubKey();
+
+        // Signatures that are out of range or encoded in other ways.
+        check(hash, new ECKey.ECDSASignature(BigInteger.ZERO, sig.s).encodeToDER(), pub);
+        check(hash, new ECKey.ECDSASignature(sig.r, BigInteger.ZERO).encodeToDER(), pub);
+        check(hash, new ECKey.ECDSASignature(sig.r.add(Secp256k1.N), sig.s).encodeToDER(), pub);
+        check(hash, new ECKey.ECDSASignature(sig.r, sig.s.add(Secp256k1.N)).encodeToDER(), pub);
+        check(hash, new ECKey.ECDSASignature(sig.r, Secp256k1.N.subtract(sig.s)).encodeToDER(), pub);
+        byte[] trailing = Arrays.copyOf(der, der.length + 1);
+        check(hash, trailing, pub);
+        byte[] negativeR = padR(der, (byte) 0xff);
+        check(hash, negativeR, pub);
+        check(hash, padR(der, (byte) 0), pub);
+        byte[] longForm = new byte[der.length + 1];
+        longForm[0] = 0x30;
+        longForm[1] = (byte) 0x81;
+        System.arraycopy(der, 1, longForm, 2, der.length - 1);
+        check(hash, longForm, pub);
+        check(hash, new byte[0], pub);
+        check(hash, new byte[] { 0x30, 0 }, pub);
+        check(hash, Arrays.copyOf(der, der.length - 1), pub);
+        byte[] wrongTag = der.clone();
+        wrongTag[0] = 0x31;
+        check(hash, wrongTag, pub);
+
+        // Keys that are off the curve, too big, badly sized or in the hybrid form.
+        byte[] offCurve = uncompressed.clone();
+        offCurve[64] ^= 1;
+        check(hash, der, offCurve);
+        byte[] tooBig = pub.clone();
+        Arrays.fill(tooBig, 1, 33, (byte) 0xff);
+        check(hash, der, tooBig);
+        byte[] noRoot = pub.clone();
+        for (int i = 0; Secp256k1.decompress(Secp256k1Field.fromBytes(noRoot, 1), false) != null; i++)
+            noRoot[32] = (byte) i;
+        check(hash, der, noRoot);
+        check(hash, der, Arrays.copyOf(pub, 34));
+        check(hash, der, Arrays.copyOf(pub, 32));
+        byte[] hybrid = uncompressed.clone();
+        hybrid[0] = (byte) (6 + (uncompressed[64] & 1));
+        check(hash, der, hybrid);
+        check(hash, der, new byte[] { 0 });
+    }
+
+    @Test
+    public void batch() throws Exception {
+        ECKey key = new ECKey();
+        byte[][] hashes = new byte[4][32], signatures = new byte[4][], keys = new byte[4][];
+        for (int i = 0; i < 4; i++) {
+            random.nextBytes(hashes[i]);
+            signatures[i] = key.sign(new Sha256Hash(hashes[i])).encodeToDER();
+            keys[i] = key.getPubKey();
+        }
+        hashes[1][0] ^= 1;
+        signatures[2] = new byte[] { 1, 2, 3 };
+        keys[3] = new byte[] { 9 };
+        boolean[] results = Secp256k1Verifier.verify(hashes, signatures, keys);
+        assertTrue(results[0]);
+        assertFalse(results[1]);
+        assertFalse(results[2]);
+        assertFalse(results[3]);
+        assertEquals(0, Secp256k1Verifier.verify(new byte[0][], new byte[0][], new byte[0][]).length);
+    }
+
+    private static byte[] padR(byte[] der, byte pad) {
+        byte[] padded = new byte[der.length + 1];
+        padded[0] = 0x30;
+        padded[1] = (byte) (der[1] + 1);
+        padded[2] = 0x02;
+        padded[3] = (byte) (der[3] + 1);
+        padded[4] = pad;
+        System.arraycopy(der, 4, padded, 5, der.length - 4);
+        return padded;
+    }
+
+    private BigInteger randomElement() {
+        return new BigInteger(256, random).mod(P);
+    }
+
+    // Both ways of checking must give the same answer, or throw the same kind of exception.
+    private static void check(byte[] hash, byte[] signature, byte[] pub) {
+        assertEquals(outcome(hash, signature, pub, true), outcome(hash, signature, pub, false));
+    }
+
+    private static String outcome(byte[] hash, byte[] signature, byte[] pub, boolean fast) {
+        try {
+            return String.valueOf(fast ? Secp256k1Verifier.verify(hash, signature, pub)
+                    : ECKey.verifyWithBouncyCastle(hash, signature, pub));
+        } catch (Exception e) {
+            return e.getClass().getName();
+        }
+    }
+}
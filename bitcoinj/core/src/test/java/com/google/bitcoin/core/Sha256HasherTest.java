@@ -0,0 +1,76 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Sha256HasherTest {
+    private static final byte[] ABC = new byte[] {'a', 'b', 'c'};
+    private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+    private static final String ABC_DOUBLE_SHA256 = "4f8b42c22dd3729b519ba6f68d2da7cc5b2d606d05daed5ad5128cc03e6c6358";
+
+    @Test
+    public void knownHashes() throws Exception {
+        assertEquals(ABC_SHA256, Utils.bytesToHexString(Sha256Hasher.get().update(ABC).digest()));
+        assertEquals(ABC_DOUBLE_SHA256, Utils.bytesToHexString(Sha256Hasher.get().update(ABC).doubleDigest()));
+        // Fed in pieces.
+        byte[] hash = Sha256Hasher.get().update((byte) 'a').update(new byte[] {'x', 'b', 'c'}, 1, 2).digest();
+        assertEquals(ABC_SHA256, Utils.bytesToHexString(hash));
+        assertEquals(ABC_DOUBLE_SHA256, Sha256Hash.createDouble(ABC).toString());
+        assertEquals(ABC_SHA256, Sha256Hash.create(ABC).toString());
+    }
+
+    @Test
+    public void byteBuffers() throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {'x', 'a', 'b', 'c', 'x'});
+        buffer.position(1);
+        buffer.limit(4);
+        assertEquals(ABC_SHA256, Utils.bytesToHexString(Sha256Hasher.get().update(buffer).digest()));
+        assertEquals(4, buffer.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(ABC);
+        direct.flip();
+        assertEquals(ABC_DOUBLE_SHA256, Utils.bytesToHexString(Sha256Hasher.get().update(direct).doubleDigest()));
+    }
+
+    @Test
+    public void digestsIntoArrays() throws Exception {
+        byte[] output = new byte[40];
+        Sha256Hasher.get().update(ABC).digest(output, 4);
+        assertTrue(Arrays.equals(Hex.decode(ABC_SHA256), Arrays.copyOfRange(output, 4, 36)));
+        // The hash may be written over its own input.
+        byte[] buffer = new byte[35];
+        System.arraycopy(ABC, 0, buffer, 1, 3);
+        Sha256Hasher.get().update(buffer, 1, 3).doubleDigest(buffer, 2);
+        assertTrue(Arrays.equals(Hex.decode(ABC_DOUBLE_SHA256), Arrays.copyOfRange(buffer, 2, 34)));
+    }
+
+    @Test
+    public void getDiscardsUnfinishedHashes() throws Exception {
+        Sha256Hasher.get().update(new byte[] {1, 2, 3});
+        assertEquals(ABC_SHA256, Utils.bytesToHexString(Sha256Hasher.get().update(ABC).digest()));
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.core.Transaction.SigHash;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SignatureCacheTest {
+    private static final NetworkParameters params = NetworkParameters.unitTests();
+    private SignatureCache originalCache;
+
+    @Before
+    public void setUp() {
+        originalCache = Script.getSignatureCache();
+    }
+
+    @After
+    public void tearDown() {
+        Script.setSignatureCache(originalCache);
+    }
+
+    @Test
+    public void remembersValidSignatures() throws Exception {
+        SignatureCache cache = new SignatureCache(10);
+        ECKey key = new ECKey();
+        byte[] hash = Utils.doubleDigest(new byte[] { 1, 2, 3 });
+        byte[] signature = key.sign(new Sha256Hash(hash)).encodeToDER();
+        assertTrue(cache.verify(hash, signature, key.getPubKey()));
+        assertTrue(cache.verify(hash, signature, key.getPubKey()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0.5, cache.getHitRate(), 0);
+
+        // Failures are never remembered.
+        byte[] otherHash = Utils.doubleDigest(new byte[] { 4 });
+        assertFalse(cache.verify(otherHash, signature, key.getPubKey()));
+        assertFalse(cache.verify(otherHash, signature, key.getPubKey()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(1, cache.size());
+
+        // Moving a byte from the signature onto the end of the public key is a different check.
+        byte[] longerPubKey = Arrays.copyOf(key.getPubKey(), key.getPubKey().length + 1);
+        longerPubKey[longerPubKey.length - 1] = signature[0];
+        try {
+            assertFalse(cache.verify(hash, Arrays.copyOfRange(signature, 1, signature.length), longerPubKey));
+        } catch (Exception e) {
+            // Also fine: the key doesn't decode.
+        }
+        assertEquals(1, cache.getHitCount());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void sizeIsBounded() throws Exception {
+        SignatureCache cache = new SignatureCache(5);
+        ECKey key = new ECKey();
+        for (int i = 0; i < 20; i++) {
+            byte[] hash = Utils.doubleDigest(new byte[] { (byte) i });
+            assertTrue(cache.verify(hash, key.sign(new Sha256Hash(hash)).encodeToDER(), key.getPubKey()));
+        }
+        assertTrue(cache.size() <= 5);
+    }
+
+    @Test
+    public void scriptsUseTheCache() throws Exception {
+        SignatureCache cache = new SignatureCache(10);
+        Script.setSignatureCache(cache);
+        ECKey key = new ECKey();
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(key);
+        Transaction prev = new Transaction(params);
+        prev.addOutput(Utils.toNanoCoins(1, 0), key);
+        prev.addOutput(Utils.toNanoCoins(1, 0), key.toAddress(params));
+        Transaction tx = new Transaction(params);
+        tx.addInput(prev.getOutput(0));
+        tx.addInput(prev.getOutput(1));
+        tx.addOutput(Utils.toNanoCoins(2, 0), new ECKey());
+        tx.signInputs(SigHash.ALL, wallet);
+
+        // Checked once as a loose transaction, then again when it turns up in a block.
+        for (TransactionInput input : tx.getInputs())
+            input.verify();
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        for (TransactionInput input : tx.getInputs())
+            input.verify();
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        // A bad signature still fails, cache or not.
+        tx.setLockTime(1);
+        try {
+            tx.getInputs().get(0).verify();
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+
+        // And without a cache everything is checked in full.
+        Script.setSignatureCache(null);
+        tx.setLockTime(0);
+        tx.getInputs().get(1).verify();
+        assertEquals(2, cache.getHitCount());
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.core.Transaction.SigHash;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TransactionTest {
+    private static final NetworkParameters params = NetworkParameters.unitTests();
+    // OP_CODESEPARATOR OP_1, which is signed as just OP_1.
+    private static final byte[] CONNECTED_SCRIPT = { (byte) Script.OP_CODESEPARATOR, 0x51 };
+    private static final byte[] SIGNED_SCRIPT = { 0x51 };
+    private static final byte[] SIGHASH_TYPES = {
+            (byte) (SigHash.ALL.ordinal() + 1), (byte) (SigHash.NONE.ordinal() + 1), (byte) (SigHash.SINGLE.ordinal() + 1),
+            (byte) (SigHash.ALL.ordinal() + 1 | 0x80), (byte) (SigHash.NONE.ordinal() + 1 | 0x80),
+            (byte) (SigHash.SINGLE.ordinal() + 1 | 0x80), 0 };
+
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws Exception {
+        Transaction t = new Transaction(params);
+        for (int i = 0; i < 3; i++) {
+            byte[] hash = new byte[32];
+            hash[0] = (byte) (i + 1);
+            TransactionInput input = new TransactionInput(params, t, new byte[] { 0x01, (byte) i },
+                    new TransactionOutPoint(params, i, new Sha256Hash(hash)));
+            input.setSequenceNumber(i + 7);
+            t.addInput(input);
+            t.addOutput(Utils.toNanoCoins(i + 1, 0), new ECKey());
+        }
+        t.setLockTime(1234);
+        // Hash a parsed copy that keeps its bytes, as received from the network.
+        byte[] bytes = t.bitcoinSerialize();
+        tx = new Transaction(params, bytes, null, false, true, bytes.length);
+    }
+
+    @Test
+    public void signatureHashMatchesSimplifiedCopy() throws Exception {
+        for (byte type : SIGHASH_TYPES) {
+            for (int i = 0; i < tx.getInputs().size(); i++) {
+                assertEquals("type " + type + " input " + i, simplifiedCopyHash(tx, i, type),
+                        tx.hashTransactionForSignature(i, CONNECTED_SCRIPT, type));
+            }
+        }
+        // SIGHASH_SINGLE for an input with no matching output signs the constant 1.
+        tx.addInput(new TransactionInput(params, tx, new byte[0],
+                new TransactionOutPoint(params, 0, Sha256Hash.ZERO_HASH)));
+        assertEquals(new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000"),
+                tx.hashTransactionForSignature(3, CONNECTED_SCRIPT, SigHash.SINGLE, false));
+    }
+
+    @Test
+    public void signatureHashLeavesTransactionAlone() throws Exception {
+        byte[] bytes = tx.unsafeBitcoinSerialize();
+        byte[] copy = Arrays.copyOf(bytes, bytes.length);
+        Sha256Hash hash = tx.getHash();
+        for (byte type : SIGHASH_TYPES)
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                tx.hashTransactionForSignature(i, CONNECTED_SCRIPT, type);
+        // Not even the cached serialization has been thrown away.
+        assertSame(bytes, tx.unsafeBitcoinSerialize());
+        assertArrayEquals(copy, bytes);
+        assertEquals(hash, tx.getHash());
+    }
+
+    @Test
+    public void concurrentSignatureHashes() throws Exception {
+        final Sha256Hash[][] expected = new Sha256Hash[SIGHASH_TYPES.length][tx.getInputs().size()];
+        for (int t = 0; t < SIGHASH_TYPES.length; t++)
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                expected[t][i] = tx.hashTransactionForSignature(i, CONNECTED_SCRIPT, SIGHASH_TYPES[t]);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int n = 0; n < threads.length; n++) {
+            final int offset = n;
+            threads[n] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < 200; round++) {
+                            for (int t = 0; t < SIGHASH_TYPES.length; t++) {
+                                int i = (round + offset) % expected[t].length;
+                                Sha256Hash hash = tx.hashTransactionForSignature(i, CONNECTED_SCRIPT, SIGHASH_TYPES[t]);
+                                if (!hash.equals(expected[t][i]))
+                                    throw new AssertionError("Wrong hash for input " + i);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads[n].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        if (failure.get() != null)
+            throw new RuntimeException(failure.get());
+    }
+
+    // Works out the hash the way the reference client does: by building a modified copy of the transaction.
+    private static Sha256Hash simplifiedCopyHash(Transaction tx, int inputIndex, byte type) throws IOException {
+        boolean none = (type & 0x1f) == SigHash.NONE.ordinal() + 1;
+        boolean single = (type & 0x1f) == SigHash.SINGLE.ordinal() + 1;
+        boolean anyoneCanPay = (type & 0x80) != 0;
+        Transaction copy = new Transaction(params);
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            if (anyoneCanPay && i != inputIndex)
+                continue;
+            TransactionInput input = tx.getInputs().get(i);
+            TransactionInput copied = new TransactionInput(params, copy,
+                    i == inputIndex ? SIGNED_SCRIPT : new byte[0],
+                    new TransactionOutPoint(params, input.getOutpoint().getIndex(), input.getOutpoint().getHash()));
+            copied.setSequenceNumber((none || single) && i != inputIndex ? 0 : input.getSequenceNumber());
+            copy.addInput(copied);
+        }
+        if (single) {
+            for (int i = 0; i < inputIndex; i++) {
+                copy.addOutput(new TransactionOutput(params, copy, BigInteger.ZERO, new byte[0]) {
+                    @Override
+                    protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+                        // A value of -1 as a signed 64 bit integer, then an empty script.
+                        stream.write(new byte[] { -1, -1, -1, -1, -1, -1, -1, -1, 0 });
+                    }
+                });
+            }
+            TransactionOutput output = tx.getOutputs().get(inputIndex);
+            copy.addOutput(new TransactionOutput(params, copy, output.getValue(), output.getScriptBytes()));
+        } else if (!none) {
+            for (TransactionOutput output : tx.getOutputs())
+                copy.addOutput(new TransactionOutput(params, copy, output.getValue(), output.getScriptBytes()));
+        }
+        copy.setLockTime(tx.getLockTime());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        copy.bitcoinSerialize(bos);
+        Utils.uint32ToByteStreamLE(type & 0xff, bos);
+        return new Sha256Hash(Utils.doubleDigest(bos.toByteArray()));
+    }
+}
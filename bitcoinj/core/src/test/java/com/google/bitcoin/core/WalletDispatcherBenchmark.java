@@ -0,0 +1,100 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.google.bitcoin.core.TestUtils.createFakeTx;
+import static com.google.bitcoin.core.Utils.toNanoCoins;
+
+/**
+ * Compares routing the transactions of a block to many wallets the way {@link AbstractBlockChain} does when each
+ * wallet is a separate listener, against routing them through a {@link WalletDispatcher}. Not a unit test: run the
+ * main method by hand.
+ */
+public class WalletDispatcherBenchmark {
+    private static final NetworkParameters params = NetworkParameters.unitTests();
+    private static final int TRANSACTIONS = 500;
+    private static final int RELEVANT_TRANSACTIONS = 10;
+
+    public static void main(String[] args) throws Exception {
+        for (int size : new int[] { 10, 1000, 10000 }) {
+            List<Wallet> wallets = createWallets(size);
+            Random random = new Random(size);
+
+            List<Transaction> block = createBlockTransactions(wallets, random);
+            long start = System.nanoTime();
+            for (Transaction tx : block) {
+                for (Wallet wallet : wallets) {
+                    if (wallet.isTransactionRelevant(tx))
+                        wallet.receiveFromBlock(tx, null, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+                }
+            }
+            double separate = (System.nanoTime() - start) / 1000000.0;
+
+            start = System.nanoTime();
+            WalletDispatcher dispatcher = new WalletDispatcher(params);
+            for (Wallet wallet : wallets)
+                dispatcher.addWallet(wallet);
+            double indexing = (System.nanoTime() - start) / 1000000.0;
+
+            block = createBlockTransactions(wallets, random);
+            start = System.nanoTime();
+            for (Transaction tx : block) {
+                if (dispatcher.isTransactionRelevant(tx))
+                    dispatcher.receiveFromBlock(tx, null, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+            }
+            double dispatched = (System.nanoTime() - start) / 1000000.0;
+
+            System.out.println(String.format("%5d wallets: separate listeners %9.2f msec/block, dispatcher %7.2f " +
+                    "msec/block (index built in %.2f msec)", size, separate, dispatched, indexing));
+        }
+    }
+
+    // Watch only wallets with one key each. Random public keys are fine as only their hashes are ever looked at.
+    private static List<Wallet> createWallets(int size) {
+        Random random = new Random(0);
+        List<Wallet> wallets = new ArrayList<Wallet>(size);
+        for (int i = 0; i < size; i++) {
+            byte[] pubKey = new byte[65];
+            random.nextBytes(pubKey);
+            pubKey[0] = 4;
+            Wallet wallet = new Wallet(params);
+            wallet.addKey(new ECKey(null, pubKey));
+            wallets.add(wallet);
+        }
+        return wallets;
+    }
+
+    // A block worth of transactions, a few of which pay one of the wallets.
+    private static List<Transaction> createBlockTransactions(List<Wallet> wallets, Random random) throws Exception {
+        Address someoneElse = new ECKey().toAddress(params);
+        List<Transaction> transactions = new ArrayList<Transaction>(TRANSACTIONS);
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            Address to = someoneElse;
+            if (i % (TRANSACTIONS / RELEVANT_TRANSACTIONS) == 0) {
+                Wallet wallet = wallets.get(random.nextInt(wallets.size()));
+                to = wallet.getKeys().iterator().next().toAddress(params);
+            }
+            transactions.add(createFakeTx(params, toNanoCoins(1, 0), to));
+        }
+        return transactions;
+    }
+}
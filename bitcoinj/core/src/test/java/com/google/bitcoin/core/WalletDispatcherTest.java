@@ -0,0 +1,127 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.bitcoin.utils.BriefLogFormatter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static com.google.bitcoin.core.TestUtils.createFakeTx;
+import static com.google.bitcoin.core.Utils.toNanoCoins;
+import static org.junit.Assert.*;
+
+public class WalletDispatcherTest {
+    static final NetworkParameters params = NetworkParameters.unitTests();
+
+    private Wallet wallet1, wallet2, wallet3;
+    private WalletDispatcher dispatcher;
+    private BlockChain chain;
+    private Address someoneElse;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        wallet1 = new Wallet(params);
+        wallet2 = new Wallet(params);
+        wallet3 = new Wallet(params);
+        wallet1.addKey(new ECKey());
+        wallet2.addKey(new ECKey());
+        wallet3.addKey(new ECKey());
+        dispatcher = new WalletDispatcher(params);
+        dispatcher.addWallet(wallet1);
+        dispatcher.addWallet(wallet2);
+        dispatcher.addWallet(wallet3);
+        chain = new BlockChain(params, new MemoryBlockStore(params));
+        chain.addListener(dispatcher);
+        someoneElse = new ECKey().toAddress(params);
+    }
+
+    private Address address(Wallet wallet) {
+        return wallet.getKeys().iterator().next().toAddress(params);
+    }
+
+    private BigInteger balance(Wallet wallet) {
+        return wallet.getBalance(Wallet.BalanceType.ESTIMATED);
+    }
+
+    @Test
+    public void routing() throws Exception {
+        // A payment only reaches the wallet it pays.
+        Block b1 = params.genesisBlock.createNextBlock(address(wallet2));
+        assertTrue(chain.add(b1));
+        assertEquals(toNanoCoins(50, 0), balance(wallet2));
+        assertEquals(0, wallet1.getTransactions(true, true).size());
+        assertEquals(0, wallet3.getTransactions(true, true).size());
+        // Every wallet hears about the new block, though.
+        assertEquals(b1.getHash(), wallet1.getLastBlockSeenHash());
+        assertEquals(b1.getHash(), wallet3.getLastBlockSeenHash());
+
+        // A spend from wallet2 is found by outpoint, the payment to wallet3 by address.
+        Transaction t1 = new Transaction(params);
+        t1.addInput(b1.getTransactions().get(1).getOutput(0));
+        t1.addOutput(toNanoCoins(10, 0), address(wallet3));
+        t1.addOutput(toNanoCoins(40, 0), someoneElse);
+        Block b2 = b1.createNextBlock(someoneElse);
+        b2.addTransaction(t1);
+        b2.solve();
+        assertTrue(chain.add(b2));
+        assertEquals(BigInteger.ZERO, balance(wallet2));
+        assertEquals(toNanoCoins(10, 0), balance(wallet3));
+        assertEquals(0, wallet1.getTransactions(true, true).size());
+
+        assertFalse(dispatcher.isTransactionRelevant(createFakeTx(params, toNanoCoins(1, 0), someoneElse)));
+        assertTrue(dispatcher.isTransactionRelevant(createFakeTx(params, toNanoCoins(1, 0), address(wallet1))));
+    }
+
+    @Test
+    public void keysAddedLater() throws Exception {
+        ECKey key = new ECKey();
+        wallet1.addKey(key);
+        Block b1 = params.genesisBlock.createNextBlock(key.toAddress(params));
+        assertTrue(chain.add(b1));
+        assertEquals(toNanoCoins(50, 0), balance(wallet1));
+    }
+
+    @Test
+    public void doubleSpendAgainstPending() throws Exception {
+        // A block transaction that only conflicts with a pending one still has to reach the wallet, so it can mark
+        // the pending transaction dead.
+        TestUtils.DoubleSpends doubleSpends = TestUtils.createFakeDoubleSpendTxns(params, address(wallet1));
+        wallet1.receivePending(doubleSpends.t1, null);
+        assertTrue(dispatcher.isTransactionRelevant(doubleSpends.t2));
+        Block b1 = params.genesisBlock.createNextBlock(someoneElse);
+        b1.addTransaction(doubleSpends.t2);
+        b1.solve();
+        assertTrue(chain.add(b1));
+        assertEquals(TransactionConfidence.ConfidenceType.DEAD,
+                doubleSpends.t1.getConfidence().getConfidenceType());
+    }
+
+    @Test
+    public void removeWallet() throws Exception {
+        dispatcher.removeWallet(wallet3);
+        assertEquals(2, dispatcher.getWallets().size());
+        Block b1 = params.genesisBlock.createNextBlock(address(wallet3));
+        assertTrue(chain.add(b1));
+        assertEquals(BigInteger.ZERO, balance(wallet3));
+        assertNull(wallet3.getLastBlockSeenHash());
+    }
+}
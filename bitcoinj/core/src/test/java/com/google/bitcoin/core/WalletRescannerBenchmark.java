@@ -0,0 +1,104 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.H2FullPrunedBlockStore;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how quickly a {@link WalletRescanner} gets through a store with different numbers of threads. The stores
+ * are filled with synthetic output changes rather than verified blocks, as that is all the scan looks at. Not a unit
+ * test: run the main method by hand.
+ */
+public class WalletRescannerBenchmark {
+    private static final NetworkParameters params = NetworkParameters.unitTests();
+    private static final int BLOCKS = 2000;
+    private static final int OUTPUTS_PER_BLOCK = 200;
+    private static final int KEYS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        params.interval = 10000;
+        Wallet wallet = new Wallet(params);
+        for (int i = 0; i < KEYS; i++)
+            wallet.addKey(new ECKey());
+
+        run("memory", fill(new MemoryFullPrunedBlockStore(params, BLOCKS + 1)), wallet);
+
+        File dir = File.createTempFile("rescan-benchmark", null);
+        dir.delete();
+        dir.mkdir();
+        H2FullPrunedBlockStore h2 = new H2FullPrunedBlockStore(params, new File(dir, "db").getPath(), BLOCKS + 1);
+        try {
+            run("H2", fill(h2), wallet);
+        } finally {
+            h2.close();
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+
+    private static void run(String name, FullPrunedBlockStore store, Wallet wallet) throws Exception {
+        for (int threads : new int[] { 1, 2, 4, 8 }) {
+            WalletRescanner rescanner = new WalletRescanner(params, store, wallet);
+            rescanner.setThreads(threads);
+            long start = System.nanoTime();
+            WalletRescanner.Result result = rescanner.rescan(0);
+            double secs = (System.nanoTime() - start) / 1000000000.0;
+            System.out.println(String.format("%6s, %d threads: %8.0f blocks/sec, %9.0f outputs/sec (%s)", name, threads,
+                    result.getBlocksScanned() / secs, result.getBlocksScanned() * 2.0 * OUTPUTS_PER_BLOCK / secs,
+                    result));
+        }
+    }
+
+    // Blocks that each create and spend OUTPUTS_PER_BLOCK outputs to keys that aren't in the wallet.
+    private static FullPrunedBlockStore fill(FullPrunedBlockStore store) throws Exception {
+        Random random = new Random(0);
+        StoredBlock storedBlock = store.getVerifiedChainHead();
+        for (int i = 0; i < BLOCKS; i++) {
+            Block block = storedBlock.getHeader().createNextBlock(null);
+            storedBlock = storedBlock.build(block.cloneAsHeader());
+            List<StoredTransactionOutput> created = createOutputs(random, storedBlock.getHeight());
+            List<StoredTransactionOutput> spent = createOutputs(random, storedBlock.getHeight());
+            TransactionOutputChanges changes = new TransactionOutputChanges(created, spent);
+            store.put(storedBlock, new StoredUndoableBlock(block.getHash(), changes));
+        }
+        store.setVerifiedChainHead(storedBlock);
+        return store;
+    }
+
+    private static List<StoredTransactionOutput> createOutputs(Random random, int height) {
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(OUTPUTS_PER_BLOCK);
+        for (int i = 0; i < OUTPUTS_PER_BLOCK; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            byte[] pubKeyHash = new byte[20];
+            random.nextBytes(pubKeyHash);
+            byte[] script = Script.createOutputScript(new Address(params, pubKeyHash));
+            outputs.add(new StoredTransactionOutput(new Sha256Hash(hash), i, BigInteger.TEN, height, false, script));
+        }
+        return outputs;
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.core.Transaction.SigHash;
+import com.google.bitcoin.store.FullPrunedBlockStore;
+import com.google.bitcoin.store.MemoryFullPrunedBlockStore;
+import com.google.bitcoin.utils.BriefLogFormatter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.bitcoin.core.Utils.toNanoCoins;
+import static org.junit.Assert.*;
+
+public class WalletRescannerTest {
+    private static final int UNDOABLE_BLOCKS_STORED = 1000;
+
+    private NetworkParameters params;
+    private FullPrunedBlockStore store;
+    private final Map<Sha256Hash, Block> blocks = new HashMap<Sha256Hash, Block>();
+    private ECKey coinbaseKey, receiveKey;
+    private Block coinbaseBlock, spendBlock;
+    private Transaction spend;
+    private WalletRescanner.BlockProvider blockProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        BriefLogFormatter.init();
+        params = NetworkParameters.unitTests();
+        params.interval = 10000;
+        store = new MemoryFullPrunedBlockStore(params, UNDOABLE_BLOCKS_STORED);
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, store);
+        coinbaseKey = new ECKey();
+        receiveKey = new ECKey();
+
+        // A coinbase to one key, which is then spent to another once it matures, with some blocks either side.
+        Block rollingBlock = params.genesisBlock;
+        for (int i = 0; i < 5; i++)
+            rollingBlock = add(chain, rollingBlock.createNextBlockWithCoinbase(new ECKey().getPubKey()));
+        coinbaseBlock = rollingBlock = add(chain, rollingBlock.createNextBlockWithCoinbase(coinbaseKey.getPubKey()));
+        Transaction coinbase = coinbaseBlock.getTransactions().get(0);
+        for (int i = 0; i < params.getSpendableCoinbaseDepth(); i++)
+            rollingBlock = add(chain, rollingBlock.createNextBlockWithCoinbase(new ECKey().getPubKey()));
+        spend = new Transaction(params);
+        spend.addOutput(new TransactionOutput(params, spend, toNanoCoins(10, 0), receiveKey.toAddress(params)));
+        spend.addOutput(new TransactionOutput(params, spend, toNanoCoins(40, 0), new ECKey().toAddress(params)));
+        addInput(spend, coinbase.getOutputs().get(0), coinbaseKey);
+        spendBlock = rollingBlock.createNextBlock(null);
+        spendBlock.addTransaction(spend);
+        spendBlock.solve();
+        rollingBlock = add(chain, spendBlock);
+        for (int i = 0; i < 5; i++)
+            rollingBlock = add(chain, rollingBlock.createNextBlockWithCoinbase(new ECKey().getPubKey()));
+
+        blockProvider = new WalletRescanner.BlockProvider() {
+            public Block getBlock(Sha256Hash blockHash) {
+                return blocks.get(blockHash);
+            }
+        };
+    }
+
+    private Block add(FullPrunedBlockChain chain, Block block) throws Exception {
+        assertTrue(chain.add(block));
+        blocks.put(block.getHash(), block);
+        return block;
+    }
+
+    private void addInput(Transaction t, TransactionOutput prevOut, ECKey sigKey) throws Exception {
+        t.addInput(prevOut);
+        TransactionInput input = t.getInputs().get(0);
+        Sha256Hash hash = t.hashTransactionForSignature(0, prevOut.getScriptBytes(), SigHash.ALL, false);
+        ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(73);
+        bos.write(sigKey.sign(hash).encodeToDER());
+        bos.write(SigHash.ALL.ordinal() + 1);
+        input.setScriptBytes(Script.createInputScript(bos.toByteArray()));
+    }
+
+    @Test
+    public void rescan() throws Exception {
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(coinbaseKey);
+        wallet.addKey(receiveKey);
+        WalletRescanner rescanner = new WalletRescanner(params, store, wallet);
+        rescanner.setThreads(3);
+        rescanner.setBlockProvider(blockProvider);
+        final List<Double> progress = new ArrayList<Double>();
+        rescanner.setProgressListener(new WalletRescanner.ProgressListener() {
+            public void progress(double pct, int blocksLeft, Date date) {
+                progress.add(pct);
+            }
+        });
+        WalletRescanner.Result result = rescanner.rescan(0);
+
+        StoredBlock chainHead = store.getVerifiedChainHead();
+        assertEquals(chainHead.getHeight() + 1, result.getBlocksScanned());
+        assertEquals(0, result.getBlocksUnavailable());
+        assertEquals(2, result.getTransactionsReceived());
+        assertTrue(result.getMissingBlocks().isEmpty());
+        assertEquals(100.0, progress.get(progress.size() - 1), 0.0);
+
+        assertEquals(toNanoCoins(10, 0), wallet.getBalance());
+        Transaction coinbase = wallet.getTransaction(coinbaseBlock.getTransactions().get(0).getHash());
+        assertNotNull(coinbase);
+        StoredBlock coinbaseStoredBlock = store.get(coinbaseBlock.getHash());
+        TransactionConfidence confidence = coinbase.getConfidence();
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING, confidence.getConfidenceType());
+        assertEquals(chainHead.getHeight() - coinbaseStoredBlock.getHeight() + 1, confidence.getDepthInBlocks());
+        assertEquals(chainHead.getChainWork().subtract(coinbaseStoredBlock.getChainWork())
+                .add(coinbaseBlock.getWork()), confidence.getWorkDone());
+        assertEquals(chainHead.getHeight() - store.get(spendBlock.getHash()).getHeight() + 1,
+                wallet.getTransaction(spend.getHash()).getConfidence().getDepthInBlocks());
+
+        // Doing it again changes nothing.
+        result = rescanner.rescan(0);
+        assertEquals(2, result.getTransactionsReceived());
+        assertEquals(toNanoCoins(10, 0), wallet.getBalance());
+        assertEquals(2, wallet.getTransactions(true, true).size());
+    }
+
+    @Test
+    public void rescanFromHeight() throws Exception {
+        // Only the spend is in range, which the wallet sees as a payment to the second key.
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(coinbaseKey);
+        wallet.addKey(receiveKey);
+        WalletRescanner rescanner = new WalletRescanner(params, store, wallet);
+        rescanner.setBlockProvider(blockProvider);
+        int spendHeight = store.get(spendBlock.getHash()).getHeight();
+        WalletRescanner.Result result = rescanner.rescan(spendHeight);
+        assertEquals(store.getVerifiedChainHead().getHeight() - spendHeight + 1, result.getBlocksScanned());
+        assertEquals(1, result.getTransactionsReceived());
+        assertEquals(toNanoCoins(10, 0), wallet.getBalance());
+        assertNull(wallet.getTransaction(coinbaseBlock.getTransactions().get(0).getHash()));
+    }
+
+    @Test
+    public void missingBlocks() throws Exception {
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(receiveKey);
+        WalletRescanner.Result result = new WalletRescanner(params, store, wallet).rescan(0);
+        // Without a block provider the wallet can only be told where to look.
+        assertEquals(1, result.getMissingBlocks().size());
+        assertEquals(spendBlock.getHash(), result.getMissingBlocks().get(0));
+        assertEquals(0, result.getTransactionsReceived());
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+    }
+
+    @Test
+    public void lazyConfidenceDepth() throws Exception {
+        Wallet wallet = new Wallet(params);
+        wallet.setLazyConfidenceDepth(true);
+        wallet.addKey(receiveKey);
+        WalletRescanner rescanner = new WalletRescanner(params, store, wallet);
+        rescanner.setBlockProvider(blockProvider);
+        rescanner.rescan(0);
+        Transaction tx = wallet.getTransaction(spend.getHash());
+        int depth = store.getVerifiedChainHead().getHeight() - store.get(spendBlock.getHash()).getHeight() + 1;
+        assertEquals(depth, tx.getConfidence().getDepthInBlocks());
+        Block next = store.getVerifiedChainHead().getHeader().createNextBlock(null);
+        wallet.notifyNewBestBlock(next);
+        assertEquals(depth + 1, tx.getConfidence().getDepthInBlocks());
+    }
+}
@@ -20,14 +20,18 @@ import com.google.bitcoin.core.Transaction.SigHash;
 import com.google.bitcoin.core.WalletTransaction.Pool;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.bitcoin.store.WalletProtobufSerializer;
 import com.google.bitcoin.utils.BriefLogFormatter;
 import com.google.common.collect.Lists;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
@@ -843,6 +847,79 @@ public class WalletTest {
         assertFalse(o2.isAvailableForSpending());
     }
 
+    @Test
+    public void lazyConfidenceDepth() throws Exception {
+        // Switching lazy confidence depth on and off part way through must not lose or double count any blocks.
+        Transaction t1 = sendMoneyToWallet(Utils.toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        BlockPair bp = createFakeBlock(blockStore);
+        wallet.notifyNewBestBlock(bp.block);
+        BigInteger work = t1.getConfidence().getWorkDone();
+        assertEquals(2, t1.getConfidence().getDepthInBlocks());
+
+        wallet.setLazyConfidenceDepth(true);
+        assertTrue(wallet.isLazyConfidenceDepth());
+        assertEquals(2, t1.getConfidence().getDepthInBlocks());
+        Transaction t2 = sendMoneyToWallet(Utils.toNanoCoins(2, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        work = work.add(bp.block.getWork());
+        bp = createFakeBlock(blockStore);
+        wallet.notifyNewBestBlock(bp.block);
+        // Telling the wallet about the same block twice is harmless.
+        wallet.notifyNewBestBlock(bp.block);
+        work = work.add(bp.block.getWork());
+        assertEquals(4, t1.getConfidence().getDepthInBlocks());
+        assertEquals(work, t1.getConfidence().getWorkDone());
+        assertEquals(2, t2.getConfidence().getDepthInBlocks());
+        assertEquals(3, t2.getConfidence().getAppearedAtChainHeight());
+
+        // The derived values survive a trip through the protobuf serializer.
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(wallet, output);
+        Wallet wallet2 = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(4, wallet2.getTransaction(t1.getHash()).getConfidence().getDepthInBlocks());
+        assertEquals(2, wallet2.getTransaction(t2.getHash()).getConfidence().getDepthInBlocks());
+
+        wallet.setLazyConfidenceDepth(false);
+        bp = createFakeBlock(blockStore);
+        wallet.notifyNewBestBlock(bp.block);
+        assertEquals(5, t1.getConfidence().getDepthInBlocks());
+        assertEquals(3, t2.getConfidence().getDepthInBlocks());
+        assertEquals(work.add(bp.block.getWork()), t1.getConfidence().getWorkDone());
+    }
+
+    @Test
+    public void bloomFilterHasSpentOutputs() throws Exception {
+        // A pay-to-pubkey output stays in the filter once it's spent, so that a resync finds what spent it.
+        Transaction t1 = new Transaction(params);
+        t1.addInput(createFakeTx(params, toNanoCoins(1, 0), new ECKey().toAddress(params)).getOutput(0));
+        t1.addOutput(new TransactionOutput(params, t1, toNanoCoins(1, 0), myKey));
+        sendMoneyToWallet(t1, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction t2 = new Transaction(params);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(toNanoCoins(1, 0), new ECKey().toAddress(params));
+        sendMoneyToWallet(t2, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(EnumSet.of(WalletTransaction.Pool.SPENT), wallet.getContainingPools(t1));
+        BloomFilter filter = wallet.getBloomFilter(0.001);
+        assertTrue(filter.contains(new TransactionOutPoint(params, 0, t1).bitcoinSerialize()));
+    }
+
+    @Test
+    public void knownTransactionsWithoutHistory() throws Exception {
+        // A wallet whose history hasn't been loaded asks the loader whether it already has a transaction.
+        final Transaction t1 = createFakeTx(params, toNanoCoins(1, 0), myAddress);
+        wallet.setHistoryLoader(new Wallet.HistoryLoader() {
+            public void loadHistory(Wallet wallet) {
+                wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, t1));
+            }
+
+            public WalletTransaction.Pool getPool(Sha256Hash hash) {
+                return hash.equals(t1.getHash()) ? WalletTransaction.Pool.SPENT : null;
+            }
+        });
+        assertEquals(EnumSet.of(WalletTransaction.Pool.SPENT), wallet.getContainingPools(t1));
+        assertFalse(wallet.isPendingTransactionRelevant(t1));
+        assertFalse(wallet.isHistoryLoaded());
+    }
+
     // There is a test for spending a coinbase transaction as it matures in BlockChainTest#coinbaseTransactionAvailability
 
     // Support for offline spending is tested in PeerGroupTest
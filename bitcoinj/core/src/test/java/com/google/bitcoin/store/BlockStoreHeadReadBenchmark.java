@@ -0,0 +1,120 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how often reader threads can fetch the chain head, and the longest a single read takes, whilst another
+ * thread runs a header sync into the store. Every header is written with put() and then made the head, as
+ * BlockChain does. Not a unit test: run the main method by hand.
+ */
+public class BlockStoreHeadReadBenchmark {
+    private static final NetworkParameters params = NetworkParameters.unitTests();
+    private static final int BLOCKS = 5000;
+    private static final int READERS = 4;
+
+    private interface StoreFactory {
+        BlockStore create(File file) throws BlockStoreException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock head = new StoredBlock(params.genesisBlock.cloneAsHeader(), params.genesisBlock.getWork(), 0);
+        for (int i = 0; i < BLOCKS; i++) {
+            head = head.build(head.getHeader().createNextBlock(null).cloneAsHeader());
+            blocks.add(head);
+        }
+        for (int round = 0; round < 2; round++) {
+            run("disk", blocks, new StoreFactory() {
+                public BlockStore create(File file) throws BlockStoreException {
+                    return new DiskBlockStore(params, file);
+                }
+            });
+            run("bounded overhead", blocks, new StoreFactory() {
+                public BlockStore create(File file) throws BlockStoreException {
+                    return new BoundedOverheadBlockStore(params, file);
+                }
+            });
+            run("SPV", blocks, new StoreFactory() {
+                public BlockStore create(File file) throws BlockStoreException {
+                    return new SPVBlockStore(params, file, BLOCKS + 1);
+                }
+            });
+        }
+    }
+
+    private static void run(String name, List<StoredBlock> blocks, StoreFactory factory) throws Exception {
+        File dir = File.createTempFile("head-read-benchmark", null);
+        dir.delete();
+        dir.mkdir();
+        final BlockStore store = factory.create(new File(dir, "store"));
+        try {
+            final AtomicBoolean syncing = new AtomicBoolean(true);
+            final AtomicLong reads = new AtomicLong();
+            final AtomicLong maxNanos = new AtomicLong();
+            Thread[] readers = new Thread[READERS];
+            for (int i = 0; i < READERS; i++) {
+                readers[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        long count = 0, max = 0;
+                        try {
+                            while (syncing.get()) {
+                                long start = System.nanoTime();
+                                store.getChainHead();
+                                max = Math.max(max, System.nanoTime() - start);
+                                count++;
+                            }
+                        } catch (BlockStoreException e) {
+                            throw new RuntimeException(e);
+                        }
+                        reads.addAndGet(count);
+                        synchronized (maxNanos) {
+                            maxNanos.set(Math.max(maxNanos.get(), max));
+                        }
+                    }
+                };
+                readers[i].start();
+            }
+            long start = System.nanoTime();
+            for (StoredBlock block : blocks) {
+                store.put(block);
+                store.setChainHead(block);
+            }
+            double secs = (System.nanoTime() - start) / 1000000000.0;
+            syncing.set(false);
+            for (Thread reader : readers)
+                reader.join();
+            System.out.println(String.format("%16s: %8.0f headers/sec, %12.0f head reads/sec, longest read %8.3f ms",
+                    name, blocks.size() / secs, reads.get() / secs, maxNanos.get() / 1000000.0));
+        } finally {
+            store.close();
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+}
@@ -19,19 +19,50 @@ import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Utils;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.common.io.Files;
+
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class BoundedOverheadBlockStoreTest {
+    // The layout of BlockHashIndex files.
+    private static final int INDEX_HEADER_SIZE = 1 + 4 + 4 + 4;
+    private static final int INDEX_SLOT_SIZE = 32 + 4;
+
     @Rule
     public TemporaryFolder folder = new TemporaryFolder();
 
+    @Before
+    public void setUp() throws Exception {
+        // Start new blocks from the genesis time whatever earlier tests did to the mock clock, so that building
+        // thousands of them a second apart stays well clear of the "too far in the future" check.
+        Utils.mockTime = new Date(NetworkParameters.unitTests().genesisBlock.getTimeSeconds() * 1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.mockTime = null;
+    }
+
     @Test
     public void testStorage() throws Exception {
         File temp = folder.newFile("bitcoinj-test");
@@ -72,4 +103,123 @@ public class BoundedOverheadBlockStoreTest {
             // Expected
         }
     }
+
+    @Test
+    public void testIndex() throws Exception {
+        File temp = folder.newFile("bitcoinj-test");
+        File indexFile = new File(temp.getCanonicalPath() + ".index");
+        File savedIndex = folder.newFile("saved-index");
+
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, temp);
+        // Enough blocks to make the index grow past its initial size a couple of times, and to push the earliest
+        // ones out of the in-memory cache.
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 5000; i++) {
+            if (i == 2500) {
+                store.close();
+                Files.copy(indexFile, savedIndex);
+                store = new BoundedOverheadBlockStore(params, temp);
+            }
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(prev);
+            blocks.add(prev);
+        }
+        store.setChainHead(prev);
+        assertEquals(blocks.get(0), store.get(blocks.get(0).getHeader().getHash()));
+        assertNull(store.get(new Sha256Hash("0000000000000000000000000000000000000000000000000000000000000001")));
+        store.close();
+
+        // An index that is behind the store, as if the program died before writing it out, is caught up.
+        Files.copy(savedIndex, indexFile);
+        checkBlocks(params, temp, blocks);
+        // A missing or damaged index is rebuilt.
+        assertTrue(indexFile.delete());
+        checkBlocks(params, temp, blocks);
+        Files.write(new byte[] { 1, 2, 3 }, indexFile);
+        checkBlocks(params, temp, blocks);
+
+        // Damage that opening the store doesn't notice is caught by lookups. First an entry leading to the wrong record.
+        byte[] indexBytes = Files.toByteArray(indexFile);
+        byte[] firstHash = blocks.get(0).getHeader().getHash().getBytes();
+        for (int offset = INDEX_HEADER_SIZE; offset < indexBytes.length; offset += INDEX_SLOT_SIZE) {
+            if (Arrays.equals(firstHash, Arrays.copyOfRange(indexBytes, offset, offset + 32)))
+                indexBytes[offset + INDEX_SLOT_SIZE - 1]++;
+        }
+        Files.write(indexBytes, indexFile);
+        checkBlocks(params, temp, blocks);
+        // Then a table with no empty slots to end a search for a block that isn't there.
+        indexBytes = Files.toByteArray(indexFile);
+        for (int offset = INDEX_HEADER_SIZE; offset < indexBytes.length; offset += INDEX_SLOT_SIZE) {
+            if (indexBytes[offset + INDEX_SLOT_SIZE - 1] == 0 && indexBytes[offset + INDEX_SLOT_SIZE - 2] == 0)
+                indexBytes[offset + INDEX_SLOT_SIZE - 1] = 1;
+        }
+        Files.write(indexBytes, indexFile);
+        store = new BoundedOverheadBlockStore(params, temp);
+        assertNull(store.get(new Sha256Hash("0000000000000000000000000000000000000000000000000000000000000001")));
+        store.close();
+        checkBlocks(params, temp, blocks);
+    }
+
+    @Test
+    public void testConcurrentHeadReads() throws Exception {
+        File temp = folder.newFile("bitcoinj-test");
+        NetworkParameters params = NetworkParameters.unitTests();
+        final BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, temp);
+        final AtomicBoolean syncing = new AtomicBoolean(true);
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[2];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        int lastHeight = 0;
+                        while (syncing.get()) {
+                            // The head only moves forward, and is always a block the store already has.
+                            StoredBlock head = store.getChainHead();
+                            if (head.getHeight() < lastHeight)
+                                throw new AssertionError("Chain head went backwards");
+                            if (!head.equals(store.get(head.getHeader().getHash())))
+                                throw new AssertionError("Chain head is not in the store");
+                            lastHeight = head.getHeight();
+                            reads.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        // A header sync: each block is stored and then becomes the new head.
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 1000; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(null).cloneAsHeader());
+            store.put(prev);
+            store.setChainHead(prev);
+        }
+        syncing.set(false);
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new RuntimeException(failure.get());
+        assertTrue(reads.get() > 0);
+        assertEquals(prev, store.getChainHead());
+        store.close();
+    }
+
+    private void checkBlocks(NetworkParameters params, File file, List<StoredBlock> blocks) throws Exception {
+        BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, file);
+        try {
+            assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+            for (StoredBlock block : blocks)
+                assertEquals(block, store.get(block.getHeader().getHash()));
+        } finally {
+            store.close();
+        }
+    }
 }
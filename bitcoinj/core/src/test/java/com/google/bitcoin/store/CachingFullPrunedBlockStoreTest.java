@@ -0,0 +1,172 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    private NetworkParameters params;
+    private MemoryFullPrunedBlockStore underlying;
+    private CachingFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        underlying = new MemoryFullPrunedBlockStore(params, 10);
+        store = new CachingFullPrunedBlockStore(underlying, 100);
+    }
+
+    private StoredTransactionOutput output(int n) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) n, (byte) (n >> 8) });
+        return new StoredTransactionOutput(hash, 0, BigInteger.valueOf(n), 1, false, new byte[] { (byte) n });
+    }
+
+    private boolean isUnspent(FullPrunedBlockStore s, StoredTransactionOutput out) throws Exception {
+        return s.getTransactionOutput(out.getHash(), out.getIndex()) != null;
+    }
+
+    private StoredBlock nextHead() throws Exception {
+        StoredBlock head = store.getChainHead();
+        return head.build(head.getHeader().createNextBlock(null).cloneAsHeader());
+    }
+
+    @Test
+    public void coalescesAndWritesBack() throws Exception {
+        StoredTransactionOutput a = output(1), b = output(2);
+        StoredBlock head = nextHead();
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.removeUnspentTransactionOutput(a);
+        store.setVerifiedChainHead(head);
+        store.commitDatabaseBatchWrite();
+
+        // Nothing has reached the underlying store except the (unverified) chain head.
+        assertFalse(isUnspent(store, a));
+        assertTrue(isUnspent(store, b));
+        assertFalse(isUnspent(underlying, b));
+        assertTrue(store.hasUnspentOutputs(b.getHash(), 1));
+        assertEquals(head, store.getVerifiedChainHead());
+        assertEquals(params.genesisBlock.getHash(), underlying.getVerifiedChainHead().getHeader().getHash());
+        assertEquals(head, underlying.getChainHead());
+        assertEquals(1, store.getDirtyOutputCount());
+
+        store.flush();
+        assertFalse(isUnspent(underlying, a));
+        assertTrue(isUnspent(underlying, b));
+        assertEquals(head, underlying.getVerifiedChainHead());
+        assertEquals(0, store.getDirtyOutputCount());
+
+        // Spending an output the underlying store has must remove it there, and adding it back is a no-op.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(b);
+        store.commitDatabaseBatchWrite();
+        assertFalse(store.hasUnspentOutputs(b.getHash(), 1));
+        assertTrue(underlying.hasUnspentOutputs(b.getHash(), 1));
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(b);
+        store.commitDatabaseBatchWrite();
+        assertEquals(0, store.getDirtyOutputCount());
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(b);
+        store.commitDatabaseBatchWrite();
+        store.flush();
+        assertFalse(isUnspent(underlying, b));
+        store.close();
+        try {
+            store.getTransactionOutput(b.getHash(), 0);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void writesBackWhenFull() throws Exception {
+        store = new CachingFullPrunedBlockStore(underlying, 10);
+        for (int i = 0; i < 25; i++) {
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(output(i));
+            store.setVerifiedChainHead(nextHead());
+            store.commitDatabaseBatchWrite();
+            assertTrue(store.getDirtyOutputCount() < 10);
+        }
+        assertTrue(isUnspent(underlying, output(0)));
+        assertTrue(isUnspent(underlying, output(19)));
+        assertFalse(isUnspent(underlying, output(20)));
+        assertEquals(20, underlying.getVerifiedChainHead().getHeight());
+        assertEquals(25, store.getVerifiedChainHead().getHeight());
+        assertTrue(store.getCachedOutputCount() <= 20);
+        for (int i = 0; i < 25; i++)
+            assertTrue(isUnspent(store, output(i)));
+    }
+
+    @Test
+    public void abortRestores() throws Exception {
+        final StoredTransactionOutput a = output(1), b = output(2), c = output(3);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.commitDatabaseBatchWrite();
+        store.flush();
+        StoredBlock head = store.getVerifiedChainHead();
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(c);
+        store.setVerifiedChainHead(nextHead());
+        // Other threads don't see the batch until it is committed.
+        final AtomicReference<Boolean[]> seen = new AtomicReference<Boolean[]>();
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    seen.set(new Boolean[] { isUnspent(store, a), isUnspent(store, c) });
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.start();
+        reader.join();
+        assertArrayEquals(new Boolean[] { true, false }, seen.get());
+        assertFalse(isUnspent(store, a));
+        store.abortDatabaseBatchWrite();
+
+        assertTrue(isUnspent(store, a));
+        assertTrue(isUnspent(store, b));
+        assertFalse(isUnspent(store, c));
+        assertEquals(head, store.getVerifiedChainHead());
+        try {
+            store.removeUnspentTransactionOutput(c);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        assertEquals(0, store.getDirtyOutputCount());
+    }
+}
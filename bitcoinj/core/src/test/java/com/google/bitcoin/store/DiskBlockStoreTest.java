@@ -19,6 +19,7 @@ import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.StoredBlock;
+import com.google.common.io.Files;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -26,9 +27,11 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 
 public class DiskBlockStoreTest {
@@ -63,6 +66,8 @@ public class DiskBlockStoreTest {
         store = new DiskBlockStore(params, temp);
         StoredBlock b2 = store.get(b1.getHeader().getHash());
         assertEquals(b1, b2);
+        // Headers loaded from the store can be printed.
+        assertEquals(b1.toString(), b2.toString());
         // Check the chain head was stored correctly also.
         assertEquals(b1, store.getChainHead());
         store.close();
@@ -101,4 +106,49 @@ public class DiskBlockStoreTest {
         assertEquals(b1, store.getChainHead());
         store.close();
     }
+
+    @Test
+    public void testUpgrade() throws Exception {
+        // Write a version 1 store by hand: the chain head hash followed by the headers.
+        StoredBlock genesis = new StoredBlock(params.genesisBlock.cloneAsHeader(), params.genesisBlock.getWork(), 0);
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        StoredBlock b2 = b1.build(b1.getHeader().createNextBlock(to).cloneAsHeader());
+        FileOutputStream stream = new FileOutputStream(temp);
+        stream.write(1);
+        stream.write(b2.getHeader().getHash().getBytes());
+        stream.write(genesis.getHeader().bitcoinSerialize());
+        stream.write(b1.getHeader().bitcoinSerialize());
+        stream.write(b2.getHeader().bitcoinSerialize());
+        stream.close();
+
+        DiskBlockStore store = new DiskBlockStore(params, temp);
+        assertEquals(b2, store.getChainHead());
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        // The upgraded file was renamed into place and is the one written to from then on.
+        StoredBlock b3 = b2.build(b2.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b3);
+        store.close();
+        assertEquals(2, Files.toByteArray(temp)[0]);
+        File upgraded = new File(temp.getPath() + ".upgrade");
+        assertFalse(upgraded.exists());
+
+        // An upgrade interrupted after the old file was removed is finished when the store is next opened.
+        Files.move(temp, upgraded);
+        store = new DiskBlockStore(params, temp);
+        assertEquals(b3, store.get(b3.getHeader().getHash()));
+        store.close();
+        assertFalse(upgraded.exists());
+
+        // The upgraded store reads back the same, with the saved heights and chain work.
+        store = new DiskBlockStore(params, temp);
+        for (StoredBlock block : new StoredBlock[] { genesis, b1, b2 }) {
+            StoredBlock read = store.get(block.getHeader().getHash());
+            assertEquals(block, read);
+            assertEquals(block.getHeight(), read.getHeight());
+            assertEquals(block.getChainWork(), read.getChainWork());
+            assertEquals(block.getHeader().getPrevBlockHash(), read.getHeader().getPrevBlockHash());
+        }
+        assertEquals(b2, store.getChainHead());
+        store.close();
+    }
 }
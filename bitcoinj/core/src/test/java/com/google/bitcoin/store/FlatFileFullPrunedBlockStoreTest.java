@@ -0,0 +1,262 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FlatFileFullPrunedBlockStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NetworkParameters params;
+    private File dir;
+    private FlatFileFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        dir = new File(folder.getRoot(), "flat");
+        store = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    private FlatFileFullPrunedBlockStore open() throws Exception {
+        return new FlatFileFullPrunedBlockStore(params, dir, 10, 4096);
+    }
+
+    private FlatFileFullPrunedBlockStore reopen() throws Exception {
+        store.close();
+        store = open();
+        return store;
+    }
+
+    private static StoredTransactionOutput output(int n) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) n, (byte) (n >> 8) });
+        return new StoredTransactionOutput(hash, n % 3, BigInteger.valueOf(n), n, false, new byte[] { (byte) n, 1, 2 });
+    }
+
+    private boolean isUnspent(StoredTransactionOutput out) throws Exception {
+        StoredTransactionOutput stored = store.getTransactionOutput(out.getHash(), out.getIndex());
+        if (stored == null)
+            return false;
+        assertEquals(out.getValue(), stored.getValue());
+        assertEquals(out.getHeight(), stored.getHeight());
+        assertArrayEquals(out.getScriptBytes(), stored.getScriptBytes());
+        return true;
+    }
+
+    // Adds a block with an undo block creating the given outputs, and makes it the verified chain head.
+    private StoredBlock addBlock(StoredTransactionOutput... created) throws Exception {
+        StoredBlock head = store.getVerifiedChainHead();
+        StoredBlock block = head.build(head.getHeader().createNextBlock(null).cloneAsHeader());
+        store.beginDatabaseBatchWrite();
+        for (StoredTransactionOutput out : created)
+            store.addUnspentTransactionOutput(out);
+        TransactionOutputChanges changes = new TransactionOutputChanges(Arrays.asList(created),
+                new ArrayList<StoredTransactionOutput>());
+        store.put(block, new StoredUndoableBlock(block.getHeader().getHash(), changes));
+        store.setVerifiedChainHead(block);
+        store.commitDatabaseBatchWrite();
+        return block;
+    }
+
+    @Test
+    public void persistsAcrossReopen() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.genesisBlock.getHash(), genesis.getHeader().getHash());
+        StoredBlock b1 = addBlock(output(1), output(2));
+        StoredBlock header = b1.build(b1.getHeader().createNextBlock(null).cloneAsHeader());
+        store.put(header);
+        store.removeUnspentTransactionOutput(output(1));
+
+        reopen();
+        assertEquals(b1, store.getChainHead());
+        assertEquals(b1, store.getVerifiedChainHead());
+        assertEquals(header, store.get(header.getHeader().getHash()));
+        assertEquals(b1, store.getOnceUndoableStoredBlock(b1.getHeader().getHash()));
+        assertNull(store.getOnceUndoableStoredBlock(header.getHeader().getHash()));
+        StoredUndoableBlock undo = store.getUndoBlock(b1.getHeader().getHash());
+        assertEquals(2, undo.getTxOutChanges().txOutsCreated.size());
+        assertEquals(0, store.getUndoBlock(genesis.getHeader().getHash()).getTransactions().size());
+        assertFalse(isUnspent(output(1)));
+        assertTrue(isUnspent(output(2)));
+        assertTrue(store.hasUnspentOutputs(output(2).getHash(), 3));
+        assertFalse(store.hasUnspentOutputs(output(1).getHash(), 3));
+        try {
+            store.removeUnspentTransactionOutput(output(1));
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void batches() throws Exception {
+        addBlock(output(1));
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(output(1));
+        store.addUnspentTransactionOutput(output(2));
+        store.addUnspentTransactionOutput(output(3));
+        store.removeUnspentTransactionOutput(output(3));
+        assertFalse(isUnspent(output(1)));
+        assertTrue(isUnspent(output(2)));
+        // Not visible to other threads until committed.
+        final boolean[] seen = new boolean[2];
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    seen[0] = isUnspent(output(1));
+                    seen[1] = isUnspent(output(2));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.start();
+        reader.join();
+        assertTrue(seen[0]);
+        assertFalse(seen[1]);
+        store.abortDatabaseBatchWrite();
+        assertTrue(isUnspent(output(1)));
+        assertFalse(isUnspent(output(2)));
+        assertFalse(isUnspent(output(3)));
+        reopen();
+        assertTrue(isUnspent(output(1)));
+        assertFalse(isUnspent(output(2)));
+    }
+
+    @Test
+    public void discardsIncompleteCommits() throws Exception {
+        StoredBlock b1 = addBlock(output(1));
+        File[] before = dir.listFiles();
+        StoredBlock b2 = addBlock(output(2));
+        store.close();
+        // Cut the last commit record short, as if the process died while writing it.
+        File last = null;
+        for (File file : dir.listFiles())
+            if (file.getName().startsWith("utxo-") && (last == null || file.getName().compareTo(last.getName()) > 0))
+                last = file;
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+        store = open();
+        assertEquals(b1, store.getChainHead());
+        assertTrue(isUnspent(output(1)));
+        assertFalse(isUnspent(output(2)));
+        assertNull(store.get(b2.getHeader().getHash()));
+        assertNull(store.getUndoBlock(b2.getHeader().getHash()));
+        assertEquals(before.length, dir.listFiles().length);
+        // Writing carries on from where the last commit ended.
+        addBlock(output(3));
+        reopen();
+        assertTrue(isUnspent(output(3)));
+        assertFalse(isUnspent(output(2)));
+        // Garbage on the end is ignored too.
+        store.close();
+        raf = new RandomAccessFile(last, "rw");
+        raf.seek(raf.length());
+        raf.write(new byte[] { 1, 0, 0, 0, 7, 1, 2, 3 });
+        raf.close();
+        store = open();
+        assertTrue(isUnspent(output(3)));
+    }
+
+    private int countFiles(String prefix) {
+        int n = 0;
+        for (File file : dir.listFiles())
+            if (file.getName().startsWith(prefix))
+                n++;
+        return n;
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        // Create and spend outputs so that the log runs over many segments, most of it dead.
+        for (int i = 0; i < 2000; i++) {
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(output(i));
+            if (i % 10 >= 2)
+                store.removeUnspentTransactionOutput(output(i - 1));
+            store.commitDatabaseBatchWrite();
+        }
+        List<StoredTransactionOutput> live = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 2000; i++)
+            if (isUnspent(output(i)))
+                live.add(output(i));
+        assertEquals(400, live.size());
+        store.compactNow();
+        int segments = countFiles("utxo-");
+        assertTrue(segments <= 3);
+        for (int i = 0; i < 2000; i++)
+            assertEquals(live.contains(output(i)), isUnspent(output(i)));
+        // Spend some more after the merge, then check it all survives reopening.
+        store.removeUnspentTransactionOutput(live.remove(0));
+        reopen();
+        for (int i = 0; i < 2000; i++)
+            assertEquals(live.contains(output(i)), isUnspent(output(i)));
+        store.compactNow();
+        reopen();
+        for (int i = 0; i < 2000; i++)
+            assertEquals(live.contains(output(i)), isUnspent(output(i)));
+    }
+
+    @Test
+    public void prunesUndoSegments() throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        for (int i = 0; i < 200; i++)
+            blocks.add(addBlock(output(i)));
+        // Only segments holding blocks within ten of the head are left.
+        assertTrue(countFiles("undo-") < 10);
+        assertNull(store.getUndoBlock(blocks.get(0).getHeader().getHash()));
+        for (StoredBlock block : blocks.subList(190, 200))
+            assertNotNull(store.getUndoBlock(block.getHeader().getHash()));
+        reopen();
+        assertNull(store.getUndoBlock(blocks.get(0).getHeader().getHash()));
+        for (StoredBlock block : blocks.subList(190, 200))
+            assertNotNull(store.getUndoBlock(block.getHeader().getHash()));
+        assertEquals(blocks.get(199), store.getVerifiedChainHead());
+    }
+
+    @Test
+    public void locked() throws Exception {
+        try {
+            open();
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+}
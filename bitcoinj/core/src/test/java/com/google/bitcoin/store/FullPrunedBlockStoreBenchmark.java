@@ -0,0 +1,135 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.StoredUndoableBlock;
+import com.google.bitcoin.core.TransactionOutputChanges;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how quickly outputs can be created and spent through an {@link H2FullPrunedBlockStore} and a
+ * {@link FlatFileFullPrunedBlockStore}, with and without a {@link CachingFullPrunedBlockStore} in front of them, and
+ * through H2 with group commit. Each simulated block spends outputs, mostly recent ones, creates new ones, stores an
+ * undo block and moves the verified chain head, in one batch write as FullPrunedBlockChain does. Not a unit test: run the main method by hand.
+ */
+public class FullPrunedBlockStoreBenchmark {
+    private static final NetworkParameters params = NetworkParameters.unitTests();
+    private static final int BLOCKS = 1000;
+    private static final int OUTPUTS_PER_BLOCK = 200;
+    private static final int SPENDS_PER_BLOCK = 180;
+    private static final int RECENT_OUTPUTS = 5000;
+    private static final int GROUP_COMMIT_SIZE = 20;
+
+    public static void main(String[] args) throws Exception {
+        List<StoredBlock> heads = new ArrayList<StoredBlock>();
+        StoredBlock head = new StoredBlock(params.genesisBlock.cloneAsHeader(), params.genesisBlock.getWork(), 0);
+        for (int i = 0; i < BLOCKS; i++) {
+            head = head.build(head.getHeader().createNextBlock(null).cloneAsHeader());
+            heads.add(head);
+        }
+        for (int round = 0; round < 2; round++) {
+            run("H2", false, false, 1, heads);
+            run("H2, group commit", false, false, GROUP_COMMIT_SIZE, heads);
+            run("H2 + cache", false, true, 1, heads);
+            run("flat", true, false, 1, heads);
+            run("flat + cache", true, true, 1, heads);
+        }
+    }
+
+    private static void run(String name, boolean flat, boolean cached, int groupCommitSize,
+                            List<StoredBlock> heads) throws Exception {
+        File dir = File.createTempFile("store-benchmark", null);
+        dir.delete();
+        dir.mkdir();
+        FullPrunedBlockStore store;
+        if (flat) {
+            store = new FlatFileFullPrunedBlockStore(params, new File(dir, "flat"), 10);
+        } else {
+            H2FullPrunedBlockStore h2 = new H2FullPrunedBlockStore(params, new File(dir, "db").getPath(), 10);
+            h2.setGroupCommitSize(groupCommitSize);
+            store = h2;
+        }
+        if (cached)
+            store = new CachingFullPrunedBlockStore(store, 100000);
+        try {
+            Random random = new Random(1);
+            List<StoredTransactionOutput> unspent = new ArrayList<StoredTransactionOutput>();
+            byte[] script = new byte[25];
+            int created = 0, spent = 0;
+            long start = System.nanoTime();
+            for (StoredBlock head : heads) {
+                List<StoredTransactionOutput> blockCreated = new ArrayList<StoredTransactionOutput>();
+                List<StoredTransactionOutput> blockSpent = new ArrayList<StoredTransactionOutput>();
+                store.beginDatabaseBatchWrite();
+                for (int i = 0; i < SPENDS_PER_BLOCK && !unspent.isEmpty(); i++) {
+                    // Most spends are of outputs created a few blocks ago.
+                    int n = unspent.size();
+                    int index = random.nextInt(5) != 0 ? n - 1 - random.nextInt(Math.min(n, RECENT_OUTPUTS)) : random.nextInt(n);
+                    StoredTransactionOutput out = unspent.get(index);
+                    unspent.set(index, unspent.get(n - 1));
+                    unspent.remove(n - 1);
+                    if (store.getTransactionOutput(out.getHash(), out.getIndex()) == null)
+                        throw new IllegalStateException("Lost " + out);
+                    store.removeUnspentTransactionOutput(out);
+                    blockSpent.add(out);
+                    spent++;
+                }
+                for (int i = 0; i < OUTPUTS_PER_BLOCK; i++) {
+                    Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) created, (byte) (created >> 8), (byte) (created >> 16) });
+                    StoredTransactionOutput out = new StoredTransactionOutput(hash, 0, BigInteger.ONE, head.getHeight(), false, script);
+                    if (!store.hasUnspentOutputs(hash, 1))
+                        store.addUnspentTransactionOutput(out);
+                    unspent.add(out);
+                    blockCreated.add(out);
+                    created++;
+                }
+                store.put(head, new StoredUndoableBlock(head.getHeader().getHash(),
+                        new TransactionOutputChanges(blockCreated, blockSpent)));
+                store.setVerifiedChainHead(head);
+                store.commitDatabaseBatchWrite();
+            }
+            if (cached)
+                ((CachingFullPrunedBlockStore) store).flush();
+            else if (!flat)
+                store.commitDatabaseBatchWrite();
+            double secs = (System.nanoTime() - start) / 1000000000.0;
+            System.out.println(String.format("%16s: %6.0f blocks/sec, %8.0f outputs created and spent/sec", name,
+                    heads.size() / secs, (created + spent) / secs));
+        } finally {
+            store.close();
+            delete(dir);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File child : files)
+                delete(child);
+        file.delete();
+    }
+}
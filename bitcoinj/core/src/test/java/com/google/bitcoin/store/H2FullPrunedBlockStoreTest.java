@@ -0,0 +1,237 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import com.google.bitcoin.core.StoredUndoableBlock;
+import com.google.bitcoin.core.TransactionOutputChanges;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class H2FullPrunedBlockStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NetworkParameters params;
+    private String path;
+    private H2FullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        path = new File(folder.getRoot(), "db").getPath();
+        store = new H2FullPrunedBlockStore(params, path, 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    private StoredTransactionOutput output(int n, int index) {
+        Sha256Hash hash = Sha256Hash.create(new byte[] { (byte) n });
+        return new StoredTransactionOutput(hash, index, BigInteger.valueOf(n), 1, false, new byte[] { (byte) n });
+    }
+
+    private boolean isUnspent(StoredTransactionOutput out) throws Exception {
+        return store.getTransactionOutput(out.getHash(), out.getIndex()) != null;
+    }
+
+    // Reads through a connection of its own, which only sees what has been committed.
+    private boolean isCommitted(final StoredTransactionOutput out) throws Exception {
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    result.set(store.getTransactionOutput(out.getHash(), out.getIndex()) != null);
+                } catch (Exception e) {
+                    result.set(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        if (result.get() instanceof Exception)
+            throw (Exception) result.get();
+        return (Boolean) result.get();
+    }
+
+    @Test
+    public void batchedOutputChanges() throws Exception {
+        StoredTransactionOutput a = output(1, 0), b = output(1, 1), c = output(2, 0);
+        store.addUnspentTransactionOutput(c);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        assertTrue(isUnspent(a));
+        // Created and spent in the same batch.
+        store.removeUnspentTransactionOutput(a);
+        assertFalse(isUnspent(a));
+        assertTrue(store.hasUnspentOutputs(a.getHash(), 2));
+        // Spent and then re-added in the same batch.
+        store.removeUnspentTransactionOutput(c);
+        assertFalse(isUnspent(c));
+        store.addUnspentTransactionOutput(c);
+        store.commitDatabaseBatchWrite();
+        assertFalse(isUnspent(a));
+        assertTrue(isUnspent(b));
+        assertTrue(isUnspent(c));
+        assertEquals(c.getValue(), store.getTransactionOutput(c.getHash(), 0).getValue());
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(b);
+        store.removeUnspentTransactionOutput(c);
+        store.commitDatabaseBatchWrite();
+        assertFalse(store.hasUnspentOutputs(b.getHash(), 2));
+        assertFalse(store.hasUnspentOutputs(c.getHash(), 1));
+    }
+
+    @Test
+    public void removingMissingOutputFails() throws Exception {
+        StoredTransactionOutput a = output(1, 0), b = output(2, 0);
+        try {
+            store.removeUnspentTransactionOutput(a);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        // Within a batch it is noticed when the batch is written, which then rolls back.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(b);
+        store.removeUnspentTransactionOutput(a);
+        try {
+            store.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        assertFalse(isUnspent(b));
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+        StoredTransactionOutput a = output(1, 0), b = output(2, 0), c = output(3, 0);
+        store.setGroupCommitSize(2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(a);
+        store.commitDatabaseBatchWrite();
+        assertTrue(isUnspent(a));
+        // An abort only undoes its own batch.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(b);
+        store.abortDatabaseBatchWrite();
+        assertTrue(isUnspent(a));
+        assertFalse(isUnspent(b));
+        // The second completed batch commits both.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(c);
+        store.commitDatabaseBatchWrite();
+        assertTrue(isCommitted(a));
+        assertTrue(isCommitted(c));
+
+        // Committing outside a batch writes out what is being held back.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(c);
+        store.commitDatabaseBatchWrite();
+        store.commitDatabaseBatchWrite();
+        assertFalse(isCommitted(c));
+
+        // So does closing the store.
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(b);
+        store.commitDatabaseBatchWrite();
+        store.close();
+        store = new H2FullPrunedBlockStore(params, path, 10);
+        assertTrue(isUnspent(a));
+        assertTrue(isUnspent(b));
+        assertFalse(isUnspent(c));
+    }
+
+    private TransactionOutputChanges undoData(int n) {
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 10; i++)
+            created.add(output(n, i));
+        return new TransactionOutputChanges(created, new ArrayList<StoredTransactionOutput>());
+    }
+
+    // Connects blocks 1 to the given height, each with some undo data.
+    private List<StoredBlock> connectBlocks(int height) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        blocks.add(store.getVerifiedChainHead());
+        for (int i = 1; i <= height; i++) {
+            StoredBlock head = blocks.get(i - 1);
+            head = head.build(head.getHeader().createNextBlock(null).cloneAsHeader());
+            store.beginDatabaseBatchWrite();
+            store.put(head, new StoredUndoableBlock(head.getHeader().getHash(), undoData(i)));
+            store.setVerifiedChainHead(head);
+            store.commitDatabaseBatchWrite();
+            blocks.add(head);
+        }
+        return blocks;
+    }
+
+    private boolean hasUndoData(StoredBlock block) throws Exception {
+        return store.getUndoBlock(block.getHeader().getHash()) != null;
+    }
+
+    @Test
+    public void prunesInBackground() throws Exception {
+        List<StoredBlock> blocks = connectBlocks(50);
+        store.waitForPruning();
+        // The store keeps 10 blocks of undo data.
+        assertFalse(hasUndoData(blocks.get(40)));
+        assertTrue(hasUndoData(blocks.get(41)));
+        assertTrue(hasUndoData(blocks.get(50)));
+        // The genesis block and blocks 1 to 40.
+        assertEquals(41, store.getPrunedUndoBlockCount());
+        assertEquals(0, store.getPruningBacklog());
+    }
+
+    @Test
+    public void prunesToDiskBudget() throws Exception {
+        List<StoredBlock> blocks = connectBlocks(20);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        undoData(1).serializeToStream(bos);
+        // Room for three and a half blocks of undo data.
+        store.setUndoDiskBudget(bos.size() * 7 / 2);
+        store.waitForPruning();
+        assertFalse(hasUndoData(blocks.get(17)));
+        assertTrue(hasUndoData(blocks.get(18)));
+        assertTrue(hasUndoData(blocks.get(20)));
+        // However small the budget, the chain head can be disconnected.
+        store.setUndoDiskBudget(1);
+        store.waitForPruning();
+        assertFalse(hasUndoData(blocks.get(19)));
+        assertTrue(hasUndoData(blocks.get(20)));
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SPVBlockStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NetworkParameters params;
+    private Address to;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        params = NetworkParameters.unitTests();
+        to = new ECKey().toAddress(params);
+        file = new File(folder.getRoot(), "spv-test");
+    }
+
+    private List<StoredBlock> buildChain(StoredBlock from, int length) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        for (int i = 0; i < length; i++) {
+            from = from.build(from.getHeader().createNextBlock(to).cloneAsHeader());
+            blocks.add(from);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void testStorage() throws Exception {
+        SPVBlockStore store = new SPVBlockStore(params, file);
+        // Check the first block in a new store is the genesis block.
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.genesisBlock, genesis.getHeader());
+
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b1);
+        store.setChainHead(b1);
+        store.close();
+
+        // Check we can get it back out again if we reopen the store.
+        store = new SPVBlockStore(params, file);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+        assertEquals(b1, store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void testRingBuffer() throws Exception {
+        SPVBlockStore store = new SPVBlockStore(params, file, 10);
+        List<StoredBlock> blocks = buildChain(store.getChainHead(), 25);
+        for (StoredBlock block : blocks) {
+            store.put(block);
+            store.setChainHead(block);
+        }
+        // Putting a block that's already there doesn't take up another record.
+        store.put(blocks.get(24));
+        store.close();
+
+        store = new SPVBlockStore(params, file, 10);
+        assertNull(store.get(params.genesisBlock.getHash()));
+        for (int i = 0; i < 15; i++)
+            assertNull(store.get(blocks.get(i).getHeader().getHash()));
+        for (int i = 15; i < 25; i++)
+            assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+        assertEquals(blocks.get(24), store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void testWrongCapacity() throws Exception {
+        new SPVBlockStore(params, file, 10).close();
+        try {
+            new SPVBlockStore(params, file, 20);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testLocking() throws Exception {
+        SPVBlockStore store = new SPVBlockStore(params, file);
+        try {
+            new SPVBlockStore(params, file);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        store.close();
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        final SPVBlockStore store = new SPVBlockStore(params, file, 50);
+        final List<StoredBlock> blocks = buildChain(store.getChainHead(), 500);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int round = 0; round < 20; round++) {
+                        for (StoredBlock block : blocks) {
+                            // Each block is either there and intact, or not there.
+                            StoredBlock read = store.get(block.getHeader().getHash());
+                            if (read != null && !read.equals(block))
+                                throw new AssertionError("Read a different block");
+                            if (read != null && read.getHeight() != block.getHeight())
+                                throw new AssertionError("Read a block with the wrong height");
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        reader.start();
+        for (StoredBlock block : blocks)
+            store.put(block);
+        reader.join();
+        if (failure.get() != null)
+            throw new RuntimeException(failure.get());
+        assertEquals(blocks.get(499), store.get(blocks.get(499).getHeader().getHash()));
+        store.close();
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Compares the heap used per output and the lookup rate of the {@link TransactionalOutputTable} in
+ * {@link MemoryFullPrunedBlockStore} against the {@link TransactionalHashMap} of objects it replaced. Not a unit test:
+ * run the main method by hand, with a heap of at least 2GB.
+ */
+public class TransactionalOutputTableBenchmark {
+    private static final int OUTPUTS = 2000000;
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < 2; round++) {
+            runMap();
+            runTable();
+        }
+    }
+
+    private static StoredTransactionOutput output(Random random) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        // A pay-to-address script.
+        byte[] script = new byte[25];
+        random.nextBytes(script);
+        script[0] = (byte) 0x76;
+        script[1] = (byte) 0xA9;
+        script[2] = 20;
+        script[23] = (byte) 0x88;
+        script[24] = (byte) 0xAC;
+        return new StoredTransactionOutput(new Sha256Hash(hash), random.nextInt(3), BigInteger.valueOf(random.nextInt()),
+                random.nextInt(250000), false, script);
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    private static void runMap() throws Exception {
+        long before = usedMemory();
+        TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput> map =
+                new TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        Random random = new Random(1);
+        for (int i = 0; i < OUTPUTS; i++) {
+            StoredTransactionOutput out = output(random);
+            map.put(new StoredTransactionOutPoint(out), out);
+        }
+        long bytes = usedMemory() - before;
+        random = new Random(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < OUTPUTS; i++) {
+            StoredTransactionOutput out = output(random);
+            if (map.get(new StoredTransactionOutPoint(out.getHash(), out.getIndex())) == null)
+                throw new IllegalStateException();
+        }
+        report("HashMap", bytes, start);
+    }
+
+    private static void runTable() throws Exception {
+        long before = usedMemory();
+        TransactionalOutputTable table = new TransactionalOutputTable();
+        Random random = new Random(1);
+        for (int i = 0; i < OUTPUTS; i++)
+            table.put(output(random));
+        long bytes = usedMemory() - before;
+        random = new Random(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < OUTPUTS; i++) {
+            StoredTransactionOutput out = output(random);
+            if (table.get(out.getHash(), out.getIndex()) == null)
+                throw new IllegalStateException();
+        }
+        report("table", bytes, start);
+    }
+
+    private static void report(String name, long bytes, long start) {
+        double secs = (System.nanoTime() - start) / 1000000000.0;
+        System.out.println(String.format("%8s: %5.0f bytes/output, %5.1fM outputs per GB, %9.0f lookups/sec", name,
+                (double) bytes / OUTPUTS, (1 << 30) / ((double) bytes / OUTPUTS) / 1000000, OUTPUTS / secs));
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredTransactionOutput;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TransactionalOutputTableTest {
+    private static StoredTransactionOutput output(Random random, boolean coinbase) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        // A mix of pay-to-address, pay-to-script-hash, other short and long scripts, to exercise each encoding.
+        int type = random.nextInt(4);
+        byte[] script = new byte[type == 0 ? 25 : type == 1 ? 23 : type == 2 ? random.nextInt(100) : 253 + random.nextInt(500)];
+        random.nextBytes(script);
+        if (type == 0) {
+            script[0] = (byte) 0x76;
+            script[1] = (byte) 0xA9;
+            script[2] = 20;
+            script[23] = (byte) 0x88;
+            script[24] = (byte) 0xAC;
+        } else if (type == 1) {
+            script[0] = (byte) 0xA9;
+            script[1] = 20;
+            script[22] = (byte) 0x87;
+        }
+        return new StoredTransactionOutput(new Sha256Hash(hash), random.nextInt(4),
+                BigInteger.valueOf(random.nextLong() & Long.MAX_VALUE), random.nextInt(100000), coinbase, script);
+    }
+
+    private static void assertSame(StoredTransactionOutput expected, StoredTransactionOutput actual) {
+        assertEquals(expected, actual);
+        assertEquals(expected.getValue(), actual.getValue());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertArrayEquals(expected.getScriptBytes(), actual.getScriptBytes());
+    }
+
+    @Test
+    public void matchesHashMap() throws Exception {
+        Random random = new Random(1);
+        TransactionalOutputTable table = new TransactionalOutputTable();
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> expected =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        List<StoredTransactionOutput> live = new ArrayList<StoredTransactionOutput>();
+        // Enough churn to grow the table several times and rewrite the script pages.
+        for (int i = 0; i < 200000; i++) {
+            int op = random.nextInt(10);
+            if (op < 6 || live.isEmpty()) {
+                StoredTransactionOutput out = output(random, op == 0);
+                table.put(out);
+                if (expected.put(new StoredTransactionOutPoint(out), out) == null)
+                    live.add(out);
+            } else if (op < 9) {
+                int n = random.nextInt(live.size());
+                StoredTransactionOutput out = live.get(n);
+                live.set(n, live.get(live.size() - 1));
+                live.remove(live.size() - 1);
+                assertTrue(table.remove(out.getHash(), out.getIndex()));
+                expected.remove(new StoredTransactionOutPoint(out));
+                assertFalse(table.remove(out.getHash(), out.getIndex()));
+                assertNull(table.get(out.getHash(), out.getIndex()));
+            } else {
+                // Overwrite with a different value and script.
+                StoredTransactionOutput old = live.get(random.nextInt(live.size()));
+                StoredTransactionOutput out = new StoredTransactionOutput(old.getHash(), old.getIndex(),
+                        BigInteger.valueOf(i), i, false, new byte[i % 7]);
+                table.put(out);
+                expected.put(new StoredTransactionOutPoint(out), out);
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        for (StoredTransactionOutput out : expected.values()) {
+            assertSame(out, table.get(out.getHash(), out.getIndex()));
+            assertTrue(table.contains(out.getHash(), out.getIndex()));
+            assertFalse(table.contains(out.getHash(), out.getIndex() + 4));
+        }
+    }
+
+    @Test
+    public void transactions() throws Exception {
+        Random random = new Random(2);
+        final TransactionalOutputTable table = new TransactionalOutputTable();
+        final StoredTransactionOutput a = output(random, false), b = output(random, true), c = output(random, false);
+        table.put(a);
+        table.put(b);
+
+        table.beginDatabaseBatchWrite();
+        assertTrue(table.remove(a.getHash(), a.getIndex()));
+        assertFalse(table.remove(a.getHash(), a.getIndex()));
+        table.put(c);
+        assertNull(table.get(a.getHash(), a.getIndex()));
+        assertFalse(table.contains(a.getHash(), a.getIndex()));
+        assertSame(c, table.get(c.getHash(), c.getIndex()));
+        // Other threads see the committed state.
+        final boolean[] seen = new boolean[2];
+        Thread thread = new Thread() {
+            public void run() {
+                seen[0] = table.contains(a.getHash(), a.getIndex());
+                seen[1] = table.contains(c.getHash(), c.getIndex());
+            }
+        };
+        thread.start();
+        thread.join();
+        assertTrue(seen[0]);
+        assertFalse(seen[1]);
+        table.abortDatabaseBatchWrite();
+        assertSame(a, table.get(a.getHash(), a.getIndex()));
+        assertNull(table.get(c.getHash(), c.getIndex()));
+
+        table.beginDatabaseBatchWrite();
+        assertTrue(table.remove(a.getHash(), a.getIndex()));
+        table.put(c);
+        assertTrue(table.remove(c.getHash(), c.getIndex()));
+        table.put(c);
+        table.commitDatabaseBatchWrite();
+        assertNull(table.get(a.getHash(), a.getIndex()));
+        assertSame(b, table.get(b.getHash(), b.getIndex()));
+        assertSame(c, table.get(c.getHash(), c.getIndex()));
+        assertEquals(2, table.size());
+    }
+}
@@ -216,6 +216,66 @@ public class WalletProtobufSerializerTest {
         assertEquals(work2, rebornConfidence1.getWorkDone());
     }
 
+    @Test
+    public void lazyHistory() throws Exception {
+        // Check that a lazily read wallet has the right balance before its history is loaded, and is the same as the
+        // original once it has been.
+        Address someoneElse = new ECKey().toAddress(params);
+        BigInteger v1 = Utils.toNanoCoins(1, 0);
+        // t1 is fully spent by t2, which pays someone else, so both end up in the spent pool.
+        Transaction t1 = createFakeTx(params, v1, myAddress);
+        myWallet.receiveFromBlock(t1, null, BlockChain.NewBlockType.BEST_CHAIN);
+        t1.getConfidence().setAppearedAtChainHeight(1);
+        t1.getConfidence().setDepthInBlocks(1);
+        t1.getConfidence().setWorkDone(BigInteger.ONE);
+        Transaction t2 = new Transaction(params);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(v1, someoneElse);
+        myWallet.receiveFromBlock(t2, null, BlockChain.NewBlockType.BEST_CHAIN);
+        // t3 has two outputs to us. t4 spends one of them, so it's in the spent pool but must be loaded up front.
+        Transaction t3 = new Transaction(params);
+        t3.addInput(createFakeTx(params, Utils.toNanoCoins(3, 0), someoneElse).getOutput(0));
+        t3.addOutput(v1, myAddress);
+        t3.addOutput(Utils.toNanoCoins(2, 0), myAddress);
+        myWallet.receiveFromBlock(t3, null, BlockChain.NewBlockType.BEST_CHAIN);
+        Transaction t4 = new Transaction(params);
+        t4.addInput(t3.getOutput(1));
+        t4.addOutput(Utils.toNanoCoins(2, 0), someoneElse);
+        myWallet.receiveFromBlock(t4, null, BlockChain.NewBlockType.BEST_CHAIN);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        int spent = 0;
+        for (Protos.Transaction txProto : serializer.walletToProto(myWallet).getTransactionList()) {
+            if (txProto.getPool() == Protos.Transaction.Pool.SPENT)
+                spent++;
+        }
+        assertEquals(3, spent);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        serializer.writeWallet(myWallet, output);
+        Wallet wallet1 = serializer.readWalletLazily(new ByteArrayInputStream(output.toByteArray()));
+        assertFalse(wallet1.isHistoryLoaded());
+        assertEquals(v1, wallet1.getBalance());
+        assertArrayEquals(myKey.getPubKey(), wallet1.findKeyFromPubHash(myKey.getPubKeyHash()).getPubKey());
+        assertFalse(wallet1.isHistoryLoaded());
+        // Neither building a Bloom filter nor a new block needs the history.
+        wallet1.getBloomFilter(0.001);
+        Block block = params.genesisBlock.createNextBlock(someoneElse);
+        wallet1.notifyNewBestBlock(block);
+        assertFalse(wallet1.isHistoryLoaded());
+
+        // Transactions loaded afterwards still count the block.
+        TransactionConfidence reloaded1 = wallet1.getTransaction(t1.getHash()).getConfidence();
+        assertEquals(ConfidenceType.BUILDING, reloaded1.getConfidenceType());
+        assertEquals(2, reloaded1.getDepthInBlocks());
+        assertEquals(BigInteger.ONE.add(block.getWork()), reloaded1.getWorkDone());
+        assertTrue(wallet1.isHistoryLoaded());
+        assertTrue(wallet1.isConsistent());
+        assertEquals(4, wallet1.getTransactions(true, true).size());
+        for (Transaction tx : myWallet.getTransactions(true, true)) {
+            assertArrayEquals(tx.bitcoinSerialize(), wallet1.getTransaction(tx.getHash()).bitcoinSerialize());
+        }
+        assertEquals(v1, wallet1.getBalance());
+    }
+
     private Wallet roundTrip(Wallet wallet) throws IOException {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         //System.out.println(WalletProtobufSerializer.walletToText(wallet));
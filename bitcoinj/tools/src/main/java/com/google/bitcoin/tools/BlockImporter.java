@@ -20,6 +20,7 @@ import com.google.bitcoin.core.Block;
 import com.google.bitcoin.core.FullPrunedBlockChain;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.store.FlatFileFullPrunedBlockStore;
 import com.google.bitcoin.store.FullPrunedBlockStore;
 import com.google.bitcoin.store.H2FullPrunedBlockStore;
 
@@ -31,11 +32,23 @@ import java.io.IOException;
  * This class reads block files stored in the reference/Satoshi clients format. This is simply a way to concatenate
  * blocks together. Importing block data with this tool can be a lot faster than syncing over the network, if you
  * have the files available.
+ *
+ * Usage: BlockImporter [h2|flat] [block file]. The store type defaults to h2 and the block file to blk0001.dat in
+ * the reference client's data directory. The time taken is printed at the end, so the two stores can be compared.
  */
 public class BlockImporter {
     public static void main(String[] args) throws Exception {
         NetworkParameters params = NetworkParameters.prodNet();
-        FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, "toy-full.blockchain", 100);
+        String storeType = args.length > 0 ? args[0] : "h2";
+        FullPrunedBlockStore store;
+        if (storeType.equals("h2")) {
+            store = new H2FullPrunedBlockStore(params, "toy-full.blockchain", 100);
+        } else if (storeType.equals("flat")) {
+            store = new FlatFileFullPrunedBlockStore(params, new File("toy-full-flat.blockchain"), 100);
+        } else {
+            System.err.println("Usage: BlockImporter [h2|flat] [block file]");
+            return;
+        }
         FullPrunedBlockChain chain = new FullPrunedBlockChain(params, store);
         
         String defaultDataDir;
@@ -46,7 +59,10 @@ public class BlockImporter {
         }
         
         // TODO: Move this to a library function
-        FileInputStream stream = new FileInputStream(new File(defaultDataDir + "blk0001.dat"));
+        String blockFile = args.length > 1 ? args[1] : defaultDataDir + "blk0001.dat";
+        FileInputStream stream = new FileInputStream(new File(blockFile));
+        long start = System.currentTimeMillis();
+        int startHeight = chain.getChainHead().getHeight();
         int i = 0;
         while (stream.available() > 0) {
             try {
@@ -72,6 +88,11 @@ public class BlockImporter {
             i++;
         }
         stream.close();
+        double secs = (System.currentTimeMillis() - start) / 1000.0;
+        int imported = chain.getChainHead().getHeight() - startHeight;
         System.out.println("Imported " + chain.getChainHead().getHeight() + " blocks.");
+        System.out.println(String.format("%d new blocks into the %s store in %.1f seconds, %.0f blocks/sec",
+                imported, storeType, secs, imported / secs));
+        store.close();
     }
 }
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.CheckpointManager;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BoundedOverheadBlockStore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Writes a checkpoint file for {@link CheckpointManager} from a block store that has caught up with the network, such
+ * as the chain file of WalletTool. Every difficulty transition block more than a month old becomes a checkpoint, so
+ * re-orgs can't touch them.
+ *
+ * Usage: BuildCheckpoints prod|test [chain file] [checkpoints file]. The files default to prodnet.chain or
+ * testnet.chain, and checkpoints or checkpoints-testnet.
+ */
+public class BuildCheckpoints {
+    private static final long MONTH_SECONDS = 30L * 24 * 60 * 60;
+
+    public static void main(String[] args) throws Exception {
+        String net = args.length > 0 ? args[0] : "prod";
+        NetworkParameters params;
+        if (net.equals("prod")) {
+            params = NetworkParameters.prodNet();
+        } else if (net.equals("test")) {
+            params = NetworkParameters.testNet();
+        } else {
+            System.err.println("Usage: BuildCheckpoints prod|test [chain file] [checkpoints file]");
+            return;
+        }
+        File chainFile = new File(args.length > 1 ? args[1] : net + "net.chain");
+        String defaultCheckpoints = net.equals("prod") ? "checkpoints" : "checkpoints-testnet";
+        File checkpointsFile = new File(args.length > 2 ? args[2] : defaultCheckpoints);
+
+        BlockStore store = new BoundedOverheadBlockStore(params, chainFile);
+        List<StoredBlock> checkpoints = new LinkedList<StoredBlock>();
+        long cutoff = System.currentTimeMillis() / 1000 - MONTH_SECONDS;
+        try {
+            for (StoredBlock block = store.getChainHead(); block != null && block.getHeight() > 0;
+                 block = block.getPrev(store)) {
+                if (block.getHeight() % params.interval == 0 && block.getHeader().getTimeSeconds() <= cutoff)
+                    checkpoints.add(block);
+            }
+        } finally {
+            store.close();
+        }
+        Collections.reverse(checkpoints);
+
+        FileOutputStream out = new FileOutputStream(checkpointsFile);
+        try {
+            CheckpointManager.write(params, checkpoints, out);
+        } finally {
+            out.close();
+        }
+        System.out.println("Wrote " + checkpoints.size() + " checkpoints to " + checkpointsFile);
+        if (!checkpoints.isEmpty())
+            System.out.println("Last checkpoint is at height " + checkpoints.get(checkpoints.size() - 1).getHeight());
+    }
+}